@@ -0,0 +1,90 @@
+package MMS.Client;
+
+import java.time.Duration;
+
+/**
+ * AdaptiveLinkPolicy describes when the agent considers its link to the edge router constrained, and
+ * how it adapts. A link is constrained when its round trip time or its achieved throughput crosses the
+ * thresholds. The agent then compresses payloads, widens the subscription coalescing window and paces
+ * subject casts to a send budget, a share of the measured throughput. Safety traffic is never paced.
+ */
+public class AdaptiveLinkPolicy
+{
+    private final Duration constrainedRtt;
+    private final double constrainedThroughput;
+    private final double budgetShare;
+    private final double fallbackBudget;
+    private final int compressionThreshold;
+    private final Duration constrainedCoalescingWindow;
+
+
+    /**
+     * Constructs a new AdaptiveLinkPolicy.
+     *
+     * @param constrainedRtt              the round trip time above which the link is constrained
+     * @param constrainedThroughput       the throughput in bytes per second below which the link is constrained
+     * @param budgetShare                 the share (0 to 1) of the measured throughput used as send budget
+     * @param fallbackBudget              the send budget in bytes per second while no throughput has been measured
+     * @param compressionThreshold        the payload size in bytes from which payloads are compressed
+     * @param constrainedCoalescingWindow the subscription coalescing window used while the link is constrained
+     */
+    public AdaptiveLinkPolicy(Duration constrainedRtt, double constrainedThroughput, double budgetShare, double fallbackBudget, int compressionThreshold, Duration constrainedCoalescingWindow)
+    {
+        if (budgetShare <= 0.0 || budgetShare > 1.0)
+            throw new IllegalArgumentException("Budget share must be above 0 and at most 1");
+
+        if (fallbackBudget <= 0.0)
+            throw new IllegalArgumentException("Fallback budget must be positive");
+
+        this.constrainedRtt = constrainedRtt;
+        this.constrainedThroughput = constrainedThroughput;
+        this.budgetShare = budgetShare;
+        this.fallbackBudget = fallbackBudget;
+        this.compressionThreshold = compressionThreshold;
+        this.constrainedCoalescingWindow = constrainedCoalescingWindow;
+    }
+
+
+    /**
+     * Returns the default policy, suited to VSAT links: constrained above 500 ms round trip time or
+     * below 256 KiB/s, a budget of 80% of the measured throughput or 32 KiB/s until it is measured,
+     * compressing payloads from 256 bytes and coalescing subscription changes for 250 ms.
+     *
+     * @return the default adaptive link policy
+     */
+    public static AdaptiveLinkPolicy defaultPolicy()
+    {
+        return new AdaptiveLinkPolicy(Duration.ofMillis(500), 256 * 1024, 0.8, 32 * 1024, 256, Duration.ofMillis(250));
+    }
+
+
+    public Duration getConstrainedRtt()
+    {
+        return constrainedRtt;
+    }
+
+    public double getConstrainedThroughput()
+    {
+        return constrainedThroughput;
+    }
+
+    public double getBudgetShare()
+    {
+        return budgetShare;
+    }
+
+    public double getFallbackBudget()
+    {
+        return fallbackBudget;
+    }
+
+    public int getCompressionThreshold()
+    {
+        return compressionThreshold;
+    }
+
+    public Duration getConstrainedCoalescingWindow()
+    {
+        return constrainedCoalescingWindow;
+    }
+}
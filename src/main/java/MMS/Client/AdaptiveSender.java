@@ -0,0 +1,403 @@
+package MMS.Client;
+
+import MMS.Client.Exceptions.SendingException;
+import MMS.Misc.TimingWheel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+
+/**
+ * AdaptiveSender paces the subject casts of an agent to what its link to the edge router can carry.
+ * <p>
+ * The link mode is judged from the round trip time and achieved throughput in the LinkStatistics of
+ * the connection. While the link keeps up, messages are sent right away. On a constrained link,
+ * regular messages are sent in order from a token bucket refilled at the send budget, and low priority
+ * messages are only sent when no regular message is waiting, with a newer message on a subject replacing
+ * an older one still waiting. Safety messages skip the queues and are sent right away, the bytes they
+ * use are taken from the budget afterwards.
+ * <p>
+ * A waiting message is dropped when it expires, through a timeout on the timing wheel,
+ * so a backlog built up on a slow link does not spend the budget on stale messages.
+ */
+class AdaptiveSender
+{
+    private static final Logger logger = LogManager.getLogger(AdaptiveSender.class);
+
+    /**
+     * Sends one message, adapting its payload to the given link mode.
+     */
+    interface Task
+    {
+        void send(LinkMode mode) throws SendingException;
+    }
+
+    private final AdaptiveLinkPolicy policy;
+    private final Executor executor;
+    private final Supplier<LinkStatistics> statistics;
+    private final Consumer<LinkMode> modeListener;
+    private final TimingWheel timingWheel;
+    private final ReentrantLock lock;
+    private final Set<Pending> normal;
+    private final Map<String, Pending> low;
+    private long queuedBytes;
+    private boolean draining;
+    private double tokens;
+    private long refilledAt;
+    private volatile LinkMode mode;
+
+
+    /**
+     * Constructs a new AdaptiveSender.
+     *
+     * @param policy       the adaptive link policy
+     * @param executor     the executor messages are sent on
+     * @param statistics   supplies the statistics of the connection messages currently go out on, or null
+     * @param modeListener notified when the link mode changes
+     * @param timingWheel  the wheel the expiry of waiting messages is tracked on
+     */
+    AdaptiveSender(AdaptiveLinkPolicy policy, Executor executor, Supplier<LinkStatistics> statistics, Consumer<LinkMode> modeListener, TimingWheel timingWheel)
+    {
+        this.policy = policy;
+        this.executor = executor;
+        this.statistics = statistics;
+        this.modeListener = modeListener;
+        this.timingWheel = timingWheel;
+        this.lock = new ReentrantLock();
+        this.normal = new LinkedHashSet<>();
+        this.low = new LinkedHashMap<>();
+        this.refilledAt = System.nanoTime();
+        this.mode = LinkMode.NORMAL;
+    }
+
+
+    /**
+     * Submits a message for sending.
+     *
+     * @param priority the priority of the message
+     * @param subject  the subject of the message, used to replace waiting low priority messages
+     * @param bytes    the approximate size of the message
+     * @param expires  the expiry of the message, or null if it does not expire
+     * @param task     sends the message
+     * @return a future completed when the message was sent, or exceptionally if it failed, expired or was replaced
+     */
+    CompletableFuture<Void> submit(Priority priority, String subject, int bytes, Instant expires, Task task)
+    {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        LinkMode previous = mode;
+        LinkMode current;
+        boolean direct;
+        boolean startDrain = false;
+        Pending replaced = null;
+
+        lock.lock();
+
+        try
+        {
+            current = evaluate();
+            direct = priority == Priority.SAFETY || (current == LinkMode.NORMAL && normal.isEmpty() && low.isEmpty());
+
+            if (direct)
+                take(bytes);
+
+            else
+            {
+                Pending pending = new Pending(subject, bytes, task, done);
+
+                if (expires != null)
+                    pending.expiry = timingWheel.scheduleAt(() -> expire(pending), expires);
+
+                if (priority == Priority.LOW)
+                {
+                    replaced = low.remove(subject);
+                    low.put(subject, pending);
+
+                    if (replaced != null)
+                    {
+                        queuedBytes -= replaced.bytes;
+                        cancelExpiry(replaced);
+                    }
+                }
+
+                else
+                    normal.add(pending);
+
+                queuedBytes += bytes;
+
+                if (!draining)
+                {
+                    draining = true;
+                    startDrain = true;
+                }
+            }
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (replaced != null)
+            replaced.done.completeExceptionally(new SendingException("Replaced by a newer message on " + subject));
+
+        if (current != previous)
+            modeChanged(current);
+
+        if (direct)
+            executor.execute(() -> run(task, current, done));
+
+        else if (startDrain)
+            executor.execute(this::drain);
+
+        return done;
+    }
+
+
+    /**
+     * Returns the current link mode.
+     *
+     * @return the link mode
+     */
+    LinkMode getMode()
+    {
+        return mode;
+    }
+
+
+    /**
+     * Compresses the payload if the link mode asks for it, harder the more the link is loaded.
+     *
+     * @param payload the payload
+     * @param mode    the link mode the message is sent in
+     * @return the compressed payload, or the payload itself if it is not compressed
+     */
+    byte[] compress(byte[] payload, LinkMode mode)
+    {
+        if (mode == LinkMode.NORMAL || payload.length < policy.getCompressionThreshold())
+            return payload;
+
+        int level = mode == LinkMode.SATURATED ? Deflater.BEST_COMPRESSION : Deflater.DEFAULT_COMPRESSION;
+        byte[] compressed = PayloadCompression.compress(payload, level);
+        return compressed != null ? compressed : payload;
+    }
+
+
+    /**
+     * Sends waiting messages for as long as the budget allows, then schedules itself for when it has refilled.
+     */
+    private void drain()
+    {
+        while (true)
+        {
+            Pending next;
+            LinkMode previous = mode;
+            LinkMode current;
+            long waitNanos;
+
+            lock.lock();
+
+            try
+            {
+                current = evaluate();
+                Iterator<Pending> queue = !normal.isEmpty() ? normal.iterator() : low.values().iterator();
+                next = queue.hasNext() ? queue.next() : null;
+
+                if (next == null)
+                {
+                    draining = false;
+                    return;
+                }
+
+                waitNanos = current == LinkMode.NORMAL ? 0 : reserve();
+
+                if (waitNanos == 0)
+                {
+                    queue.remove();
+                    queuedBytes -= next.bytes;
+                    cancelExpiry(next);
+                    take(next.bytes);
+                }
+            }
+
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (current != previous)
+                modeChanged(current);
+
+            if (waitNanos > 0)
+            {
+                CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS, executor).execute(this::drain);
+                return;
+            }
+
+            run(next.task, current, next.done);
+        }
+    }
+
+
+    /**
+     * Drops a waiting message that has expired, run by its timeout on the timing wheel.
+     */
+    private void expire(Pending pending)
+    {
+        boolean removed;
+
+        lock.lock();
+
+        try
+        {
+            removed = normal.remove(pending) || low.remove(pending.subject, pending);
+
+            if (removed)
+                queuedBytes -= pending.bytes;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (removed)
+            pending.done.completeExceptionally(new SendingException("The message on " + pending.subject + " expired before the link had budget for it"));
+    }
+
+
+    /**
+     * Cancels the expiry timeout of a message leaving the queues, called with the lock held.
+     */
+    private void cancelExpiry(Pending pending)
+    {
+        if (pending.expiry != null)
+            pending.expiry.cancel();
+    }
+
+
+    private void run(Task task, LinkMode mode, CompletableFuture<Void> done)
+    {
+        try
+        {
+            task.send(mode);
+            done.complete(null);
+        }
+
+        catch (SendingException | RuntimeException ex)
+        {
+            done.completeExceptionally(ex);
+        }
+    }
+
+
+    /**
+     * Judges the link mode from the connection statistics and the backlog. Called with the lock held.
+     */
+    private LinkMode evaluate()
+    {
+        LinkStatistics current = statistics.get();
+
+        if (current == null)
+            return mode;
+
+        double throughput = current.getThroughput();
+        boolean slowRtt = current.hasSample() && current.getSmoothedRtt().compareTo(policy.getConstrainedRtt()) > 0;
+        boolean slowThroughput = throughput > 0 && throughput < policy.getConstrainedThroughput();
+        LinkMode next;
+
+        if (!slowRtt && !slowThroughput)
+            next = LinkMode.NORMAL;
+
+        else
+            next = queuedBytes > budget(current) ? LinkMode.SATURATED : LinkMode.CONSTRAINED; // more than a second of budget waiting.
+
+        mode = next;
+        return next;
+    }
+
+
+    /**
+     * Returns the send budget in bytes per second.
+     */
+    private double budget(LinkStatistics current)
+    {
+        double throughput = current == null ? 0 : current.getThroughput();
+        return throughput > 0 ? throughput * policy.getBudgetShare() : policy.getFallbackBudget();
+    }
+
+
+    /**
+     * Refills the token bucket and returns how long to wait until a message may be sent, zero if it may
+     * be sent now. A message may be sent as long as the bucket is not empty, even if it empties it.
+     * Called with the lock held.
+     */
+    private long reserve()
+    {
+        double rate = budget(statistics.get());
+        long now = System.nanoTime();
+
+        tokens = Math.min(rate, tokens + (now - refilledAt) / 1e9 * rate); // at most one second of burst.
+        refilledAt = now;
+
+        if (tokens > 0)
+            return 0;
+
+        return Math.max(1, (long) (-tokens / rate * 1e9));
+    }
+
+
+    /**
+     * Takes the bytes of a message from the budget, called with the lock held.
+     */
+    private void take(int bytes)
+    {
+        if (mode != LinkMode.NORMAL)
+            tokens -= bytes;
+    }
+
+
+    private void modeChanged(LinkMode current)
+    {
+        logger.info("Link mode changed to " + current);
+
+        try
+        {
+            modeListener.accept(current);
+        }
+
+        catch (RuntimeException ex)
+        {
+            logger.error("Link mode listener failed", ex);
+        }
+    }
+
+
+    private static class Pending
+    {
+        private final String subject;
+        private final int bytes;
+        private final Task task;
+        private final CompletableFuture<Void> done;
+        private TimingWheel.Timeout expiry;
+
+        private Pending(String subject, int bytes, Task task, CompletableFuture<Void> done)
+        {
+            this.subject = subject;
+            this.bytes = bytes;
+            this.task = task;
+            this.done = done;
+        }
+    }
+}
@@ -1,40 +1,80 @@
 package MMS.Client;
 
+import MMS.Client.Codecs.MessageView;
+import MMS.Client.Codecs.WireCodec;
 import MMS.Client.Connections.*;
 import MMS.Client.Exceptions.*;
 import MMS.Client.Interfaces.*;
+import MMS.Client.ServiceDiscovery.BackgroundDiscovery;
 import MMS.Client.ServiceDiscovery.RouterInfo;
+import MMS.Client.ServiceDiscovery.RouterProber;
 import MMS.Client.ServiceDiscovery.mDNSDiscoveryService;
 import MMS.Client.TLSConfiguration.TLSConfig;
 import MMS.Client.TLSConfiguration.mTLSConfig;
+import MMS.Misc.GeoSubscription;
+import MMS.Misc.Geohash;
+import MMS.Misc.SharedSubscription;
+import MMS.Misc.SubjectFilter;
+import MMS.Misc.TimingWheel;
 import MMS.Protocols.MMTP.MMTPUtils;
 import MMS.Protocols.MMTP.MessageFormats.DirectApplicationMessage;
 import MMS.Protocols.MMTP.MessageFormats.MessageType;
-import MMS.Protocols.MMTP.MessageFormats.ProtocolMessage;
 import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
 import MMS.Protocols.MMTP.Validators.MMTPValidator;
-import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class Agent implements ConnectionListener, MessageListener, SubscribeListener
 {
     private static final Logger logger = LogManager.getLogger(Agent.class);
+    private static final int MAX_AREA_CELLS = 32;
     private static ExecutorService workerPool;
     private static mDNSDiscoveryService mDNSDiscoveryService;
     private static WsHandler wsHandler;
+    private static RouterProber routerProber;
+    private static BackgroundDiscovery backgroundDiscovery;
+    private static TimingWheel timingWheel;
 
     private final SubscriptionManager subscriptionManager;
+    private final AtomicReference<DuplicateFilter> duplicateFilter;
     private final AgentListener adapter;
-    private Connection connection;
-    private AgentStatus status;
+    private final boolean wantsMessageViews;
+    private final AtomicReference<AgentState> state;
+    private final RequestTracker requestTracker;
+    private volatile RouterPool pool;
+    private volatile SharedLink sharedLink;
+
+    private volatile RouterInfo routerInfo;
+    private volatile TLSConfig tlsConfig;
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile DeltaEncoder deltaEncoder;
+    private volatile AdaptiveSender adaptiveSender;
+    private volatile RequestHandler requestHandler;
+    private volatile boolean snapshotRequests;
+    private volatile boolean closedByUser;
+    private volatile boolean reconnecting;
+    private final AtomicInteger reconnectAttempt;
+    private volatile long connectionLostAt;
+
+    private volatile List<RouterInfo> migrationCandidates;
+    private volatile Duration migrationInterval;
+    private volatile double migrationThreshold;
+    private volatile boolean migrating;
+    private volatile Connection migratedAway;
 
 
     /**
@@ -53,8 +93,33 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     private Agent(Class<? extends AgentListener> agentListenerImpl) throws NoSuchMethodException, InvocationTargetException, InstantiationException, IllegalAccessException
     {
         this.adapter = agentListenerImpl.getDeclaredConstructor(ConnectionListener.class).newInstance(this);
-        this.subscriptionManager = new SubscriptionManager(this);
-        this.status = AgentStatus.NOT_CONNECTED;
+        this.wantsMessageViews = adapter.wantsMessageViews();
+        this.duplicateFilter = new AtomicReference<>();
+        this.subscriptionManager = new SubscriptionManager(this, workerPool);
+        this.state = new AtomicReference<>(AgentState.NOT_CONNECTED);
+        this.reconnectAttempt = new AtomicInteger();
+        this.requestTracker = new RequestTracker(timingWheel);
+        this.reconnectPolicy = ReconnectPolicy.defaultPolicy();
+        logger.info("A new agent instance was created");
+    }
+
+
+    /**
+     * Constructs a new Agent instance, creating the AgentListener with the given factory.
+     * The factory is called once, with the new agent, and must return a new listener every time.
+     *
+     * @param agentListenerFactory The factory creating the AgentListener implementation.
+     */
+    private Agent(Function<ConnectionListener, ? extends AgentListener> agentListenerFactory)
+    {
+        this.adapter = agentListenerFactory.apply(this);
+        this.wantsMessageViews = adapter.wantsMessageViews();
+        this.duplicateFilter = new AtomicReference<>();
+        this.subscriptionManager = new SubscriptionManager(this, workerPool);
+        this.state = new AtomicReference<>(AgentState.NOT_CONNECTED);
+        this.reconnectAttempt = new AtomicInteger();
+        this.requestTracker = new RequestTracker(timingWheel);
+        this.reconnectPolicy = ReconnectPolicy.defaultPolicy();
         logger.info("A new agent instance was created");
     }
 
@@ -72,15 +137,7 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     {
         try
         {
-            if (workerPool == null)
-                workerPool = Executors.newCachedThreadPool();
-
-            if (mDNSDiscoveryService == null)
-                mDNSDiscoveryService = new mDNSDiscoveryService();
-
-            if (wsHandler == null)
-                wsHandler = new WsHandler();
-
+            initShared();
             return new Agent(agentListenerImpl);
         }
 
@@ -92,14 +149,157 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     }
 
 
+    /**
+     * This method is used to get an instance of the Agent class without reflection, which is preferred
+     * when hosting many agents in one process. The factory is called with the new agent and must return
+     * a new AgentListener instance, typically a constructor reference such as MyListener::new.
+     * All agents share the WebSocket client stack, the dispatch pool and the worker pool.
+     *
+     * @param agentListenerFactory The factory creating the AgentListener implementation.
+     * @return Agent
+     * @throws AgentInitException If the agent could not be initialized.
+     */
+    public static synchronized Agent getInstance(Function<ConnectionListener, ? extends AgentListener> agentListenerFactory) throws AgentInitException
+    {
+        try
+        {
+            initShared();
+            return new Agent(agentListenerFactory);
+        }
+
+        catch (IOException ex)
+        {
+            logger.error("Failed to create a new agent instance", ex);
+            throw new AgentInitException("Failed to initialize agent", ex);
+        }
+    }
+
+
+    /**
+     * Initializes the static fields shared between all instances of the Agent class, if they are null.
+     *
+     * @throws IOException If the discovery service could not be created.
+     */
+    private static void initShared() throws IOException
+    {
+        if (workerPool == null)
+            workerPool = Executors.newCachedThreadPool();
+
+        if (mDNSDiscoveryService == null)
+            mDNSDiscoveryService = new mDNSDiscoveryService();
+
+        if (wsHandler == null)
+            wsHandler = new WsHandler();
+
+        if (routerProber == null)
+            routerProber = new RouterProber(workerPool, 3, Duration.ofSeconds(3));
+
+        if (timingWheel == null)
+            timingWheel = new TimingWheel(Duration.ofMillis(10), workerPool);
+    }
+
+
+    /**
+     * This method is used to configure the WebSocket client stack shared by all Agent instances.
+     * It must be called before the first Agent instance is created.
+     *
+     * @param config The WebSocket client configuration.
+     * @throws IllegalStateException If an Agent instance has already been created.
+     */
+    public static synchronized void setClientConfig(WsClientConfig config)
+    {
+        if (wsHandler != null)
+            throw new IllegalStateException("The client configuration must be set before the first agent is created");
+
+        wsHandler = new WsHandler(config);
+    }
+
+
+    /**
+     * This method is used to run the blocking work of all Agent instances, such as connecting, sending and
+     * sending subscription changes, on virtual threads instead of the cached platform thread pool.
+     * It needs Java 21 or later and must be called before the first Agent instance is created.
+     * The locks held while blocking are not monitors, so the virtual threads are not pinned to their carriers.
+     * The carrier count sets the jdk.virtualThreadScheduler.parallelism property unless it is set already, and is
+     * the scheduler's usual number of carriers; the JDK may still add carriers while threads are pinned elsewhere.
+     * Set jdk.virtualThreadScheduler.maxPoolSize on the command line to cap them.
+     *
+     * @param carrierThreads The number of carrier threads the virtual threads are scheduled on, zero for the JDK default.
+     * @throws IllegalStateException         If an Agent instance has already been created.
+     * @throws UnsupportedOperationException If the running Java version has no virtual threads.
+     */
+    public static synchronized void useVirtualThreads(int carrierThreads)
+    {
+        if (workerPool != null)
+            throw new IllegalStateException("The execution mode must be chosen before the first agent is created");
+
+        workerPool = VirtualThreads.newExecutor(carrierThreads);
+        logger.info("Agents run their blocking work on virtual threads.");
+    }
+
+
+    /**
+     * This method is used to start discovering edge routers continuously in the background,
+     * shared by all Agent instances. Once started, discover() is answered from the router cache
+     * and listeners added with addDiscoveryListener are told about routers appearing and disappearing.
+     *
+     * @param ttl The time a router stays known after it was last seen.
+     */
+    public static synchronized void startBackgroundDiscovery(Duration ttl)
+    {
+        if (mDNSDiscoveryService == null)
+            throw new IllegalStateException("Background discovery needs an agent instance to be created first");
+
+        if (backgroundDiscovery == null)
+        {
+            backgroundDiscovery = new BackgroundDiscovery(mDNSDiscoveryService, ttl.toMillis());
+            backgroundDiscovery.start();
+        }
+    }
+
+
+    /**
+     * This method is used to stop the background discovery of edge routers.
+     */
+    public static synchronized void stopBackgroundDiscovery()
+    {
+        if (backgroundDiscovery != null)
+        {
+            backgroundDiscovery.stop();
+            backgroundDiscovery = null;
+        }
+    }
+
+
+    /**
+     * This method is used to receive live updates about edge routers from the background discovery.
+     *
+     * @param listener The listener to notify when routers are added or removed.
+     * @throws IllegalStateException If background discovery has not been started.
+     */
+    public static synchronized void addDiscoveryListener(ServiceDiscoveryListener listener)
+    {
+        if (backgroundDiscovery == null)
+            throw new IllegalStateException("Background discovery is not running");
+
+        backgroundDiscovery.addListener(listener);
+    }
+
+
     /**
      * This method is used to discover edge routers on the Local Area Network.
      * It returns a CompletableFuture that will be completed with a list of RouterInfo objects.
+     * When background discovery is running, the future is completed right away from the router cache.
      *
      * @return CompletableFuture<List < RouterInfo>>
      */
-    public synchronized CompletableFuture<List<RouterInfo>> discover()
+    public CompletableFuture<List<RouterInfo>> discover()
     {
+        BackgroundDiscovery background = backgroundDiscovery;
+
+        if (background != null)
+            return background.getRouters();
+
         return CompletableFuture.supplyAsync(mDNSDiscoveryService::listen, workerPool);
     }
 
@@ -110,13 +310,54 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      *
      * @param listener The ServiceDiscoveryListener implementation that will be called when the discovery is completed.
      */
-    public synchronized void discover(ServiceDiscoveryListener listener)
+    public void discover(ServiceDiscoveryListener listener)
     {
-        workerPool.execute(() ->
-        {
-            List<RouterInfo> routers = mDNSDiscoveryService.listen();
-            listener.servicesDiscovered(routers);
-        });
+        discover().thenAcceptAsync(listener::servicesDiscovered, workerPool);
+    }
+
+
+    /**
+     * This method is used to discover edge routers on the Local Area Network and rank them by health.
+     * Every discovered router is probed several times in parallel, measuring the round trip time and the
+     * TLS handshake time, and the routers are returned ordered from best to worst.
+     *
+     * @param tlsConfig The TLS configuration used for the probe handshakes.
+     * @return CompletableFuture<List<RouterInfo>> Future completed with the routers ordered by health.
+     */
+    public CompletableFuture<List<RouterInfo>> discoverRanked(TLSConfig tlsConfig)
+    {
+        return discover().thenCompose(routers -> routerProber.rank(routers, tlsConfig));
+    }
+
+
+    /**
+     * This method is used to let the agent move to a healthier router on its own.
+     * The connected router and the candidates are probed periodically, and when the score of the
+     * connected router is worse than the score of the best candidate times the threshold, the agent
+     * connects to the best candidate, restores its subscriptions there and then closes the old connection.
+     *
+     * @param candidates The routers the agent may migrate to.
+     * @param interval   The time between two health checks.
+     * @param threshold  How many times worse the connected router must score before migrating, at least 1.
+     */
+    public void enableRouterMigration(List<RouterInfo> candidates, Duration interval, double threshold)
+    {
+        boolean alreadyRunning = this.migrationCandidates != null;
+        this.migrationCandidates = new ArrayList<>(candidates);
+        this.migrationInterval = interval;
+        this.migrationThreshold = Math.max(1.0, threshold);
+
+        if (!alreadyRunning)
+            scheduleHealthCheck();
+    }
+
+
+    /**
+     * This method is used to stop the agent from migrating between routers on its own.
+     */
+    public void disableRouterMigration()
+    {
+        this.migrationCandidates = null;
     }
 
 
@@ -128,14 +369,16 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      * @param routerInfo The RouterInfo object that contains the information of the edge router to connect to.
      * @param tlsConfig  The TLSConfig object that contains the TLS configuration needed to connect to the edge router.
      * @return CompletableFuture<Void> Future that will be completed when the connection is established or failed.
-     * @throws ConnectException Thrown when the agent is already connected to an edge router.
+     * @throws ConnectException Thrown when the agent is already connected or connecting to an edge router.
      */
-    public synchronized CompletableFuture<Void> connectAnonymously(RouterInfo routerInfo, TLSConfig tlsConfig) throws ConnectException
+    public CompletableFuture<Void> connectAnonymously(RouterInfo routerInfo, TLSConfig tlsConfig) throws ConnectException
     {
-        if (this.status == AgentStatus.CONNECTED_AUTHENTICATED || this.status == AgentStatus.CONNECTED_ANONYMOUS)
-            throw new ConnectException("Agent is already connected to an edge router");
-
-        return CompletableFuture.runAsync(() -> wsHandler.connectAnonymously(routerInfo, tlsConfig, this, this), workerPool);
+        beginConnect();
+        this.routerInfo = routerInfo;
+        this.tlsConfig = tlsConfig;
+        this.pool = null;
+        this.sharedLink = null;
+        return CompletableFuture.runAsync(() -> wsHandler.connectAnonymously(routerInfo, tlsConfig, this, this), workerPool).whenComplete(this::abortConnect);
     }
 
 
@@ -147,14 +390,194 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      * @param routerInfo The RouterInfo object that contains the information of the edge router to connect to.
      * @param tlsConfig  The mTLSConfig object that contains the TLS configuration needed to connect to the edge router.
      * @return CompletableFuture<Void> Future that will be completed when the connection is established or failed.
-     * @throws ConnectException Thrown when the agent is already connected to an edge router.
+     * @throws ConnectException Thrown when the agent is already connected or connecting to an edge router.
+     */
+    public CompletableFuture<Void> connectAuthenticated(RouterInfo routerInfo, mTLSConfig tlsConfig) throws ConnectException
+    {
+        beginConnect();
+        this.routerInfo = routerInfo;
+        this.tlsConfig = tlsConfig;
+        this.pool = null;
+        this.sharedLink = null;
+        return CompletableFuture.runAsync(() -> wsHandler.connectAuthenticated(routerInfo, tlsConfig, this, this), workerPool).whenComplete(this::abortConnect);
+    }
+
+
+    /**
+     * This method is used to connect to the best of several edge routers by racing them.
+     * The routers are ordered by their known health, and the best few are connected to with staggered
+     * starts. The first connection to complete is kept and the others are abandoned, so a slow or
+     * unreachable router does not hold up the connect. The winner is used for reconnects afterwards.
+     *
+     * @param routers   The edge routers to race, for example the result of discover().
+     * @param tlsConfig The TLS configuration, an mTLSConfig makes the connection authenticated.
+     * @return CompletableFuture<RouterInfo> Future completed with the router connected to, or exceptionally if none could be reached.
+     * @throws ConnectException Thrown when the agent is already connected or connecting to an edge router.
+     */
+    public CompletableFuture<RouterInfo> connectRacing(List<RouterInfo> routers, TLSConfig tlsConfig) throws ConnectException
+    {
+        if (routers.isEmpty())
+            throw new ConnectException("At least one edge router is needed");
+
+        beginConnect();
+        this.routerInfo = null;
+        this.tlsConfig = tlsConfig;
+        this.pool = null;
+        this.sharedLink = null;
+
+        return wsHandler.connectRacing(routerProber.sort(routers), tlsConfig, this, this).thenApply(winner ->
+        {
+            this.routerInfo = winner;
+            return winner;
+        });
+    }
+
+
+    /**
+     * This method is used to connect to several edge routers at once.
+     * Outbound messages are spread over the connections by load and fail over when a connection drops,
+     * subscriptions are mirrored on every connection, and messages received from more than one router
+     * are only delivered once. Connections that drop are re-established according to the reconnect policy.
+     * The agent counts as connected as long as at least one of the connections is up.
+     *
+     * @param routers   The edge routers to connect to.
+     * @param tlsConfig The TLS configuration, an mTLSConfig makes the connections authenticated.
+     * @return CompletableFuture<Void> Future that will be completed when all connection attempts have been started.
+     * @throws ConnectException Thrown when the agent is already connected or connecting to an edge router.
+     */
+    public CompletableFuture<Void> connectPool(List<RouterInfo> routers, TLSConfig tlsConfig) throws ConnectException
+    {
+        if (routers.isEmpty())
+            throw new ConnectException("At least one edge router is needed");
+
+        beginConnect();
+        this.routerInfo = null;
+        this.tlsConfig = tlsConfig;
+        this.sharedLink = null;
+
+        RouterPool.Listener poolListener = new RouterPool.Listener()
+        {
+            @Override
+            public void onPoolConnected(Connection connection)
+            {
+                onConnectionEstablished(connection);
+            }
+
+            @Override
+            public void onPoolDisconnected(DisconnectionReason reason)
+            {
+                onConnectionLost(reason);
+            }
+        };
+
+        RouterPool routerPool = new RouterPool(routers, tlsConfig, wsHandler, subscriptionManager, this, poolListener, workerPool, reconnectPolicy);
+        this.pool = routerPool;
+        return CompletableFuture.runAsync(routerPool::connect, workerPool).whenComplete(this::abortConnect);
+    }
+
+
+    /**
+     * This method is used to open a connection to an edge router that several agents in this process can share.
+     * Agents join the link with connectShared, and it is closed when the last of them disconnects.
+     *
+     * @param routerInfo The edge router to connect to.
+     * @param tlsConfig  The TLS configuration, an mTLSConfig makes the link authenticated with the identity of its certificate.
+     * @return SharedLink The link, connecting in the background.
+     * @throws IllegalStateException If no Agent instance has been created yet.
+     */
+    public static synchronized SharedLink openSharedLink(RouterInfo routerInfo, TLSConfig tlsConfig)
+    {
+        if (wsHandler == null)
+            throw new IllegalStateException("A shared link needs an agent instance to be created first");
+
+        SharedLink link = new SharedLink(routerInfo, tlsConfig, wsHandler, workerPool, ReconnectPolicy.defaultPolicy());
+        workerPool.execute(link::connect);
+        return link;
+    }
+
+
+    /**
+     * This method is used to connect over a link shared with other agents in this process.
+     * The agent keeps its own subscriptions and listener, but subject casts wanted by several agents
+     * are only received once, and handshakes and keepalives are done once for all of them.
+     * Direct messages are addressed to the identity of the link. Reconnecting is left to the link.
+     *
+     * @param link The shared link, opened with openSharedLink.
+     * @return CompletableFuture<Void> Future that will be completed when the agent has joined the link.
+     * @throws ConnectException Thrown when the agent is already connected or connecting to an edge router.
+     */
+    public CompletableFuture<Void> connectShared(SharedLink link) throws ConnectException
+    {
+        beginConnect();
+        this.routerInfo = null;
+        this.tlsConfig = null;
+        this.pool = null;
+        this.sharedLink = link;
+        return CompletableFuture.runAsync(() -> link.attach(this), workerPool).whenComplete(this::abortConnect);
+    }
+
+
+    /**
+     * Moves the agent from NOT_CONNECTED or LOST_CONNECTION to CONNECTING, so that of several concurrent
+     * connects only one goes ahead. A reconnect in progress is abandoned in favour of the new connect.
+     *
+     * @throws ConnectException Thrown when the agent is already connected or connecting.
+     */
+    private void beginConnect() throws ConnectException
+    {
+        if (!transition(AgentState.CONNECTING, AgentState.NOT_CONNECTED, AgentState.LOST_CONNECTION))
+            throw new ConnectException("Agent is already connected or connecting to an edge router");
+
+        this.closedByUser = false;
+        this.reconnecting = false;
+        this.reconnectAttempt.set(0);
+    }
+
+
+    /**
+     * Returns the agent to NOT_CONNECTED if starting a connect failed before any callback could report it.
+     *
+     * @param ignored The result of starting the connect.
+     * @param ex      The failure, or null if the connect was started.
+     */
+    private void abortConnect(Void ignored, Throwable ex)
+    {
+        if (ex != null)
+            transition(AgentState.NOT_CONNECTED, AgentState.CONNECTING);
+    }
+
+
+    /**
+     * Moves the agent to the next state if it is in one of the expected states.
+     *
+     * @param next     The state to move to.
+     * @param expected The states the transition is allowed from.
+     * @return true if the agent moved to the next state, false if it was in none of the expected states.
      */
-    public synchronized CompletableFuture<Void> connectAuthenticated(RouterInfo routerInfo, mTLSConfig tlsConfig) throws ConnectException
+    private boolean transition(AgentState next, AgentState... expected)
+    {
+        while (true)
+        {
+            AgentState current = state.get();
+
+            if (!isOneOf(current, expected))
+                return false;
+
+            if (state.compareAndSet(current, next))
+                return true;
+        }
+    }
+
+
+    private static boolean isOneOf(AgentState current, AgentState... states)
     {
-        if (this.status == AgentStatus.CONNECTED_AUTHENTICATED || this.status == AgentStatus.CONNECTED_ANONYMOUS)
-            throw new ConnectException("Agent is already connected to an edge router");
+        for (AgentState candidate : states)
+        {
+            if (current == candidate)
+                return true;
+        }
 
-        return CompletableFuture.runAsync(() -> wsHandler.connectAuthenticated(routerInfo, tlsConfig, this, this), workerPool);
+        return false;
     }
 
 
@@ -166,12 +589,32 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      * @return CompletableFuture<Void> Future that will be completed when the connection is closed or failed.
      * @throws DisconnectException Thrown when the agent is not connected to any edge router.
      */
-    public synchronized CompletableFuture<Void> disconnect() throws DisconnectException
+    public CompletableFuture<Void> disconnect() throws DisconnectException
     {
-        if (!this.status.equals(AgentStatus.CONNECTED_AUTHENTICATED) && !this.status.equals(AgentStatus.CONNECTED_ANONYMOUS))
+        AgentState current = state.get();
+
+        if (!current.isConnected())
             throw new DisconnectException("Agent is not connected to any edge router");
 
-        return CompletableFuture.runAsync(() -> this.connection.close(WsCodes.NORMAL_CLOSURE, "User closed connection."), workerPool);
+        this.closedByUser = true;
+        RouterPool routerPool = this.pool;
+
+        if (routerPool != null)
+            return CompletableFuture.runAsync(routerPool::close, workerPool);
+
+        SharedLink link = this.sharedLink;
+
+        if (link != null)
+        {
+            return CompletableFuture.runAsync(() ->
+            {
+                link.detach(this);
+                this.sharedLink = null;
+                onConnectionLost(new DisconnectionReason("User closed connection.", WsCodes.NORMAL_CLOSURE.getCode()));
+            }, workerPool);
+        }
+
+        return CompletableFuture.runAsync(() -> current.getConnection().close(WsCodes.NORMAL_CLOSURE, "User closed connection."), workerPool);
     }
 
 
@@ -191,6 +634,9 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
 
     /**
      * This method is used to subscribe to a list of subjects.
+     * Subscription changes made within a short window are coalesced and sent together.
+     * With a last value cache configured, the last message received on a subscribed subject is delivered right away,
+     * and with snapshot requests enabled, the router is asked for the subjects the cache does not hold.
      *
      * @param subjects The list of subjects to subscribe to.
      * @return CompletableFuture<List<String>> Future that will be completed with a list of subjects that were successfully subscribed to.
@@ -198,10 +644,68 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public CompletableFuture<List<String>> subscribe(List<String> subjects) throws NotConnectedException
     {
-        if (this.status == AgentStatus.LOST_CONNECTION || this.status == AgentStatus.NOT_CONNECTED)
+        if (!state.get().isConnected())
             throw new NotConnectedException("Agent is not connected to the router");
 
-        return CompletableFuture.supplyAsync(() -> this.subscriptionManager.subscribe(subjects, connection), workerPool);
+        SharedLink link = this.sharedLink;
+        CompletableFuture<List<String>> subscribed = link != null ? link.subscribe(this, subjects) : this.subscriptionManager.subscribe(subjects, subscriptionTargets());
+
+        return subscribed.thenApply(confirmed ->
+        {
+            deliverSnapshots(confirmed, link);
+            return confirmed;
+        });
+    }
+
+
+    /**
+     * Delivers the cached last message of every confirmed subject, and asks the router for the subjects
+     * not in the cache if snapshot requests are enabled. Only messages received by connections with the identity
+     * of the agent's connection are delivered, as the router might not have delivered the others to the agent.
+     * Shared and area subscriptions get no snapshot, as their messages are meant for one member of a group or for
+     * a position. A message published while the subscription was being confirmed may be delivered both live and
+     * as the snapshot.
+     *
+     * @param interests The confirmed interests.
+     * @param link      The shared link the agent is attached to, or null.
+     */
+    private void deliverSnapshots(List<String> interests, SharedLink link)
+    {
+        Connection connection = state.get().getConnection();
+        LastValueCache cache = wsHandler != null && connection != null ? wsHandler.getLastValueCache() : null;
+        String scope = cache != null ? LastValueCache.scopeOf(connection) : null;
+        List<String> missing = new ArrayList<>();
+
+        for (String interest : interests)
+        {
+            if (SharedSubscription.isShared(interest) || GeoSubscription.isGeo(interest))
+                continue;
+
+            String subject = SubjectFilter.subject(interest);
+            LastValueCache.Entry last = cache != null ? cache.get(scope, subject) : null;
+
+            if (last == null)
+            {
+                if (!missing.contains(subject))
+                    missing.add(subject);
+
+                continue;
+            }
+
+            SubjectFilter filter = SubjectFilter.filterOf(interest);
+
+            if (filter == null || filter.test(last.getSender(), last.getPayload()))
+                workerPool.execute(() -> adapter.onSubjectCastMessage(last.getMessageId(), last.getSender(), subject, last.getExpires(), last.getPayload().clone()));
+        }
+
+        if (missing.isEmpty() || !snapshotRequests)
+            return;
+
+        if (link != null)
+            workerPool.execute(() -> link.requestSnapshot(missing));
+
+        else
+            workerPool.execute(() -> subscriptionManager.requestSnapshot(missing, subscriptionTargets()));
     }
 
 
@@ -222,6 +726,7 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     /**
      * This method is used to unsubscribe from a list of subjects.
      * This method returns a CompletableFuture that will be completed with a list of subjects that were successfully unsubscribed from.
+     * Subscription changes made within a short window are coalesced and sent together.
      *
      * @param subjects The list of subjects to unsubscribe from.
      * @return CompletableFuture<List < String>> Future that will be completed with a list of subjects that were successfully unsubscribed from.
@@ -229,79 +734,223 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public CompletableFuture<List<String>> unsubscribe(List<String> subjects) throws NotConnectedException
     {
-        if (this.status == AgentStatus.LOST_CONNECTION || this.status == AgentStatus.NOT_CONNECTED)
+        if (!state.get().isConnected())
             throw new NotConnectedException("Agent is not connected to the router");
 
-        return CompletableFuture.supplyAsync(() -> this.subscriptionManager.unsubscribe(subjects, connection), workerPool);
+        SharedLink link = this.sharedLink;
+
+        if (link != null)
+            return link.unsubscribe(this, subjects);
+
+        return this.subscriptionManager.unsubscribe(subjects, subscriptionTargets());
     }
 
 
     /**
-     * This method is used to subscribe to direct messages.
-     * This method returns a CompletableFuture that will be completed when the subscription is successful.
+     * This method is used to join a consumer group on a subject.
+     * The router delivers each message on the subject to one member of the group only, so agents joining
+     * the same group share the messages between them. The subscription is reported as $share/group/subject.
      *
-     * @return CompletableFuture<Void> Future that will be completed when the subscription is successful.
-     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
+     * @param group   The name of the consumer group, 1 to 32 characters without slashes or whitespace.
+     * @param subject The subject to subscribe to.
+     * @return CompletableFuture<List<String>> Future that will be completed with the shared subscription if it was successful.
+     * @throws NotConnectedException    Thrown when the agent is not connected to any edge router.
+     * @throws IllegalArgumentException Thrown when the group name is not valid.
      */
-    public CompletableFuture<Void> subscribeToDM() throws NotConnectedException
+    public CompletableFuture<List<String>> subscribeShared(String group, String subject) throws NotConnectedException
     {
-        if (this.status == AgentStatus.LOST_CONNECTION || this.status == AgentStatus.NOT_CONNECTED)
-            throw new NotConnectedException("Agent is not connected to the router");
+        if (!SharedSubscription.validateGroup(group))
+            throw new IllegalArgumentException("Invalid group name: " + group);
 
-        return CompletableFuture.runAsync(() -> this.subscriptionManager.subscribeToDM(connection), workerPool);
+        return subscribe(SharedSubscription.format(group, subject));
     }
 
 
     /**
-     * This method is used to unsubscribe from direct messages.
-     * This method returns a CompletableFuture that will be completed when the unsubscription is successful.
+     * This method is used to leave a consumer group on a subject.
      *
-     * @return CompletableFuture<Void> Future that will be completed when the unsubscription is successful.
+     * @param group   The name of the consumer group.
+     * @param subject The subject to unsubscribe from.
+     * @return CompletableFuture<List<String>> Future that will be completed with the shared subscription if it was removed.
      * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
      */
-    public CompletableFuture<Void> unsubscribeFromDM() throws NotConnectedException
+    public CompletableFuture<List<String>> unsubscribeShared(String group, String subject) throws NotConnectedException
     {
-        if (this.status == AgentStatus.LOST_CONNECTION || this.status == AgentStatus.NOT_CONNECTED)
-            throw new NotConnectedException("Agent is not connected to the router");
-
-        return CompletableFuture.runAsync(() -> this.subscriptionManager.unsubscribeFromDM(connection), workerPool);
+        return unsubscribe(SharedSubscription.format(group, subject));
     }
 
 
     /**
-     * This method is used to send a direct message to a single destination asynchronously.
-     * <p>
-     * The method returns a CompletableFuture that will be completed with the message ID
-     * of the sent message or an exception if the message could not be sent.
+     * This method is used to subscribe to the slice of a subject passing a content filter.
+     * The filter is a list of clauses separated by semicolons, such as sender^=urn:mrn:prefix, payload[4]=0a1b
+     * or rate&lt;=5, see SubjectFilter. Filters on the same subject are alternatives. The subscription is reported as subject|filter.
      *
-     * @param destination The destination to send the message to.
-     * @param payload     The payload of the message.
-     * @param expires     The expiration time of the message.
-     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
-     * @throws MMSSecurityException    If the agent is not authenticated.
-     * @throws NotConnectedException   If the agent is not connected to any edge router.
-     * @throws MMTPValidationException If the message is not valid.
+     * @param subject The subject to subscribe to.
+     * @param filter  The filter expression.
+     * @return CompletableFuture<List<String>> Future that will be completed with the filtered subscription if it was successful.
+     * @throws NotConnectedException    Thrown when the agent is not connected to any edge router.
+     * @throws IllegalArgumentException Thrown when the filter expression is not valid.
      */
-    public CompletableFuture<String> sendDirectMessage(String destination, byte[] payload, Instant expires) throws MMSSecurityException, NotConnectedException, MMTPValidationException
+    public CompletableFuture<List<String>> subscribeFiltered(String subject, String filter) throws NotConnectedException
     {
-        return sendDirectMessage(List.of(destination), payload, expires);
+        SubjectFilter.parse(filter);
+        return subscribe(SubjectFilter.format(subject, filter));
     }
 
 
     /**
-     * This method is used to send a direct message to a single destination asynchronously.
-     * <p>
-     * This method uses a callback to notify the caller of success or failure.
+     * This method is used to remove a filtered subscription.
      *
-     * @param destination  The destination to send the message to.
-     * @param payload      The payload of the message.
-     * @param expires      The expiration time of the message.
-     * @param sendListener The callback to notify the caller of success or failure.
-     * @throws MMSSecurityException    If the agent is not authenticated.
-     * @throws NotConnectedException   If the agent is not connected to any edge router.
-     * @throws MMTPValidationException If the message is not valid.
+     * @param subject The subject to unsubscribe from.
+     * @param filter  The filter expression the subject was subscribed with.
+     * @return CompletableFuture<List<String>> Future that will be completed with the filtered subscription if it was removed.
+     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
      */
-    public void sendDirectMessage(String destination, byte[] payload, Instant expires, SendListener sendListener) throws MMSSecurityException, NotConnectedException, MMTPValidationException
+    public CompletableFuture<List<String>> unsubscribeFiltered(String subject, String filter) throws NotConnectedException
+    {
+        return unsubscribe(SubjectFilter.format(subject, filter));
+    }
+
+
+    /**
+     * This method is used to send the filters of filtered subscriptions to the router, so that it drops the messages
+     * not passing them before sending. It needs a router supporting filters, so it is disabled by default, in which case
+     * the plain subjects are subscribed and the messages are filtered on receipt only.
+     *
+     * @param filterPushdown True to send the filters to the router.
+     */
+    public void setFilterPushdown(boolean filterPushdown)
+    {
+        subscriptionManager.setFilterPushdown(filterPushdown);
+    }
+
+
+    /**
+     * This method is used to ask the router for the last message on newly subscribed subjects the last value cache
+     * does not hold. It needs a router supporting snapshots, so it is disabled by default, in which case
+     * such subjects are delivered from the next publish on.
+     *
+     * @param snapshotRequests True to request snapshots from the router.
+     */
+    public void setSnapshotRequests(boolean snapshotRequests)
+    {
+        this.snapshotRequests = snapshotRequests;
+    }
+
+
+    /**
+     * This method is used to subscribe to the messages on a subject geo-tagged with a position inside a bounding box.
+     * The box is covered with up to 32 geohash cells, each subscribed as subject@geo:cell, so the subscription
+     * may reach slightly beyond the box. A box whose western edge is east of its eastern edge crosses the antimeridian.
+     * Pass the returned interests to unsubscribe to remove the area.
+     *
+     * @param subject      The subject to subscribe to.
+     * @param minLatitude  The southern edge of the box in degrees.
+     * @param minLongitude The western edge of the box in degrees.
+     * @param maxLatitude  The northern edge of the box in degrees.
+     * @param maxLongitude The eastern edge of the box in degrees.
+     * @return CompletableFuture<List<String>> Future that will be completed with the subscribed interests of the area.
+     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
+     */
+    public CompletableFuture<List<String>> subscribeArea(String subject, double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) throws NotConnectedException
+    {
+        return subscribe(areaInterests(subject, Geohash.cover(minLatitude, minLongitude, maxLatitude, maxLongitude, MAX_AREA_CELLS)));
+    }
+
+
+    /**
+     * This method is used to subscribe to the messages on a subject geo-tagged with a position inside a polygon.
+     * The polygon is covered with the geohash cells it overlaps, of up to 32 cells covering its bounding box.
+     * Pass the returned interests to unsubscribe to remove the area.
+     *
+     * @param subject    The subject to subscribe to.
+     * @param latitudes  The latitudes of the vertices of the polygon in degrees.
+     * @param longitudes The longitudes of the vertices of the polygon in degrees.
+     * @return CompletableFuture<List<String>> Future that will be completed with the subscribed interests of the area.
+     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
+     */
+    public CompletableFuture<List<String>> subscribeArea(String subject, double[] latitudes, double[] longitudes) throws NotConnectedException
+    {
+        return subscribe(areaInterests(subject, Geohash.cover(latitudes, longitudes, MAX_AREA_CELLS)));
+    }
+
+
+    /**
+     * This method is used to subscribe to direct messages.
+     * This method returns a CompletableFuture that will be completed when the subscription is successful.
+     *
+     * @return CompletableFuture<Void> Future that will be completed when the subscription is successful.
+     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
+     */
+    public CompletableFuture<Void> subscribeToDM() throws NotConnectedException
+    {
+        if (!state.get().isConnected())
+            throw new NotConnectedException("Agent is not connected to the router");
+
+        SharedLink link = this.sharedLink;
+
+        if (link != null)
+            return CompletableFuture.runAsync(() -> link.subscribeToDM(this), workerPool);
+
+        return CompletableFuture.runAsync(() -> this.subscriptionManager.subscribeToDM(subscriptionTargets()), workerPool);
+    }
+
+
+    /**
+     * This method is used to unsubscribe from direct messages.
+     * This method returns a CompletableFuture that will be completed when the unsubscription is successful.
+     *
+     * @return CompletableFuture<Void> Future that will be completed when the unsubscription is successful.
+     * @throws NotConnectedException Thrown when the agent is not connected to any edge router.
+     */
+    public CompletableFuture<Void> unsubscribeFromDM() throws NotConnectedException
+    {
+        if (!state.get().isConnected())
+            throw new NotConnectedException("Agent is not connected to the router");
+
+        SharedLink link = this.sharedLink;
+
+        if (link != null)
+            return CompletableFuture.runAsync(() -> link.unsubscribeFromDM(this), workerPool);
+
+        return CompletableFuture.runAsync(() -> this.subscriptionManager.unsubscribeFromDM(subscriptionTargets()), workerPool);
+    }
+
+
+    /**
+     * This method is used to send a direct message to a single destination asynchronously.
+     * <p>
+     * The method returns a CompletableFuture that will be completed with the message ID
+     * of the sent message or an exception if the message could not be sent.
+     *
+     * @param destination The destination to send the message to.
+     * @param payload     The payload of the message.
+     * @param expires     The expiration time of the message.
+     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public CompletableFuture<String> sendDirectMessage(String destination, byte[] payload, Instant expires) throws MMSSecurityException, NotConnectedException, MMTPValidationException
+    {
+        return sendDirectMessage(List.of(destination), payload, expires);
+    }
+
+
+    /**
+     * This method is used to send a direct message to a single destination asynchronously.
+     * <p>
+     * This method uses a callback to notify the caller of success or failure.
+     *
+     * @param destination  The destination to send the message to.
+     * @param payload      The payload of the message.
+     * @param expires      The expiration time of the message.
+     * @param sendListener The callback to notify the caller of success or failure.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public void sendDirectMessage(String destination, byte[] payload, Instant expires, SendListener sendListener) throws MMSSecurityException, NotConnectedException, MMTPValidationException
     {
         sendDirectMessage(List.of(destination), payload, expires, sendListener);
     }
@@ -323,22 +972,16 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public CompletableFuture<String> sendDirectMessage(List<String> destinations, byte[] payload, Instant expires) throws MMSSecurityException, NotConnectedException, MMTPValidationException
     {
-        if (!connection.isConnected())
-            throw new NotConnectedException("Agent is not connected to the router");
+        AgentState current = state.get();
+        Connection connection = activeConnection(current);
 
-        if (this.status != AgentStatus.CONNECTED_AUTHENTICATED)
+        if (!current.isAuthenticated())
             throw new MMSSecurityException("Only authenticated clients can send messages");
 
 
         String MRN = ((AuthenticatedConnection) connection).getMRN();
         DirectApplicationMessage message = MMTPUtils.createDirectApplicationMessage(destinations, MRN, payload, expires);
         MMTPValidator.validate(message);
-        byte[] bytes = message.toByteArray();
-
-        ProtocolMessage.Builder builder = ProtocolMessage.newBuilder();
-        builder.setType(MessageType.DIRECT_APPLICATION_MESSAGE);
-        builder.setContent(ByteString.copyFrom(bytes));
-        ProtocolMessage protocolMessage = builder.build();
 
         CompletableFuture<String> future = new CompletableFuture<>();
 
@@ -346,13 +989,14 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
         {
             try
             {
-                this.connection.send(protocolMessage);
+                checkNotExpired(expires);
+                send(connection, codec -> codec.encode(message));
                 future.complete(message.getId());
             }
 
             catch (SendingException ex)
             {
-                SendingException sendingException = new SendingException("Failed to send direct message", ex.getCause());
+                SendingException sendingException = new SendingException("Failed to send direct message", ex.getCause() != null ? ex.getCause() : ex);
                 future.completeExceptionally(sendingException);
             }
         });
@@ -375,12 +1019,10 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public void sendDirectMessage(List<String> destinations, byte[] payload, Instant expires, SendListener sendListener) throws MMSSecurityException, NotConnectedException, MMTPValidationException
     {
-        if (!connection.isConnected())
-        {
-            throw new NotConnectedException("Agent is not connected to the router");
-        }
+        AgentState current = state.get();
+        Connection connection = activeConnection(current);
 
-        if (this.status != AgentStatus.CONNECTED_AUTHENTICATED)
+        if (!current.isAuthenticated())
         {
             throw new MMSSecurityException("Only authenticated clients can send messages");
         }
@@ -389,31 +1031,89 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
 
         DirectApplicationMessage message = MMTPUtils.createDirectApplicationMessage(destinations, MRN, payload, expires);
         MMTPValidator.validate(message);
-        byte[] bytes = message.toByteArray();
-
-        ProtocolMessage.Builder builder = ProtocolMessage.newBuilder();
-        builder.setType(MessageType.DIRECT_APPLICATION_MESSAGE);
-        builder.setContent(ByteString.copyFrom(bytes));
-        ProtocolMessage protocolMessage = builder.build();
 
 
         workerPool.execute(() ->
         {
             try
             {
-                this.connection.send(protocolMessage);
+                checkNotExpired(expires);
+                send(connection, codec -> codec.encode(message));
                 sendListener.onSuccess(message.getId());
             }
 
             catch (SendingException ex)
             {
-                SendingException sendingException = new SendingException("Failed to send direct message", ex.getCause());
+                SendingException sendingException = new SendingException("Failed to send direct message", ex.getCause() != null ? ex.getCause() : ex);
                 sendListener.onFailure(sendingException);
             }
         });
     }
 
 
+    /**
+     * This method is used to send a request to a single destination and wait for its reply.
+     * <p>
+     * The request is sent as a direct message expiring after the timeout, and the destination answers it
+     * with its RequestHandler. Replies are matched to their request when they are received, before the
+     * AgentListener sees them, so the agent must be subscribed to direct messages to receive them.
+     * The returned future fails with a TimeoutException if no reply arrives within the timeout, and a reply
+     * arriving later is delivered to the AgentListener as a plain direct message. A timeout shorter than the
+     * timeout suggested by the round trip time measured on the link is raised to it, as no reply could make it.
+     *
+     * @param destination The MRN of the agent to send the request to.
+     * @param payload     The payload of the request.
+     * @param timeout     How long to wait for the reply.
+     * @return CompletableFuture<byte[]> Future that will be completed with the payload of the reply.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public CompletableFuture<byte[]> request(String destination, byte[] payload, Duration timeout) throws MMSSecurityException, NotConnectedException, MMTPValidationException
+    {
+        if (timeout.isZero() || timeout.isNegative())
+            throw new IllegalArgumentException("Timeout must be positive");
+
+        LinkStatistics statistics = currentStatistics();
+
+        if (statistics != null && statistics.getSuggestedTimeout().compareTo(timeout) > 0)
+            timeout = statistics.getSuggestedTimeout();
+
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        long correlation = requestTracker.register(destination, timeout, reply);
+
+        try
+        {
+            sendDirectMessage(destination, RequestFrame.request(correlation, payload), Instant.now().plus(timeout)).whenComplete((messageID, ex) ->
+            {
+                if (ex != null)
+                    requestTracker.fail(correlation, ex);
+            });
+        }
+
+        catch (MMSSecurityException | NotConnectedException | MMTPValidationException ex)
+        {
+            requestTracker.fail(correlation, ex);
+            throw ex;
+        }
+
+        return reply;
+    }
+
+
+    /**
+     * This method is used to set the handler answering the requests sent to the agent.
+     * Without a handler, requests are delivered to the AgentListener as plain direct messages.
+     * The handler is called on the worker pool, and a handler throwing an exception sends no reply.
+     *
+     * @param requestHandler The request handler, or null to remove it.
+     */
+    public void setRequestHandler(RequestHandler requestHandler)
+    {
+        this.requestHandler = requestHandler;
+    }
+
+
     /**
      * This method is used to send subject cast messages.
      *
@@ -427,39 +1127,39 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public CompletableFuture<String> publish(String subject, byte[] payload, Instant expires) throws NotConnectedException, MMSSecurityException, MMTPValidationException
     {
-        if (!connection.isConnected())
-        {
-            throw new NotConnectedException("Agent is not connected to the router");
-        }
-
-        if (this.status != AgentStatus.CONNECTED_AUTHENTICATED)
-        {
-            throw new MMSSecurityException("Only authenticated clients can send messages");
-        }
-
-        String MRN = ((AuthenticatedConnection) connection).getMRN();
-        SubjectCastApplicationMessage message = MMTPUtils.createSubjectCastApplicationMessage(subject, MRN, payload, expires);
-        MMTPValidator.validate(message);
-        byte[] bytes = message.toByteArray();
+        return publish(subject, payload, expires, Priority.NORMAL);
+    }
 
-        ProtocolMessage.Builder builder = ProtocolMessage.newBuilder();
-        builder.setType(MessageType.SUBJECT_CAST_APPLICATION_MESSAGE);
-        builder.setContent(ByteString.copyFrom(bytes));
-        ProtocolMessage protocolMessage = builder.build();
 
+    /**
+     * This method is used to send subject cast messages with the given priority.
+     * The priority only matters in adaptive link mode, where it decides how the message is paced.
+     *
+     * @param subject  The subject to send the message to.
+     * @param payload  The payload of the message.
+     * @param expires  The expiration time of the message.
+     * @param priority The priority of the message.
+     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public CompletableFuture<String> publish(String subject, byte[] payload, Instant expires, Priority priority) throws NotConnectedException, MMSSecurityException, MMTPValidationException
+    {
         CompletableFuture<String> future = new CompletableFuture<>();
-        workerPool.execute(() ->
+
+        publish(subject, payload, expires, priority, new SendListener()
         {
-            try
+            @Override
+            public void onSuccess(String messageID)
             {
-                connection.send(protocolMessage);
-                future.complete(message.getId());
+                future.complete(messageID);
             }
 
-            catch (SendingException e)
+            @Override
+            public void onFailure(Throwable cause)
             {
-                SendingException sendingException = new SendingException("Failed to send subject cast message", e.getCause());
-                future.completeExceptionally(sendingException);
+                future.completeExceptionally(cause);
             }
         });
 
@@ -480,36 +1180,166 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public void publish(String subject, byte[] payload, Instant expires, SendListener sendListener) throws NotConnectedException, MMSSecurityException, MMTPValidationException
     {
-        if (!connection.isConnected())
-            throw new NotConnectedException("Agent is not connected to the router");
+        publish(subject, payload, expires, Priority.NORMAL, sendListener);
+    }
+
+
+    /**
+     * This method is used to send subject cast messages with the given priority.
+     * The priority only matters in adaptive link mode, where it decides how the message is paced.
+     *
+     * @param subject      The subject to send the message to.
+     * @param payload      The payload of the message.
+     * @param expires      The expiration time of the message.
+     * @param priority     The priority of the message.
+     * @param sendListener The listener to notify of success or failure.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public void publish(String subject, byte[] payload, Instant expires, Priority priority, SendListener sendListener) throws NotConnectedException, MMSSecurityException, MMTPValidationException
+    {
+        AgentState current = state.get();
+        Connection connection = activeConnection(current);
 
-        if (this.status != AgentStatus.CONNECTED_AUTHENTICATED)
+        if (!current.isAuthenticated())
             throw new MMSSecurityException("Only authenticated clients can send messages");
 
         String MRN = ((AuthenticatedConnection) connection).getMRN();
         SubjectCastApplicationMessage message = MMTPUtils.createSubjectCastApplicationMessage(subject, MRN, payload, expires);
         MMTPValidator.validate(message);
-        byte[] bytes = message.toByteArray();
 
-        ProtocolMessage.Builder builder = ProtocolMessage.newBuilder();
-        builder.setType(MessageType.SUBJECT_CAST_APPLICATION_MESSAGE);
-        builder.setContent(ByteString.copyFrom(bytes));
-        ProtocolMessage protocolMessage = builder.build();
+        AdaptiveSender adaptive = this.adaptiveSender;
 
-        workerPool.execute(() ->
+        if (adaptive == null)
         {
-            try
+            workerPool.execute(() ->
             {
-                connection.send(protocolMessage);
+                try
+                {
+                    checkNotExpired(expires);
+                    sendSubjectCast(connection, message, LinkMode.NORMAL);
+                    sendListener.onSuccess(message.getId());
+                }
+
+                catch (SendingException e)
+                {
+                    SendingException sendingException = new SendingException("Failed to send subject cast message", e.getCause() != null ? e.getCause() : e);
+                    sendListener.onFailure(sendingException);
+                }
+            });
+
+            return;
+        }
+
+        AdaptiveSender.Task task = mode ->
+        {
+            checkNotExpired(expires);
+            sendSubjectCast(connection, message, mode);
+        };
+
+        adaptive.submit(priority, subject, payload.length, expires, task).whenComplete((ignored, ex) ->
+        {
+            if (ex == null)
                 sendListener.onSuccess(message.getId());
+
+            else
+                sendListener.onFailure(new SendingException("Failed to send subject cast message", ex.getCause() != null ? ex.getCause() : ex));
+        });
+    }
+
+
+    /**
+     * This method is used to publish a subject cast message at a later time.
+     * <p>
+     * The message is created and sent when the time is reached, on the connection the agent has then.
+     * Cancelling the returned future before that time cancels the publication.
+     *
+     * @param at      The time to publish the message at.
+     * @param subject The subject to send the message to.
+     * @param payload The payload of the message.
+     * @param expires The expiration time of the message.
+     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
+     * @throws IllegalArgumentException If the message expires before it is published.
+     */
+    public CompletableFuture<String> publishAt(Instant at, String subject, byte[] payload, Instant expires)
+    {
+        return publishAt(at, subject, payload, expires, Priority.NORMAL);
+    }
+
+
+    /**
+     * This method is used to publish a subject cast message with the given priority at a later time.
+     * <p>
+     * The message is created and sent when the time is reached, on the connection the agent has then.
+     * Cancelling the returned future before that time cancels the publication.
+     *
+     * @param at       The time to publish the message at.
+     * @param subject  The subject to send the message to.
+     * @param payload  The payload of the message.
+     * @param expires  The expiration time of the message.
+     * @param priority The priority of the message.
+     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
+     * @throws IllegalArgumentException If the message expires before it is published.
+     */
+    public CompletableFuture<String> publishAt(Instant at, String subject, byte[] payload, Instant expires, Priority priority)
+    {
+        if (expires != null && expires.isBefore(at))
+            throw new IllegalArgumentException("The message would expire before it is published");
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+
+        TimingWheel.Timeout timeout = timingWheel.scheduleAt(() ->
+        {
+            if (future.isDone())
+                return;
+
+            try
+            {
+                publish(subject, payload, expires, priority).whenComplete((messageID, ex) ->
+                {
+                    if (ex == null)
+                        future.complete(messageID);
+
+                    else
+                        future.completeExceptionally(ex);
+                });
             }
 
-            catch (SendingException e)
+            catch (NotConnectedException | MMSSecurityException | MMTPValidationException ex)
             {
-                SendingException sendingException = new SendingException("Failed to send subject cast message", e.getCause());
-                sendListener.onFailure(sendingException);
+                future.completeExceptionally(ex);
             }
+        }, at);
+
+        future.whenComplete((messageID, ex) ->
+        {
+            if (future.isCancelled())
+                timeout.cancel();
         });
+
+        return future;
+    }
+
+
+    /**
+     * This method is used to publish a subject cast message geo-tagged with a position, delivered to the agents
+     * subscribed to an area containing it. The message is sent on subject@geo:hash, with the geohash of the position,
+     * so the subject must leave room for the 15 characters of the tag within the 100 characters of a subject.
+     *
+     * @param subject   The subject to send the message to.
+     * @param latitude  The latitude of the position in degrees.
+     * @param longitude The longitude of the position in degrees.
+     * @param payload   The payload of the message.
+     * @param expires   The expiration time of the message.
+     * @return CompletableFuture<String> Future that will be completed with the message ID of the sent message.
+     * @throws NotConnectedException   If the agent is not connected to any edge router.
+     * @throws MMSSecurityException    If the agent is not authenticated.
+     * @throws MMTPValidationException If the message is not valid.
+     */
+    public CompletableFuture<String> publishGeo(String subject, double latitude, double longitude, byte[] payload, Instant expires) throws NotConnectedException, MMSSecurityException, MMTPValidationException
+    {
+        return publish(GeoSubscription.format(subject, Geohash.encode(latitude, longitude, GeoSubscription.TAG_PRECISION)), payload, expires);
     }
 
 
@@ -520,59 +1350,323 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      */
     public List<String> getSubscriptions()
     {
-        return subscriptionManager.getSubscriptions();
+        SharedLink link = this.sharedLink;
+        return link != null ? link.getSubscriptions(this) : subscriptionManager.getSubscriptions();
     }
 
 
     /**
-     * This method is used to acquire the status of the agent.
+     * This method is used to set the policy used to reconnect automatically when the connection
+     * to the edge router is lost. Passing null disables automatic reconnection.
      *
-     * @return AgentStatus The status of the agent.
+     * @param reconnectPolicy The reconnect policy, or null to disable automatic reconnection.
      */
-    public AgentStatus getStatus()
+    public void setReconnectPolicy(ReconnectPolicy reconnectPolicy)
     {
-        return status;
+        this.reconnectPolicy = reconnectPolicy;
     }
 
 
-    /* Implementation of connection and message listener interfaces, handles lifecycle events. */
+    /**
+     * This method is used to publish subject cast messages in delta mode, sending only the difference
+     * to the previous payload on the subject between keyframes. Deltas are only sent on connections whose edge router
+     * accepted delta frames, which are offered when delta decoding is enabled in the client configuration; other
+     * connections get the full payloads. Passing null publishes full payloads again.
+     *
+     * @param deltaPolicy The delta policy, or null to disable delta mode.
+     */
+    public void setDeltaPolicy(DeltaPolicy deltaPolicy)
+    {
+        this.deltaEncoder = deltaPolicy == null ? null : new DeltaEncoder(deltaPolicy);
+    }
 
 
     /**
-     * Implementation of the ConnectionListener interface.
-     * <p>
-     * This method is called when the connection to the router is established.
-     * It sets the status of the agent according to the type of connection (authenticated or anonymous).
-     * It then calls the onConnect method of the adapter supplied by the user.
+     * This method is used to adapt the agent to a constrained link. The agent measures the round trip time
+     * and throughput of its connection, and when the link degrades it compresses payloads, coalesces
+     * subscription changes for longer and paces subject casts by priority. Payloads are only compressed
+     * if the edge router accepted compressed payloads for the connection. Passing null disables adaptation.
      *
-     * @param connection The connection to the router.
+     * @param adaptiveLinkPolicy The adaptive link policy, or null to disable adaptive link mode.
      */
-    @Override
-    public void onConnectionEstablished(Connection connection)
+    public void setAdaptiveLinkPolicy(AdaptiveLinkPolicy adaptiveLinkPolicy)
     {
-        if (connection instanceof AuthenticatedConnection)
-        {
-            this.connection = connection;
-            status = AgentStatus.CONNECTED_AUTHENTICATED;
-            logger.info("Agent successfully connected to router in authenticated mode.");
-        }
+        subscriptionManager.setCoalescingWindowMillis(SubscriptionManager.DEFAULT_COALESCING_WINDOW_MILLIS);
 
-        else if (connection instanceof AnonymousConnection)
+        if (adaptiveLinkPolicy == null)
         {
-            this.connection = connection;
-            status = AgentStatus.CONNECTED_ANONYMOUS;
-            logger.info("Agent successfully connected to router in anonymous mode.");
+            this.adaptiveSender = null;
+            return;
         }
 
-        adapter.onConnect(status);
+        long constrainedWindow = adaptiveLinkPolicy.getConstrainedCoalescingWindow().toMillis();
+        this.adaptiveSender = new AdaptiveSender(adaptiveLinkPolicy, workerPool, this::currentStatistics, mode ->
+                subscriptionManager.setCoalescingWindowMillis(mode == LinkMode.NORMAL ? SubscriptionManager.DEFAULT_COALESCING_WINDOW_MILLIS : constrainedWindow), timingWheel);
     }
 
 
     /**
-     * Implementation of the ConnectionListener interface.
-     * <p>
-     * This method is called if the initial handshake with the router fails / no connection could be established.
-     * It sets the status of the agent to NOT_CONNECTED.
+     * This method is used to get the link mode judged by the adaptive link mode.
+     *
+     * @return LinkMode The link mode, always NORMAL if adaptive link mode is disabled.
+     */
+    public LinkMode getLinkMode()
+    {
+        AdaptiveSender adaptive = this.adaptiveSender;
+        return adaptive == null ? LinkMode.NORMAL : adaptive.getMode();
+    }
+
+
+    /**
+     * This method is used to acquire the status of the agent.
+     *
+     * @return AgentStatus The status of the agent.
+     */
+    public AgentStatus getStatus()
+    {
+        return state.get().getStatus();
+    }
+
+
+    /**
+     * This method is used to get the round trip time to the connected edge router, as measured by the keepalive pings.
+     * In pool mode it is the round trip time of the connection that would be used for the next message.
+     *
+     * @return Duration The smoothed round trip time, or zero if it has not been measured yet.
+     */
+    public Duration getRoundTripTime()
+    {
+        LinkStatistics statistics = currentStatistics();
+        return statistics == null ? Duration.ZERO : statistics.getSmoothedRtt();
+    }
+
+
+    /**
+     * Returns the link statistics of the connection the next message would be sent on.
+     *
+     * @return The link statistics, or null if there is no open connection.
+     */
+    private LinkStatistics currentStatistics()
+    {
+        RouterPool routerPool = this.pool;
+        return ConnectionContext.statisticsOf(routerPool != null ? routerPool.select() : state.get().getConnection());
+    }
+
+
+    /**
+     * Returns the connection to send on, which in pool mode is the least loaded router connection.
+     *
+     * @param current The state of the agent, read once by the caller.
+     * @return The connection to send on.
+     * @throws NotConnectedException If there is no live connection.
+     */
+    private Connection activeConnection(AgentState current) throws NotConnectedException
+    {
+        RouterPool routerPool = this.pool;
+        Connection active = routerPool != null ? routerPool.select() : current.getConnection();
+
+        if (active == null || !active.isConnected())
+            throw new NotConnectedException("Agent is not connected to the router");
+
+        return active;
+    }
+
+
+    /**
+     * Returns whether the agent wants direct messages, as recorded by the shared link when connected over one.
+     *
+     * @return True if the agent wants direct messages.
+     */
+    private boolean wantsDirectMessages()
+    {
+        SharedLink link = this.sharedLink;
+        return link != null ? link.wantsDirectMessages(this) : subscriptionManager.wantsDirectMessages();
+    }
+
+
+    /**
+     * Returns the filter for messages delivered by more than one router, created on first use
+     * as it is only needed in pool mode.
+     *
+     * @return The duplicate filter.
+     */
+    private DuplicateFilter duplicateFilter()
+    {
+        DuplicateFilter filter = duplicateFilter.get();
+
+        if (filter == null)
+        {
+            duplicateFilter.compareAndSet(null, new DuplicateFilter(65536));
+            filter = duplicateFilter.get();
+        }
+
+        return filter;
+    }
+
+
+    /**
+     * Sends a message on the given connection, or with failover across the router connections in pool mode.
+     *
+     * The message is encoded with the wire codec of the connection it goes out on.
+     *
+     * @param connection The connection selected when the message was created.
+     * @param encoder    Encodes the message with the given codec.
+     * @throws SendingException If the message could not be sent.
+     */
+    private void send(Connection connection, Function<WireCodec, byte[]> encoder) throws SendingException
+    {
+        RouterPool routerPool = this.pool;
+
+        if (routerPool != null)
+            routerPool.send(encoder);
+
+        else
+            ConnectionContext.send(connection, encoder);
+    }
+
+
+    /**
+     * Fails the sending of a message that expired while it was waiting, so that it is not sent to the edge router.
+     *
+     * @param expires The expiration time of the message, or null if it does not expire.
+     * @throws SendingException If the message has expired.
+     */
+    private static void checkNotExpired(Instant expires) throws SendingException
+    {
+        if (expires != null && expires.isBefore(Instant.now()))
+            throw new SendingException("The message expired before it could be sent");
+    }
+
+
+    /**
+     * Sends a subject cast message, as a keyframe or delta of its payload when publishing in delta mode
+     * on a connection that negotiated delta frames, and compressed when the link mode asks for it.
+     *
+     * @param connection The connection selected when the message was created.
+     * @param message    The message to send.
+     * @param mode       The link mode the message is sent in.
+     * @throws SendingException If the message could not be sent.
+     */
+    private void sendSubjectCast(Connection connection, SubjectCastApplicationMessage message, LinkMode mode) throws SendingException
+    {
+        DeltaEncoder encoder = this.deltaEncoder;
+
+        if (encoder != null && ConnectionContext.supports(connection, PayloadFeatures.DELTA))
+            encoder.publish(message.getSubject(), message.getPayload().toByteArray(), framedPayload -> sendPayload(connection, message, framedPayload, mode));
+
+        else if (mode == LinkMode.NORMAL)
+            send(connection, codec -> codec.encode(message));
+
+        else
+            sendPayload(connection, message, message.getPayload().toByteArray(), mode);
+    }
+
+
+    /**
+     * Sends a subject cast message with its payload replaced, compressing the payload if the link mode asks for it
+     * and compression was negotiated for the connection.
+     *
+     * @param connection The connection selected when the message was created.
+     * @param message    The message to send.
+     * @param payload    The payload to send instead of the payload of the message.
+     * @param mode       The link mode the message is sent in.
+     * @throws SendingException If the message could not be sent.
+     */
+    private void sendPayload(Connection connection, SubjectCastApplicationMessage message, byte[] payload, LinkMode mode) throws SendingException
+    {
+        AdaptiveSender adaptive = this.adaptiveSender;
+        boolean compress = adaptive != null && ConnectionContext.supports(connection, PayloadFeatures.COMPRESSION);
+        byte[] wirePayload = compress ? adaptive.compress(payload, mode) : payload;
+        SubjectCastApplicationMessage framed = message.toBuilder().setPayload(UnsafeByteOperations.unsafeWrap(wirePayload)).build();
+        send(connection, codec -> codec.encode(framed));
+    }
+
+
+    /**
+     * Returns the interests subscribing to the subject in the given geohash cells.
+     *
+     * @param subject The subject.
+     * @param cells   The geohash cells covering the area.
+     * @return The interests of the area.
+     */
+    private static List<String> areaInterests(String subject, List<String> cells)
+    {
+        List<String> interests = new ArrayList<>(cells.size());
+
+        for (String cell : cells)
+            interests.add(GeoSubscription.format(subject, cell));
+
+        return interests;
+    }
+
+
+    /**
+     * Returns the connections subscription changes are sent on, all router connections in pool mode.
+     *
+     * @return The connections to send subscription changes on.
+     */
+    private List<Connection> subscriptionTargets()
+    {
+        RouterPool routerPool = this.pool;
+        return routerPool != null ? routerPool.getConnections() : Collections.singletonList(state.get().getConnection());
+    }
+
+
+    /* Implementation of connection and message listener interfaces, handles lifecycle events. */
+
+
+    /**
+     * Implementation of the ConnectionListener interface.
+     * <p>
+     * This method is called when the connection to the router is established.
+     * It sets the status of the agent according to the type of connection (authenticated or anonymous).
+     * It then calls the onConnect method of the adapter supplied by the user.
+     *
+     * @param connection The connection to the router.
+     */
+    @Override
+    public void onConnectionEstablished(Connection connection)
+    {
+        AgentState connected = AgentState.connected(connection);
+
+        if (!transition(connected, AgentState.CONNECTING, AgentState.LOST_CONNECTION))
+        {
+            logger.warn("A connection was established while the agent was " + state.get().getStatus() + ", ignoring it.");
+
+            if (pool == null && sharedLink == null)
+                connection.close(WsCodes.NORMAL_CLOSURE, "Connection superseded.");
+
+            return;
+        }
+
+        if (connected.isAuthenticated())
+            logger.info("Agent successfully connected to router in authenticated mode.");
+
+        else
+            logger.info("Agent successfully connected to router in anonymous mode.");
+
+        if (reconnecting)
+        {
+            reconnecting = false;
+            reconnectAttempt.set(0);
+            workerPool.execute(() -> resync(connection));
+        }
+
+        else
+        {
+            if (pool == null && subscriptionManager.hasStateToRestore())
+                workerPool.execute(() -> subscriptionManager.restore(connection));
+
+            adapter.onConnect(connected.getStatus());
+        }
+    }
+
+
+    /**
+     * Implementation of the ConnectionListener interface.
+     * <p>
+     * This method is called if the initial handshake with the router fails / no connection could be established.
+     * It sets the status of the agent to NOT_CONNECTED.
      * It then calls the onHandshakeError method of the adapter supplied by the user.
      *
      * @param reason The reason for the failure.
@@ -580,8 +1674,22 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     @Override
     public void onConnectError(DisconnectionReason reason)
     {
-        connection = null;
-        status = AgentStatus.NOT_CONNECTED;
+        if (reconnecting)
+        {
+            if (!transition(AgentState.LOST_CONNECTION, AgentState.CONNECTING))
+                return;
+
+            logger.error("Reconnect attempt " + reconnectAttempt.get() + " failed. Reason: " + reason.getReason());
+            scheduleReconnect();
+            return;
+        }
+
+        if (!transition(AgentState.NOT_CONNECTED, AgentState.CONNECTING))
+        {
+            logger.debug("A connect error arrived while the agent was " + state.get().getStatus() + ", ignoring it. Reason: " + reason.getReason());
+            return;
+        }
+
         logger.error("The connection to the router failed. Reason: " + reason.getReason());
         adapter.onHandshakeError(reason);
     }
@@ -593,16 +1701,241 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      * This method is called if the connection to the router is lost after it was established.
      * It sets the status of the agent to LOST_CONNECTION.
      * It then calls the onDisconnect method of the adapter supplied by the user.
+     * Unless the user closed the connection, a reconnect is scheduled according to the reconnect policy.
      *
      * @param reason The reason for the disconnection.
      */
     @Override
     public void onConnectionLost(DisconnectionReason reason)
     {
-        connection = null;
-        status = AgentStatus.LOST_CONNECTION;
+        Connection previous = migratedAway;
+        Connection inUse = state.get().getConnection();
+
+        if (previous != null && !previous.isConnected() && inUse != null && inUse.isConnected()) // otherwise the connection in use was lost.
+        {
+            migratedAway = null;
+            logger.info("Connection to the previous router closed after migrating.");
+            return;
+        }
+
+        AgentState current = state.get();
+
+        while (current.isConnected() && !state.compareAndSet(current, AgentState.LOST_CONNECTION))
+            current = state.get();
+
+        if (!current.isConnected())
+        {
+            logger.debug("A connection loss arrived while the agent was " + current.getStatus() + ", ignoring it. Reason: " + reason.getReason());
+            return;
+        }
+
+        if (!closedByUser && routerInfo != null)
+            routerProber.getHealth(routerInfo).recordFailure(); // a disconnect asked for by the user says nothing about the router.
+
         logger.error("The connection to the router was lost. Reason: " + reason.getReason());
         adapter.onDisconnect(reason);
+
+        if (!closedByUser && reconnectPolicy != null && routerInfo != null)
+        {
+            connectionLostAt = System.nanoTime();
+            reconnecting = true;
+            scheduleReconnect();
+        }
+    }
+
+
+    /**
+     * Schedules the next reconnect attempt according to the reconnect policy.
+     * Gives up and leaves the agent in the LOST_CONNECTION state when the policy allows no more attempts.
+     */
+    private void scheduleReconnect()
+    {
+        ReconnectPolicy policy = reconnectPolicy;
+        int attempt = reconnectAttempt.incrementAndGet();
+
+        if (policy == null || closedByUser || !policy.allowsAttempt(attempt))
+        {
+            logger.error("Giving up reconnecting to the router after " + (attempt - 1) + " attempts.");
+            reconnecting = false;
+            reconnectAttempt.set(0);
+            return; // the agent stays in LOST_CONNECTION.
+        }
+
+        long delay = policy.delayMillis(attempt);
+        logger.info("Reconnecting to the router in " + delay + " ms (attempt " + attempt + ").");
+        Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, workerPool);
+        delayed.execute(this::reconnect);
+    }
+
+
+    /**
+     * Performs a single reconnect attempt to the router the agent was last connected to,
+     * using the same TLS configuration as the original connection.
+     */
+    private void reconnect()
+    {
+        if (closedByUser || !reconnecting)
+            return;
+
+        if (!transition(AgentState.CONNECTING, AgentState.LOST_CONNECTION))
+        {
+            reconnecting = false; // the user connected again meanwhile.
+            return;
+        }
+
+        if (tlsConfig instanceof mTLSConfig)
+            wsHandler.connectAuthenticated(routerInfo, (mTLSConfig) tlsConfig, this, this);
+
+        else
+            wsHandler.connectAnonymously(routerInfo, tlsConfig, this, this);
+    }
+
+
+    /**
+     * Schedules the next router health check, as long as router migration is enabled.
+     */
+    private void scheduleHealthCheck()
+    {
+        if (migrationCandidates == null)
+            return;
+
+        Executor delayed = CompletableFuture.delayedExecutor(migrationInterval.toMillis(), TimeUnit.MILLISECONDS, workerPool);
+        delayed.execute(this::checkRouterHealth);
+    }
+
+
+    /**
+     * Probes the connected router and the migration candidates, and migrates to the best candidate
+     * if the connected router has degraded past the threshold.
+     */
+    private void checkRouterHealth()
+    {
+        List<RouterInfo> candidates = migrationCandidates;
+        RouterInfo current = routerInfo;
+
+        try
+        {
+            if (candidates == null || current == null || pool != null || migrating || closedByUser)
+                return;
+
+            AgentState currentState = state.get();
+
+            if (!currentState.isConnected())
+                return;
+
+            List<RouterInfo> probed = new ArrayList<>(candidates);
+
+            if (probed.stream().noneMatch(router -> router.getUri().equals(current.getUri())))
+                probed.add(current);
+
+            LinkStatistics statistics = ConnectionContext.statisticsOf(currentState.getConnection());
+
+            if (statistics != null && statistics.hasSample())
+                routerProber.getHealth(current).recordRtt(statistics.getSmoothedRtt().toNanos() / 1e6);
+
+            List<RouterInfo> ranked = routerProber.rank(probed, tlsConfig).join();
+            RouterInfo best = ranked.get(0);
+            double currentScore = routerProber.getHealth(current).getScore();
+            double bestScore = routerProber.getHealth(best).getScore();
+
+            if (!best.getUri().equals(current.getUri()) && currentScore > bestScore * migrationThreshold)
+            {
+                logger.info("Router " + current.getUri() + " degraded (score " + currentScore + "), migrating to " + best.getUri() + " (score " + bestScore + ").");
+                migrate(best);
+            }
+        }
+
+        catch (RuntimeException ex)
+        {
+            logger.error("Router health check failed", ex);
+        }
+
+        finally
+        {
+            scheduleHealthCheck();
+        }
+    }
+
+
+    /**
+     * Connects to the target router next to the current connection. Once the new connection is up, it replaces
+     * the current connection, the subscriptions are restored on it on the worker pool, and the old one is closed.
+     *
+     * @param target The router to migrate to.
+     */
+    private void migrate(RouterInfo target)
+    {
+        migrating = true;
+
+        ConnectionListener migrationListener = new ConnectionListener()
+        {
+            @Override
+            public void onConnectionEstablished(Connection newConnection)
+            {
+                AgentState previous = state.get();
+                Connection old = previous.getConnection();
+                migratedAway = old;
+                migrating = false;
+
+                if (!previous.isConnected() || !state.compareAndSet(previous, AgentState.connected(newConnection)))
+                {
+                    migratedAway = newConnection; // the old connection went away meanwhile and reconnecting has taken over.
+                    newConnection.close(WsCodes.NORMAL_CLOSURE, "Migration superseded.");
+                    return;
+                }
+
+                routerInfo = target;
+
+                workerPool.execute(() ->
+                {
+                    subscriptionManager.restore(newConnection);
+
+                    if (old != null)
+                        old.close(WsCodes.NORMAL_CLOSURE, "Migrating to another edge router."); // only once the subscriptions moved over.
+
+                    logger.info("Agent migrated to router " + target.getUri() + ".");
+                });
+            }
+
+            @Override
+            public void onConnectionLost(DisconnectionReason reason)
+            {
+                Agent.this.onConnectionLost(reason);
+            }
+
+            @Override
+            public void onConnectError(DisconnectionReason reason)
+            {
+                migrating = false;
+                routerProber.getHealth(target).recordFailure();
+                logger.error("Migration to router " + target.getUri() + " failed. Reason: " + reason.getReason());
+            }
+        };
+
+        if (tlsConfig instanceof mTLSConfig)
+            wsHandler.connectAuthenticated(target, (mTLSConfig) tlsConfig, migrationListener, this);
+
+        else
+            wsHandler.connectAnonymously(target, tlsConfig, migrationListener, this);
+    }
+
+
+    /**
+     * Restores the subscription state on a re-established connection, then reports the outage
+     * and the time from link recovery until the subscriptions were restored.
+     *
+     * @param connection The re-established connection.
+     */
+    private void resync(Connection connection)
+    {
+        long recoveredAt = System.nanoTime();
+        subscriptionManager.restore(connection);
+        long resumedAt = System.nanoTime();
+
+        Duration outage = Duration.ofNanos(recoveredAt - connectionLostAt);
+        Duration resyncTime = Duration.ofNanos(resumedAt - recoveredAt);
+        logger.info("Agent reconnected after " + outage.toMillis() + " ms, subscriptions restored in " + resyncTime.toMillis() + " ms.");
+        adapter.onReconnect(state.get().getStatus(), outage, resyncTime);
     }
 
 
@@ -611,7 +1944,8 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
      * <p>
      * This method is called when a direct message is received (after processing the message).
      * It checks if the agent is connected in authenticated mode and if the message is intended for it.
-     * If so, it calls the onDirectMessage method of the adapter supplied by the user.
+     * If so, it calls the onDirectMessage method of the adapter supplied by the user,
+     * unless the message is a reply to a request of the agent or a request answered by its request handler.
      *
      * @param messageId    The id of the message.
      * @param destinations The list of destinations of the message.
@@ -622,16 +1956,22 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     @Override
     public void onDirectMessage(String messageId, List<String> destinations, String sender, Instant expires, byte[] message)
     {
-        if (status == AgentStatus.CONNECTED_AUTHENTICATED)
+        if (pool != null && !duplicateFilter().firstSeen(messageId))
+            return;
+
+        AgentState current = state.get();
+
+        if (current.isAuthenticated())
         {
-            String MRN = ((AuthenticatedConnection) connection).getMRN();
+            String MRN = ((AuthenticatedConnection) current.getConnection()).getMRN();
 
             if (destinations.contains(MRN))
             {
-                if (subscriptionManager.wantsDirectMessages())
-                    adapter.onDirectMessage(messageId, sender, expires, message);
-                else
+                if (!wantsDirectMessages())
                     logger.error("The agent received a direct message while not subscribed to direct messages, ignoring message.");
+
+                else if (!RequestFrame.isFramed(message) || !handleRequestFrame(messageId, sender, expires, message))
+                    adapter.onDirectMessage(messageId, sender, expires, message);
             }
 
             else
@@ -643,6 +1983,80 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     }
 
 
+    /**
+     * Handles a received request or reply. Only agents that opted in interpret the frames: a reply is only taken
+     * if it matches an outstanding request of the agent, and a request only if the agent has a request handler.
+     * Any other message is delivered as a plain direct message, even if its payload looks like a frame.
+     * Requests are answered on the worker pool, so a slow request handler does not hold up the received messages.
+     *
+     * @param messageId The id of the message.
+     * @param sender    The sender of the message.
+     * @param expires   The expiration time of the message.
+     * @param message   The framed payload of the message.
+     * @return True if the message was handled, false if it is to be delivered as a plain direct message.
+     */
+    private boolean handleRequestFrame(String messageId, String sender, Instant expires, byte[] message)
+    {
+        long correlation = RequestFrame.correlation(message);
+
+        if (RequestFrame.kind(message) == RequestFrame.REPLY)
+            return requestTracker.complete(sender, correlation, RequestFrame.body(message));
+
+        RequestHandler handler = this.requestHandler;
+
+        if (handler == null)
+            return false;
+
+        workerPool.execute(() -> answerRequest(handler, messageId, sender, expires, correlation, RequestFrame.body(message)));
+        return true;
+    }
+
+
+    /**
+     * Answers a request with the request handler and sends the reply back to the requester.
+     *
+     * @param handler     The request handler.
+     * @param messageId   The id of the message carrying the request.
+     * @param sender      The sender of the request.
+     * @param expires     The expiration time of the request.
+     * @param correlation The correlation ID of the request.
+     * @param payload     The payload of the request.
+     */
+    private void answerRequest(RequestHandler handler, String messageId, String sender, Instant expires, long correlation, byte[] payload)
+    {
+        byte[] reply;
+
+        try
+        {
+            reply = handler.onRequest(messageId, sender, expires, payload);
+        }
+
+        catch (RuntimeException ex)
+        {
+            logger.error("The request handler failed on a request from " + sender, ex);
+            return;
+        }
+
+        if (reply == null)
+            return;
+
+        try
+        {
+            Instant replyExpires = expires.getEpochSecond() == 0 ? null : expires; // zero when the request has no expiry.
+            sendDirectMessage(sender, RequestFrame.reply(correlation, reply), replyExpires).exceptionally(ex ->
+            {
+                logger.error("Failed to send the reply to " + sender, ex);
+                return null;
+            });
+        }
+
+        catch (MMSSecurityException | NotConnectedException | MMTPValidationException ex)
+        {
+            logger.error("Failed to send the reply to " + sender, ex);
+        }
+    }
+
+
     /**
      * Implementation of the MessageListener interface.
      * <p>
@@ -659,13 +2073,63 @@ public class Agent implements ConnectionListener, MessageListener, SubscribeList
     @Override
     public void onSubjectCastMessage(String messageId, String sender, String subject, Instant expires, byte[] message)
     {
-        boolean isSubscribed = subscriptionManager.isSubscribed(subject);
-
-        if (isSubscribed)
+        if (admitsSubjectCast(messageId, sender, subject, () -> message))
             adapter.onSubjectCastMessage(messageId, sender, subject, expires, message);
+    }
 
-        else
+
+    /**
+     * Implementation of the MessageListener interface.
+     * <p>
+     * This method is called with every received application message. If the adapter supplied by the user asked
+     * for message views, subject casts are checked like in onSubjectCastMessage and handed to it as the view,
+     * reading the payload only if a subscription filter needs it. All other messages are read into their fields
+     * and passed on to onDirectMessage or onSubjectCastMessage.
+     *
+     * @param view The view of the received message.
+     */
+    @Override
+    public void onMessage(MessageView view)
+    {
+        if (!wantsMessageViews || view.getType() != MessageType.SUBJECT_CAST_APPLICATION_MESSAGE)
+        {
+            MessageListener.super.onMessage(view);
+            return;
+        }
+
+        if (admitsSubjectCast(view.getId(), view.getSender(), view.getSubject(), view::getPayload))
+            adapter.onSubjectCastMessage(view);
+    }
+
+
+    /**
+     * Checks if a received subject cast message is to be delivered to the adapter: it has not been seen before
+     * on another connection of the pool, the agent is subscribed to its subject, and it passes the filters.
+     *
+     * @param messageId The id of the message.
+     * @param sender    The sender of the message.
+     * @param subject   The subject of the message.
+     * @param payload   Supplies the payload of the message, asked for only if a filter needs it.
+     * @return True if the message is to be delivered.
+     */
+    private boolean admitsSubjectCast(String messageId, String sender, String subject, Supplier<byte[]> payload)
+    {
+        if (pool != null && !duplicateFilter().firstSeen(messageId))
+            return false;
+
+        SharedLink link = this.sharedLink;
+        boolean isSubscribed = link != null ? link.isSubscribed(this, subject) : subscriptionManager.isSubscribed(subject);
+
+        if (isSubscribed && link == null && !subscriptionManager.admits(subject, sender, payload))
+        {
+            logger.debug("A subject cast message on " + subject + " did not pass the subscription filters, ignoring message.");
+            return false;
+        }
+
+        if (!isSubscribed)
             logger.error("The agent received a subject cast message that it was not subscribed to, ignoring message.");
+
+        return isSubscribed;
     }
 
 
@@ -0,0 +1,65 @@
+package MMS.Client;
+
+import MMS.Client.Connections.AuthenticatedConnection;
+import MMS.Client.Connections.Connection;
+
+/**
+ * AgentState is an immutable snapshot of the connection state of an agent, holding the status
+ * together with the connection it belongs to. The agent swaps whole snapshots atomically,
+ * so a reader always sees a status and a connection that belong together. Every transition is
+ * a compare-and-set from the state it expects, so a late callback cannot overwrite a newer state.
+ */
+final class AgentState
+{
+    static final AgentState NOT_CONNECTED = new AgentState(AgentStatus.NOT_CONNECTED, null);
+    static final AgentState CONNECTING = new AgentState(AgentStatus.CONNECTING, null);
+    static final AgentState LOST_CONNECTION = new AgentState(AgentStatus.LOST_CONNECTION, null);
+
+    private final AgentStatus status;
+    private final Connection connection;
+
+
+    private AgentState(AgentStatus status, Connection connection)
+    {
+        this.status = status;
+        this.connection = connection;
+    }
+
+
+    /**
+     * Returns the state of being connected on the given connection, authenticated or anonymous
+     * depending on the kind of connection.
+     *
+     * @param connection the connection to the router
+     * @return the connected state
+     */
+    static AgentState connected(Connection connection)
+    {
+        AgentStatus status = connection instanceof AuthenticatedConnection ? AgentStatus.CONNECTED_AUTHENTICATED : AgentStatus.CONNECTED_ANONYMOUS;
+        return new AgentState(status, connection);
+    }
+
+
+    AgentStatus getStatus()
+    {
+        return status;
+    }
+
+
+    Connection getConnection()
+    {
+        return connection;
+    }
+
+
+    boolean isConnected()
+    {
+        return status == AgentStatus.CONNECTED_AUTHENTICATED || status == AgentStatus.CONNECTED_ANONYMOUS;
+    }
+
+
+    boolean isAuthenticated()
+    {
+        return status == AgentStatus.CONNECTED_AUTHENTICATED;
+    }
+}
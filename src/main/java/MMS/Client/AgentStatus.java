@@ -8,5 +8,6 @@ public enum AgentStatus
     CONNECTED_ANONYMOUS,
     CONNECTED_AUTHENTICATED,
     NOT_CONNECTED,
+    CONNECTING,
     LOST_CONNECTION
 }
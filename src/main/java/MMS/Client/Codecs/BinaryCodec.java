@@ -0,0 +1,231 @@
+package MMS.Client.Codecs;
+
+import MMS.Client.Exceptions.CodecException;
+import MMS.Client.Exceptions.MMTPValidationException;
+import MMS.Protocols.MMTP.MessageFormats.DirectApplicationMessage;
+import MMS.Protocols.MMTP.MessageFormats.MessageType;
+import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
+import MMS.Protocols.MMTP.Validators.MMTPValidator;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * BinaryCodec encodes messages in a fixed layout that can be read in place, negotiated as MMTP-BIN/1.0.
+ * <p>
+ * A frame starts with a fixed 16 byte header, followed by the variable length fields in a fixed order.
+ * All numbers are big endian, strings are UTF-8 with an unsigned 16 bit length prefix.
+ * <pre>
+ *   0  magic 'M'          1  version           2  message type      3  flags
+ *   4  expires seconds (int64)                 12 expires nanos (int32)
+ *   16 id, sender, subject (string each)
+ *      recipient or interest count (uint16), followed by that many strings
+ *      payload length (int32), followed by the payload
+ * </pre>
+ * The payload comes last, so a received payload is a plain slice of the receive buffer.
+ * Received frames are checked structurally while decoding, and application messages are validated
+ * against the view with the same checks the MMTPValidator runs for the protobuf codec.
+ * <p>
+ * With a dictionary, negotiated as MMTP-BIN/1.0+dict, repeated MRNs and subjects are sent as references
+ * into a per connection StringDictionary and resolved to interned strings on receive. Such a codec
+ * holds the dictionaries of one connection, so a new instance is created for every connection.
+ */
+public class BinaryCodec implements WireCodec
+{
+    public static final String SUBPROTOCOL = "MMTP-BIN/1.0";
+    public static final String DICTIONARY_SUBPROTOCOL = "MMTP-BIN/1.0+dict";
+
+    static final byte MAGIC = 'M';
+    static final byte VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int FLAG_DIRECT_MESSAGES = 1;
+    static final int FLAG_DICTIONARY = 2;
+    static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    private final StringDictionary outgoing;
+    private final StringDictionary incoming;
+
+
+    /**
+     * Constructs a new BinaryCodec without a dictionary.
+     */
+    public BinaryCodec()
+    {
+        this(null, null);
+    }
+
+
+    private BinaryCodec(StringDictionary outgoing, StringDictionary incoming)
+    {
+        this.outgoing = outgoing;
+        this.incoming = incoming;
+    }
+
+
+    /**
+     * Creates a BinaryCodec with a fresh dictionary for each direction, for use on a single connection.
+     *
+     * @return the codec
+     */
+    public static BinaryCodec withDictionary()
+    {
+        return new BinaryCodec(new StringDictionary(), new StringDictionary());
+    }
+
+
+    @Override
+    public String getSubprotocol()
+    {
+        return outgoing == null ? SUBPROTOCOL : DICTIONARY_SUBPROTOCOL;
+    }
+
+
+    @Override
+    public boolean isStateful()
+    {
+        return outgoing != null;
+    }
+
+
+    @Override
+    public byte[] encode(DirectApplicationMessage message)
+    {
+        return write(MessageType.DIRECT_APPLICATION_MESSAGE, 0, message.getExpires(), message.getId(), message.getSender(), "", message.getRecipientsList(), message.getPayload());
+    }
+
+
+    @Override
+    public byte[] encode(SubjectCastApplicationMessage message)
+    {
+        return write(MessageType.SUBJECT_CAST_APPLICATION_MESSAGE, 0, message.getExpires(), message.getId(), message.getSender(), message.getSubject(), Collections.emptyList(), message.getPayload());
+    }
+
+
+    @Override
+    public byte[] encodeRegister(List<String> interests, boolean wantDirectMessages)
+    {
+        int flags = wantDirectMessages ? FLAG_DIRECT_MESSAGES : 0;
+        return write(MessageType.REGISTER, flags, Timestamp.getDefaultInstance(), "", "", "", interests, ByteString.EMPTY);
+    }
+
+
+    @Override
+    public byte[] encodeUnregister(List<String> interests, boolean wantDirectMessages)
+    {
+        int flags = wantDirectMessages ? FLAG_DIRECT_MESSAGES : 0;
+        return write(MessageType.UNREGISTER, flags, Timestamp.getDefaultInstance(), "", "", "", interests, ByteString.EMPTY);
+    }
+
+
+    @Override
+    public MessageView decode(byte[] buffer, int offset, int len) throws CodecException
+    {
+        BinaryMessageView view = new BinaryMessageView(buffer, offset, len, incoming);
+
+        if (view.getType() == MessageType.DIRECT_APPLICATION_MESSAGE || view.getType() == MessageType.SUBJECT_CAST_APPLICATION_MESSAGE)
+        {
+            try
+            {
+                MMTPValidator.validate(view);
+            }
+
+            catch (MMTPValidationException ex)
+            {
+                throw new CodecException("The application message is not valid: " + ex.getMessage(), ex);
+            }
+        }
+
+        return view;
+    }
+
+
+    /**
+     * Writes a frame into an array of exactly the right size. Dictionary entries added for the frame
+     * are only kept if the whole frame could be written.
+     */
+    private byte[] write(MessageType type, int flags, Timestamp expires, String id, String sender, String subject, List<String> list, ByteString payload)
+    {
+        try
+        {
+            byte[] frame = writeFrame(type, flags, expires, id, sender, subject, list, payload);
+
+            if (outgoing != null)
+                outgoing.commit();
+
+            return frame;
+        }
+
+        catch (RuntimeException ex)
+        {
+            if (outgoing != null)
+                outgoing.rollback();
+
+            throw ex;
+        }
+    }
+
+
+    private byte[] writeFrame(MessageType type, int flags, Timestamp expires, String id, String sender, String subject, List<String> list, ByteString payload)
+    {
+        if (type.getNumber() > 0xFF)
+            throw new IllegalArgumentException("Message type " + type + " does not fit the binary layout");
+
+        if (list.size() > MAX_STRING_LENGTH)
+            throw new IllegalArgumentException("Too many recipients or interests for one frame: " + list.size());
+
+        byte[] idField = field(id, false);
+        byte[] senderField = field(sender, true);
+        byte[] subjectField = field(subject, true);
+        byte[][] items = new byte[list.size()][];
+        int size = HEADER_SIZE + idField.length + senderField.length + subjectField.length + 2 + 4 + payload.size();
+
+        for (int i = 0; i < items.length; i++)
+        {
+            items[i] = field(list.get(i), true);
+            size += items[i].length;
+        }
+
+        if (outgoing != null)
+            flags |= FLAG_DICTIONARY;
+
+        byte[] frame = new byte[size];
+        ByteBuffer out = ByteBuffer.wrap(frame);
+
+        out.put(MAGIC).put(VERSION).put((byte) type.getNumber()).put((byte) flags);
+        out.putLong(expires.getSeconds()).putInt(expires.getNanos());
+        out.put(idField).put(senderField).put(subjectField);
+        out.putShort((short) items.length);
+
+        for (byte[] item : items)
+            out.put(item);
+
+        out.putInt(payload.size());
+        payload.copyTo(frame, out.position());
+        return frame;
+    }
+
+
+    /**
+     * Encodes a string field with its length prefix, or as a dictionary reference where possible.
+     */
+    private byte[] field(String value, boolean insertable)
+    {
+        if (outgoing != null)
+            return outgoing.encode(value, insertable);
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+        if (bytes.length > MAX_STRING_LENGTH)
+            throw new IllegalArgumentException("String field is longer than " + MAX_STRING_LENGTH + " bytes");
+
+        byte[] field = new byte[2 + bytes.length];
+        field[0] = (byte) (bytes.length >>> 8);
+        field[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, field, 2, bytes.length);
+        return field;
+    }
+}
@@ -0,0 +1,307 @@
+package MMS.Client.Codecs;
+
+import MMS.Client.Exceptions.CodecException;
+import MMS.Protocols.MMTP.MessageFormats.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * BinaryMessageView is a flyweight over a frame in the BinaryCodec layout. Creating it walks the
+ * frame once to check its structure and remember where the fields start, without allocating anything
+ * but the view itself. Fields are read from the buffer when asked for, and the primitive accessors
+ * and comparisons read them in place, so a consumer can filter and route messages without materializing
+ * strings or copying the payload.
+ * <p>
+ * Frames written with a dictionary are walked on the receiving thread, in the order they arrive, so that
+ * the strings they add to the dictionary are known to the frames after them. References are resolved
+ * to the interned dictionary entries.
+ */
+public final class BinaryMessageView implements MessageView
+{
+    private final byte[] buffer;
+    private final StringDictionary dictionary;
+    private final int start;
+    private final MessageType type;
+    private final int flags;
+    private final int idOffset;
+    private final int senderOffset;
+    private final int subjectOffset;
+    private final int listOffset;
+    private final int listCount;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+
+    /**
+     * Constructs a view over the given frame.
+     *
+     * @param buffer     the buffer holding the frame
+     * @param offset     the starting position of the frame
+     * @param len        the length of the frame
+     * @param dictionary the dictionary of the receiving direction, or null if none was negotiated
+     * @throws CodecException if the frame is not in the BinaryCodec layout
+     */
+    BinaryMessageView(byte[] buffer, int offset, int len, StringDictionary dictionary) throws CodecException
+    {
+        int end = offset + len;
+
+        if (len < BinaryCodec.HEADER_SIZE)
+            throw new CodecException("Frame is shorter than the header");
+
+        if (buffer[offset] != BinaryCodec.MAGIC || buffer[offset + 1] != BinaryCodec.VERSION)
+            throw new CodecException("Frame is not in the binary layout version " + BinaryCodec.VERSION);
+
+        this.buffer = buffer;
+        this.start = offset;
+        this.type = MessageType.forNumber(buffer[offset + 2] & 0xFF);
+        this.flags = buffer[offset + 3] & 0xFF;
+
+        if (type == null)
+            throw new CodecException("Unknown message type: " + (buffer[offset + 2] & 0xFF));
+
+        if ((flags & BinaryCodec.FLAG_DICTIONARY) != 0 && dictionary == null)
+            throw new CodecException("Frame uses a dictionary, which was not negotiated");
+
+        this.dictionary = (flags & BinaryCodec.FLAG_DICTIONARY) != 0 ? dictionary : null;
+
+        int position = offset + BinaryCodec.HEADER_SIZE;
+        this.idOffset = position;
+        position = skipString(position, end);
+        this.senderOffset = position;
+        position = skipString(position, end);
+        this.subjectOffset = position;
+        position = skipString(position, end);
+
+        require(position + 2, end);
+        this.listCount = readShort(position);
+        position += 2;
+        this.listOffset = position;
+
+        for (int i = 0; i < listCount; i++)
+            position = skipString(position, end);
+
+        require(position + 4, end);
+        this.payloadLength = readInt(position);
+        this.payloadOffset = position + 4;
+
+        if (payloadLength < 0 || payloadOffset + payloadLength != end)
+            throw new CodecException("Payload length does not match the frame length");
+    }
+
+
+    @Override
+    public MessageType getType()
+    {
+        return type;
+    }
+
+    @Override
+    public String getId()
+    {
+        return readString(idOffset);
+    }
+
+    @Override
+    public String getSender()
+    {
+        return readString(senderOffset);
+    }
+
+    @Override
+    public String getSubject()
+    {
+        return readString(subjectOffset);
+    }
+
+    @Override
+    public List<String> getRecipients()
+    {
+        List<String> recipients = new ArrayList<>(listCount);
+        int position = listOffset;
+
+        for (int i = 0; i < listCount; i++)
+        {
+            recipients.add(readString(position));
+            position += 2 + fieldLength(position);
+        }
+
+        return recipients;
+    }
+
+    @Override
+    public Instant getExpires()
+    {
+        return Instant.ofEpochSecond(getExpiresSeconds(), getExpiresNanos());
+    }
+
+    @Override
+    public int getPayloadLength()
+    {
+        return payloadLength;
+    }
+
+    @Override
+    public byte[] getPayload()
+    {
+        return Arrays.copyOfRange(buffer, payloadOffset, payloadOffset + payloadLength);
+    }
+
+    @Override
+    public ByteBuffer getPayloadBuffer()
+    {
+        return ByteBuffer.wrap(buffer, payloadOffset, payloadLength).slice().asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Returns the expiry as seconds since the epoch, read in place.
+     *
+     * @return the expiry seconds
+     */
+    public long getExpiresSeconds()
+    {
+        return ((long) readInt(start + 4) << 32) | (readInt(start + 8) & 0xFFFFFFFFL);
+    }
+
+
+    /**
+     * Returns the nanosecond part of the expiry, read in place.
+     *
+     * @return the expiry nanos
+     */
+    public int getExpiresNanos()
+    {
+        return readInt(start + 12);
+    }
+
+
+    /**
+     * Returns true if the register or unregister request covers direct messages.
+     *
+     * @return true if the direct message flag is set
+     */
+    public boolean isWantDirectMessages()
+    {
+        return (flags & BinaryCodec.FLAG_DIRECT_MESSAGES) != 0;
+    }
+
+
+    /**
+     * Compares the subject with the given UTF-8 encoded subject in place.
+     *
+     * @param subject the UTF-8 encoded subject to compare with
+     * @return true if the subjects are equal
+     */
+    public boolean subjectEquals(byte[] subject)
+    {
+        int prefix = readShort(subjectOffset);
+
+        if (dictionary != null && (prefix & StringDictionary.REFERENCE) == StringDictionary.REFERENCE)
+            return Arrays.equals(dictionary.get(prefix & StringDictionary.MAX_INSERT_LENGTH).getBytes(StandardCharsets.UTF_8), subject);
+
+        int length = fieldLength(subjectOffset);
+        return Arrays.equals(buffer, subjectOffset + 2, subjectOffset + 2 + length, subject, 0, subject.length);
+    }
+
+
+    /**
+     * Returns the payload byte at the given index, read in place.
+     *
+     * @param index the index within the payload
+     * @return the payload byte
+     */
+    public byte getPayloadByte(int index)
+    {
+        if (index < 0 || index >= payloadLength)
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for payload length " + payloadLength);
+
+        return buffer[payloadOffset + index];
+    }
+
+
+    /**
+     * Skips a string field, adding it to the dictionary or checking its reference where it uses one.
+     */
+    private int skipString(int position, int end) throws CodecException
+    {
+        require(position + 2, end);
+        int length = fieldLength(position);
+        int next = position + 2 + length;
+        require(next, end);
+
+        if (dictionary != null)
+        {
+            int prefix = readShort(position);
+            int kind = prefix & StringDictionary.REFERENCE;
+
+            if (kind == StringDictionary.REFERENCE && dictionary.get(prefix & StringDictionary.MAX_INSERT_LENGTH) == null)
+                throw new CodecException("Reference to unknown dictionary entry " + (prefix & StringDictionary.MAX_INSERT_LENGTH));
+
+            if (kind == StringDictionary.INSERT)
+                dictionary.insert(new String(buffer, position + 2, length, StandardCharsets.UTF_8));
+        }
+
+        return next;
+    }
+
+
+    /**
+     * Returns the number of string bytes following the prefix of a field, zero for a dictionary reference.
+     */
+    private int fieldLength(int position)
+    {
+        int prefix = readShort(position);
+
+        if (dictionary == null)
+            return prefix;
+
+        if ((prefix & StringDictionary.INSERT) == 0)
+            return prefix & StringDictionary.MAX_LITERAL_LENGTH;
+
+        if ((prefix & StringDictionary.REFERENCE) == StringDictionary.INSERT)
+            return prefix & StringDictionary.MAX_INSERT_LENGTH;
+
+        return 0;
+    }
+
+
+    private static void require(int position, int end) throws CodecException
+    {
+        if (position > end)
+            throw new CodecException("Frame is truncated");
+    }
+
+
+    private String readString(int position)
+    {
+        int prefix = readShort(position);
+
+        if (dictionary == null)
+            return new String(buffer, position + 2, prefix, StandardCharsets.UTF_8);
+
+        int kind = prefix & StringDictionary.REFERENCE;
+
+        if (kind == StringDictionary.REFERENCE)
+            return dictionary.get(prefix & StringDictionary.MAX_INSERT_LENGTH);
+
+        String value = new String(buffer, position + 2, fieldLength(position), StandardCharsets.UTF_8);
+        return kind == StringDictionary.INSERT ? value.intern() : value;
+    }
+
+
+    private int readShort(int position)
+    {
+        return ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+    }
+
+
+    private int readInt(int position)
+    {
+        return ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16) | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+    }
+}
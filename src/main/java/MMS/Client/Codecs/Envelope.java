@@ -0,0 +1,81 @@
+package MMS.Client.Codecs;
+
+import MMS.Protocols.MMTP.MessageFormats.MessageType;
+import MMS.Protocols.MMTP.MessageFormats.ProtocolMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.IOException;
+
+/**
+ * Envelope encodes and decodes ProtocolMessage frames in a single pass over the application message.
+ * <p>
+ * On the wire, an embedded message field is identical to a bytes field holding the serialized message,
+ * so the content of a ProtocolMessage can be written straight from the typed message into the frame,
+ * instead of serializing it to a byte array first and copying that into the envelope. On receive,
+ * the frame is parsed with aliasing enabled, so the content refers to the received buffer and the
+ * typed message is parsed from it without copying. Frames stay compatible with MMTP/1.0 peers.
+ */
+final class Envelope
+{
+    private Envelope()
+    {
+    }
+
+
+    /**
+     * Encodes a ProtocolMessage frame of the given type carrying the given message.
+     *
+     * @param type    the type of the protocol message
+     * @param content the message carried by the protocol message
+     * @return the encoded frame
+     */
+    static byte[] encode(MessageType type, MessageLite content)
+    {
+        int typeNumber = type.getNumber();
+        int size = CodedOutputStream.computeMessageSize(ProtocolMessage.CONTENT_FIELD_NUMBER, content);
+
+        if (typeNumber != 0)
+            size += CodedOutputStream.computeEnumSize(ProtocolMessage.TYPE_FIELD_NUMBER, typeNumber);
+
+        byte[] frame = new byte[size];
+        CodedOutputStream out = CodedOutputStream.newInstance(frame);
+
+        try
+        {
+            if (typeNumber != 0)
+                out.writeEnum(ProtocolMessage.TYPE_FIELD_NUMBER, typeNumber);
+
+            out.writeMessage(ProtocolMessage.CONTENT_FIELD_NUMBER, content);
+            out.checkNoSpaceLeft();
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException("Writing to a correctly sized array failed", ex);
+        }
+
+        return frame;
+    }
+
+
+    /**
+     * Decodes a received frame. The content of the returned message aliases the given buffer,
+     * which must therefore not be modified afterwards.
+     *
+     * @param payload the buffer holding the frame
+     * @param offset  the starting position of the frame
+     * @param len     the length of the frame
+     * @return the decoded protocol message
+     * @throws InvalidProtocolBufferException if the frame is malformed
+     */
+    static ProtocolMessage decode(byte[] payload, int offset, int len) throws InvalidProtocolBufferException
+    {
+        CodedInputStream in = UnsafeByteOperations.unsafeWrap(payload, offset, len).newCodedInput();
+        in.enableAliasing(true);
+        return ProtocolMessage.parseFrom(in);
+    }
+}
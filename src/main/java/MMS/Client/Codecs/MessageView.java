@@ -0,0 +1,45 @@
+package MMS.Client.Codecs;
+
+import MMS.Protocols.MMTP.MessageFormats.MessageType;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * MessageView gives read access to a received message without committing to how it is stored.
+ * Fields that do not apply to the type of the message read as empty.
+ */
+public interface MessageView
+{
+    MessageType getType();
+    String getId();
+    String getSender();
+    String getSubject();
+    List<String> getRecipients();
+    Instant getExpires();
+
+
+    /**
+     * Returns the length of the payload in bytes.
+     *
+     * @return the payload length
+     */
+    int getPayloadLength();
+
+
+    /**
+     * Returns a copy of the payload.
+     *
+     * @return the payload
+     */
+    byte[] getPayload();
+
+
+    /**
+     * Returns a read-only buffer over the payload, without copying it where the codec allows.
+     *
+     * @return the payload buffer
+     */
+    ByteBuffer getPayloadBuffer();
+}
@@ -0,0 +1,196 @@
+package MMS.Client.Codecs;
+
+import MMS.Client.Exceptions.CodecException;
+import MMS.Client.Exceptions.MMTPValidationException;
+import MMS.Protocols.MMTP.MessageFormats.DirectApplicationMessage;
+import MMS.Protocols.MMTP.MessageFormats.MessageType;
+import MMS.Protocols.MMTP.MessageFormats.ProtocolMessage;
+import MMS.Protocols.MMTP.MessageFormats.Register;
+import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
+import MMS.Protocols.MMTP.MessageFormats.Unregister;
+import MMS.Protocols.MMTP.Validators.MMTPValidator;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Timestamp;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ProtobufCodec encodes messages as MMTP/1.0 ProtocolMessage frames. It is the default codec,
+ * used whenever the edge router does not accept another subprotocol.
+ * Received application messages are validated with the MMTPValidator while decoding.
+ */
+public class ProtobufCodec implements WireCodec
+{
+    public static final String SUBPROTOCOL = "MMTP/1.0";
+
+
+    @Override
+    public String getSubprotocol()
+    {
+        return SUBPROTOCOL;
+    }
+
+
+    @Override
+    public byte[] encode(DirectApplicationMessage message)
+    {
+        return Envelope.encode(MessageType.DIRECT_APPLICATION_MESSAGE, message);
+    }
+
+
+    @Override
+    public byte[] encode(SubjectCastApplicationMessage message)
+    {
+        return Envelope.encode(MessageType.SUBJECT_CAST_APPLICATION_MESSAGE, message);
+    }
+
+
+    @Override
+    public byte[] encodeRegister(List<String> interests, boolean wantDirectMessages)
+    {
+        Register.Builder builder = Register.newBuilder().addAllInterests(interests);
+
+        if (wantDirectMessages)
+            builder.setWantDirectMessages(true);
+
+        return Envelope.encode(MessageType.REGISTER, builder.build());
+    }
+
+
+    @Override
+    public byte[] encodeUnregister(List<String> interests, boolean wantDirectMessages)
+    {
+        Unregister.Builder builder = Unregister.newBuilder().addAllInterests(interests);
+
+        if (wantDirectMessages)
+            builder.setWantDirectMessages(true);
+
+        return Envelope.encode(MessageType.UNREGISTER, builder.build());
+    }
+
+
+    @Override
+    public MessageView decode(byte[] buffer, int offset, int len) throws CodecException
+    {
+        try
+        {
+            ProtocolMessage protocolMessage = Envelope.decode(buffer, offset, len);
+
+            switch (protocolMessage.getType())
+            {
+                case DIRECT_APPLICATION_MESSAGE ->
+                {
+                    DirectApplicationMessage message = DirectApplicationMessage.parseFrom(protocolMessage.getContent());
+                    MMTPValidator.validate(message);
+                    return new View(MessageType.DIRECT_APPLICATION_MESSAGE, message.getId(), message.getSender(), "", message.getRecipientsList(), message.getExpires(), message.getPayload());
+                }
+
+                case SUBJECT_CAST_APPLICATION_MESSAGE ->
+                {
+                    SubjectCastApplicationMessage message = SubjectCastApplicationMessage.parseFrom(protocolMessage.getContent());
+                    MMTPValidator.validate(message);
+                    return new View(MessageType.SUBJECT_CAST_APPLICATION_MESSAGE, message.getId(), message.getSender(), message.getSubject(), Collections.emptyList(), message.getExpires(), message.getPayload());
+                }
+
+                default ->
+                {
+                    return new View(protocolMessage.getType(), "", "", "", Collections.emptyList(), Timestamp.getDefaultInstance(), protocolMessage.getContent());
+                }
+            }
+        }
+
+        catch (InvalidProtocolBufferException ex)
+        {
+            throw new CodecException("Invalid protocol buffer", ex);
+        }
+
+        catch (MMTPValidationException ex)
+        {
+            throw new CodecException("The application message is not valid: " + ex.getMessage(), ex);
+        }
+    }
+
+
+    /**
+     * The view of a parsed message. The payload still aliases the received buffer.
+     */
+    private static final class View implements MessageView
+    {
+        private final MessageType type;
+        private final String id;
+        private final String sender;
+        private final String subject;
+        private final List<String> recipients;
+        private final Timestamp expires;
+        private final ByteString payload;
+
+        private View(MessageType type, String id, String sender, String subject, List<String> recipients, Timestamp expires, ByteString payload)
+        {
+            this.type = type;
+            this.id = id;
+            this.sender = sender;
+            this.subject = subject;
+            this.recipients = recipients;
+            this.expires = expires;
+            this.payload = payload;
+        }
+
+        @Override
+        public MessageType getType()
+        {
+            return type;
+        }
+
+        @Override
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public String getSender()
+        {
+            return sender;
+        }
+
+        @Override
+        public String getSubject()
+        {
+            return subject;
+        }
+
+        @Override
+        public List<String> getRecipients()
+        {
+            return recipients;
+        }
+
+        @Override
+        public Instant getExpires()
+        {
+            return Instant.ofEpochSecond(expires.getSeconds(), expires.getNanos());
+        }
+
+        @Override
+        public int getPayloadLength()
+        {
+            return payload.size();
+        }
+
+        @Override
+        public byte[] getPayload()
+        {
+            return payload.toByteArray();
+        }
+
+        @Override
+        public ByteBuffer getPayloadBuffer()
+        {
+            return payload.asReadOnlyByteBuffer();
+        }
+    }
+}
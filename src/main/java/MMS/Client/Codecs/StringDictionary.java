@@ -0,0 +1,144 @@
+package MMS.Client.Codecs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * StringDictionary holds the strings one direction of a connection has announced, so that repeated
+ * MRNs and subjects can go on the wire as a two byte reference instead of the full string.
+ * <p>
+ * Every string field of a dictionary frame starts with a 16 bit prefix:
+ * <pre>
+ *   0xxxxxxx xxxxxxxx   literal, the low 15 bits are the UTF-8 length
+ *   10xxxxxx xxxxxxxx   literal that is also added as the next dictionary entry, the low 14 bits are the length
+ *   11xxxxxx xxxxxxxx   reference to the dictionary entry with the index in the low 14 bits
+ * </pre>
+ * Entries are only ever added, in the order the frames are written, until the capacity is reached.
+ * Both sides therefore stay in sync without acknowledging entries, as long as frames are encoded in
+ * the order they are sent and decoded in the order they are received. One instance is used for
+ * either encoding or decoding, each direction of a connection has its own dictionary.
+ * <p>
+ * Entries added while encoding a frame stay pending until the frame is committed, so a frame that
+ * fails to encode halfway, and is never sent, leaves the dictionary as the peer knows it.
+ */
+final class StringDictionary
+{
+    static final int CAPACITY = 4096;
+    static final int LITERAL = 0x0000;
+    static final int INSERT = 0x8000;
+    static final int REFERENCE = 0xC000;
+    static final int MAX_LITERAL_LENGTH = 0x7FFF;
+    static final int MAX_INSERT_LENGTH = 0x3FFF;
+
+    private final Map<String, byte[]> references;
+    private final Map<String, byte[]> pending;
+    private volatile String[] entries;
+    private int size;
+
+
+    StringDictionary()
+    {
+        this.references = new HashMap<>();
+        this.pending = new HashMap<>();
+        this.entries = new String[64];
+    }
+
+
+    /**
+     * Encodes a string field, prefix included, adding the string to the pending entries on first use.
+     * Must be called in the order the frames are sent, followed by commit or rollback once the frame is built.
+     *
+     * @param value      the string to encode
+     * @param insertable true if the string is likely to repeat and may be added to the dictionary
+     * @return the encoded field
+     */
+    byte[] encode(String value, boolean insertable)
+    {
+        byte[] reference = references.get(value);
+
+        if (reference == null)
+            reference = pending.get(value);
+
+        if (reference != null)
+            return reference;
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        boolean insert = insertable && bytes.length <= MAX_INSERT_LENGTH && size + pending.size() < CAPACITY;
+
+        if (!insert && bytes.length > MAX_LITERAL_LENGTH)
+            throw new IllegalArgumentException("String field is longer than " + MAX_LITERAL_LENGTH + " bytes");
+
+        int prefix = insert ? INSERT | bytes.length : LITERAL | bytes.length;
+        byte[] field = new byte[2 + bytes.length];
+        field[0] = (byte) (prefix >>> 8);
+        field[1] = (byte) prefix;
+        System.arraycopy(bytes, 0, field, 2, bytes.length);
+
+        if (insert)
+        {
+            int index = size + pending.size();
+            pending.put(value, new byte[]{(byte) ((REFERENCE | index) >>> 8), (byte) index});
+        }
+
+        return field;
+    }
+
+
+    /**
+     * Keeps the entries added while encoding the frame, which is about to be sent.
+     */
+    void commit()
+    {
+        references.putAll(pending);
+        size += pending.size();
+        pending.clear();
+    }
+
+
+    /**
+     * Discards the entries added while encoding a frame that will not be sent.
+     */
+    void rollback()
+    {
+        pending.clear();
+    }
+
+
+    /**
+     * Adds a received string as the next entry. Must be called in the order the frames are received.
+     *
+     * @param value the received string
+     * @return the interned string
+     */
+    String insert(String value)
+    {
+        String interned = value.intern();
+
+        if (size == CAPACITY)
+            return interned;
+
+        String[] current = entries;
+
+        if (size == current.length)
+            current = Arrays.copyOf(current, Math.min(current.length * 2, CAPACITY));
+
+        current[size++] = interned;
+        entries = current; // publishes the entry to views read on other threads
+        return interned;
+    }
+
+
+    /**
+     * Returns the entry with the given index.
+     *
+     * @param index the index of the entry
+     * @return the entry, or null if there is no entry with the index
+     */
+    String get(int index)
+    {
+        String[] current = entries;
+        return index < current.length ? current[index] : null;
+    }
+}
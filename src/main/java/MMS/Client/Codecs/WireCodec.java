@@ -0,0 +1,88 @@
+package MMS.Client.Codecs;
+
+import MMS.Client.Exceptions.CodecException;
+import MMS.Protocols.MMTP.MessageFormats.DirectApplicationMessage;
+import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
+
+import java.util.List;
+
+/**
+ * WireCodec turns messages into the frames sent on a connection and received frames back into messages.
+ * The codec of a connection is chosen when it opens, from the WebSocket subprotocol the edge router accepted.
+ * <p>
+ * Messages are built and validated as MMTP message objects, the codec only decides how they look on the wire.
+ * Received frames are decoded into a MessageView, which the codec may back by the received buffer directly.
+ */
+public interface WireCodec
+{
+    /**
+     * Returns the WebSocket subprotocol this codec is offered and negotiated as.
+     *
+     * @return the subprotocol name
+     */
+    String getSubprotocol();
+
+
+    /**
+     * Returns true if the codec keeps state across frames, such as a dictionary. A stateful codec
+     * belongs to a single connection, its frames are encoded in the order they are sent and decoded
+     * in the order they are received.
+     *
+     * @return true if the codec is stateful
+     */
+    default boolean isStateful()
+    {
+        return false;
+    }
+
+
+    /**
+     * Encodes a direct message.
+     *
+     * @param message the message to encode
+     * @return the encoded frame
+     */
+    byte[] encode(DirectApplicationMessage message);
+
+
+    /**
+     * Encodes a subject cast message.
+     *
+     * @param message the message to encode
+     * @return the encoded frame
+     */
+    byte[] encode(SubjectCastApplicationMessage message);
+
+
+    /**
+     * Encodes a request to register interest in the given subjects.
+     *
+     * @param interests          the subjects to register
+     * @param wantDirectMessages true to also register for direct messages
+     * @return the encoded frame
+     */
+    byte[] encodeRegister(List<String> interests, boolean wantDirectMessages);
+
+
+    /**
+     * Encodes a request to unregister interest in the given subjects.
+     *
+     * @param interests          the subjects to unregister
+     * @param wantDirectMessages true to also unregister from direct messages
+     * @return the encoded frame
+     */
+    byte[] encodeUnregister(List<String> interests, boolean wantDirectMessages);
+
+
+    /**
+     * Decodes a received frame. The returned view may refer to the given buffer,
+     * which must therefore not be modified while the view is in use.
+     *
+     * @param buffer the buffer holding the frame
+     * @param offset the starting position of the frame
+     * @param len    the length of the frame
+     * @return a view of the decoded message
+     * @throws CodecException if the frame is malformed or the message is not valid
+     */
+    MessageView decode(byte[] buffer, int offset, int len) throws CodecException;
+}
@@ -0,0 +1,85 @@
+package MMS.Client.Codecs;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * WireCodecs maps WebSocket subprotocols to the codecs implementing them. The protobuf and binary
+ * codecs are registered by default, further codecs can be registered and then offered by listing
+ * their subprotocol in the client configuration. Stateful codecs are registered with a factory,
+ * which is called for every connection that negotiates them.
+ */
+public final class WireCodecs
+{
+    public static final WireCodec PROTOBUF = new ProtobufCodec();
+    public static final WireCodec BINARY = new BinaryCodec();
+
+    private static final Map<String, Supplier<WireCodec>> codecs = new ConcurrentHashMap<>();
+
+    static
+    {
+        register(PROTOBUF);
+        register(BINARY);
+        register(BinaryCodec.DICTIONARY_SUBPROTOCOL, BinaryCodec::withDictionary);
+    }
+
+
+    private WireCodecs()
+    {
+    }
+
+
+    /**
+     * Registers a codec under its subprotocol, replacing any codec registered under the same name.
+     *
+     * @param codec the codec to register
+     */
+    public static void register(WireCodec codec)
+    {
+        if (codec.isStateful())
+            throw new IllegalArgumentException("A stateful codec must be registered with a factory");
+
+        codecs.put(codec.getSubprotocol(), () -> codec);
+    }
+
+
+    /**
+     * Registers a factory creating a codec for every connection that negotiates the given subprotocol.
+     *
+     * @param subprotocol the subprotocol
+     * @param factory     the factory creating the codecs
+     */
+    public static void register(String subprotocol, Supplier<WireCodec> factory)
+    {
+        codecs.put(subprotocol, factory);
+    }
+
+
+    /**
+     * Returns the codec for the subprotocol accepted by the edge router.
+     * Routers that accept no subprotocol, or one we do not know, speak protobuf.
+     *
+     * @param subprotocol the accepted subprotocol, may be null
+     * @return the codec to use for the connection
+     */
+    public static WireCodec forSubprotocol(String subprotocol)
+    {
+        Supplier<WireCodec> factory = subprotocol == null ? null : codecs.get(subprotocol);
+        return factory != null ? factory.get() : PROTOBUF;
+    }
+
+
+    /**
+     * Returns the subprotocols that can be offered, those of the registered codecs, in the given order of preference.
+     *
+     * @param preferred the subprotocols in order of preference
+     * @return the known subprotocols among them
+     */
+    public static List<String> offerable(List<String> preferred)
+    {
+        return preferred.stream().filter(codecs::containsKey).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,166 @@
+package MMS.Client;
+
+import MMS.Client.Codecs.WireCodec;
+import MMS.Client.Codecs.WireCodecs;
+import MMS.Client.Connections.Connection;
+import MMS.Client.Connections.WsCodes;
+import MMS.Client.Exceptions.SendingException;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * ConnectionContext holds the client side state of an open connection that the Connection
+ * object itself does not carry, such as the link statistics measured by the keepalive and the
+ * WebSocket session and the wire codec negotiated for it, which are used to encode and send frames,
+ * and the payload framings negotiated with the edge router.
+ * A context is registered when the WebSocket opens and removed when it closes.
+ */
+public class ConnectionContext
+{
+    private static final Map<Connection, ConnectionContext> contexts = new ConcurrentHashMap<>();
+
+    private final Session session;
+    private final WireCodec codec;
+    private final Set<String> features;
+    private final LinkStatistics statistics;
+    private final ReentrantLock sendLock;
+
+
+    private ConnectionContext(Session session, WireCodec codec, Set<String> features)
+    {
+        this.session = session;
+        this.codec = codec;
+        this.features = features;
+        this.statistics = new LinkStatistics();
+        this.sendLock = new ReentrantLock();
+    }
+
+
+    /**
+     * Returns the context of the given connection.
+     *
+     * @param connection the connection
+     * @return the context, or null if the connection is not open
+     */
+    public static ConnectionContext get(Connection connection)
+    {
+        return connection == null ? null : contexts.get(connection);
+    }
+
+
+    /**
+     * Returns the link statistics of the given connection.
+     *
+     * @param connection the connection
+     * @return the link statistics, or null if the connection is not open
+     */
+    public static LinkStatistics statisticsOf(Connection connection)
+    {
+        ConnectionContext context = get(connection);
+        return context == null ? null : context.statistics;
+    }
+
+
+    /**
+     * Returns the wire codec negotiated for the given connection.
+     *
+     * @param connection the connection
+     * @return the codec, the protobuf codec if the connection is not open
+     */
+    public static WireCodec codecOf(Connection connection)
+    {
+        ConnectionContext context = get(connection);
+        return context == null ? WireCodecs.PROTOBUF : context.codec;
+    }
+
+
+    /**
+     * Returns true if the given payload framing was negotiated for the connection.
+     *
+     * @param connection the connection
+     * @param feature    the payload framing, see PayloadFeatures
+     * @return true if payloads may be sent in the framing, false if not or the connection is not open
+     */
+    static boolean supports(Connection connection, String feature)
+    {
+        ConnectionContext context = get(connection);
+        return context != null && context.features.contains(feature);
+    }
+
+
+    /**
+     * Encodes a message with the codec of the given connection and sends it on the connection.
+     *
+     * @param connection the connection
+     * @param encoder    encodes the message with the given codec
+     * @throws SendingException if the connection is not open or the frame could not be sent
+     */
+    static void send(Connection connection, Function<WireCodec, byte[]> encoder) throws SendingException
+    {
+        ConnectionContext context = get(connection);
+
+        if (context == null)
+            throw new SendingException("The connection is not open");
+
+        WireCodec codec = context.codec;
+        byte[] frame = codec.isStateful() ? null : encoder.apply(codec);
+        context.sendLock.lock(); // blocking sends on one session must not overlap.
+
+        try
+        {
+            if (frame == null)
+                frame = encoder.apply(codec); // stateful codecs must encode in the order the frames go out.
+
+            long start = System.nanoTime();
+            context.session.getRemote().sendBytes(ByteBuffer.wrap(frame));
+            context.statistics.recordSend(frame.length, System.nanoTime() - start);
+        }
+
+        catch (IOException | IllegalStateException ex)
+        {
+            if (codec.isStateful())
+                context.session.close(WsCodes.PROTOCOL_ERROR.getCode(), "Codec state lost"); // the peer did not see the frame, its state is out of sync.
+
+            throw new SendingException("Failed to send message", ex);
+        }
+
+        finally
+        {
+            context.sendLock.unlock();
+        }
+    }
+
+
+    static ConnectionContext register(Connection connection, Session session, WireCodec codec, Set<String> features)
+    {
+        ConnectionContext context = new ConnectionContext(session, codec, features);
+        contexts.put(connection, context);
+        return context;
+    }
+
+
+    static void remove(Connection connection)
+    {
+        if (connection != null)
+            contexts.remove(connection);
+    }
+
+
+    public LinkStatistics getStatistics()
+    {
+        return statistics;
+    }
+
+
+    public WireCodec getCodec()
+    {
+        return codec;
+    }
+}
@@ -0,0 +1,99 @@
+package MMS.Client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DeltaDecoder rebuilds the full payloads of subjects published in delta mode, keeping the last payload
+ * of every publisher on every subject as the base for the next delta. A delta that does not follow the
+ * cached base, because a message was missed or the connection is new, is dropped until the next keyframe.
+ * <p>
+ * The decoder belongs to a single connection and must be called in the order messages were received.
+ * The number of cached bases is bounded, the least recently used base is evicted first.
+ */
+class DeltaDecoder
+{
+    private static final Logger logger = LogManager.getLogger(DeltaDecoder.class);
+
+    private final Map<String, Base> bases;
+
+
+    /**
+     * Constructs a new DeltaDecoder.
+     *
+     * @param capacity the maximum number of cached bases
+     */
+    DeltaDecoder(int capacity)
+    {
+        this.bases = new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Base> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Returns the full payload of a delta framed message.
+     *
+     * @param sender  the sender of the message
+     * @param subject the subject of the message
+     * @param payload the framed payload
+     * @return the full payload, or null if the message has to be dropped
+     */
+    byte[] decode(String sender, String subject, ByteBuffer payload)
+    {
+        String key = sender + ' ' + subject; // MRNs do not contain spaces.
+        int sequence = DeltaFrame.sequence(payload);
+        ByteBuffer body = DeltaFrame.body(payload);
+
+        if (DeltaFrame.kind(payload) == DeltaFrame.KEYFRAME)
+        {
+            byte[] full = new byte[body.remaining()];
+            body.get(full);
+            bases.put(key, new Base(sequence, full));
+            return full;
+        }
+
+        Base base = bases.get(key);
+
+        if (base == null || base.sequence + 1 != sequence)
+        {
+            logger.debug("No base for delta " + sequence + " on " + subject + " from " + sender + ", waiting for the next keyframe");
+            return null;
+        }
+
+        byte[] full = DeltaFrame.apply(base.payload, body);
+
+        if (full == null)
+        {
+            logger.error("Delta " + sequence + " on " + subject + " from " + sender + " does not fit its base, dropping it");
+            bases.remove(key);
+            return null;
+        }
+
+        base.sequence = sequence;
+        base.payload = full;
+        return full;
+    }
+
+
+    private static class Base
+    {
+        private int sequence;
+        private byte[] payload;
+
+        private Base(int sequence, byte[] payload)
+        {
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+}
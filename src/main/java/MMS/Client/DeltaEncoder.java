@@ -0,0 +1,93 @@
+package MMS.Client;
+
+import MMS.Client.Exceptions.SendingException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DeltaEncoder keeps the last payload the agent sent on every subject it publishes in delta mode,
+ * and turns new payloads into keyframes or deltas against it. A subject is encoded and sent under
+ * its own lock, so the sequence numbers go out in order even when messages are sent from several threads.
+ */
+class DeltaEncoder
+{
+    /**
+     * Sends a framed payload, throwing if it could not be sent.
+     */
+    interface Sender
+    {
+        void send(byte[] framedPayload) throws SendingException;
+    }
+
+    private final DeltaPolicy policy;
+    private final Map<String, Stream> streams;
+
+
+    DeltaEncoder(DeltaPolicy policy)
+    {
+        this.policy = policy;
+        this.streams = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Frames the payload as a keyframe or delta and sends it. The stream only advances if sending succeeded,
+     * so the next delta is taken against the last payload that actually went out.
+     *
+     * @param subject the subject the payload is published on
+     * @param payload the full payload
+     * @param sender  sends the framed payload
+     * @throws SendingException if the payload could not be sent
+     */
+    void publish(String subject, byte[] payload, Sender sender) throws SendingException
+    {
+        Stream stream = streams.computeIfAbsent(subject, key -> new Stream());
+        stream.lock.lock();
+
+        try
+        {
+            long now = System.nanoTime();
+            int sequence = stream.sequence + 1;
+            boolean keyframeDue = stream.last == null
+                    || stream.sinceKeyframe + 1 >= policy.getKeyframeInterval()
+                    || now - stream.keyframeAt >= policy.getKeyframeMaxAge().toNanos();
+
+            byte[] frame = keyframeDue ? null : DeltaFrame.delta(sequence, stream.last, payload);
+            boolean keyframe = frame == null;
+
+            if (keyframe)
+                frame = DeltaFrame.keyframe(sequence, payload);
+
+            sender.send(frame);
+
+            stream.sequence = sequence;
+            stream.last = payload;
+
+            if (keyframe)
+            {
+                stream.sinceKeyframe = 0;
+                stream.keyframeAt = now;
+            }
+
+            else
+                stream.sinceKeyframe++;
+        }
+
+        finally
+        {
+            stream.lock.unlock();
+        }
+    }
+
+
+    private static class Stream
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private byte[] last;
+        private int sequence;
+        private int sinceKeyframe;
+        private long keyframeAt;
+    }
+}
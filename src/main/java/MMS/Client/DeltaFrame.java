@@ -0,0 +1,233 @@
+package MMS.Client;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * DeltaFrame is the payload format of subjects published in delta mode. Every payload starts with
+ * a header holding a magic prefix, the kind of frame and the sequence number of the frame within the
+ * stream of the publisher on the subject. A keyframe carries the full payload after the header, a delta
+ * carries the difference to the payload of the previous frame:
+ * <pre>
+ *   varint length of the new payload
+ *   repeated: varint bytes to copy from the previous payload, varint length of the new bytes, the new bytes
+ * </pre>
+ * Unchanged bytes are copied from the same position of the previous payload, so the format suits
+ * payloads that are republished with changes in place, such as grids and status tables.
+ * The framing is only used on connections that negotiated it, see PayloadFeatures.
+ */
+final class DeltaFrame
+{
+    static final byte KEYFRAME = 0;
+    static final byte DELTA = 1;
+    static final int HEADER_SIZE = 9;
+
+    private static final byte[] MAGIC = {0x00, 'M', 'D', 0x01};
+    private static final int MIN_COPY = 4;
+
+
+    private DeltaFrame()
+    {
+    }
+
+
+    /**
+     * Returns true if the payload starts with a delta frame header.
+     *
+     * @param payload the payload
+     * @return true if the payload is a delta frame
+     */
+    static boolean isFramed(ByteBuffer payload)
+    {
+        if (payload.remaining() < HEADER_SIZE)
+            return false;
+
+        int position = payload.position();
+
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (payload.get(position + i) != MAGIC[i])
+                return false;
+        }
+
+        byte kind = payload.get(position + MAGIC.length);
+        return kind == KEYFRAME || kind == DELTA;
+    }
+
+
+    static byte kind(ByteBuffer payload)
+    {
+        return payload.get(payload.position() + MAGIC.length);
+    }
+
+
+    static int sequence(ByteBuffer payload)
+    {
+        return payload.getInt(payload.position() + MAGIC.length + 1);
+    }
+
+
+    /**
+     * Returns the body of the frame, following the header.
+     */
+    static ByteBuffer body(ByteBuffer payload)
+    {
+        ByteBuffer body = payload.duplicate();
+        body.position(payload.position() + HEADER_SIZE);
+        return body.slice();
+    }
+
+
+    /**
+     * Creates a keyframe carrying the full payload.
+     *
+     * @param sequence the sequence number of the frame
+     * @param payload  the payload
+     * @return the framed payload
+     */
+    static byte[] keyframe(int sequence, byte[] payload)
+    {
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        ByteBuffer.wrap(frame).put(MAGIC).put(KEYFRAME).putInt(sequence).put(payload);
+        return frame;
+    }
+
+
+    /**
+     * Creates a delta frame carrying the difference between the previous and the new payload.
+     *
+     * @param sequence the sequence number of the frame
+     * @param base     the payload of the previous frame
+     * @param payload  the new payload
+     * @return the framed difference, or null if it is not smaller than a keyframe
+     */
+    static byte[] delta(int sequence, byte[] base, byte[] payload)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        out.writeBytes(MAGIC);
+        out.write(DELTA);
+        out.write(sequence >>> 24);
+        out.write(sequence >>> 16);
+        out.write(sequence >>> 8);
+        out.write(sequence);
+        writeVarint(out, payload.length);
+
+        int common = Math.min(base.length, payload.length);
+        int position = 0;
+
+        while (position < payload.length)
+        {
+            int copy = 0;
+
+            while (position + copy < common && base[position + copy] == payload[position + copy])
+                copy++;
+
+            int literalStart = position + copy;
+            int literalEnd = literalStart;
+
+            while (literalEnd < payload.length && !unchangedRun(base, payload, literalEnd, common))
+                literalEnd++;
+
+            writeVarint(out, copy);
+            writeVarint(out, literalEnd - literalStart);
+            out.write(payload, literalStart, literalEnd - literalStart);
+            position = literalEnd;
+
+            if (out.size() >= HEADER_SIZE + payload.length)
+                return null;
+        }
+
+        return out.toByteArray();
+    }
+
+
+    /**
+     * Applies the difference in the body of a delta frame to the previous payload.
+     *
+     * @param base the payload of the previous frame
+     * @param body the body of the delta frame
+     * @return the new payload, or null if the difference does not fit the previous payload or is malformed
+     */
+    static byte[] apply(byte[] base, ByteBuffer body)
+    {
+        try
+        {
+            int length = readVarint(body);
+
+            if (length < 0 || length > PayloadCompression.MAX_INFLATED_SIZE)
+                return null; // the length comes from the sender, it must not make us allocate arbitrary memory.
+
+            byte[] payload = new byte[length];
+            int position = 0;
+
+            while (position < length)
+            {
+                int copy = readVarint(body);
+                int literal = readVarint(body);
+
+                if (copy < 0 || literal < 0 || (copy == 0 && literal == 0) || position + copy > base.length || position + copy + literal > length)
+                    return null;
+
+                System.arraycopy(base, position, payload, position, copy);
+                position += copy;
+                body.get(payload, position, literal);
+                position += literal;
+            }
+
+            return payload;
+        }
+
+        catch (BufferUnderflowException ex)
+        {
+            return null;
+        }
+    }
+
+
+    /**
+     * Returns true if a run of unchanged bytes long enough to be worth copying starts at the given position.
+     */
+    private static boolean unchangedRun(byte[] base, byte[] payload, int position, int common)
+    {
+        if (position + MIN_COPY > common)
+            return false;
+
+        for (int i = 0; i < MIN_COPY; i++)
+        {
+            if (base[position + i] != payload[position + i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private static void writeVarint(ByteArrayOutputStream out, int value)
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+
+    private static int readVarint(ByteBuffer in)
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+package MMS.Client;
+
+import java.time.Duration;
+
+/**
+ * DeltaPolicy describes how the Agent publishes subjects in delta mode. After a keyframe carrying the
+ * full payload, the following messages on the subject only carry the difference to the previous payload,
+ * until the keyframe interval or the maximum keyframe age is reached. Subscribers that joined late, or
+ * missed a message, pick up again at the next keyframe. Subscribers need delta decoding enabled in their
+ * WsClientConfig to receive the full payloads.
+ */
+public class DeltaPolicy
+{
+    private final int keyframeInterval;
+    private final Duration keyframeMaxAge;
+
+
+    /**
+     * Constructs a new DeltaPolicy.
+     *
+     * @param keyframeInterval the number of messages between keyframes, a keyframe included
+     * @param keyframeMaxAge   the longest time between keyframes
+     */
+    public DeltaPolicy(int keyframeInterval, Duration keyframeMaxAge)
+    {
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException("Keyframe interval must be at least 1");
+
+        this.keyframeInterval = keyframeInterval;
+        this.keyframeMaxAge = keyframeMaxAge;
+    }
+
+
+    /**
+     * Returns the default policy, sending a keyframe every 30 messages and at least once a minute.
+     *
+     * @return the default delta policy
+     */
+    public static DeltaPolicy defaultPolicy()
+    {
+        return new DeltaPolicy(30, Duration.ofMinutes(1));
+    }
+
+
+    public int getKeyframeInterval()
+    {
+        return keyframeInterval;
+    }
+
+    public Duration getKeyframeMaxAge()
+    {
+        return keyframeMaxAge;
+    }
+}
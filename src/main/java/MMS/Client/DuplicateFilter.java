@@ -0,0 +1,43 @@
+package MMS.Client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * DuplicateFilter remembers the ids of the most recently received messages, so that a message
+ * delivered by several routers is only passed on to the application once.
+ */
+class DuplicateFilter
+{
+    private final Map<String, Boolean> seen;
+
+
+    /**
+     * Constructs a new DuplicateFilter remembering up to the given number of message ids.
+     *
+     * @param capacity the number of message ids to remember
+     */
+    DuplicateFilter(int capacity)
+    {
+        this.seen = new LinkedHashMap<>(16, 0.75f) // grows as needed, most agents never see many duplicates
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+
+    /**
+     * Records the message id and checks if it was seen before.
+     *
+     * @param messageId the id of the received message
+     * @return true if this is the first time the id is seen, false if it is a duplicate
+     */
+    synchronized boolean firstSeen(String messageId)
+    {
+        return seen.put(messageId, Boolean.TRUE) == null;
+    }
+}
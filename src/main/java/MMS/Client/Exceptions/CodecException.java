@@ -0,0 +1,19 @@
+package MMS.Client.Exceptions;
+
+public class CodecException extends Exception
+{
+    public CodecException()
+    {
+        super("Malformed frame");
+    }
+
+    public CodecException(String message)
+    {
+        super(message);
+    }
+
+    public CodecException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
+}
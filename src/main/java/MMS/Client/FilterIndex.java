@@ -0,0 +1,96 @@
+package MMS.Client;
+
+import MMS.Misc.SubjectFilter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FilterIndex holds the filters of the filtered subscriptions of one subscriber, by subject, so that
+ * a received message is checked against the filters on its subject only. Filters on the same subject
+ * are alternatives, a message passing any of them is delivered.
+ */
+class FilterIndex
+{
+    private final Map<String, Map<String, SubjectFilter>> filtersBySubject;
+
+
+    FilterIndex()
+    {
+        this.filtersBySubject = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Adds the filter of an interest, if it is a filtered subscription. An interest with an invalid filter
+     * adds nothing, as its subscription is rejected when it is validated.
+     *
+     * @param interest the subscribed interest
+     */
+    void add(String interest)
+    {
+        SubjectFilter filter;
+
+        try
+        {
+            filter = SubjectFilter.filterOf(interest);
+        }
+
+        catch (IllegalArgumentException ex)
+        {
+            return;
+        }
+
+        if (filter != null)
+            filtersBySubject.computeIfAbsent(SubjectFilter.subject(interest), key -> new ConcurrentHashMap<>()).put(interest, filter);
+    }
+
+
+    /**
+     * Removes the filter of an interest, if it is a filtered subscription.
+     *
+     * @param interest the unsubscribed interest
+     */
+    void remove(String interest)
+    {
+        if (SubjectFilter.isFiltered(interest))
+            filtersBySubject.computeIfPresent(SubjectFilter.subject(interest), (key, filters) -> filters.remove(interest) != null && filters.isEmpty() ? null : filters);
+    }
+
+
+    /**
+     * Returns true if any filter is on the subject.
+     *
+     * @param subject the subject
+     * @return true if the subject has a filtered subscription
+     */
+    boolean contains(String subject)
+    {
+        return filtersBySubject.containsKey(subject);
+    }
+
+
+    /**
+     * Returns true if a message passes any filter on its subject.
+     *
+     * @param subject the subject of the message
+     * @param sender  the sender of the message
+     * @param payload the payload of the message
+     * @return true if the message is to be delivered
+     */
+    boolean admits(String subject, String sender, byte[] payload)
+    {
+        Map<String, SubjectFilter> filters = filtersBySubject.get(subject);
+
+        if (filters == null)
+            return false;
+
+        for (SubjectFilter filter : filters.values())
+        {
+            if (filter.test(sender, payload))
+                return true;
+        }
+
+        return false;
+    }
+}
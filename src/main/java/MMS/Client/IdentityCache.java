@@ -0,0 +1,60 @@
+package MMS.Client;
+
+import net.maritimeconnectivity.pki.CertificateHandler;
+import net.maritimeconnectivity.pki.PKIIdentity;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IdentityCache caches the PKI identities parsed from certificates, keyed by the SHA-256
+ * fingerprint of the certificate. A rotated certificate has a new fingerprint and is parsed
+ * once, repeated connects with the same certificate skip the parsing.
+ */
+class IdentityCache
+{
+    private static final int MAX_ENTRIES = 1024;
+    private static final Map<String, PKIIdentity> identities = new ConcurrentHashMap<>();
+
+
+    /**
+     * Returns the PKI identity of the given certificate, parsing it only on the first lookup.
+     *
+     * @param certificate the certificate
+     * @return the PKI identity
+     */
+    static PKIIdentity getIdentity(X509Certificate certificate)
+    {
+        String fingerprint;
+
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+            fingerprint = HexFormat.of().formatHex(digest);
+        }
+
+        catch (NoSuchAlgorithmException | CertificateEncodingException ex)
+        {
+            return CertificateHandler.getIdentityFromCert(certificate);
+        }
+
+        PKIIdentity identity = identities.get(fingerprint);
+
+        if (identity == null)
+        {
+            identity = CertificateHandler.getIdentityFromCert(certificate);
+
+            if (identities.size() >= MAX_ENTRIES)
+                identities.clear(); // rotated certificates are never looked up again, start over.
+
+            identities.put(fingerprint, identity);
+        }
+
+        return identity;
+    }
+}
@@ -1,9 +1,11 @@
 package MMS.Client.Interfaces;
 
 import MMS.Client.AgentStatus;
+import MMS.Client.Codecs.MessageView;
 import MMS.Client.Connections.DisconnectionReason;
 import MMS.Client.ServiceDiscovery.RouterInfo;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 
@@ -31,4 +33,26 @@ public abstract class AgentListener
     public abstract void onSubscriptionRemoved(List<String> subject);
     public abstract void onDirectMessageSubscriptionChanged(boolean subscribed);
     public abstract void onDirectMessageSubscriptionFailure(String reason, Throwable cause);
+
+    // Reconnection-related methods, optional to override
+    public void onReconnect(AgentStatus status, Duration outage, Duration resyncTime) {}
+
+    // Message views, optional to override
+    /**
+     * Returns true to receive subject casts as views with onSubjectCastMessage(MessageView) instead of
+     * with their fields read. Read once, when the agent is created. Agents attached to a shared link
+     * receive the fields regardless, as the link reads them once for all of its agents.
+     *
+     * @return true to receive subject cast views
+     */
+    public boolean wantsMessageViews() { return false; }
+
+    /**
+     * Called with the subject casts delivered to the agent, instead of onSubjectCastMessage, if wantsMessageViews
+     * returns true. The view reads fields from the received frame when asked for, so a listener that skips fields,
+     * or reads the payload as a buffer, does not pay for reading them. The view must not be kept after returning.
+     *
+     * @param view the view of the subject cast message
+     */
+    public void onSubjectCastMessage(MessageView view) {}
 }
@@ -1,14 +1,36 @@
 package MMS.Client.Interfaces;
 
+import MMS.Client.Codecs.MessageView;
+
 import java.time.Instant;
 import java.util.List;
 
 
 /**
  * Interface used to inform the Agent of messages received from the Edge Router.
+ * <p>
+ * Received messages are handed to onMessage first, which by default reads the fields of the message
+ * and calls the method for its type. Listeners that want to read fields in place, without materializing
+ * them, can override onMessage instead.
  */
 public interface MessageListener
 {
     void onDirectMessage(String messageId, List<String> destinations, String sender, Instant expires, byte[] message);
     void onSubjectCastMessage(String messageId, String sender, String subject, Instant expires, byte[] message);
+
+
+    /**
+     * Called with every received application message.
+     *
+     * @param view the view of the received message
+     */
+    default void onMessage(MessageView view)
+    {
+        switch (view.getType())
+        {
+            case DIRECT_APPLICATION_MESSAGE -> onDirectMessage(view.getId(), view.getRecipients(), view.getSender(), view.getExpires(), view.getPayload());
+            case SUBJECT_CAST_APPLICATION_MESSAGE -> onSubjectCastMessage(view.getId(), view.getSender(), view.getSubject(), view.getExpires(), view.getPayload());
+            default -> throw new IllegalArgumentException("Not an application message: " + view.getType());
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package MMS.Client.Interfaces;
+
+import java.time.Instant;
+
+
+/**
+ * Interface used to answer requests sent to the agent with Agent.request.
+ * The returned payload is sent back to the requester as the reply.
+ */
+public interface RequestHandler
+{
+    /**
+     * Called with every received request.
+     *
+     * @param messageId the id of the message carrying the request
+     * @param sender    the MRN of the requester
+     * @param expires   the expiration time of the request
+     * @param payload   the payload of the request
+     * @return the payload of the reply, or null to not reply
+     */
+    byte[] onRequest(String messageId, String sender, Instant expires, byte[] payload);
+}
@@ -7,4 +7,8 @@ import java.util.List;
 public interface ServiceDiscoveryListener
 {
     void servicesDiscovered(List<RouterInfo> services);
+
+    // Live updates from background discovery, optional to implement
+    default void routerAdded(RouterInfo router) {}
+    default void routerRemoved(RouterInfo router) {}
 }
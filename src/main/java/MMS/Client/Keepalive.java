@@ -0,0 +1,118 @@
+package MMS.Client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keepalive pings a WebSocket session at a fixed interval and measures the round trip time of
+ * every pong. Each ping carries its send time, so a pong can be matched without bookkeeping.
+ * When the configured number of pings in a row go unanswered the link is taken to be dead,
+ * which catches half-open connections long before TCP would give up on them.
+ */
+class Keepalive
+{
+    private static final Logger logger = LogManager.getLogger(Keepalive.class);
+
+    private final Session session;
+    private final LinkStatistics statistics;
+    private final long intervalMillis;
+    private final int maxMissedPongs;
+    private final Executor executor;
+    private final Runnable onDead;
+    private volatile boolean stopped;
+
+
+    /**
+     * Constructs a new Keepalive.
+     *
+     * @param session        the session to ping
+     * @param statistics     the statistics to record the round trip times in
+     * @param intervalMillis the time between two pings in milliseconds
+     * @param maxMissedPongs the number of unanswered pings after which the link is dead
+     * @param executor       the executor the pings are sent on
+     * @param onDead         called once when the link is found dead
+     */
+    Keepalive(Session session, LinkStatistics statistics, long intervalMillis, int maxMissedPongs, Executor executor, Runnable onDead)
+    {
+        this.session = session;
+        this.statistics = statistics;
+        this.intervalMillis = intervalMillis;
+        this.maxMissedPongs = maxMissedPongs;
+        this.executor = executor;
+        this.onDead = onDead;
+    }
+
+
+    void start()
+    {
+        schedule();
+    }
+
+
+    void stop()
+    {
+        stopped = true;
+    }
+
+
+    /**
+     * Handles a pong, recording its round trip time if it answers one of our pings.
+     *
+     * @param payload the payload of the pong
+     */
+    void pongReceived(ByteBuffer payload)
+    {
+        if (payload == null || payload.remaining() != Long.BYTES)
+            return;
+
+        long sent = payload.getLong(payload.position());
+        statistics.recordPong(System.nanoTime() - sent);
+    }
+
+
+    private void schedule()
+    {
+        if (!stopped)
+            CompletableFuture.delayedExecutor(intervalMillis, TimeUnit.MILLISECONDS, executor).execute(this::tick);
+    }
+
+
+    /**
+     * Declares the link dead if too many pings went unanswered, otherwise sends the next ping.
+     */
+    private void tick()
+    {
+        if (stopped || !session.isOpen())
+            return;
+
+        if (statistics.getOutstandingPings() >= maxMissedPongs)
+        {
+            logger.error("No pong received for " + maxMissedPongs + " pings, the link to " + session.getRemoteAddress() + " is dead.");
+            stopped = true;
+            onDead.run();
+            return;
+        }
+
+        ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+        payload.putLong(System.nanoTime()).flip();
+        statistics.recordPing();
+        schedule(); // before sending, a ping stuck on a full send buffer must not stop the dead link detection.
+
+        try
+        {
+            session.getRemote().sendPing(payload);
+        }
+
+        catch (IOException ex)
+        {
+            logger.debug("Sending ping failed: " + ex.getMessage());
+        }
+    }
+}
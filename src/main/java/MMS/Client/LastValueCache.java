@@ -0,0 +1,199 @@
+package MMS.Client;
+
+import MMS.Client.Connections.AuthenticatedConnection;
+import MMS.Client.Connections.Connection;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * LastValueCache keeps the last subject cast message received on every subject, so that an agent subscribing to a
+ * subject gets its current value right away instead of waiting for the next publish. It is shared by all connections
+ * of a process, but its entries are scoped by the identity of the connection that received them: the MRN of an
+ * authenticated connection, or anonymous. An agent is only served the messages received by connections with its own
+ * identity, so a snapshot never hands it a message the router would not have delivered to it.
+ * <p>
+ * The cache is bounded by the approximate memory its entries take, evicting the least recently used subject first.
+ * Payloads larger than an eighth of the bound are not cached, and expired entries are dropped when they are read.
+ */
+public class LastValueCache
+{
+    /**
+     * The scope of the messages received on anonymous connections.
+     */
+    public static final String ANONYMOUS = "";
+
+    private static final int ENTRY_OVERHEAD = 128; // the entry, its map node and the strings it holds besides the key.
+
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes;
+
+
+    /**
+     * Constructs a new LastValueCache.
+     *
+     * @param maxBytes the approximate memory the cached entries may take
+     */
+    public LastValueCache(long maxBytes)
+    {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("The cache size must be positive");
+
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+
+    /**
+     * Returns the scope of the messages received on a connection.
+     *
+     * @param connection the connection
+     * @return the MRN of an authenticated connection, or ANONYMOUS
+     */
+    public static String scopeOf(Connection connection)
+    {
+        return connection instanceof AuthenticatedConnection ? ((AuthenticatedConnection) connection).getMRN() : ANONYMOUS;
+    }
+
+
+    /**
+     * Records the last message received on a subject in the given scope, replacing the previous one.
+     *
+     * @param scope     the scope of the connection the message was received on
+     * @param subject   the subject of the message
+     * @param messageId the id of the message
+     * @param sender    the sender of the message
+     * @param expires   the expiration time of the message
+     * @param payload   the payload of the message, which must not be modified afterwards
+     */
+    public synchronized void put(String scope, String subject, String messageId, String sender, Instant expires, byte[] payload)
+    {
+        String key = key(scope, subject);
+        Entry entry = new Entry(messageId, sender, expires, payload, sizeOf(key, payload));
+        Entry replaced = entry.size > maxBytes / 8 ? entries.remove(key) : entries.put(key, entry); // an older value would be stale.
+
+        if (replaced != null)
+            bytes -= replaced.size;
+
+        if (entry.size > maxBytes / 8)
+            return;
+
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+
+        while (bytes > maxBytes && eldest.hasNext())
+        {
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+
+    /**
+     * Returns the last message received on a subject in the given scope.
+     *
+     * @param scope   the scope of the connection of the reader
+     * @param subject the subject
+     * @return the last message, or null if none is cached or it has expired
+     */
+    public synchronized Entry get(String scope, String subject)
+    {
+        String key = key(scope, subject);
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.isExpired())
+        {
+            entries.remove(key);
+            bytes -= entry.size;
+            return null;
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Returns the number of cached subjects, over all scopes.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+
+    /**
+     * Returns the approximate memory the cached entries take.
+     *
+     * @return the size of the cache in bytes
+     */
+    public synchronized long getBytes()
+    {
+        return bytes;
+    }
+
+
+    private static String key(String scope, String subject)
+    {
+        return scope + '\n' + subject; // an MRN holds no line break, so the scope and the subject cannot run together.
+    }
+
+
+    private static long sizeOf(String key, byte[] payload)
+    {
+        return ENTRY_OVERHEAD + 2L * key.length() + payload.length;
+    }
+
+
+    /**
+     * The last message received on a subject.
+     */
+    public static class Entry
+    {
+        private final String messageId;
+        private final String sender;
+        private final Instant expires;
+        private final byte[] payload;
+        private final long size;
+
+        private Entry(String messageId, String sender, Instant expires, byte[] payload, long size)
+        {
+            this.messageId = messageId;
+            this.sender = sender;
+            this.expires = expires;
+            this.payload = payload;
+            this.size = size;
+        }
+
+        public String getMessageId()
+        {
+            return messageId;
+        }
+
+        public String getSender()
+        {
+            return sender;
+        }
+
+        public Instant getExpires()
+        {
+            return expires;
+        }
+
+        /**
+         * Returns the payload, shared with every reader of the entry, so it must not be modified.
+         */
+        public byte[] getPayload()
+        {
+            return payload;
+        }
+
+        private boolean isExpired()
+        {
+            return expires.getEpochSecond() != 0 && expires.isBefore(Instant.now()); // zero when the message has no expiry.
+        }
+    }
+}
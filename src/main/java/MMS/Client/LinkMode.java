@@ -0,0 +1,22 @@
+package MMS.Client;
+
+/**
+ * The state of the link as judged by the adaptive link mode of the agent.
+ */
+public enum LinkMode
+{
+    /**
+     * The link keeps up, messages are sent as they come.
+     */
+    NORMAL,
+
+    /**
+     * The link is slow, payloads are compressed and messages are sent within the send budget.
+     */
+    CONSTRAINED,
+
+    /**
+     * The link is slow and messages are waiting for budget, low priority messages are held back.
+     */
+    SATURATED
+}
@@ -0,0 +1,181 @@
+package MMS.Client;
+
+import java.time.Duration;
+
+/**
+ * LinkStatistics holds the round trip time of a connection as measured by the keepalive pings,
+ * smoothed the same way TCP smooths its round trip time (RFC 6298), together with the number of
+ * pings sent and pongs received. It also estimates the throughput the link achieves, from the
+ * sends that had to wait for the link to take the frame.
+ */
+public class LinkStatistics
+{
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final long MIN_BLOCKED_SEND_NANOS = 1_000_000;
+    private static final long THROUGHPUT_MAX_AGE_NANOS = 30_000_000_000L;
+
+    private double smoothedRttNanos = -1;
+    private double rttVariationNanos;
+    private long lastRttNanos;
+    private long pingsSent;
+    private long pongsReceived;
+    private int outstandingPings;
+    private long bytesSent;
+    private double throughput = -1;
+    private long throughputAt;
+
+
+    /**
+     * Records that a ping was sent.
+     */
+    synchronized void recordPing()
+    {
+        pingsSent++;
+        outstandingPings++;
+    }
+
+
+    /**
+     * Records a received pong and folds its round trip time into the smoothed estimate.
+     *
+     * @param rttNanos the round trip time of the ping in nanoseconds
+     */
+    synchronized void recordPong(long rttNanos)
+    {
+        pongsReceived++;
+        outstandingPings = 0;
+        lastRttNanos = rttNanos;
+
+        if (smoothedRttNanos < 0)
+        {
+            smoothedRttNanos = rttNanos;
+            rttVariationNanos = rttNanos / 2.0;
+        }
+
+        else
+        {
+            rttVariationNanos = (1 - BETA) * rttVariationNanos + BETA * Math.abs(smoothedRttNanos - rttNanos);
+            smoothedRttNanos = (1 - ALPHA) * smoothedRttNanos + ALPHA * rttNanos;
+        }
+    }
+
+
+    /**
+     * Records a sent frame. A send that returned quickly only filled the socket buffer and says
+     * nothing about the link, a send that had to wait gives the rate the link drained it at.
+     *
+     * @param bytes        the size of the frame
+     * @param elapsedNanos the time the send took
+     */
+    synchronized void recordSend(int bytes, long elapsedNanos)
+    {
+        bytesSent += bytes;
+
+        if (elapsedNanos < MIN_BLOCKED_SEND_NANOS)
+            return;
+
+        double rate = bytes * 1e9 / elapsedNanos;
+        throughput = throughput < 0 ? rate : (1 - ALPHA) * throughput + ALPHA * rate;
+        throughputAt = System.nanoTime();
+    }
+
+
+    /**
+     * Returns the number of pings sent since the last pong was received.
+     *
+     * @return the number of unanswered pings
+     */
+    synchronized int getOutstandingPings()
+    {
+        return outstandingPings;
+    }
+
+
+    /**
+     * Returns true if at least one round trip time has been measured.
+     *
+     * @return true if a round trip time is known
+     */
+    public synchronized boolean hasSample()
+    {
+        return smoothedRttNanos >= 0;
+    }
+
+
+    /**
+     * Returns the smoothed round trip time, or zero if none has been measured.
+     *
+     * @return the smoothed round trip time
+     */
+    public synchronized Duration getSmoothedRtt()
+    {
+        return smoothedRttNanos < 0 ? Duration.ZERO : Duration.ofNanos((long) smoothedRttNanos);
+    }
+
+
+    /**
+     * Returns the variation of the round trip time, or zero if none has been measured.
+     *
+     * @return the round trip time variation
+     */
+    public synchronized Duration getRttVariation()
+    {
+        return Duration.ofNanos((long) rttVariationNanos);
+    }
+
+
+    public synchronized Duration getLastRtt()
+    {
+        return Duration.ofNanos(lastRttNanos);
+    }
+
+
+    /**
+     * Returns a timeout suited to waiting for a reply over this link, the smoothed round trip time
+     * plus four times its variation, or zero if no round trip time has been measured. Request timeouts
+     * and the connect timeouts to the router of the link are never shorter than it.
+     *
+     * @return the suggested timeout
+     */
+    public synchronized Duration getSuggestedTimeout()
+    {
+        if (smoothedRttNanos < 0)
+            return Duration.ZERO;
+
+        return Duration.ofNanos((long) (smoothedRttNanos + 4 * rttVariationNanos));
+    }
+
+
+    public synchronized long getPingsSent()
+    {
+        return pingsSent;
+    }
+
+
+    public synchronized long getPongsReceived()
+    {
+        return pongsReceived;
+    }
+
+
+    public synchronized long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+
+    /**
+     * Returns the smoothed throughput the link achieved when it was the bottleneck. The estimate expires
+     * when the link has not been the bottleneck for 30 seconds, as it may have recovered since.
+     *
+     * @return the throughput in bytes per second, or zero if there is no recent estimate
+     */
+    public synchronized double getThroughput()
+    {
+        if (throughput < 0 || System.nanoTime() - throughputAt > THROUGHPUT_MAX_AGE_NANOS)
+            return 0;
+
+        return throughput;
+    }
+}
@@ -1,32 +1,44 @@
 package MMS.Client;
 
-import MMS.Client.Exceptions.MMTPValidationException;
+import MMS.Client.Codecs.MessageView;
+import MMS.Client.Codecs.WireCodec;
+import MMS.Client.Codecs.WireCodecs;
+import MMS.Client.Exceptions.CodecException;
 import MMS.Client.Interfaces.MessageListener;
-import MMS.Protocols.MMTP.MessageFormats.DirectApplicationMessage;
 import MMS.Protocols.MMTP.MessageFormats.MessageType;
-import MMS.Protocols.MMTP.MessageFormats.ProtocolMessage;
-import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
-import MMS.Protocols.MMTP.Validators.MMTPValidator;
-import com.google.protobuf.InvalidProtocolBufferException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.nio.ByteBuffer;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
 /**
  * WsMessageHandler is responsible for processing incoming messages and
  * notifying the appropriate MessageListener. It uses a thread pool
- * to process messages in parallel.
+ * to process messages in parallel, normally the dispatch pool shared by
+ * all connections of a WsHandler. Messages are decoded with the wire codec
+ * negotiated for the connection, protobuf until the connection is open.
+ * Payloads compressed for constrained links are inflated, and with delta decoding enabled,
+ * the full payloads of subjects published in delta mode are rebuilt, before the messages
+ * reach the MessageListener. Messages that expired while waiting for a worker thread are dropped.
+ * With a last value cache, every subject cast message is recorded as the last value of its subject.
  */
 public class MessageHandler
 {
     private final static Logger logger = LogManager.getLogger(MessageHandler.class);
 
     private final MessageListener messageListener;
-    private final ExecutorService workerPool;
+    private final Executor workerPool;
+    private volatile WireCodec codec;
+    private volatile Set<String> payloadFeatures;
+    private volatile DeltaDecoder deltaDecoder;
+    private volatile LastValueCache lastValueCache;
+    private volatile String lastValueScope;
 
 
     /**
@@ -35,122 +47,208 @@ public class MessageHandler
      * @param messageListener the listener for handling message events
      */
     public MessageHandler(MessageListener messageListener)
+    {
+        this(messageListener, Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()));
+    }
+
+
+    /**
+     * Constructs a new WsMessageHandler processing messages on the given executor.
+     *
+     * @param messageListener the listener for handling message events
+     * @param workerPool      the executor the messages are processed on
+     */
+    public MessageHandler(MessageListener messageListener, Executor workerPool)
     {
         this.messageListener = messageListener;
-        int cores = Runtime.getRuntime().availableProcessors();
-        workerPool = Executors.newFixedThreadPool(cores);
+        this.workerPool = workerPool;
+        this.codec = WireCodecs.PROTOBUF;
+        this.payloadFeatures = Collections.emptySet();
     }
 
 
     /**
-     * Processes the given message payload using a worker thread from the thread pool.
+     * Sets the wire codec received messages are decoded with.
      *
-     * @param payload the message payload
-     * @param offset  the starting position of the payload
-     * @param len     the length of the payload
+     * @param codec the codec negotiated for the connection
      */
-    public void processMessage(byte[] payload, int offset, int len)
+    public void setCodec(WireCodec codec)
     {
-        delegate(() -> processMessageInternal(payload, offset, len));
+        this.codec = codec;
     }
 
 
     /**
-     * Processes the given message payload internally by parsing the message
-     * and calling the appropriate method based on the message type.
+     * Sets the payload framings negotiated for the connection, only payloads in these framings are unwrapped.
+     *
+     * @param payloadFeatures the accepted payload framings, see PayloadFeatures
+     */
+    public void setPayloadFeatures(Set<String> payloadFeatures)
+    {
+        this.payloadFeatures = payloadFeatures;
+    }
+
+
+    /**
+     * Enables rebuilding the payloads of subjects published in delta mode.
+     *
+     * @param capacity the maximum number of publisher and subject pairs to keep a base payload for
+     */
+    public void enableDeltaDecoding(int capacity)
+    {
+        this.deltaDecoder = new DeltaDecoder(capacity);
+    }
+
+
+    /**
+     * Sets the cache the last subject cast message on every subject is recorded in, and the scope
+     * of the connection the messages are recorded under.
+     *
+     * @param lastValueCache the last value cache, shared by all connections
+     * @param scope          the scope of the connection, see LastValueCache.scopeOf
+     */
+    public void setLastValueCache(LastValueCache lastValueCache, String scope)
+    {
+        this.lastValueScope = scope; // written first, the cache is only used once it is set.
+        this.lastValueCache = lastValueCache;
+    }
+
+
+    /**
+     * Processes the given message payload using a worker thread from the thread pool.
+     * With a stateful codec or delta decoding the message is decoded on the calling thread first,
+     * as frames and deltas must be decoded in the order they were received.
      *
      * @param payload the message payload
      * @param offset  the starting position of the payload
      * @param len     the length of the payload
      */
-    private void processMessageInternal(byte[] payload, int offset, int len)
+    public void processMessage(byte[] payload, int offset, int len)
     {
-        byte[] message = new byte[len];
-        System.arraycopy(payload, offset, message, 0, len);
+        WireCodec current = codec;
+        DeltaDecoder deltas = deltaDecoder;
 
-        try
+        if (current.isStateful() || deltas != null)
         {
-            ProtocolMessage protocolMessage = ProtocolMessage.parseFrom(message);
-            MessageType type = protocolMessage.getType();
+            MessageView view = decode(current, payload, offset, len);
 
-            switch (type)
-            {
-                case DIRECT_APPLICATION_MESSAGE ->
-                {
-                    DirectApplicationMessage directApplicationMessage = DirectApplicationMessage.parseFrom(protocolMessage.getContent());
-                    processMessage(directApplicationMessage);
-                }
-
-                case SUBJECT_CAST_APPLICATION_MESSAGE ->
-                {
-                    SubjectCastApplicationMessage subjectCastApplicationMessage = SubjectCastApplicationMessage.parseFrom(protocolMessage.getContent());
-                    processMessage(subjectCastApplicationMessage);
-                }
+            if (view != null)
+                view = unwrap(view, deltas);
 
-                default -> logger.error("Unknown message type: " + type);
-            }
+            if (view != null)
+                delegate(() -> dispatch(view));
         }
 
-        catch (InvalidProtocolBufferException ex)
+        else
         {
-            logger.error("Invalid protocol buffer", ex);
+            delegate(() ->
+            {
+                MessageView view = decode(current, payload, offset, len);
+
+                if (view != null)
+                    view = unwrap(view, null);
+
+                if (view != null)
+                    dispatch(view);
+            });
         }
     }
 
 
     /**
-     * Processes a DirectApplicationMessage by validating it and notifying the MessageListener.
+     * Decodes the given message payload from the received buffer directly, without copying it.
      *
-     * @param message the DirectApplicationMessage to be processed
+     * @param codec   the codec to decode the message with
+     * @param payload the message payload
+     * @param offset  the starting position of the payload
+     * @param len     the length of the payload
+     * @return the decoded message, or null if it was dropped
      */
-    private void processMessage(DirectApplicationMessage message)
+    private MessageView decode(WireCodec codec, byte[] payload, int offset, int len)
     {
         try
         {
-            MMTPValidator.validate(message);
+            return codec.decode(payload, offset, len); // Jetty hands us a fresh array per message, no copy needed.
         }
 
-        catch (MMTPValidationException ex)
+        catch (CodecException ex)
         {
-            logger.error("The application message is not valid, dropping it");
-            return;
+            logger.error(ex.getMessage() + ", dropping it");
+            return null;
         }
-
-        String messageId = message.getId();
-        List<String> destinations = message.getRecipientsList();
-        String sender = message.getSender();
-        Instant expires = Instant.ofEpochSecond(message.getExpires().getSeconds(), message.getExpires().getNanos());
-        byte[] content = message.getPayload().toByteArray();
-
-        messageListener.onDirectMessage(messageId, destinations, sender, expires, content);
     }
 
 
     /**
-     * Processes a SubjectCastApplicationMessage by validating it and notifying the MessageListener.
+     * Rebuilds the original payload of a subject cast message that was compressed for a constrained link,
+     * if compression was negotiated for the connection, or published in delta mode if delta decoding is enabled.
+     * Other messages are returned as they are.
      *
-     * @param message the SubjectCastApplicationMessage to be processed
+     * @param view   the decoded message
+     * @param deltas the delta decoder of the connection, or null if delta decoding is disabled
+     * @return the message with the original payload, or null if it has to be dropped
      */
-    private void processMessage(SubjectCastApplicationMessage message)
+    private MessageView unwrap(MessageView view, DeltaDecoder deltas)
     {
-        try
+        if (view.getType() != MessageType.SUBJECT_CAST_APPLICATION_MESSAGE)
+            return view;
+
+        ByteBuffer payload = view.getPayloadBuffer();
+
+        if (payloadFeatures.contains(PayloadFeatures.COMPRESSION) && PayloadCompression.isCompressed(payload))
         {
-            MMTPValidator.validate(message);
+            byte[] inflated = PayloadCompression.decompress(payload);
+
+            if (inflated == null)
+            {
+                logger.error("Compressed payload on " + view.getSubject() + " could not be inflated, dropping it");
+                return null;
+            }
+
+            view = new RebuiltView(view, inflated);
+            payload = ByteBuffer.wrap(inflated);
         }
 
-        catch (MMTPValidationException ex)
+        if (deltas == null || !DeltaFrame.isFramed(payload))
+            return view;
+
+        byte[] full = deltas.decode(view.getSender(), view.getSubject(), payload);
+        return full == null ? null : new RebuiltView(view, full);
+    }
+
+
+    /**
+     * Hands the decoded message to the MessageListener if it is an application message that has not expired.
+     *
+     * @param view the decoded message
+     */
+    private void dispatch(MessageView view)
+    {
+        MessageType type = view.getType();
+
+        if (type == MessageType.DIRECT_APPLICATION_MESSAGE || type == MessageType.SUBJECT_CAST_APPLICATION_MESSAGE)
         {
-            logger.error("The application message is not valid, dropping it");
-            return;
-        }
+            Instant expires = view.getExpires();
+
+            if (expires.getEpochSecond() != 0 && expires.isBefore(Instant.now())) // zero when the message has no expiry.
+                logger.debug("Message " + view.getId() + " expired before it was dispatched, dropping it");
+
+            else
+            {
+                LastValueCache cache = lastValueCache;
 
-        String messageId = message.getId();
-        String sender = message.getSender();
-        Instant expires = Instant.ofEpochSecond(message.getExpires().getSeconds(), message.getExpires().getNanos());
-        String subject = message.getSubject();
-        byte[] content = message.getPayload().toByteArray();
+                if (cache != null && type == MessageType.SUBJECT_CAST_APPLICATION_MESSAGE)
+                {
+                    byte[] payload = view instanceof RebuiltView ? view.getPayload().clone() : view.getPayload(); // the listener gets the rebuilt payload itself, not a copy.
+                    cache.put(lastValueScope, view.getSubject(), view.getId(), view.getSender(), expires, payload);
+                }
 
-        messageListener.onSubjectCastMessage(messageId, sender, subject, expires, content);
+                messageListener.onMessage(view);
+            }
+        }
+
+        else
+            logger.error("Unknown message type: " + type);
     }
 
 
@@ -163,4 +261,74 @@ public class MessageHandler
     {
         workerPool.execute(runnable);
     }
+
+
+    /**
+     * A message whose payload was inflated or rebuilt from a delta, all other fields are read from the received message.
+     */
+    private static class RebuiltView implements MessageView
+    {
+        private final MessageView received;
+        private final byte[] payload;
+
+        private RebuiltView(MessageView received, byte[] payload)
+        {
+            this.received = received;
+            this.payload = payload;
+        }
+
+        @Override
+        public MessageType getType()
+        {
+            return received.getType();
+        }
+
+        @Override
+        public String getId()
+        {
+            return received.getId();
+        }
+
+        @Override
+        public String getSender()
+        {
+            return received.getSender();
+        }
+
+        @Override
+        public String getSubject()
+        {
+            return received.getSubject();
+        }
+
+        @Override
+        public List<String> getRecipients()
+        {
+            return received.getRecipients();
+        }
+
+        @Override
+        public Instant getExpires()
+        {
+            return received.getExpires();
+        }
+
+        @Override
+        public int getPayloadLength()
+        {
+            return payload.length;
+        }
+
+        @Override
+        public byte[] getPayload()
+        {
+            return payload; // rebuilt for this message only, no need to copy.
+        }
+
+        @Override
+        public ByteBuffer getPayloadBuffer()
+        {
+            return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        }
+    }
 }
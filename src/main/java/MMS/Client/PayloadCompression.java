@@ -0,0 +1,140 @@
+package MMS.Client;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * PayloadCompression compresses payloads sent over constrained links. A compressed payload starts with a
+ * magic prefix and the length of the original payload, followed by the deflated payload. Receivers
+ * inflate such payloads before handing them on, so compression stays transparent to the application.
+ * The framing is only used on connections that negotiated it, see PayloadFeatures, so a payload that
+ * merely starts with the magic prefix is never mistaken for a compressed one elsewhere.
+ */
+final class PayloadCompression
+{
+    static final int HEADER_SIZE = 8;
+    static final int MAX_INFLATED_SIZE = 16 * 1024 * 1024;
+
+    private static final byte[] MAGIC = {0x00, 'M', 'Z', 0x01};
+
+
+    private PayloadCompression()
+    {
+    }
+
+
+    /**
+     * Compresses the payload.
+     *
+     * @param payload the payload
+     * @param level   the deflate level
+     * @return the compressed payload, or null if it is not smaller than the payload
+     */
+    static byte[] compress(byte[] payload, int level)
+    {
+        Deflater deflater = new Deflater(level);
+
+        try
+        {
+            deflater.setInput(payload);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + HEADER_SIZE);
+            out.writeBytes(MAGIC);
+            out.writeBytes(ByteBuffer.allocate(4).putInt(payload.length).array());
+
+            byte[] chunk = new byte[4096];
+
+            while (!deflater.finished())
+            {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+
+                if (out.size() >= payload.length)
+                    return null;
+            }
+
+            return out.toByteArray();
+        }
+
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+
+    /**
+     * Returns true if the payload starts with the compressed payload header.
+     *
+     * @param payload the payload
+     * @return true if the payload is compressed
+     */
+    static boolean isCompressed(ByteBuffer payload)
+    {
+        if (payload.remaining() < HEADER_SIZE)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (payload.get(payload.position() + i) != MAGIC[i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Inflates a compressed payload.
+     *
+     * @param payload the compressed payload
+     * @return the original payload, or null if it could not be inflated
+     */
+    static byte[] decompress(ByteBuffer payload)
+    {
+        int length = payload.getInt(payload.position() + MAGIC.length);
+
+        if (length < 0 || length > MAX_INFLATED_SIZE)
+            return null;
+
+        ByteBuffer input = payload.duplicate();
+        input.position(payload.position() + HEADER_SIZE);
+        byte[] compressed = new byte[input.remaining()];
+        input.get(compressed);
+
+        Inflater inflater = new Inflater();
+
+        try
+        {
+            inflater.setInput(compressed);
+            byte[] original = new byte[length];
+            int position = 0;
+
+            while (position < length && !inflater.finished())
+            {
+                int count = inflater.inflate(original, position, length - position);
+
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    return null;
+
+                position += count;
+            }
+
+            return position == length ? original : null;
+        }
+
+        catch (DataFormatException ex)
+        {
+            return null;
+        }
+
+        finally
+        {
+            inflater.end();
+        }
+    }
+}
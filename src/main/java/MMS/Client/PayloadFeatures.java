@@ -0,0 +1,68 @@
+package MMS.Client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * PayloadFeatures negotiates the payload framings a connection may carry, compressed payloads and delta frames.
+ * The client offers the framings it can send and receive in the MMS-Payload-Features header of the WebSocket
+ * upgrade request, and the edge router answers with those it accepts in the same header of the upgrade response.
+ * A router accepting a framing restores the plain payload for subscribers whose connection did not accept it,
+ * so framed payloads are only sent, and only unwrapped, on connections that negotiated their framing.
+ * Routers that do not know the header accept none, and payloads are then never framed nor unwrapped.
+ */
+final class PayloadFeatures
+{
+    static final String HEADER = "MMS-Payload-Features";
+    static final String COMPRESSION = "compression";
+    static final String DELTA = "delta";
+
+
+    private PayloadFeatures()
+    {
+    }
+
+
+    /**
+     * Returns the framings offered to the edge router. Delta frames are offered if delta decoding is enabled.
+     *
+     * @param config the client configuration
+     * @return the value of the offer header
+     */
+    static String offer(WsClientConfig config)
+    {
+        List<String> offered = new ArrayList<>();
+        offered.add(COMPRESSION);
+
+        if (config.isDeltaDecoding())
+            offered.add(DELTA);
+
+        return String.join(", ", offered);
+    }
+
+
+    /**
+     * Returns the framings the edge router accepted.
+     *
+     * @param header the value of the header in the upgrade response, may be null
+     * @return the accepted framings, empty if the router accepted none
+     */
+    static Set<String> parse(String header)
+    {
+        if (header == null || header.isBlank())
+            return Collections.emptySet();
+
+        Set<String> accepted = new TreeSet<>();
+
+        for (String feature : header.split(","))
+        {
+            if (!feature.isBlank())
+                accepted.add(feature.trim());
+        }
+
+        return Collections.unmodifiableSet(accepted);
+    }
+}
@@ -0,0 +1,23 @@
+package MMS.Client;
+
+/**
+ * Priority of a subject cast message, used when the agent runs in adaptive link mode.
+ */
+public enum Priority
+{
+    /**
+     * Safety traffic, sent right away whatever the state of the link.
+     */
+    SAFETY,
+
+    /**
+     * Regular traffic, sent in order within the send budget of the link.
+     */
+    NORMAL,
+
+    /**
+     * Traffic that can wait, sent when no regular traffic is waiting. A newer message on a subject
+     * replaces an older one still waiting to be sent.
+     */
+    LOW
+}
@@ -0,0 +1,85 @@
+package MMS.Client;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ReconnectPolicy describes how the Agent reconnects after losing the connection
+ * to the edge router. The delay between attempts grows exponentially up to a maximum,
+ * and a random jitter is applied so that many agents losing the same router do not
+ * reconnect in lockstep.
+ */
+public class ReconnectPolicy
+{
+    private final Duration initialDelay;
+    private final Duration maxDelay;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxAttempts;
+
+
+    /**
+     * Constructs a new ReconnectPolicy.
+     *
+     * @param initialDelay the delay before the first reconnect attempt
+     * @param maxDelay     the upper bound for the delay between attempts
+     * @param multiplier   the factor the delay grows with for each failed attempt
+     * @param jitter       the fraction (0 to 1) of the delay that is randomized
+     * @param maxAttempts  the maximum number of attempts, 0 for no limit
+     */
+    public ReconnectPolicy(Duration initialDelay, Duration maxDelay, double multiplier, double jitter, int maxAttempts)
+    {
+        if (multiplier < 1.0)
+            throw new IllegalArgumentException("Multiplier must be at least 1");
+
+        if (jitter < 0.0 || jitter > 1.0)
+            throw new IllegalArgumentException("Jitter must be between 0 and 1");
+
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.maxAttempts = maxAttempts;
+    }
+
+
+    /**
+     * Returns the default policy, starting at 500 ms and doubling up to 30 seconds
+     * with 50% jitter, retrying forever.
+     *
+     * @return the default reconnect policy
+     */
+    public static ReconnectPolicy defaultPolicy()
+    {
+        return new ReconnectPolicy(Duration.ofMillis(500), Duration.ofSeconds(30), 2.0, 0.5, 0);
+    }
+
+
+    /**
+     * Returns the delay before the given attempt.
+     *
+     * @param attempt the attempt number, starting at 1
+     * @return the delay in milliseconds
+     */
+    public long delayMillis(int attempt)
+    {
+        double base = initialDelay.toMillis() * Math.pow(multiplier, Math.max(0, attempt - 1));
+        long capped = (long) Math.min(base, maxDelay.toMillis());
+        long randomized = (long) (capped * jitter);
+        long fixed = capped - randomized;
+
+        return fixed + (randomized > 0 ? ThreadLocalRandom.current().nextLong(randomized + 1) : 0);
+    }
+
+
+    /**
+     * Checks if another attempt is allowed.
+     *
+     * @param attempt the attempt number, starting at 1
+     * @return true if the attempt is allowed, false otherwise
+     */
+    public boolean allowsAttempt(int attempt)
+    {
+        return maxAttempts <= 0 || attempt <= maxAttempts;
+    }
+}
@@ -0,0 +1,105 @@
+package MMS.Client;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * RequestFrame is the payload format of direct messages sent as requests and replies. Every payload starts
+ * with a header holding a magic prefix, the kind of frame and the correlation ID the requester chose for the
+ * request, which the reply carries back. The payload of the request or reply follows the header.
+ * <p>
+ * The correlation travels in the payload, as MMTP direct messages have no field for it, so the messages
+ * stay valid MMTP messages and routers forward them unchanged. Since any payload may happen to start with
+ * the header, frames are only interpreted by agents that opted in: replies by an agent with an outstanding
+ * request from the sender, requests by an agent with a request handler. Everything else is a plain payload.
+ */
+final class RequestFrame
+{
+    static final byte REQUEST = 0;
+    static final byte REPLY = 1;
+    static final int HEADER_SIZE = 13;
+
+    private static final byte[] MAGIC = {0x00, 'M', 'Q', 0x01};
+
+
+    private RequestFrame()
+    {
+    }
+
+
+    /**
+     * Returns true if the payload starts with a request frame header.
+     *
+     * @param payload the payload
+     * @return true if the payload is a request or a reply
+     */
+    static boolean isFramed(byte[] payload)
+    {
+        if (payload.length < HEADER_SIZE)
+            return false;
+
+        for (int i = 0; i < MAGIC.length; i++)
+        {
+            if (payload[i] != MAGIC[i])
+                return false;
+        }
+
+        byte kind = payload[MAGIC.length];
+        return kind == REQUEST || kind == REPLY;
+    }
+
+
+    static byte kind(byte[] payload)
+    {
+        return payload[MAGIC.length];
+    }
+
+
+    static long correlation(byte[] payload)
+    {
+        return ByteBuffer.wrap(payload).getLong(MAGIC.length + 1);
+    }
+
+
+    /**
+     * Returns the payload of the request or reply, following the header.
+     */
+    static byte[] body(byte[] payload)
+    {
+        return Arrays.copyOfRange(payload, HEADER_SIZE, payload.length);
+    }
+
+
+    /**
+     * Creates a request frame.
+     *
+     * @param correlation the correlation ID of the request
+     * @param payload     the payload of the request
+     * @return the framed payload
+     */
+    static byte[] request(long correlation, byte[] payload)
+    {
+        return frame(REQUEST, correlation, payload);
+    }
+
+
+    /**
+     * Creates a reply frame.
+     *
+     * @param correlation the correlation ID of the request replied to
+     * @param payload     the payload of the reply
+     * @return the framed payload
+     */
+    static byte[] reply(long correlation, byte[] payload)
+    {
+        return frame(REPLY, correlation, payload);
+    }
+
+
+    private static byte[] frame(byte kind, long correlation, byte[] payload)
+    {
+        byte[] frame = new byte[HEADER_SIZE + payload.length];
+        ByteBuffer.wrap(frame).put(MAGIC).put(kind).putLong(correlation).put(payload);
+        return frame;
+    }
+}
@@ -0,0 +1,133 @@
+package MMS.Client;
+
+import MMS.Misc.TimingWheel;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RequestTracker keeps the outstanding requests of an agent until their reply arrives or they time out.
+ * Requests are keyed by their correlation ID, and their timeouts are kept on the shared timing wheel,
+ * so an outstanding request costs a map entry and a wheel slot rather than a scheduled task of its own.
+ * <p>
+ * Correlation IDs start at a random value, so that a late reply to a request of a previous run of the
+ * agent does not match a new request.
+ */
+class RequestTracker
+{
+    private final TimingWheel timingWheel;
+    private final ConcurrentHashMap<Long, Outstanding> outstanding;
+    private final AtomicLong nextCorrelation;
+
+
+    /**
+     * Constructs a new RequestTracker.
+     *
+     * @param timingWheel the wheel the timeouts of the requests are kept on
+     */
+    RequestTracker(TimingWheel timingWheel)
+    {
+        this.timingWheel = timingWheel;
+        this.outstanding = new ConcurrentHashMap<>();
+        this.nextCorrelation = new AtomicLong(ThreadLocalRandom.current().nextLong());
+    }
+
+
+    /**
+     * Registers a new request, which fails with a TimeoutException if no reply arrives within the timeout.
+     *
+     * @param destination the MRN the request is sent to, only replies from it are accepted
+     * @param timeout     how long to wait for the reply
+     * @param reply       the future completed with the payload of the reply
+     * @return the correlation ID of the request
+     */
+    long register(String destination, Duration timeout, CompletableFuture<byte[]> reply)
+    {
+        long correlation = nextCorrelation.getAndIncrement();
+        Outstanding request = new Outstanding(destination, reply);
+        outstanding.put(correlation, request);
+
+        request.timeout = timingWheel.schedule(() ->
+        {
+            if (outstanding.remove(correlation, request))
+                reply.completeExceptionally(new TimeoutException("No reply from " + destination + " within " + timeout.toMillis() + " ms"));
+        }, timeout.toNanos(), TimeUnit.NANOSECONDS);
+
+        reply.whenComplete((body, ex) ->
+        {
+            if (reply.isCancelled() && outstanding.remove(correlation, request))
+                request.cancelTimeout();
+        });
+
+        return correlation;
+    }
+
+
+    /**
+     * Completes the request the reply belongs to.
+     *
+     * @param sender      the sender of the reply
+     * @param correlation the correlation ID carried by the reply
+     * @param body        the payload of the reply
+     * @return true if the reply matched an outstanding request, false if it is late or unknown
+     */
+    boolean complete(String sender, long correlation, byte[] body)
+    {
+        Outstanding request = outstanding.get(correlation);
+
+        if (request == null || !request.destination.equals(sender) || !outstanding.remove(correlation, request))
+            return false;
+
+        request.cancelTimeout();
+        request.reply.complete(body);
+        return true;
+    }
+
+
+    /**
+     * Fails a request that could not be sent.
+     *
+     * @param correlation the correlation ID of the request
+     * @param cause       the reason the request failed
+     */
+    void fail(long correlation, Throwable cause)
+    {
+        Outstanding request = outstanding.remove(correlation);
+
+        if (request != null)
+        {
+            request.cancelTimeout();
+            request.reply.completeExceptionally(cause);
+        }
+    }
+
+
+    private static class Outstanding
+    {
+        private final String destination;
+        private final CompletableFuture<byte[]> reply;
+        private volatile TimingWheel.Timeout timeout;
+
+        private Outstanding(String destination, CompletableFuture<byte[]> reply)
+        {
+            this.destination = destination;
+            this.reply = reply;
+        }
+
+        /**
+         * Cancels the timeout, which is not set yet if the request completes while it is registered.
+         */
+        private void cancelTimeout()
+        {
+            TimingWheel.Timeout current = timeout;
+
+            if (current != null)
+                current.cancel();
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package MMS.Client;
+
+import MMS.Client.Codecs.WireCodec;
+import MMS.Client.Connections.Connection;
+import MMS.Client.Connections.DisconnectionReason;
+import MMS.Client.Connections.WsCodes;
+import MMS.Client.Exceptions.SendingException;
+import MMS.Client.Interfaces.ConnectionListener;
+import MMS.Client.Interfaces.MessageListener;
+import MMS.Client.ServiceDiscovery.RouterInfo;
+import MMS.Client.TLSConfiguration.TLSConfig;
+import MMS.Client.TLSConfiguration.mTLSConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * RouterPool keeps connections to several edge routers at once on behalf of a single agent.
+ * Outbound messages go to the least loaded connection and fail over to the others if sending fails,
+ * subscriptions are mirrored on every connection, and connections that drop are re-established
+ * in the background. The pool counts as connected as long as one of its connections is up.
+ */
+class RouterPool
+{
+    private static final Logger logger = LogManager.getLogger(RouterPool.class);
+
+    /**
+     * Notified when the pool as a whole becomes connected or loses its last connection.
+     */
+    interface Listener
+    {
+        void onPoolConnected(Connection connection);
+        void onPoolDisconnected(DisconnectionReason reason);
+    }
+
+    private final List<Member> members;
+    private final TLSConfig tlsConfig;
+    private final WsHandler wsHandler;
+    private final SubscriptionManager subscriptionManager;
+    private final MessageListener messageListener;
+    private final Listener listener;
+    private final Executor executor;
+    private final ReconnectPolicy reconnectPolicy;
+    private final AtomicInteger connectedMembers;
+    private final AtomicInteger rotation;
+    private volatile boolean closed;
+
+
+    /**
+     * Constructs a new RouterPool for the given routers.
+     *
+     * @param routers             the routers to keep connections to
+     * @param tlsConfig           the TLS configuration, an mTLSConfig gives authenticated connections
+     * @param wsHandler           the handler used to establish the connections
+     * @param subscriptionManager the subscription state mirrored on every connection
+     * @param messageListener     the listener receiving the messages of all connections
+     * @param listener            the listener notified of the pool state
+     * @param executor            the executor used for connecting and restoring subscriptions
+     * @param reconnectPolicy     the policy used to re-establish dropped connections, null to not reconnect
+     */
+    RouterPool(List<RouterInfo> routers, TLSConfig tlsConfig, WsHandler wsHandler, SubscriptionManager subscriptionManager, MessageListener messageListener, Listener listener, Executor executor, ReconnectPolicy reconnectPolicy)
+    {
+        this.members = new ArrayList<>();
+        this.tlsConfig = tlsConfig;
+        this.wsHandler = wsHandler;
+        this.subscriptionManager = subscriptionManager;
+        this.messageListener = messageListener;
+        this.listener = listener;
+        this.executor = executor;
+        this.reconnectPolicy = reconnectPolicy;
+        this.connectedMembers = new AtomicInteger();
+        this.rotation = new AtomicInteger();
+
+        for (RouterInfo router : routers)
+            members.add(new Member(router));
+    }
+
+
+    /**
+     * Starts connecting to all routers in parallel.
+     */
+    void connect()
+    {
+        for (Member member : members)
+            executor.execute(member::connect);
+    }
+
+
+    /**
+     * Closes all connections and stops reconnecting.
+     */
+    void close()
+    {
+        closed = true;
+
+        for (Member member : members)
+        {
+            Connection connection = member.connection;
+
+            if (connection != null)
+                connection.close(WsCodes.NORMAL_CLOSURE, "User closed connection.");
+        }
+    }
+
+
+    /**
+     * Returns the connections that are currently up.
+     *
+     * @return the live connections
+     */
+    List<Connection> getConnections()
+    {
+        List<Connection> connections = new ArrayList<>();
+
+        for (Member member : members)
+        {
+            Connection connection = member.connection;
+
+            if (connection != null && connection.isConnected())
+                connections.add(connection);
+        }
+
+        return connections;
+    }
+
+
+    /**
+     * Returns the least loaded live connection.
+     *
+     * @return the selected connection, or null if no connection is up
+     */
+    Connection select()
+    {
+        List<Member> ranked = ranked();
+        return ranked.isEmpty() ? null : ranked.get(0).connection;
+    }
+
+
+    /**
+     * Sends the message on the least loaded connection, failing over to the next one if sending fails.
+     * The message is encoded with the codec of the connection it is sent on.
+     *
+     * @param encoder encodes the message with the codec of the selected connection
+     * @throws SendingException if the message could not be sent on any connection
+     */
+    void send(Function<WireCodec, byte[]> encoder) throws SendingException
+    {
+        SendingException failure = new SendingException("No connection to an edge router is available");
+
+        for (Member member : ranked())
+        {
+            Connection connection = member.connection;
+
+            if (connection == null)
+                continue;
+
+            member.inFlight.incrementAndGet();
+
+            try
+            {
+                ConnectionContext.send(connection, encoder);
+                return;
+            }
+
+            catch (SendingException ex)
+            {
+                logger.error("Sending via " + member.routerInfo.getUri() + " failed, failing over");
+                failure = ex;
+            }
+
+            finally
+            {
+                member.inFlight.decrementAndGet();
+            }
+        }
+
+        throw failure;
+    }
+
+
+    /**
+     * Returns the live members ordered by load, and by measured round trip time among equally loaded members.
+     * Members are taken from a rotating offset, so that members without a round trip time yet are spread evenly.
+     *
+     * @return the ranked live members
+     */
+    private List<Member> ranked()
+    {
+        List<Member> live = new ArrayList<>();
+        int size = members.size();
+        int offset = Math.floorMod(rotation.getAndIncrement(), Math.max(size, 1));
+
+        for (int i = 0; i < size; i++)
+        {
+            Member member = members.get((offset + i) % size);
+            Connection connection = member.connection;
+
+            if (connection != null && connection.isConnected())
+                live.add(member);
+        }
+
+        live.sort(Comparator.<Member>comparingInt(member -> member.inFlight.get()).thenComparingLong(Member::rttNanos));
+        return live;
+    }
+
+
+    /**
+     * A single router of the pool, acting as the connection listener of its own connection.
+     */
+    private class Member implements ConnectionListener
+    {
+        private final RouterInfo routerInfo;
+        private final AtomicInteger inFlight;
+        private final AtomicInteger attempt;
+        private volatile Connection connection;
+
+        private Member(RouterInfo routerInfo)
+        {
+            this.routerInfo = routerInfo;
+            this.inFlight = new AtomicInteger();
+            this.attempt = new AtomicInteger();
+        }
+
+        /**
+         * Returns the smoothed round trip time of the connection, or zero if it is not known.
+         */
+        private long rttNanos()
+        {
+            LinkStatistics statistics = ConnectionContext.statisticsOf(connection);
+            return statistics == null ? 0 : statistics.getSmoothedRtt().toNanos();
+        }
+
+        private void connect()
+        {
+            if (closed)
+                return;
+
+            if (tlsConfig instanceof mTLSConfig)
+                wsHandler.connectAuthenticated(routerInfo, (mTLSConfig) tlsConfig, this, messageListener);
+
+            else
+                wsHandler.connectAnonymously(routerInfo, tlsConfig, this, messageListener);
+        }
+
+        @Override
+        public void onConnectionEstablished(Connection connection)
+        {
+            this.connection = connection;
+            this.attempt.set(0);
+
+            if (closed) // checked after storing, so either this or close() closes a connect completing meanwhile.
+            {
+                this.connection = null;
+                connection.close(WsCodes.NORMAL_CLOSURE, "User closed connection.");
+                return;
+            }
+
+            logger.info("Pool connection to " + routerInfo.getUri() + " established.");
+            executor.execute(() -> subscriptionManager.restore(connection));
+
+            if (connectedMembers.incrementAndGet() == 1)
+                listener.onPoolConnected(connection);
+        }
+
+        @Override
+        public void onConnectionLost(DisconnectionReason reason)
+        {
+            logger.error("Pool connection to " + routerInfo.getUri() + " was lost. Reason: " + reason.getReason());
+
+            if (connection != null)
+            {
+                connection = null;
+
+                if (connectedMembers.decrementAndGet() == 0)
+                    listener.onPoolDisconnected(reason);
+            }
+
+            scheduleReconnect();
+        }
+
+        @Override
+        public void onConnectError(DisconnectionReason reason)
+        {
+            logger.error("Pool connection to " + routerInfo.getUri() + " failed. Reason: " + reason.getReason());
+            scheduleReconnect();
+        }
+
+        private void scheduleReconnect()
+        {
+            if (closed || reconnectPolicy == null)
+                return;
+
+            int next = attempt.incrementAndGet();
+
+            if (!reconnectPolicy.allowsAttempt(next))
+            {
+                logger.error("Giving up on router " + routerInfo.getUri() + " after " + (next - 1) + " attempts.");
+                return;
+            }
+
+            long delay = reconnectPolicy.delayMillis(next);
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor).execute(this::connect);
+        }
+    }
+}
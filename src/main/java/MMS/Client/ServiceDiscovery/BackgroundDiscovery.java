@@ -0,0 +1,155 @@
+package MMS.Client.ServiceDiscovery;
+
+import MMS.Client.Interfaces.ServiceDiscoveryListener;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * BackgroundDiscovery runs mDNS discovery continuously on its own thread and keeps a RouterCache
+ * up to date, so that the routers on the network can be answered from memory instead of waiting
+ * out a listen cycle. Listeners are told about routers appearing and disappearing as it happens.
+ */
+public class BackgroundDiscovery
+{
+    private static final Logger logger = LogManager.getLogger(BackgroundDiscovery.class);
+
+    private final mDNSDiscoveryService discoveryService;
+    private final RouterCache cache;
+    private final List<ServiceDiscoveryListener> listeners;
+    private final Thread thread;
+    private volatile CompletableFuture<List<RouterInfo>> nextCycle;
+    private volatile boolean running;
+
+
+    /**
+     * Constructs a new BackgroundDiscovery.
+     *
+     * @param discoveryService the mDNS discovery service to listen with
+     * @param ttlMillis        the time in milliseconds a router stays cached after it was last seen
+     */
+    public BackgroundDiscovery(mDNSDiscoveryService discoveryService, long ttlMillis)
+    {
+        this.discoveryService = discoveryService;
+        this.cache = new RouterCache(ttlMillis);
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.nextCycle = new CompletableFuture<>();
+        this.thread = new Thread(this::run, "mdns-background-discovery");
+        this.thread.setDaemon(true);
+    }
+
+
+    /**
+     * Starts discovering in the background.
+     */
+    public synchronized void start()
+    {
+        if (running)
+            return;
+
+        running = true;
+        thread.start();
+    }
+
+
+    /**
+     * Stops discovering after the current listen cycle. Callers waiting for a cycle get the cached routers.
+     */
+    public void stop()
+    {
+        running = false;
+        thread.interrupt();
+        nextCycle.complete(cache.getRouters());
+    }
+
+
+    public void addListener(ServiceDiscoveryListener listener)
+    {
+        listeners.add(listener);
+    }
+
+
+    public void removeListener(ServiceDiscoveryListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+
+    /**
+     * Returns the cached routers right away, or waits for the next listen cycle if nothing is cached yet.
+     * The future completes exceptionally if that cycle fails, and with the cached routers if discovery stops.
+     *
+     * @return a future completed with the known routers
+     */
+    public CompletableFuture<List<RouterInfo>> getRouters()
+    {
+        if (!cache.isEmpty())
+            return CompletableFuture.completedFuture(cache.getRouters());
+
+        return nextCycle;
+    }
+
+
+    /**
+     * Listens for routers in a loop, updating the cache and notifying the listeners after every cycle.
+     */
+    private void run()
+    {
+        while (running)
+        {
+            try
+            {
+                List<RouterInfo> seen = discoveryService.listen();
+                List<RouterInfo> added = cache.refresh(seen);
+                List<RouterInfo> removed = cache.expire();
+                List<RouterInfo> known = cache.getRouters();
+
+                CompletableFuture<List<RouterInfo>> cycle = nextCycle;
+                nextCycle = new CompletableFuture<>();
+                cycle.complete(known);
+
+                for (ServiceDiscoveryListener listener : listeners)
+                {
+                    added.forEach(listener::routerAdded);
+                    removed.forEach(listener::routerRemoved);
+
+                    if (!added.isEmpty() || !removed.isEmpty())
+                        listener.servicesDiscovered(known);
+                }
+            }
+
+            catch (RuntimeException ex)
+            {
+                logger.error("Background discovery cycle failed", ex);
+
+                CompletableFuture<List<RouterInfo>> cycle = nextCycle;
+                nextCycle = new CompletableFuture<>();
+                cycle.completeExceptionally(ex);
+                pause();
+            }
+        }
+
+        nextCycle.complete(cache.getRouters());
+    }
+
+
+    /**
+     * Waits a moment before the next cycle, so a failing discovery service is not retried in a tight loop.
+     */
+    private void pause()
+    {
+        try
+        {
+            Thread.sleep(1000);
+        }
+
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package MMS.Client.ServiceDiscovery;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RouterCache holds the edge routers seen on the network, each with an expiry time.
+ * A router is refreshed every time it is seen again, and dropped once its time to live
+ * has passed without it being seen.
+ */
+public class RouterCache
+{
+    private final long ttlMillis;
+    private final Map<String, Entry> entries;
+
+
+    /**
+     * Constructs a new RouterCache.
+     *
+     * @param ttlMillis the time in milliseconds a router stays cached after it was last seen
+     */
+    public RouterCache(long ttlMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>();
+    }
+
+
+    /**
+     * Records that the given routers were seen now.
+     *
+     * @param routers the routers seen
+     * @return the routers that were not cached before
+     */
+    public synchronized List<RouterInfo> refresh(List<RouterInfo> routers)
+    {
+        List<RouterInfo> added = new ArrayList<>();
+        long expires = System.currentTimeMillis() + ttlMillis;
+
+        for (RouterInfo router : routers)
+        {
+            Entry previous = entries.put(router.getUri(), new Entry(router, expires));
+
+            if (previous == null)
+                added.add(router);
+        }
+
+        return added;
+    }
+
+
+    /**
+     * Drops the routers whose time to live has passed.
+     *
+     * @return the routers that were dropped
+     */
+    public synchronized List<RouterInfo> expire()
+    {
+        List<RouterInfo> removed = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        entries.values().removeIf(entry ->
+        {
+            if (entry.expires > now)
+                return false;
+
+            removed.add(entry.router);
+            return true;
+        });
+
+        return removed;
+    }
+
+
+    /**
+     * Returns the routers currently cached.
+     *
+     * @return the cached routers
+     */
+    public synchronized List<RouterInfo> getRouters()
+    {
+        List<RouterInfo> routers = new ArrayList<>();
+
+        for (Entry entry : entries.values())
+            routers.add(entry.router);
+
+        return routers;
+    }
+
+
+    public synchronized boolean isEmpty()
+    {
+        return entries.isEmpty();
+    }
+
+
+    private static class Entry
+    {
+        private final RouterInfo router;
+        private final long expires;
+
+        private Entry(RouterInfo router, long expires)
+        {
+            this.router = router;
+            this.expires = expires;
+        }
+    }
+}
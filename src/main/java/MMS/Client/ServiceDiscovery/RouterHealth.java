@@ -0,0 +1,87 @@
+package MMS.Client.ServiceDiscovery;
+
+/**
+ * RouterHealth keeps a continuously updated quality estimate of an edge router,
+ * built from probe results and keepalive measurements: a smoothed round trip time,
+ * a smoothed loss ratio and a decaying count of recent failures. The combined score is lower for better routers.
+ */
+public class RouterHealth
+{
+    private static final double ALPHA = 0.25;
+    private static final double LOSS_WEIGHT = 4.0;
+    private static final double FAILURE_PENALTY_MILLIS = 250.0;
+
+    private double smoothedRttMillis = -1;
+    private double smoothedHandshakeMillis = -1;
+    private double loss;
+    private double recentFailures;
+
+
+    /**
+     * Records a successful probe.
+     *
+     * @param rttMillis       the measured round trip time in milliseconds
+     * @param handshakeMillis the measured TLS handshake time in milliseconds
+     */
+    public synchronized void recordSuccess(double rttMillis, double handshakeMillis)
+    {
+        smoothedRttMillis = smoothedRttMillis < 0 ? rttMillis : (1 - ALPHA) * smoothedRttMillis + ALPHA * rttMillis;
+        smoothedHandshakeMillis = smoothedHandshakeMillis < 0 ? handshakeMillis : (1 - ALPHA) * smoothedHandshakeMillis + ALPHA * handshakeMillis;
+        loss = (1 - ALPHA) * loss;
+        recentFailures = recentFailures / 2;
+    }
+
+
+    /**
+     * Records a round trip time measured on a live connection to the router, such as by a keepalive ping.
+     *
+     * @param rttMillis the measured round trip time in milliseconds
+     */
+    public synchronized void recordRtt(double rttMillis)
+    {
+        smoothedRttMillis = smoothedRttMillis < 0 ? rttMillis : (1 - ALPHA) * smoothedRttMillis + ALPHA * rttMillis;
+    }
+
+
+    /**
+     * Records a failed probe or a dropped connection.
+     */
+    public synchronized void recordFailure()
+    {
+        loss = (1 - ALPHA) * loss + ALPHA;
+        recentFailures += 1;
+    }
+
+
+    /**
+     * Returns the combined health score, lower is better. A router that never answered a probe
+     * has the worst possible score.
+     *
+     * @return the health score
+     */
+    public synchronized double getScore()
+    {
+        if (smoothedRttMillis < 0)
+            return Double.MAX_VALUE;
+
+        return smoothedRttMillis * (1 + LOSS_WEIGHT * loss) + FAILURE_PENALTY_MILLIS * recentFailures;
+    }
+
+
+    public synchronized double getSmoothedRttMillis()
+    {
+        return smoothedRttMillis;
+    }
+
+
+    public synchronized double getSmoothedHandshakeMillis()
+    {
+        return smoothedHandshakeMillis;
+    }
+
+
+    public synchronized double getLoss()
+    {
+        return loss;
+    }
+}
@@ -0,0 +1,155 @@
+package MMS.Client.ServiceDiscovery;
+
+import MMS.Client.TLSConfiguration.TLSConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * RouterProber measures the latency of edge routers in parallel and ranks them by health.
+ * Each probe opens a TCP connection, whose connect time is taken as the round trip time,
+ * and completes a TLS handshake with the cached TLS context. Several probes are made per
+ * router and the results are folded into a RouterHealth that persists between rankings.
+ */
+public class RouterProber
+{
+    private static final Logger logger = LogManager.getLogger(RouterProber.class);
+
+    private final Map<String, RouterHealth> health;
+    private final Executor executor;
+    private final int samples;
+    private final Duration timeout;
+
+
+    /**
+     * Constructs a new RouterProber.
+     *
+     * @param executor the executor the probes run on
+     * @param samples  the number of probes made per router and ranking
+     * @param timeout  the timeout of a single probe
+     */
+    public RouterProber(Executor executor, int samples, Duration timeout)
+    {
+        this.health = new ConcurrentHashMap<>();
+        this.executor = executor;
+        this.samples = samples;
+        this.timeout = timeout;
+    }
+
+
+    /**
+     * Probes the given routers in parallel and returns them ordered from best to worst health.
+     *
+     * @param routers   the routers to probe
+     * @param tlsConfig the TLS configuration used for the probe handshakes
+     * @return a future completed with the ranked routers
+     */
+    public CompletableFuture<List<RouterInfo>> rank(List<RouterInfo> routers, TLSConfig tlsConfig)
+    {
+        SSLContext sslContext = tlsConfig.getTLSContextFactory().getSslContext();
+        List<CompletableFuture<Void>> probes = new ArrayList<>();
+
+        for (RouterInfo router : routers)
+            probes.add(CompletableFuture.runAsync(() -> probe(router, sslContext), executor));
+
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture[0])).thenApply(ignored -> sort(routers));
+    }
+
+
+    /**
+     * Orders the given routers by their current health, without probing them.
+     *
+     * @param routers the routers to order
+     * @return the routers ordered from best to worst health
+     */
+    public List<RouterInfo> sort(List<RouterInfo> routers)
+    {
+        List<RouterInfo> ranked = new ArrayList<>(routers);
+        ranked.sort(Comparator.comparingDouble(router -> getHealth(router).getScore()));
+        return ranked;
+    }
+
+
+    /**
+     * Returns the health of the given router, creating an empty one if it was never probed.
+     *
+     * @param router the router
+     * @return the health of the router
+     */
+    public RouterHealth getHealth(RouterInfo router)
+    {
+        return health.computeIfAbsent(router.getUri(), uri -> new RouterHealth());
+    }
+
+
+    /**
+     * Probes a single router the configured number of times, recording every result.
+     *
+     * @param router     the router to probe
+     * @param sslContext the TLS context used for the handshake
+     */
+    private void probe(RouterInfo router, SSLContext sslContext)
+    {
+        RouterHealth routerHealth = getHealth(router);
+
+        for (int i = 0; i < samples; i++)
+        {
+            try
+            {
+                probeOnce(URI.create(router.getUri()), sslContext, routerHealth);
+            }
+
+            catch (IOException | IllegalArgumentException ex)
+            {
+                logger.debug("Probe of " + router.getUri() + " failed: " + ex.getMessage());
+                routerHealth.recordFailure();
+            }
+        }
+    }
+
+
+    /**
+     * Makes a single TCP connect and TLS handshake to the router and records the timings.
+     *
+     * @param uri          the URI of the router
+     * @param sslContext   the TLS context used for the handshake
+     * @param routerHealth the health to record the result in
+     * @throws IOException if the router could not be reached or the handshake failed
+     */
+    private void probeOnce(URI uri, SSLContext sslContext, RouterHealth routerHealth) throws IOException
+    {
+        String host = uri.getHost();
+        int port = uri.getPort() != -1 ? uri.getPort() : 443;
+        int timeoutMillis = (int) timeout.toMillis();
+
+        try (Socket socket = new Socket())
+        {
+            long start = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            long connected = System.nanoTime();
+
+            try (SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket, host, port, true))
+            {
+                sslSocket.setSoTimeout(timeoutMillis);
+                sslSocket.startHandshake();
+                long handshaken = System.nanoTime();
+
+                routerHealth.recordSuccess((connected - start) / 1e6, (handshaken - connected) / 1e6);
+            }
+        }
+    }
+}
@@ -0,0 +1,664 @@
+package MMS.Client;
+
+import MMS.Client.Connections.Connection;
+import MMS.Client.Connections.DisconnectionReason;
+import MMS.Client.Connections.WsCodes;
+import MMS.Client.Interfaces.ConnectionListener;
+import MMS.Client.Interfaces.MessageListener;
+import MMS.Client.Interfaces.SubscribeListener;
+import MMS.Client.ServiceDiscovery.RouterInfo;
+import MMS.Client.TLSConfiguration.TLSConfig;
+import MMS.Client.TLSConfiguration.mTLSConfig;
+import MMS.Misc.GeoIndex;
+import MMS.Misc.GeoSubscription;
+import MMS.Misc.GroupBalancer;
+import MMS.Misc.SharedSubscription;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SharedLink carries several agents over a single connection to an edge router, so co-located
+ * agents share one TLS handshake, one keepalive and one set of subscriptions at the router.
+ * Every agent keeps its own subscriptions and listener. The router is subscribed to the union of
+ * them, reference counted per subject, and a subject cast is received once and handed to every
+ * attached agent subscribed to its subject. Direct messages are addressed to the identity of the
+ * link, and are handed to every attached agent that wants direct messages.
+ * <p>
+ * Agents joining the same consumer group share a single membership at the router, and each message
+ * the link receives for the group is handed to one of them in turn. Filtered subscriptions are
+ * evaluated per agent, so every agent only gets the messages passing its own filters, and geo-tagged
+ * messages are handed to the agents with a subscribed area containing their position.
+ * <p>
+ * The link is opened with Agent.openSharedLink, agents join it with Agent.connectShared, and it is
+ * closed once the last agent has disconnected. A dropped link is re-established in the background.
+ */
+public class SharedLink implements ConnectionListener, MessageListener, SubscribeListener
+{
+    private static final Logger logger = LogManager.getLogger(SharedLink.class);
+
+    private final RouterInfo routerInfo;
+    private final TLSConfig tlsConfig;
+    private final WsHandler wsHandler;
+    private final Executor executor;
+    private final ReconnectPolicy reconnectPolicy;
+    private final SubscriptionManager subscriptionManager;
+    private final List<Agent> agents;
+    private final Map<Agent, Set<String>> subjectsByAgent;
+    private final Map<String, Integer> subjectRefs;
+    private final Map<String, Registration> registrations;
+    private final Set<Agent> directMessageAgents;
+    private final GroupBalancer<Agent> groups;
+    private final Map<Agent, FilterIndex> filtersByAgent;
+    private final GeoIndex<Agent> areas;
+    private final AtomicInteger attempt;
+    private volatile Connection connection;
+    private volatile boolean closed;
+
+
+    /**
+     * Constructs a new SharedLink to the given router.
+     *
+     * @param routerInfo      the router to connect to
+     * @param tlsConfig       the TLS configuration, an mTLSConfig makes the link authenticated
+     * @param wsHandler       the handler used to establish the connection
+     * @param executor        the executor used for connecting and restoring subscriptions
+     * @param reconnectPolicy the policy used to re-establish a dropped link, null to not reconnect
+     */
+    SharedLink(RouterInfo routerInfo, TLSConfig tlsConfig, WsHandler wsHandler, Executor executor, ReconnectPolicy reconnectPolicy)
+    {
+        this.routerInfo = routerInfo;
+        this.tlsConfig = tlsConfig;
+        this.wsHandler = wsHandler;
+        this.executor = executor;
+        this.reconnectPolicy = reconnectPolicy;
+        this.subscriptionManager = new SubscriptionManager(this, executor);
+        this.agents = new CopyOnWriteArrayList<>();
+        this.subjectsByAgent = new ConcurrentHashMap<>();
+        this.subjectRefs = new HashMap<>();
+        this.registrations = new HashMap<>();
+        this.directMessageAgents = ConcurrentHashMap.newKeySet();
+        this.groups = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+        this.filtersByAgent = new ConcurrentHashMap<>();
+        this.areas = new GeoIndex<>();
+        this.attempt = new AtomicInteger();
+    }
+
+
+    /**
+     * Starts connecting to the router.
+     */
+    void connect()
+    {
+        if (closed)
+            return;
+
+        if (tlsConfig instanceof mTLSConfig)
+            wsHandler.connectAuthenticated(routerInfo, (mTLSConfig) tlsConfig, this, this);
+
+        else
+            wsHandler.connectAnonymously(routerInfo, tlsConfig, this, this);
+    }
+
+
+    /**
+     * Closes the connection and stops reconnecting.
+     */
+    public void close()
+    {
+        closed = true;
+        Connection current = connection;
+
+        if (current != null)
+            current.close(WsCodes.NORMAL_CLOSURE, "Shared link closed.");
+    }
+
+
+    /**
+     * Sets whether the filtered subscriptions of the agents are sent to the router with their filter,
+     * which needs a router supporting filters.
+     *
+     * @param filterPushdown true to send the filters to the router, false to send the plain subjects
+     */
+    public void setFilterPushdown(boolean filterPushdown)
+    {
+        subscriptionManager.setFilterPushdown(filterPushdown);
+    }
+
+
+    public RouterInfo getRouterInfo()
+    {
+        return routerInfo;
+    }
+
+
+    /**
+     * Returns the number of agents attached to the link.
+     *
+     * @return the number of attached agents
+     */
+    public int getAgentCount()
+    {
+        return agents.size();
+    }
+
+
+    /**
+     * Attaches an agent to the link. If the link is up, the agent is told right away.
+     *
+     * @param agent the agent to attach
+     */
+    void attach(Agent agent)
+    {
+        agents.add(agent);
+        subjectsByAgent.put(agent, ConcurrentHashMap.newKeySet());
+        filtersByAgent.put(agent, new FilterIndex());
+        Connection current = connection;
+
+        if (current != null && current.isConnected())
+            agent.onConnectionEstablished(current);
+    }
+
+
+    /**
+     * Detaches an agent from the link, dropping its subscriptions. Subjects no other agent
+     * is subscribed to are unsubscribed at the router. The link is closed with its last agent.
+     *
+     * @param agent the agent to detach
+     */
+    void detach(Agent agent)
+    {
+        Set<String> subjects = subjectsByAgent.get(agent);
+
+        if (subjects != null)
+            unsubscribe(agent, new ArrayList<>(subjects));
+
+        unsubscribeFromDM(agent);
+        subjectsByAgent.remove(agent);
+        filtersByAgent.remove(agent);
+        agents.remove(agent);
+
+        if (agents.isEmpty())
+            close();
+    }
+
+
+    /**
+     * Subscribes an agent to the given subjects. Only subjects no other attached agent is
+     * subscribed to are sent to the router. An agent subscribing to a subject whose Register is
+     * still on its way waits for it, and fails along with the agent that sent it.
+     *
+     * @param agent    the agent subscribing
+     * @param subjects the subjects to subscribe to
+     * @return a future completed with the subjects the agent is subscribed to
+     */
+    CompletableFuture<List<String>> subscribe(Agent agent, List<String> subjects)
+    {
+        Set<String> own = subjectsByAgent.get(agent);
+        List<String> firstUse = new ArrayList<>();
+        Map<String, CompletableFuture<Boolean>> awaited = new HashMap<>();
+
+        synchronized (subjectRefs)
+        {
+            for (String subject : subjects)
+            {
+                if (!own.add(subject))
+                    continue;
+
+                index(agent, subject, true);
+
+                if (subjectRefs.merge(subject, 1, Integer::sum) == 1)
+                {
+                    firstUse.add(subject);
+                    registrations.put(subject, new Registration(agent));
+                }
+
+                else if (registrations.containsKey(subject))
+                {
+                    Registration registration = registrations.get(subject);
+                    registration.agents.add(agent);
+                    awaited.put(subject, registration.result);
+                }
+            }
+        }
+
+        CompletableFuture<List<String>> sent = firstUse.isEmpty() ? CompletableFuture.completedFuture(firstUse) : subscriptionManager.subscribe(firstUse, connection);
+        CompletableFuture<List<String>> registered = sent.handle((confirmed, ex) -> settle(firstUse, ex == null ? confirmed : Collections.emptyList()));
+        List<CompletableFuture<?>> pending = new ArrayList<>(awaited.values());
+        pending.add(registered);
+
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(ignored ->
+        {
+            List<String> failed = new ArrayList<>(firstUse);
+            failed.removeAll(registered.join());
+
+            for (Map.Entry<String, CompletableFuture<Boolean>> registration : awaited.entrySet())
+            {
+                if (!registration.getValue().join())
+                    failed.add(registration.getKey());
+            }
+
+            if (!failed.isEmpty())
+                agent.onSubscriptionFailure(failed, "Failed to subscribe at the router", null);
+
+            List<String> subscribed = new ArrayList<>(subjects);
+            subscribed.removeAll(failed);
+
+            if (!subscribed.isEmpty())
+                agent.onSubscriptionSuccess(subscribed);
+
+            return subscribed;
+        });
+    }
+
+
+    /**
+     * Settles the Register of subjects used for the first time. The subjects that failed are dropped from
+     * every agent that subscribed to them while the Register was on its way, in one step, so that no agent
+     * subscribing afterwards counts on a subscription the router does not have.
+     *
+     * @param firstUse  the subjects the Register was sent for
+     * @param confirmed the subjects the router was subscribed to
+     * @return the confirmed subjects
+     */
+    private List<String> settle(List<String> firstUse, List<String> confirmed)
+    {
+        Map<Registration, Boolean> settled = new HashMap<>();
+
+        synchronized (subjectRefs)
+        {
+            for (String subject : firstUse)
+            {
+                Registration registration = registrations.remove(subject);
+
+                if (registration == null)
+                    continue;
+
+                boolean success = confirmed.contains(subject);
+                settled.put(registration, success);
+
+                if (!success)
+                {
+                    for (Agent waiting : registration.agents)
+                        drop(waiting, subject);
+                }
+            }
+        }
+
+        settled.forEach((registration, success) -> registration.result.complete(success)); // outside the lock, waiters continue on this thread.
+        return confirmed;
+    }
+
+
+    /**
+     * Unsubscribes an agent from the given subjects. Only subjects no other attached agent
+     * is subscribed to any longer are unsubscribed at the router.
+     *
+     * @param agent    the agent unsubscribing
+     * @param subjects the subjects to unsubscribe from
+     * @return a future completed with the subjects the agent was unsubscribed from
+     */
+    CompletableFuture<List<String>> unsubscribe(Agent agent, List<String> subjects)
+    {
+        Set<String> own = subjectsByAgent.get(agent);
+        List<String> removed = new ArrayList<>();
+
+        for (String subject : subjects)
+        {
+            if (own != null && own.contains(subject))
+                removed.add(subject);
+        }
+
+        if (removed.isEmpty())
+            return CompletableFuture.completedFuture(removed);
+
+        List<String> lastUse = release(agent, removed);
+        CompletableFuture<List<String>> sent = lastUse.isEmpty() ? CompletableFuture.completedFuture(lastUse) : subscriptionManager.unsubscribe(lastUse, connection);
+
+        return sent.thenApply(ignored ->
+        {
+            agent.onSubscriptionRemoved(removed);
+            return removed;
+        });
+    }
+
+
+    /**
+     * Asks the router for the last message on the given subjects. The answers reach every attached agent
+     * subscribed to the subjects, not only the one asking.
+     *
+     * @param subjects the subjects to request the last message of
+     */
+    void requestSnapshot(List<String> subjects)
+    {
+        Connection current = connection;
+
+        if (current != null)
+            subscriptionManager.requestSnapshot(subjects, Collections.singletonList(current));
+    }
+
+
+    /**
+     * Subscribes an agent to direct messages, subscribing the link if it is the first agent to want them.
+     *
+     * @param agent the agent subscribing
+     */
+    void subscribeToDM(Agent agent)
+    {
+        directMessageAgents.add(agent);
+
+        if (!subscriptionManager.wantsDirectMessages())
+            subscriptionManager.subscribeToDM(connection);
+
+        agent.onDirectMessageSubscriptionChanged(subscriptionManager.wantsDirectMessages());
+    }
+
+
+    /**
+     * Unsubscribes an agent from direct messages, unsubscribing the link if no agent wants them any longer.
+     *
+     * @param agent the agent unsubscribing
+     */
+    void unsubscribeFromDM(Agent agent)
+    {
+        if (!directMessageAgents.remove(agent))
+            return;
+
+        if (directMessageAgents.isEmpty())
+            subscriptionManager.unsubscribeFromDM(connection);
+
+        agent.onDirectMessageSubscriptionChanged(false);
+    }
+
+
+    boolean isSubscribed(Agent agent, String subject)
+    {
+        Set<String> own = subjectsByAgent.get(agent);
+        FilterIndex filters = filtersByAgent.get(agent);
+
+        if (own == null)
+            return false;
+
+        if (own.contains(subject) || groups.isMember(subject, agent) || (filters != null && filters.contains(subject)))
+            return true;
+
+        String hash = GeoSubscription.hash(subject);
+        return hash != null && areas.matches(GeoSubscription.subject(subject), hash, agent);
+    }
+
+
+    boolean wantsDirectMessages(Agent agent)
+    {
+        return directMessageAgents.contains(agent);
+    }
+
+
+    List<String> getSubscriptions(Agent agent)
+    {
+        Set<String> own = subjectsByAgent.get(agent);
+        return own == null ? new ArrayList<>() : new ArrayList<>(own);
+    }
+
+
+    /**
+     * Records the consumer group, filter or area cell of an interest of an agent.
+     *
+     * @param agent    the agent
+     * @param interest the interest subscribed or unsubscribed
+     * @param joined   true if the interest was subscribed, false if it was unsubscribed
+     */
+    private void index(Agent agent, String interest, boolean joined)
+    {
+        FilterIndex filters = filtersByAgent.get(agent);
+
+        if (SharedSubscription.isShared(interest))
+        {
+            String group = SharedSubscription.group(interest);
+            String subject = SharedSubscription.subject(interest);
+
+            if (joined)
+                groups.join(group, subject, agent);
+
+            else
+                groups.leave(group, subject, agent);
+        }
+
+        else if (GeoSubscription.isGeo(interest))
+        {
+            if (joined)
+                areas.add(GeoSubscription.subject(interest), GeoSubscription.hash(interest), agent);
+
+            else
+                areas.remove(GeoSubscription.subject(interest), GeoSubscription.hash(interest), agent);
+        }
+
+        else if (filters != null)
+        {
+            if (joined)
+                filters.add(interest);
+
+            else
+                filters.remove(interest);
+        }
+    }
+
+
+    /**
+     * Drops the given subjects from an agent and decrements their reference counts.
+     *
+     * @param agent    the agent
+     * @param subjects the subjects to drop
+     * @return the subjects no attached agent is subscribed to any longer
+     */
+    private List<String> release(Agent agent, List<String> subjects)
+    {
+        List<String> lastUse = new ArrayList<>();
+
+        synchronized (subjectRefs)
+        {
+            for (String subject : subjects)
+            {
+                if (drop(agent, subject))
+                    lastUse.add(subject);
+            }
+        }
+
+        return lastUse;
+    }
+
+
+    /**
+     * Drops a subject from an agent and decrements its reference count, called with the subject references locked.
+     *
+     * @param agent   the agent
+     * @param subject the subject to drop
+     * @return true if no attached agent is subscribed to the subject any longer
+     */
+    private boolean drop(Agent agent, String subject)
+    {
+        Set<String> own = subjectsByAgent.get(agent);
+
+        if (own == null || !own.remove(subject))
+            return false; // the agent dropped the subject already, or was detached.
+
+        index(agent, subject, false);
+        return subjectRefs.computeIfPresent(subject, (key, count) -> count > 1 ? count - 1 : null) == null;
+    }
+
+
+    /* Implementation of the connection listener interface, the events are passed on to every attached agent. */
+
+
+    @Override
+    public void onConnectionEstablished(Connection connection)
+    {
+        this.connection = connection;
+        this.attempt.set(0);
+        logger.info("Shared link to " + routerInfo.getUri() + " established for " + agents.size() + " agents.");
+
+        if (subscriptionManager.hasStateToRestore())
+            executor.execute(() -> subscriptionManager.restore(connection));
+
+        for (Agent agent : agents)
+            agent.onConnectionEstablished(connection);
+    }
+
+
+    @Override
+    public void onConnectError(DisconnectionReason reason)
+    {
+        logger.error("Shared link to " + routerInfo.getUri() + " failed. Reason: " + reason.getReason());
+
+        if (attempt.get() == 0)
+        {
+            for (Agent agent : agents)
+                agent.onConnectError(reason);
+        }
+
+        scheduleReconnect();
+    }
+
+
+    @Override
+    public void onConnectionLost(DisconnectionReason reason)
+    {
+        logger.error("Shared link to " + routerInfo.getUri() + " was lost. Reason: " + reason.getReason());
+        connection = null;
+
+        for (Agent agent : agents)
+            agent.onConnectionLost(reason);
+
+        scheduleReconnect();
+    }
+
+
+    private void scheduleReconnect()
+    {
+        if (closed || reconnectPolicy == null || agents.isEmpty())
+            return;
+
+        int next = attempt.incrementAndGet();
+
+        if (!reconnectPolicy.allowsAttempt(next))
+        {
+            logger.error("Giving up on shared link to " + routerInfo.getUri() + " after " + (next - 1) + " attempts.");
+            return;
+        }
+
+        long delay = reconnectPolicy.delayMillis(next);
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, executor).execute(this::connect);
+    }
+
+
+    /* Implementation of the message listener interface, messages are fanned out to the interested agents. */
+
+
+    @Override
+    public void onDirectMessage(String messageId, List<String> destinations, String sender, Instant expires, byte[] message)
+    {
+        for (Agent agent : directMessageAgents)
+            agent.onDirectMessage(messageId, destinations, sender, expires, message);
+    }
+
+
+    @Override
+    public void onSubjectCastMessage(String messageId, String sender, String subject, Instant expires, byte[] message)
+    {
+        List<Agent> recipients = new ArrayList<>();
+
+        for (Agent agent : agents)
+        {
+            Set<String> own = subjectsByAgent.get(agent);
+            FilterIndex filters = filtersByAgent.get(agent);
+
+            if (own != null && own.contains(subject))
+                recipients.add(agent);
+
+            else if (filters != null && filters.admits(subject, sender, message))
+                recipients.add(agent);
+        }
+
+        for (Agent agent : groups.select(subject, sender))
+        {
+            if (!recipients.contains(agent))
+                recipients.add(agent);
+        }
+
+        String hash = GeoSubscription.hash(subject);
+
+        if (hash != null)
+        {
+            for (Agent agent : areas.match(GeoSubscription.subject(subject), hash))
+            {
+                if (!recipients.contains(agent))
+                    recipients.add(agent);
+            }
+        }
+
+        for (Agent agent : recipients)
+            agent.onSubjectCastMessage(messageId, sender, subject, expires, message);
+    }
+
+
+    /* Implementation of the subscribe listener interface, the results are reported to the agents by the subscribe methods. */
+
+
+    @Override
+    public void onSubscriptionSuccess(List<String> subjects)
+    {
+        logger.debug("Shared link subscribed to subjects: " + subjects);
+    }
+
+
+    @Override
+    public void onSubscriptionFailure(List<String> subjects, String reason, Throwable cause)
+    {
+        logger.error("Shared link subscription failed for subjects: " + subjects + ", " + reason);
+    }
+
+
+    @Override
+    public void onSubscriptionRemoved(List<String> subjects)
+    {
+        logger.debug("Shared link unsubscribed from subjects: " + subjects);
+    }
+
+
+    @Override
+    public void onDirectMessageSubscriptionChanged(boolean subscribed)
+    {
+        logger.debug("Shared link direct message subscription changed to: " + subscribed);
+    }
+
+
+    @Override
+    public void onDirectMessageSubscriptionFailure(String reason, Throwable cause)
+    {
+        logger.error("Shared link direct message subscription failed: " + reason);
+    }
+
+
+    /**
+     * A Register on its way for a subject used for the first time, with the agents counting on it.
+     */
+    private static class Registration
+    {
+        private final List<Agent> agents;
+        private final CompletableFuture<Boolean> result;
+
+        private Registration(Agent first)
+        {
+            this.agents = new ArrayList<>();
+            this.agents.add(first);
+            this.result = new CompletableFuture<>();
+        }
+    }
+}
@@ -1,56 +1,169 @@
 package MMS.Client;
 
 
+import MMS.Client.Codecs.WireCodec;
 import MMS.Client.Connections.Connection;
 import MMS.Client.Exceptions.InvalidSubjectException;
 import MMS.Client.Exceptions.SendingException;
 import MMS.Client.Interfaces.SubscribeListener;
-import MMS.Protocols.MMTP.MessageFormats.MessageType;
-import MMS.Protocols.MMTP.MessageFormats.ProtocolMessage;
-import MMS.Protocols.MMTP.MessageFormats.Register;
-import MMS.Protocols.MMTP.MessageFormats.Unregister;
-import com.google.protobuf.ByteString;
+import MMS.Misc.GeoIndex;
+import MMS.Misc.GeoSubscription;
+import MMS.Misc.SharedSubscription;
+import MMS.Misc.SubjectFilter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Manages the subscription of subjects and direct messages for a connection.
+ * <p>
+ * Subject subscription changes are not sent right away, they are coalesced within a short window.
+ * A subscribe and unsubscribe of the same subject within the window cancel each other out, and the
+ * remaining changes are sent in as few Register / Unregister messages as the frame size cap allows.
+ * <p>
+ * Shared subscriptions join a consumer group on a subject, and are sent as $share/group/subject interests.
+ * The groups joined are tracked per subject, so that messages on the subject count as subscribed.
+ * <p>
+ * Filtered subscriptions carry a content filter, and are sent as subject|filter interests if filter pushdown
+ * is enabled, or as the plain subject for routers that do not support filters. Either way the filters are
+ * tracked per subject and evaluated again on receipt.
+ * <p>
+ * Geographic subscriptions are sent as subject@geo:cell interests, one per geohash cell covering the area.
+ * The cells are kept in a GeoIndex, which matches the geo-tagged subjects of received messages.
  */
 public class SubscriptionManager
 {
+    static final long DEFAULT_COALESCING_WINDOW_MILLIS = 10;
+    private static final int MAX_FRAME_BYTES = 16 * 1024;
+    public static final String SNAPSHOT_PREFIX = "$snapshot/";
+
     private final Set<String> subscriptions;
     private final Set<String> unconfirmedRemovals;
+    private final Map<String, Set<String>> groupsBySubject;
+    private final FilterIndex filters;
+    private final GeoIndex<String> areas;
     private final AtomicBoolean wantsDirectMessages;
     private final SubscribeListener subscribeListener;
+    private final Executor executor;
+    private volatile long coalescingWindowMillis;
+    private volatile boolean filterPushdown;
+
+    private final Object pendingLock = new Object();
+    private final ReentrantLock flushLock = new ReentrantLock(); // held while sending, a monitor would pin virtual threads
+    private Map<String, Boolean> pendingChanges;
+    private List<PendingRequest> pendingRequests;
+    private List<Connection> pendingConnections;
+    private boolean flushScheduled;
 
 
     /**
-     * Creates a new SubscriptionManagement instance.
+     * Creates a new SubscriptionManagement instance, using the default coalescing window.
      *
      * @param subscribeListener The listener to receive subscription updates.
+     * @param executor          The executor used to send the coalesced subscription changes.
+     */
+    public SubscriptionManager(SubscribeListener subscribeListener, Executor executor)
+    {
+        this(subscribeListener, executor, DEFAULT_COALESCING_WINDOW_MILLIS);
+    }
+
+
+    /**
+     * Creates a new SubscriptionManagement instance.
+     *
+     * @param subscribeListener      The listener to receive subscription updates.
+     * @param executor               The executor used to send the coalesced subscription changes.
+     * @param coalescingWindowMillis The time in milliseconds subscription changes are collected before being sent.
      */
-    public SubscriptionManager(SubscribeListener subscribeListener)
+    public SubscriptionManager(SubscribeListener subscribeListener, Executor executor, long coalescingWindowMillis)
     {
         this.subscribeListener = subscribeListener;
+        this.executor = executor;
+        this.coalescingWindowMillis = coalescingWindowMillis;
         this.subscriptions = new ConcurrentSkipListSet<>();
         this.unconfirmedRemovals = new ConcurrentSkipListSet<>();
+        this.groupsBySubject = new ConcurrentHashMap<>();
+        this.filters = new FilterIndex();
+        this.areas = new GeoIndex<>();
         this.wantsDirectMessages = new AtomicBoolean(true);
+        this.pendingChanges = new LinkedHashMap<>();
+        this.pendingRequests = new ArrayList<>();
+        this.pendingConnections = new ArrayList<>();
+    }
+
+
+    /**
+     * Sets the time subscription changes are collected before being sent, from the next window on.
+     *
+     * @param coalescingWindowMillis The coalescing window in milliseconds.
+     */
+    public void setCoalescingWindowMillis(long coalescingWindowMillis)
+    {
+        this.coalescingWindowMillis = coalescingWindowMillis;
+    }
+
+
+    public long getCoalescingWindowMillis()
+    {
+        return coalescingWindowMillis;
+    }
+
+
+    /**
+     * Sets whether filtered subscriptions are sent to the router with their filter, which needs a router
+     * supporting filters. Applies to subscription changes sent from now on, and to all subscriptions on restore.
+     *
+     * @param filterPushdown True to send the filters to the router, false to send the plain subjects.
+     */
+    public void setFilterPushdown(boolean filterPushdown)
+    {
+        this.filterPushdown = filterPushdown;
+    }
+
+
+    public boolean isFilterPushdown()
+    {
+        return filterPushdown;
     }
 
 
     /**
      * Subscribes the given subjects to the provided connection.
+     * The change is coalesced with other changes made within the coalescing window.
      *
      * @param subjects   The list of subjects to subscribe.
      * @param connection The connection to be subscribed.
-     * @return The list of valid subjects.
+     * @return A future completed with the valid subjects that are subscribed once the change has been sent.
+     */
+    public CompletableFuture<List<String>> subscribe(List<String> subjects, Connection connection)
+    {
+        return subscribe(subjects, Collections.singletonList(connection));
+    }
+
+
+    /**
+     * Subscribes the given subjects to all the provided connections, mirroring the subscription.
+     * The change is coalesced with other changes made within the coalescing window.
+     *
+     * @param subjects    The list of subjects to subscribe.
+     * @param connections The connections to be subscribed.
+     * @return A future completed with the valid subjects that are subscribed once the change has been sent.
      */
-    public List<String> subscribe(List<String> subjects, Connection connection)
+    public CompletableFuture<List<String>> subscribe(List<String> subjects, List<Connection> connections)
     {
         List<String> validSubjects = new ArrayList<>();
         List<String> invalidSubjects = new ArrayList<>();
+        Throwable cause = null;
 
         for (String subject : subjects)
         {
@@ -62,72 +175,63 @@ public class SubscriptionManager
 
             catch (InvalidSubjectException e)
             {
+                if (cause == null)
+                    cause = new Throwable("Subjects must be between 1 and 100 characters, groups between 1 and " + SharedSubscription.MAX_GROUP_LENGTH + ", and filters valid");
+
                 invalidSubjects.add(subject);
+                cause.addSuppressed(e); // carries the reason of every rejected subject, such as a filter parse error.
             }
         }
 
-        ByteString registerMessage = Register.newBuilder().addAllInterests(validSubjects).build().toByteString();
-        MessageType messageType = MessageType.REGISTER;
-        ProtocolMessage protocolMessage = ProtocolMessage.newBuilder().setType(messageType).setContent(registerMessage).build();
-
-        if (invalidSubjects.size() > 0)
-        {
-            Throwable cause = new Throwable("Subjects must be between 1 and 100 characters");
+        if (cause != null)
             subscribeListener.onSubscriptionFailure(invalidSubjects, "Invalid subjects", cause);
-        }
 
+        if (validSubjects.isEmpty())
+            return CompletableFuture.completedFuture(validSubjects);
 
-        try
-        {
-            connection.send(protocolMessage);
-            subscriptions.addAll(validSubjects);
-            subscribeListener.onSubscriptionSuccess(validSubjects);
-            return validSubjects;
-        }
-
-        catch (SendingException ex)
-        {
-            subscribeListener.onSubscriptionFailure(validSubjects, "Failed to send subscription request", ex.getCause());
-        }
-
-        return validSubjects;
+        return enqueue(validSubjects, true, connections);
     }
 
 
     /**
      * Unsubscribes the given subjects from the provided connection.
+     * The change is coalesced with other changes made within the coalescing window.
      *
      * @param subjects   The list of subjects to unsubscribe.
      * @param connection The connection to be unsubscribed.
-     * @return The list of subjects removed.
+     * @return A future completed with the subjects removed once the change has been sent.
      */
-    public List<String> unsubscribe(List<String> subjects, Connection connection)
+    public CompletableFuture<List<String>> unsubscribe(List<String> subjects, Connection connection)
     {
-        List<String> subjectsToRemove = new ArrayList<>();
+        return unsubscribe(subjects, Collections.singletonList(connection));
+    }
 
-        for (String subject : subjects)
-        {
-            if (subscriptions.contains(subject))
-                subjectsToRemove.add(subject);
-        }
 
-        ByteString unregisterMessage = Unregister.newBuilder().addAllInterests(subjectsToRemove).build().toByteString();
-        MessageType messageType = MessageType.UNREGISTER;
-        ProtocolMessage protocolMessage = ProtocolMessage.newBuilder().setType(messageType).setContent(unregisterMessage).build();
+    /**
+     * Unsubscribes the given subjects from all the provided connections.
+     * The change is coalesced with other changes made within the coalescing window.
+     *
+     * @param subjects    The list of subjects to unsubscribe.
+     * @param connections The connections to be unsubscribed.
+     * @return A future completed with the subjects removed once the change has been sent.
+     */
+    public CompletableFuture<List<String>> unsubscribe(List<String> subjects, List<Connection> connections)
+    {
+        List<String> subjectsToRemove = new ArrayList<>();
 
-        try
+        synchronized (pendingLock)
         {
-            connection.send(protocolMessage);
+            for (String subject : subjects)
+            {
+                if (subscriptions.contains(subject) || Boolean.TRUE.equals(pendingChanges.get(subject)))
+                    subjectsToRemove.add(subject);
+            }
         }
 
-        catch (SendingException ex)
-        {
-            unconfirmedRemovals.addAll(subjectsToRemove); // we could not tell router, but we can ignore it.
-        }
+        if (subjectsToRemove.isEmpty())
+            return CompletableFuture.completedFuture(subjectsToRemove);
 
-        subjectsToRemove.forEach(subscriptions::remove);
-        subscribeListener.onSubscriptionRemoved(subjectsToRemove);
-        return subjectsToRemove;
+        return enqueue(subjectsToRemove, false, connections);
     }
 
 
@@ -137,6 +241,17 @@ public class SubscriptionManager
      * @param connection The connection to be subscribed.
      */
     public void subscribeToDM(Connection connection)
+    {
+        subscribeToDM(Collections.singletonList(connection));
+    }
+
+
+    /**
+     * Subscribes all the provided connections to direct messages.
+     *
+     * @param connections The connections to be subscribed.
+     */
+    public void subscribeToDM(List<Connection> connections)
     {
         if (wantsDirectMessages.get())
         {
@@ -144,13 +259,9 @@ public class SubscriptionManager
             return;
         }
 
-        ByteString registerMessage = Register.newBuilder().setWantDirectMessages(true).build().toByteString();
-        MessageType messageType = MessageType.REGISTER;
-        ProtocolMessage protocolMessage = ProtocolMessage.newBuilder().setType(messageType).setContent(registerMessage).build();
-
         try
         {
-            connection.send(protocolMessage);
+            sendToAll(codec -> codec.encodeRegister(Collections.emptyList(), true), connections);
             wantsDirectMessages.set(true);
             subscribeListener.onDirectMessageSubscriptionChanged(true);
         }
@@ -168,6 +279,17 @@ public class SubscriptionManager
      * @param connection The connection to be unsubscribed.
      */
     public void unsubscribeFromDM(Connection connection)
+    {
+        unsubscribeFromDM(Collections.singletonList(connection));
+    }
+
+
+    /**
+     * Unsubscribes all the provided connections from direct messages.
+     *
+     * @param connections The connections to be unsubscribed.
+     */
+    public void unsubscribeFromDM(List<Connection> connections)
     {
         if (!wantsDirectMessages.get())
         {
@@ -175,32 +297,194 @@ public class SubscriptionManager
             return;
         }
 
-        ByteString unregisterMessage = Unregister.newBuilder().setWantDirectMessages(true).build().toByteString();
-        MessageType messageType = MessageType.UNREGISTER;
-        ProtocolMessage protocolMessage = ProtocolMessage.newBuilder().setType(messageType).setContent(unregisterMessage).build();
-
         try
         {
-            connection.send(protocolMessage);
+            sendToAll(codec -> codec.encodeUnregister(Collections.emptyList(), true), connections);
         }
 
         catch (SendingException ignored)
         {
         } // we could not tell router, but we can ignore it.
 
+        wantsDirectMessages.set(false);
         subscribeListener.onDirectMessageSubscriptionChanged(false);
     }
 
 
     /**
-     * Checks if the subject is currently subscribed.
+     * Restores the full subscription state on a new connection, typically after a reconnect.
+     * All subjects and the direct message preference are sent in as few Register messages as
+     * the frame size cap allows, and removals that could not be sent earlier are flushed.
+     * Changes still waiting in the coalescing window are redirected to the new connection.
+     *
+     * @param connection The new connection.
+     */
+    public void restore(Connection connection)
+    {
+        synchronized (pendingLock)
+        {
+            if (flushScheduled && !pendingConnections.contains(connection))
+                pendingConnections.add(connection);
+        }
+
+        flushLock.lock();
+
+        try
+        {
+            boolean directMessages = wantsDirectMessages.get();
+            List<String> subscribed = toWire(new ArrayList<>(subscriptions));
+            List<List<String>> chunks = chunk(subscribed);
+
+            if (chunks.isEmpty() && directMessages)
+                chunks.add(new ArrayList<>());
+
+            for (int i = 0; i < chunks.size(); i++)
+            {
+                List<String> chunk = chunks.get(i);
+                boolean withDirectMessages = i == 0 && directMessages;
+
+                try
+                {
+                    ConnectionContext.send(connection, codec -> codec.encodeRegister(chunk, withDirectMessages));
+                }
+
+                catch (SendingException ex)
+                {
+                    subscribeListener.onSubscriptionFailure(chunk, "Failed to restore subscriptions", ex.getCause());
+                }
+            }
+
+            List<String> removals = new ArrayList<>(unconfirmedRemovals);
+            removals.removeAll(subscriptions);
+            List<String> wireRemovals = toWire(removals);
+            wireRemovals.removeAll(subscribed);
+            List<List<String>> removalChunks = chunk(wireRemovals);
+            boolean removed = true;
+
+            if (removalChunks.isEmpty() && !directMessages)
+                removalChunks.add(new ArrayList<>());
+
+            for (int i = 0; i < removalChunks.size(); i++)
+            {
+                List<String> chunk = removalChunks.get(i);
+                boolean withDirectMessages = i == 0 && !directMessages;
+
+                try
+                {
+                    ConnectionContext.send(connection, codec -> codec.encodeUnregister(chunk, withDirectMessages));
+                }
+
+                catch (SendingException ex)
+                {
+                    removed = false; // the removals stay unconfirmed and are retried on the next restore.
+                }
+            }
+
+            if (removed)
+                removals.forEach(unconfirmedRemovals::remove);
+        }
+
+        finally
+        {
+            flushLock.unlock();
+        }
+    }
+
+
+    /**
+     * Asks the router for the last message it holds on each of the given subjects, for subjects the
+     * last value cache could not answer. The request is a Register of $snapshot/subject immediately followed
+     * by its Unregister, so it is neither tracked nor restored, and a router without snapshot support is left
+     * as it was. A router with snapshot support answers with the last message as an ordinary subject cast.
+     *
+     * @param subjects    The subjects to request the last message of.
+     * @param connections The connections to send the request on.
+     */
+    public void requestSnapshot(List<String> subjects, List<Connection> connections)
+    {
+        List<String> interests = subjects.stream().map(subject -> SNAPSHOT_PREFIX + subject).collect(Collectors.toList());
+
+        for (List<String> chunk : chunk(interests))
+        {
+            try
+            {
+                sendToAll(codec -> codec.encodeRegister(chunk, false), connections);
+                sendToAll(codec -> codec.encodeUnregister(chunk, false), connections);
+            }
+
+            catch (SendingException ignored)
+            {
+            } // the subscriber simply waits for the next publish.
+        }
+    }
+
+
+    /**
+     * Checks if the subject is currently subscribed, directly, through a consumer group, with a filter,
+     * or for an area containing the position the subject is geo-tagged with.
      *
      * @param subject The subject to check.
      * @return true if the subject is subscribed, false otherwise.
      */
     public boolean isSubscribed(String subject)
     {
-        return subscriptions.contains(subject);
+        return subscriptions.contains(subject) || groupsBySubject.containsKey(subject) || filters.contains(subject) || inArea(subject);
+    }
+
+
+    /**
+     * Checks if a received message is to be delivered, meaning its subject is subscribed without a filter,
+     * or the message passes one of the filters on its subject.
+     *
+     * @param subject The subject of the message.
+     * @param sender  The sender of the message.
+     * @param payload The payload of the message.
+     * @return true if the message is to be delivered, false otherwise.
+     */
+    public boolean admits(String subject, String sender, byte[] payload)
+    {
+        return admits(subject, sender, () -> payload);
+    }
+
+
+    /**
+     * Checks if a received message is to be delivered, like admits with the payload itself,
+     * reading the payload only if a filter on the subject needs it.
+     *
+     * @param subject The subject of the message.
+     * @param sender  The sender of the message.
+     * @param payload Supplies the payload of the message.
+     * @return true if the message is to be delivered, false otherwise.
+     */
+    public boolean admits(String subject, String sender, Supplier<byte[]> payload)
+    {
+        return subscriptions.contains(subject) || groupsBySubject.containsKey(subject) || inArea(subject) || filters.admits(subject, sender, payload.get());
+    }
+
+
+    /**
+     * Checks if a geo-tagged subject lies in a subscribed area.
+     *
+     * @param subject The subject to check.
+     * @return true if the subject is geo-tagged with a position in a subscribed area, false otherwise.
+     */
+    private boolean inArea(String subject)
+    {
+        String hash = GeoSubscription.hash(subject);
+        return hash != null && areas.matchesAny(GeoSubscription.subject(subject), hash);
+    }
+
+
+    /**
+     * Returns the consumer groups joined on the subject.
+     *
+     * @param subject The subject.
+     * @return The groups joined on the subject, empty if there are none.
+     */
+    public Set<String> getGroups(String subject)
+    {
+        Set<String> groups = groupsBySubject.get(subject);
+        return groups == null ? Collections.emptySet() : Collections.unmodifiableSet(groups);
     }
 
 
@@ -215,6 +499,18 @@ public class SubscriptionManager
     }
 
 
+    /**
+     * Checks if there is state that differs from what a router assumes for a new connection,
+     * meaning subscriptions, pending removals or an opt-out from direct messages.
+     *
+     * @return true if the state should be restored on a new connection, false otherwise.
+     */
+    public boolean hasStateToRestore()
+    {
+        return !subscriptions.isEmpty() || !unconfirmedRemovals.isEmpty() || !wantsDirectMessages.get();
+    }
+
+
     /**
      * Returns the list of current subscriptions.
      *
@@ -226,6 +522,339 @@ public class SubscriptionManager
     }
 
 
+    /**
+     * Records a subscription change and schedules a flush if none is pending.
+     * The latest change for a subject overrides earlier changes within the same window.
+     *
+     * @param subjects    The subjects to change.
+     * @param subscribe   True to subscribe, false to unsubscribe.
+     * @param connections The connections to send the change on.
+     * @return A future completed when the change has been flushed.
+     */
+    private CompletableFuture<List<String>> enqueue(List<String> subjects, boolean subscribe, List<Connection> connections)
+    {
+        PendingRequest request = new PendingRequest(subjects, subscribe);
+
+        synchronized (pendingLock)
+        {
+            for (String subject : subjects)
+                pendingChanges.put(subject, subscribe);
+
+            pendingRequests.add(request);
+
+            for (Connection connection : connections)
+            {
+                if (!pendingConnections.contains(connection))
+                    pendingConnections.add(connection); // keeps a connection added by restore meanwhile.
+            }
+
+            if (!flushScheduled)
+            {
+                flushScheduled = true;
+                Executor delayed = CompletableFuture.delayedExecutor(coalescingWindowMillis, TimeUnit.MILLISECONDS, executor);
+                delayed.execute(this::flush);
+            }
+        }
+
+        return request.future;
+    }
+
+
+    /**
+     * Sends the net subscription changes collected during the coalescing window.
+     * Changes that cancel each other out are never sent, the remaining ones are chunked
+     * into size-capped Register and Unregister messages. Completes the future of every request
+     * that was part of the window, exceptionally if the changes could not be encoded.
+     */
+    private void flush()
+    {
+        Map<String, Boolean> changes;
+        List<PendingRequest> requests = Collections.emptyList();
+        List<Connection> connections;
+        RuntimeException failure = null;
+
+        flushLock.lock();
+
+        try
+        {
+            synchronized (pendingLock)
+            {
+                changes = pendingChanges;
+                requests = pendingRequests;
+                connections = pendingConnections;
+                pendingChanges = new LinkedHashMap<>();
+                pendingRequests = new ArrayList<>();
+                pendingConnections = new ArrayList<>();
+                flushScheduled = false;
+            }
+
+            List<String> additions = new ArrayList<>();
+            List<String> removals = new ArrayList<>();
+
+            for (Map.Entry<String, Boolean> change : changes.entrySet())
+            {
+                if (change.getValue() && !subscriptions.contains(change.getKey()))
+                    additions.add(change.getKey());
+
+                else if (!change.getValue() && subscriptions.contains(change.getKey()))
+                    removals.add(change.getKey());
+            }
+
+            for (List<String> chunk : chunk(additions))
+                sendRegister(chunk, connections);
+
+            for (List<String> chunk : chunk(removals))
+                sendUnregister(chunk, connections);
+        }
+
+        catch (RuntimeException ex)
+        {
+            failure = ex; // the futures must not be left pending.
+        }
+
+        finally
+        {
+            flushLock.unlock();
+            complete(requests, failure);
+        }
+    }
+
+
+    /**
+     * Completes the futures of the requests of a flushed window with the subjects that ended up in the requested state.
+     *
+     * @param requests The requests of the window.
+     * @param failure  The exception the flush failed with, or null if it succeeded.
+     */
+    private void complete(List<PendingRequest> requests, RuntimeException failure)
+    {
+        for (PendingRequest request : requests)
+        {
+            if (failure != null)
+            {
+                request.future.completeExceptionally(failure);
+                continue;
+            }
+
+            List<String> result = new ArrayList<>();
+
+            for (String subject : request.subjects)
+            {
+                if (subscriptions.contains(subject) == request.subscribe)
+                    result.add(subject);
+            }
+
+            request.future.complete(result);
+        }
+    }
+
+
+    /**
+     * Sends a single Register message for the given subjects and updates the local state.
+     *
+     * @param subjects    The subjects to register.
+     * @param connections The connections to send the message on.
+     */
+    private void sendRegister(List<String> subjects, List<Connection> connections)
+    {
+        try
+        {
+            List<String> wire = toWire(subjects);
+            sendToAll(codec -> codec.encodeRegister(wire, false), connections);
+            subjects.forEach(unconfirmedRemovals::remove);
+            subscriptions.addAll(subjects);
+            index(subjects, true);
+            subscribeListener.onSubscriptionSuccess(subjects);
+        }
+
+        catch (SendingException ex)
+        {
+            subscribeListener.onSubscriptionFailure(subjects, "Failed to send subscription request", ex.getCause());
+        }
+    }
+
+
+    /**
+     * Sends a single Unregister message for the given subjects and updates the local state.
+     *
+     * @param subjects    The subjects to unregister.
+     * @param connections The connections to send the message on.
+     */
+    private void sendUnregister(List<String> subjects, List<Connection> connections)
+    {
+        Set<String> wire = new LinkedHashSet<>(toWire(subjects));
+
+        if (!filterPushdown)
+        {
+            Set<String> removed = new HashSet<>(subjects);
+
+            for (String interest : subscriptions)
+            {
+                if (!removed.contains(interest))
+                    wire.remove(wireInterest(interest)); // the plain subject is still needed by another subscription.
+            }
+        }
+
+        try
+        {
+            if (!wire.isEmpty())
+                sendToAll(codec -> codec.encodeUnregister(new ArrayList<>(wire), false), connections);
+        }
+
+        catch (SendingException ex)
+        {
+            unconfirmedRemovals.addAll(subjects); // we could not tell router, but we can ignore it.
+        }
+
+        subjects.forEach(subscriptions::remove);
+        index(subjects, false);
+        subscribeListener.onSubscriptionRemoved(subjects);
+    }
+
+
+    /**
+     * Records the consumer groups joined or left, the filters added or removed and the cells of areas
+     * subscribed or unsubscribed by the given interests, called with the flush lock held.
+     *
+     * @param interests The subscribed or unsubscribed interests.
+     * @param joined    True if the interests were subscribed, false if they were unsubscribed.
+     */
+    private void index(List<String> interests, boolean joined)
+    {
+        for (String interest : interests)
+        {
+            if (GeoSubscription.isGeo(interest))
+            {
+                if (joined)
+                    areas.add(GeoSubscription.subject(interest), GeoSubscription.hash(interest), interest);
+
+                else
+                    areas.remove(GeoSubscription.subject(interest), GeoSubscription.hash(interest), interest);
+
+                continue;
+            }
+
+            if (!SharedSubscription.isShared(interest))
+            {
+                if (joined)
+                    filters.add(interest);
+
+                else
+                    filters.remove(interest);
+
+                continue;
+            }
+
+            String group = SharedSubscription.group(interest);
+            String subject = SharedSubscription.subject(interest);
+
+            if (joined)
+                groupsBySubject.computeIfAbsent(subject, key -> ConcurrentHashMap.newKeySet()).add(group);
+
+            else
+                groupsBySubject.computeIfPresent(subject, (key, groups) -> groups.remove(group) && groups.isEmpty() ? null : groups);
+        }
+    }
+
+
+    /**
+     * Sends the message on every given connection. Succeeds if at least one connection accepted it,
+     * connections that failed are brought back in sync by a restore when they reconnect.
+     *
+     * Each connection gets the message encoded with its own wire codec.
+     *
+     * @param encoder     Encodes the message with the given codec.
+     * @param connections The connections to send the message on.
+     * @throws SendingException if the message could not be sent on any connection.
+     */
+    private void sendToAll(Function<WireCodec, byte[]> encoder, List<Connection> connections) throws SendingException
+    {
+        SendingException failure = new SendingException("No connection to send on");
+        boolean sent = false;
+
+        for (Connection connection : connections)
+        {
+            if (connection == null)
+                continue;
+
+            try
+            {
+                ConnectionContext.send(connection, encoder);
+                sent = true;
+            }
+
+            catch (SendingException ex)
+            {
+                failure = ex;
+            }
+        }
+
+        if (!sent)
+            throw failure;
+    }
+
+
+    /**
+     * Returns the interests as they are sent to the router, without duplicates. Without filter pushdown,
+     * filtered subscriptions are sent as their plain subject.
+     *
+     * @param interests The subscribed interests.
+     * @return The interests to send.
+     */
+    private List<String> toWire(List<String> interests)
+    {
+        if (filterPushdown)
+            return new ArrayList<>(interests);
+
+        Set<String> wire = new LinkedHashSet<>();
+
+        for (String interest : interests)
+            wire.add(wireInterest(interest));
+
+        return new ArrayList<>(wire);
+    }
+
+
+    private String wireInterest(String interest)
+    {
+        return filterPushdown || SharedSubscription.isShared(interest) || GeoSubscription.isGeo(interest) ? interest : SubjectFilter.subject(interest);
+    }
+
+
+    /**
+     * Splits the given subjects into chunks that each fit within the frame size cap.
+     *
+     * @param subjects The subjects to split.
+     * @return The list of chunks, empty if there are no subjects.
+     */
+    private List<List<String>> chunk(List<String> subjects)
+    {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>();
+        int size = 0;
+
+        for (String subject : subjects)
+        {
+            int encodedSize = subject.getBytes(StandardCharsets.UTF_8).length + 3; // field tag and length prefix
+
+            if (!current.isEmpty() && size + encodedSize > MAX_FRAME_BYTES)
+            {
+                chunks.add(current);
+                current = new ArrayList<>();
+                size = 0;
+            }
+
+            current.add(subject);
+            size += encodedSize;
+        }
+
+        if (!current.isEmpty())
+            chunks.add(current);
+
+        return chunks;
+    }
+
+
     /**
      * Validates the given subject.
      *
@@ -237,7 +866,51 @@ public class SubscriptionManager
         if (subject == null)
             throw new InvalidSubjectException("Subject cannot be null");
 
+        if (SharedSubscription.isShared(subject))
+        {
+            if (!SharedSubscription.validateGroup(SharedSubscription.group(subject)))
+                throw new InvalidSubjectException("Group must be between 1 and " + SharedSubscription.MAX_GROUP_LENGTH + " characters without slashes or whitespace");
+
+            subject = SharedSubscription.subject(subject);
+        }
+
+        else if (GeoSubscription.isGeo(subject))
+            subject = GeoSubscription.subject(subject);
+
+        else if (SubjectFilter.isFiltered(subject))
+        {
+            try
+            {
+                SubjectFilter.filterOf(subject);
+            }
+
+            catch (IllegalArgumentException ex)
+            {
+                throw new InvalidSubjectException("Invalid filter: " + ex.getMessage(), ex);
+            }
+
+            subject = SubjectFilter.subject(subject);
+        }
+
         if (subject.length() > 100 || subject.length() < 1)
             throw new InvalidSubjectException("Subject must be between 1 and 100 characters");
     }
-}
\ No newline at end of file
+
+
+    /**
+     * A single subscribe or unsubscribe call waiting for the next flush.
+     */
+    private static class PendingRequest
+    {
+        private final List<String> subjects;
+        private final boolean subscribe;
+        private final CompletableFuture<List<String>> future;
+
+        private PendingRequest(List<String> subjects, boolean subscribe)
+        {
+            this.subjects = subjects;
+            this.subscribe = subscribe;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package MMS.Client.TLSConfiguration;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.io.ssl.SslHandshakeListener;
+
+import javax.net.ssl.SSLSession;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HandshakeMetrics collects TLS handshake counts and connect times for a TLS configuration.
+ * It is registered as a handshake listener on the Jetty client, and the WsHandler records
+ * the time from the start of a connect until the WebSocket upgrade completed.
+ */
+public class HandshakeMetrics implements SslHandshakeListener
+{
+    private static final Logger logger = LogManager.getLogger(HandshakeMetrics.class);
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder totalConnectNanos = new LongAdder();
+    private final AtomicLong lastConnectNanos = new AtomicLong();
+    private final AtomicLong maxConnectNanos = new AtomicLong();
+
+
+    @Override
+    public void handshakeSucceeded(Event event)
+    {
+        handshakes.increment();
+        SSLSession session = event.getSSLEngine().getSession();
+        logger.debug("TLS handshake completed using " + session.getProtocol() + " and " + session.getCipherSuite());
+    }
+
+
+    @Override
+    public void handshakeFailed(Event event, Throwable failure)
+    {
+        failedHandshakes.increment();
+        logger.error("TLS handshake failed: " + failure.getMessage());
+    }
+
+
+    /**
+     * Records the time a successful connect took, including TCP, TLS and the WebSocket upgrade.
+     *
+     * @param nanos the connect time in nanoseconds
+     */
+    public void recordConnect(long nanos)
+    {
+        connects.increment();
+        totalConnectNanos.add(nanos);
+        lastConnectNanos.set(nanos);
+        maxConnectNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+
+    public long getHandshakes()
+    {
+        return handshakes.sum();
+    }
+
+
+    public long getFailedHandshakes()
+    {
+        return failedHandshakes.sum();
+    }
+
+
+    public Duration getLastConnectTime()
+    {
+        return Duration.ofNanos(lastConnectNanos.get());
+    }
+
+
+    public Duration getMaxConnectTime()
+    {
+        return Duration.ofNanos(maxConnectNanos.get());
+    }
+
+
+    public Duration getAverageConnectTime()
+    {
+        long count = connects.sum();
+        return count == 0 ? Duration.ZERO : Duration.ofNanos(totalConnectNanos.sum() / count);
+    }
+}
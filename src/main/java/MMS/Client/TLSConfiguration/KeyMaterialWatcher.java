@@ -0,0 +1,141 @@
+package MMS.Client.TLSConfiguration;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * KeyMaterialWatcher watches key store and trust store files using a NIO WatchService
+ * and runs a reload action when any of them changes. Bursts of file events, as produced
+ * when a file is rewritten, are collapsed into a single reload once the files are quiet.
+ */
+public class KeyMaterialWatcher implements Closeable
+{
+    private static final Logger logger = LogManager.getLogger(KeyMaterialWatcher.class);
+    private static final long QUIET_PERIOD_MILLIS = 500;
+
+    private final WatchService watchService;
+    private final Set<Path> watchedFiles;
+    private final Runnable reloadAction;
+    private final Thread thread;
+
+
+    /**
+     * Constructs a new KeyMaterialWatcher and starts watching the given files.
+     *
+     * @param files        the key store and trust store files to watch, null entries are ignored
+     * @param reloadAction the action to run when a watched file changed
+     * @throws IOException if the watch service could not be created or a directory could not be registered
+     */
+    public KeyMaterialWatcher(List<String> files, Runnable reloadAction) throws IOException
+    {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watchedFiles = new HashSet<>();
+        this.reloadAction = reloadAction;
+
+        Set<Path> directories = new HashSet<>();
+
+        for (String file : files)
+        {
+            if (file == null)
+                continue;
+
+            Path path = Paths.get(file).toAbsolutePath().normalize();
+            watchedFiles.add(path);
+            directories.add(path.getParent());
+        }
+
+        for (Path directory : directories)
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        this.thread = new Thread(this::run, "key-material-watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    /**
+     * Stops watching the files.
+     *
+     * @throws IOException if the watch service could not be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        thread.interrupt();
+        watchService.close();
+    }
+
+
+    /**
+     * Waits for changes to the watched files, and reloads once no more changes arrive within the quiet period.
+     */
+    private void run()
+    {
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                WatchKey key = watchService.take();
+                boolean changed = handle(key);
+
+                while (true)
+                {
+                    WatchKey next = watchService.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+
+                    if (next == null)
+                        break;
+
+                    changed |= handle(next);
+                }
+
+                if (changed)
+                {
+                    logger.info("Key material changed on disk, reloading TLS context");
+                    reloadAction.run();
+                }
+            }
+        }
+
+        catch (InterruptedException | ClosedWatchServiceException ignored)
+        {
+        } // the watcher was closed.
+    }
+
+
+    /**
+     * Checks the events of a watch key against the watched files and re-arms the key.
+     *
+     * @param key the signalled watch key
+     * @return true if one of the watched files changed, false otherwise
+     */
+    private boolean handle(WatchKey key)
+    {
+        boolean changed = false;
+        Path directory = (Path) key.watchable();
+
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+            {
+                changed = true;
+                continue;
+            }
+
+            Path file = directory.resolve((Path) event.context()).toAbsolutePath().normalize();
+
+            if (watchedFiles.contains(file))
+                changed = true;
+        }
+
+        key.reset();
+        return changed;
+    }
+}
@@ -1,35 +1,269 @@
 package MMS.Client.TLSConfiguration;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLSConfig holds the trust material used to connect to an edge router.
+ * <p>
+ * The SslContextFactory is built and started once and cached until the configuration changes,
+ * so the trust store is only parsed once and every connection made with this configuration uses
+ * the same SSLContext. Sharing the SSLContext shares its client session cache, which lets reconnects
+ * to the same router resume the TLS 1.3 session from a session ticket instead of a full handshake.
+ * <p>
+ * With hot reload enabled, the key material files are watched and the SSLContext of the cached
+ * factory is swapped in place when they change, so the next handshake uses the new material
+ * without dropping existing connections.
+ * <p>
+ * The configuration is guarded by a ReentrantLock rather than a monitor, as building the factory reads
+ * and parses the key material, which must not pin a virtual thread to its carrier.
+ */
 public class TLSConfig
 {
+    private static final Logger logger = LogManager.getLogger(TLSConfig.class);
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+
     protected String trustStorePath;
     protected String trustStorePassword;
 
+    protected final ReentrantLock lock;
+    private final HandshakeMetrics handshakeMetrics;
+    private SslContextFactory.Client cachedFactory;
+    private KeyMaterialWatcher watcher;
+
     public TLSConfig(String trustStorePath, String trustStorePassword)
     {
         this.trustStorePath = trustStorePath;
         this.trustStorePassword = trustStorePassword;
+        this.lock = new ReentrantLock();
+        this.handshakeMetrics = new HandshakeMetrics();
     }
 
     public TLSConfig()
     {
         this.trustStorePath = null;
         this.trustStorePassword = null;
+        this.lock = new ReentrantLock();
+        this.handshakeMetrics = new HandshakeMetrics();
     }
 
     public void setTrustStorePath(String trustStorePath)
     {
-        this.trustStorePath = trustStorePath;
+        lock.lock();
+
+        try
+        {
+            this.trustStorePath = trustStorePath;
+            invalidate();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     public void setTrustStorePassword(String trustStorePassword)
     {
-        this.trustStorePassword = trustStorePassword;
+        lock.lock();
+
+        try
+        {
+            this.trustStorePassword = trustStorePassword;
+            invalidate();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
     }
 
+    /**
+     * Returns the cached, started SslContextFactory for this configuration, building it on first use.
+     *
+     * @return the TLS context factory
+     */
     public SslContextFactory.Client getTLSContextFactory()
+    {
+        lock.lock();
+
+        try
+        {
+            if (cachedFactory == null)
+            {
+                SslContextFactory.Client sslContextFactory = createTLSContextFactory();
+                sslContextFactory.setSessionCachingEnabled(true);
+                sslContextFactory.setSslSessionCacheSize(SESSION_CACHE_SIZE);
+                sslContextFactory.setSslSessionTimeout(SESSION_TIMEOUT_SECONDS);
+
+                try
+                {
+                    sslContextFactory.start(); // started here so the Jetty clients do not stop it with their lifecycle
+                }
+
+                catch (Exception ex)
+                {
+                    throw new IllegalStateException("Could not load the TLS key material", ex);
+                }
+
+                cachedFactory = sslContextFactory;
+            }
+
+            return cachedFactory;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the handshake metrics for the connections made with this configuration.
+     *
+     * @return the handshake metrics
+     */
+    public HandshakeMetrics getHandshakeMetrics()
+    {
+        return handshakeMetrics;
+    }
+
+    /**
+     * Starts watching the key material files, reloading the TLS context when they change.
+     *
+     * @throws IOException if the files could not be watched
+     */
+    public void enableHotReload() throws IOException
+    {
+        lock.lock();
+
+        try
+        {
+            if (watcher == null)
+                watcher = new KeyMaterialWatcher(getKeyMaterialPaths(), this::reload);
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops watching the key material files.
+     */
+    public void disableHotReload()
+    {
+        lock.lock();
+
+        try
+        {
+            if (watcher == null)
+                return;
+
+            try
+            {
+                watcher.close();
+            }
+
+            catch (IOException ex)
+            {
+                logger.error("Failed to stop watching the key material", ex);
+            }
+
+            watcher = null;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Re-reads the key material and atomically replaces the SSLContext of the cached factory.
+     * Established connections keep their session, new handshakes use the reloaded material.
+     */
+    public void reload()
+    {
+        lock.lock();
+
+        try
+        {
+            if (cachedFactory == null)
+                return;
+
+            verifyKeyMaterial(); // a half-written file must not leave the factory without a context
+            cachedFactory.reload(factory -> {});
+            logger.info("TLS context reloaded");
+        }
+
+        catch (Exception ex)
+        {
+            logger.error("Failed to reload the TLS context, keeping the previous one", ex);
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks that the key material files can be loaded before the factory is reloaded from them.
+     *
+     * @throws Exception if a file could not be loaded
+     */
+    protected void verifyKeyMaterial() throws Exception
+    {
+        loadKeyStore(trustStorePath, trustStorePassword);
+    }
+
+    /**
+     * Loads the key store at the given path.
+     *
+     * @param path     the path of the key store, ignored if null
+     * @param password the password of the key store
+     * @throws Exception if the key store could not be loaded
+     */
+    protected static void loadKeyStore(String path, String password) throws Exception
+    {
+        if (path == null)
+            return;
+
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+
+        try (InputStream in = Files.newInputStream(Paths.get(path)))
+        {
+            keyStore.load(in, password == null ? null : password.toCharArray());
+        }
+    }
+
+    /**
+     * Returns the paths of the files holding the key material of this configuration.
+     *
+     * @return the key material paths
+     */
+    protected List<String> getKeyMaterialPaths()
+    {
+        List<String> paths = new ArrayList<>();
+        paths.add(trustStorePath);
+        return paths;
+    }
+
+    protected SslContextFactory.Client createTLSContextFactory()
     {
         SslContextFactory.Client sslContextFactory = new SslContextFactory.Client();
 
@@ -43,6 +277,59 @@ public class TLSConfig
         return sslContextFactory;
     }
 
+    /**
+     * Stops and drops the cached factory, the next connect builds a new one from the current configuration.
+     * Established connections keep their TLS session, while the client stacks built on the old factory
+     * are released once their last connection closes. With hot reload enabled, the key material files
+     * of the current configuration are watched from now on. Must be called with the lock held.
+     */
+    protected void invalidate()
+    {
+        if (watcher != null)
+            rewatch();
+
+        if (cachedFactory == null)
+            return;
 
+        try
+        {
+            cachedFactory.stop();
+        }
 
+        catch (Exception ex)
+        {
+            logger.error("Failed to stop the previous TLS context factory", ex);
+        }
+
+        cachedFactory = null;
+    }
+
+
+    /**
+     * Replaces the watcher of the key material files with one watching the current paths.
+     * Must be called with the lock held.
+     */
+    private void rewatch()
+    {
+        try
+        {
+            watcher.close();
+        }
+
+        catch (IOException ex)
+        {
+            logger.error("Failed to stop watching the previous key material", ex);
+        }
+
+        try
+        {
+            watcher = new KeyMaterialWatcher(getKeyMaterialPaths(), this::reload);
+        }
+
+        catch (IOException ex)
+        {
+            watcher = null;
+            logger.error("Failed to watch the key material, hot reload is disabled", ex);
+        }
+    }
 }
@@ -2,6 +2,8 @@ package MMS.Client.TLSConfiguration;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
+import java.util.List;
+
 public class mTLSConfig extends TLSConfig
 {
     private String keyStorePath;
@@ -23,16 +25,53 @@ public class mTLSConfig extends TLSConfig
 
     public void setKeyStorePath(String keyStorePath)
     {
-        this.keyStorePath = keyStorePath;
+        lock.lock();
+
+        try
+        {
+            this.keyStorePath = keyStorePath;
+            invalidate();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     public void setKeyStorePassword(String keyStorePassword)
     {
-        this.keyStorePassword = keyStorePassword;
+        lock.lock();
+
+        try
+        {
+            this.keyStorePassword = keyStorePassword;
+            invalidate();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected void verifyKeyMaterial() throws Exception
+    {
+        super.verifyKeyMaterial();
+        loadKeyStore(keyStorePath, keyStorePassword);
+    }
+
+    @Override
+    protected List<String> getKeyMaterialPaths()
+    {
+        List<String> paths = super.getKeyMaterialPaths();
+        paths.add(keyStorePath);
+        return paths;
     }
 
     @Override
-    public SslContextFactory.Client getTLSContextFactory()
+    protected SslContextFactory.Client createTLSContextFactory()
     {
         SslContextFactory.Client sslContextFactory = new SslContextFactory.Client();
 
@@ -0,0 +1,74 @@
+package MMS.Client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * VirtualThreads creates executors running every task on its own virtual thread, when the
+ * running Java version has them (Java 21 and later). It is looked up reflectively, so the
+ * client still runs on older Java versions, where virtual threads are reported as unsupported.
+ */
+class VirtualThreads
+{
+    private static final String PARALLELISM = "jdk.virtualThreadScheduler.parallelism";
+
+
+    /**
+     * Returns true if the running Java version supports virtual threads.
+     *
+     * @return true if virtual threads are supported
+     */
+    static boolean isSupported()
+    {
+        return factoryMethod() != null;
+    }
+
+
+    /**
+     * Creates an executor starting a new virtual thread for every task. The number of carrier threads
+     * the scheduler normally runs is set to the given parallelism, unless jdk.virtualThreadScheduler.parallelism
+     * has been set already, and only takes effect if no virtual thread has been started in the process before.
+     * The maximum pool size is left to the JDK, so the scheduler can still add carriers to make up for
+     * threads pinned by monitors in application code.
+     *
+     * @param carrierThreads the number of carrier threads, or zero to keep the JDK default
+     * @return the executor
+     * @throws UnsupportedOperationException if the running Java version has no virtual threads
+     */
+    static ExecutorService newExecutor(int carrierThreads)
+    {
+        Method method = factoryMethod();
+
+        if (method == null)
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running " + Runtime.version());
+
+        if (carrierThreads > 0 && System.getProperty(PARALLELISM) == null)
+            System.setProperty(PARALLELISM, Integer.toString(carrierThreads));
+
+        try
+        {
+            return (ExecutorService) method.invoke(null);
+        }
+
+        catch (IllegalAccessException | InvocationTargetException ex)
+        {
+            throw new UnsupportedOperationException("Could not create a virtual thread executor", ex);
+        }
+    }
+
+
+    private static Method factoryMethod()
+    {
+        try
+        {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        }
+
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+}
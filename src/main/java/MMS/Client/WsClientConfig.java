@@ -0,0 +1,336 @@
+package MMS.Client;
+
+import MMS.Client.Codecs.ProtobufCodec;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * WsClientConfig holds the tunables of the Jetty client stack shared by the connections
+ * of a WsHandler, such as the number of selector threads, the buffer pool sizing and the
+ * maximum WebSocket message sizes, as well as the keepalive and connect timing and the wire codecs of its connections.
+ */
+public class WsClientConfig
+{
+    private int selectors;
+    private int bufferPoolFactor;
+    private int bufferPoolMaxQueueLength;
+    private int maxBinaryMessageSize;
+    private int maxTextMessageSize;
+    private Duration idleTimeout;
+    private Duration connectTimeout;
+    private Duration minConnectTimeout;
+    private double connectTimeoutFactor;
+    private Duration stackLinger;
+    private int raceWidth;
+    private Duration raceStagger;
+    private Duration pingInterval;
+    private int maxMissedPongs;
+    private int dispatchThreads;
+    private int dispatchQueueCapacity;
+    private List<String> subprotocols;
+    private boolean deltaDecoding;
+    private int deltaBaseCapacity;
+    private long lastValueCacheBytes;
+
+
+    /**
+     * Constructs a new WsClientConfig with the default values.
+     */
+    public WsClientConfig()
+    {
+        this.selectors = 1;
+        this.bufferPoolFactor = 1024;
+        this.bufferPoolMaxQueueLength = 64;
+        this.maxBinaryMessageSize = 1024 * 1024;
+        this.maxTextMessageSize = 64 * 1024;
+        this.idleTimeout = Duration.ofMinutes(5);
+        this.connectTimeout = Duration.ofSeconds(5);
+        this.minConnectTimeout = Duration.ofSeconds(1);
+        this.connectTimeoutFactor = 4.0;
+        this.stackLinger = Duration.ofSeconds(30);
+        this.raceWidth = 3;
+        this.raceStagger = Duration.ofMillis(250);
+        this.pingInterval = Duration.ofSeconds(10);
+        this.maxMissedPongs = 3;
+        this.dispatchThreads = Runtime.getRuntime().availableProcessors();
+        this.dispatchQueueCapacity = 10000;
+        this.subprotocols = List.of(ProtobufCodec.SUBPROTOCOL);
+        this.deltaDecoding = false;
+        this.deltaBaseCapacity = 1024;
+        this.lastValueCacheBytes = 0;
+    }
+
+    public int getSelectors()
+    {
+        return selectors;
+    }
+
+    public void setSelectors(int selectors)
+    {
+        this.selectors = selectors;
+    }
+
+    public int getBufferPoolFactor()
+    {
+        return bufferPoolFactor;
+    }
+
+    public void setBufferPoolFactor(int bufferPoolFactor)
+    {
+        this.bufferPoolFactor = bufferPoolFactor;
+    }
+
+    public int getBufferPoolMaxQueueLength()
+    {
+        return bufferPoolMaxQueueLength;
+    }
+
+    public void setBufferPoolMaxQueueLength(int bufferPoolMaxQueueLength)
+    {
+        this.bufferPoolMaxQueueLength = bufferPoolMaxQueueLength;
+    }
+
+    public int getMaxBinaryMessageSize()
+    {
+        return maxBinaryMessageSize;
+    }
+
+    public void setMaxBinaryMessageSize(int maxBinaryMessageSize)
+    {
+        this.maxBinaryMessageSize = maxBinaryMessageSize;
+    }
+
+    public int getMaxTextMessageSize()
+    {
+        return maxTextMessageSize;
+    }
+
+    public void setMaxTextMessageSize(int maxTextMessageSize)
+    {
+        this.maxTextMessageSize = maxTextMessageSize;
+    }
+
+    public Duration getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(Duration idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Duration getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Duration connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Returns the lower bound of the adaptive connect timeout. Once connect times have been
+     * measured, the timeout is the average connect time times the connect timeout factor,
+     * kept between this minimum and the connect timeout.
+     *
+     * @return the minimum connect timeout
+     */
+    public Duration getMinConnectTimeout()
+    {
+        return minConnectTimeout;
+    }
+
+    public void setMinConnectTimeout(Duration minConnectTimeout)
+    {
+        this.minConnectTimeout = minConnectTimeout;
+    }
+
+    public double getConnectTimeoutFactor()
+    {
+        return connectTimeoutFactor;
+    }
+
+    public void setConnectTimeoutFactor(double connectTimeoutFactor)
+    {
+        this.connectTimeoutFactor = connectTimeoutFactor;
+    }
+
+    /**
+     * Returns the number of routers raced against each other by a racing connect.
+     *
+     * @return the race width
+     */
+    public int getRaceWidth()
+    {
+        return raceWidth;
+    }
+
+    public void setRaceWidth(int raceWidth)
+    {
+        this.raceWidth = raceWidth;
+    }
+
+    /**
+     * Returns the delay between starting two attempts of a racing connect.
+     * The next attempt starts right away if an earlier one fails.
+     *
+     * @return the stagger delay
+     */
+    public Duration getRaceStagger()
+    {
+        return raceStagger;
+    }
+
+    public void setRaceStagger(Duration raceStagger)
+    {
+        this.raceStagger = raceStagger;
+    }
+
+    /**
+     * Returns the time between two keepalive pings on a connection, zero disables the keepalive.
+     *
+     * @return the ping interval
+     */
+    public Duration getPingInterval()
+    {
+        return pingInterval;
+    }
+
+    public void setPingInterval(Duration pingInterval)
+    {
+        this.pingInterval = pingInterval;
+    }
+
+    /**
+     * Returns the number of keepalive pings in a row that may go unanswered
+     * before the connection is considered lost.
+     *
+     * @return the maximum number of missed pongs
+     */
+    public int getMaxMissedPongs()
+    {
+        return maxMissedPongs;
+    }
+
+    public void setMaxMissedPongs(int maxMissedPongs)
+    {
+        this.maxMissedPongs = maxMissedPongs;
+    }
+
+    /**
+     * Returns the number of threads of the dispatch pool, which processes the received messages
+     * of all connections of a WsHandler.
+     *
+     * @return the number of dispatch threads
+     */
+    public int getDispatchThreads()
+    {
+        return dispatchThreads;
+    }
+
+    public void setDispatchThreads(int dispatchThreads)
+    {
+        this.dispatchThreads = dispatchThreads;
+    }
+
+    /**
+     * Returns the number of received messages that may wait for a dispatch thread. When the queue is full,
+     * the message is processed on the receiving thread, which stops reading until the backlog clears.
+     *
+     * @return the capacity of the dispatch queue
+     */
+    public int getDispatchQueueCapacity()
+    {
+        return dispatchQueueCapacity;
+    }
+
+    public void setDispatchQueueCapacity(int dispatchQueueCapacity)
+    {
+        this.dispatchQueueCapacity = dispatchQueueCapacity;
+    }
+
+    /**
+     * Returns the subprotocols offered to the edge router, in order of preference. The router picks
+     * one of them and the connection uses the wire codec registered for it, protobuf if it picks none.
+     * For example, offering MMTP-BIN/1.0 before MMTP/1.0 uses the binary codec with routers that support it,
+     * and offering MMTP-BIN/1.0+dict first also sends repeated MRNs and subjects as dictionary references.
+     *
+     * @return the offered subprotocols
+     */
+    public List<String> getSubprotocols()
+    {
+        return subprotocols;
+    }
+
+    public void setSubprotocols(List<String> subprotocols)
+    {
+        this.subprotocols = List.copyOf(subprotocols);
+    }
+
+    /**
+     * Returns whether the full payloads of subjects published in delta mode are rebuilt on receive.
+     * Messages are then decoded on the receiving thread, as deltas must be applied in order.
+     * Delta frames are offered to the edge router only if enabled, and are needed to publish in delta mode as well.
+     *
+     * @return true if delta decoding is enabled
+     */
+    public boolean isDeltaDecoding()
+    {
+        return deltaDecoding;
+    }
+
+    public void setDeltaDecoding(boolean deltaDecoding)
+    {
+        this.deltaDecoding = deltaDecoding;
+    }
+
+    /**
+     * Returns the number of publisher and subject pairs a connection keeps the last payload of for delta decoding.
+     *
+     * @return the capacity of the base cache
+     */
+    public int getDeltaBaseCapacity()
+    {
+        return deltaBaseCapacity;
+    }
+
+    public void setDeltaBaseCapacity(int deltaBaseCapacity)
+    {
+        this.deltaBaseCapacity = deltaBaseCapacity;
+    }
+
+    /**
+     * Returns the approximate memory the process-wide cache of the last message on every subject may take,
+     * zero if the cache is disabled. With the cache, agents get the current value of a subject when they subscribe.
+     *
+     * @return the size of the last value cache in bytes
+     */
+    public long getLastValueCacheBytes()
+    {
+        return lastValueCacheBytes;
+    }
+
+    public void setLastValueCacheBytes(long lastValueCacheBytes)
+    {
+        this.lastValueCacheBytes = lastValueCacheBytes;
+    }
+
+    /**
+     * Returns how long an unused client stack is kept running before it is stopped,
+     * so that a quick reconnect can reuse it instead of starting a new one.
+     *
+     * @return the linger duration
+     */
+    public Duration getStackLinger()
+    {
+        return stackLinger;
+    }
+
+    public void setStackLinger(Duration stackLinger)
+    {
+        this.stackLinger = stackLinger;
+    }
+}
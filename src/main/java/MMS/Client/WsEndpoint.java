@@ -1,20 +1,32 @@
 package MMS.Client;
 
+import MMS.Client.Codecs.WireCodec;
+import MMS.Client.Codecs.WireCodecs;
 import MMS.Client.Connections.AnonymousConnection;
 import MMS.Client.Connections.AuthenticatedConnection;
 import MMS.Client.Connections.Connection;
 import MMS.Client.Connections.DisconnectionReason;
 import MMS.Client.Interfaces.ConnectionListener;
 import MMS.Client.Interfaces.MessageListener;
-import net.maritimeconnectivity.pki.CertificateHandler;
 import net.maritimeconnectivity.pki.PKIIdentity;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.io.ssl.SslConnection;
 import org.eclipse.jetty.websocket.api.BadPayloadException;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketPingPongListener;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.io.AbstractWebSocketConnection;
 import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
 
 import javax.servlet.http.HttpServletRequest;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 /**
@@ -22,12 +34,22 @@ import java.security.cert.X509Certificate;
  * connection, including connection, message processing, and disconnection.
  * It works with ConnectionListener and MessageListener for handling the events
  * during the WebSocket connection.
+ * <p>
+ * While the connection is open it is kept alive with pings, whose round trip times are recorded
+ * in the ConnectionContext of the connection. If too many pings go unanswered the connection is
+ * reported lost right away and torn down, instead of waiting for TCP to notice.
  */
-public class WsEndpoint extends WebSocketAdapter
+public class WsEndpoint extends WebSocketAdapter implements WebSocketPingPongListener
 {
     private final ConnectionListener connectionListener;
     private final MessageHandler messageHandler;
+    private final WsClientConfig config;
+    private final Executor executor;
+    private final AtomicBoolean lost;
+    private final LastValueCache lastValueCache;
     private Connection connection;
+    private volatile LinkStatistics statistics;
+    private Keepalive keepalive;
 
 
     /**
@@ -37,16 +59,53 @@ public class WsEndpoint extends WebSocketAdapter
      * @param messageListener    the listener for handling message events
      */
     public WsEndpoint(ConnectionListener connectionListener, MessageListener messageListener)
+    {
+        this(connectionListener, messageListener, new WsClientConfig(), ForkJoinPool.commonPool(), ForkJoinPool.commonPool());
+    }
+
+
+    /**
+     * Constructs a new WsEndpoint with the specified listeners, keepalive settings and executors.
+     *
+     * @param connectionListener the listener for handling connection events
+     * @param messageListener    the listener for handling message events
+     * @param config             the client configuration holding the keepalive settings
+     * @param executor           the executor the keepalive pings are sent on
+     * @param dispatchPool       the executor the received messages are processed on
+     */
+    public WsEndpoint(ConnectionListener connectionListener, MessageListener messageListener, WsClientConfig config, Executor executor, Executor dispatchPool)
+    {
+        this(connectionListener, messageListener, config, executor, dispatchPool, null);
+    }
+
+
+    /**
+     * Constructs a new WsEndpoint with the specified listeners, keepalive settings, executors and last value cache.
+     *
+     * @param connectionListener the listener for handling connection events
+     * @param messageListener    the listener for handling message events
+     * @param config             the client configuration holding the keepalive settings
+     * @param executor           the executor the keepalive pings are sent on
+     * @param dispatchPool       the executor the received messages are processed on
+     * @param lastValueCache     the cache the last message on every subject is recorded in under the identity of the connection, or null
+     */
+    public WsEndpoint(ConnectionListener connectionListener, MessageListener messageListener, WsClientConfig config, Executor executor, Executor dispatchPool, LastValueCache lastValueCache)
     {
         super();
         this.connectionListener = connectionListener;
-        this.messageHandler = new MessageHandler(messageListener);
+        this.messageHandler = new MessageHandler(messageListener, dispatchPool);
+        this.config = config;
+        this.executor = executor;
+        this.lost = new AtomicBoolean();
+        this.lastValueCache = lastValueCache;
     }
 
 
     /**
      * Called when a WebSocket connection is established.
-     * Sets up an authenticated or anonymous connection based on the client's certificate.
+     * Sets up an authenticated or anonymous connection based on the client's certificate,
+     * which is the certificate of the peer on the router side and our own on the client side,
+     * using the wire codec of the subprotocol and the payload framings the edge router accepted.
      *
      * @param session the WebSocket session
      */
@@ -55,12 +114,11 @@ public class WsEndpoint extends WebSocketAdapter
     {
         super.onWebSocketConnect(session);
 
-        HttpServletRequest request = ((ServletUpgradeRequest) session.getUpgradeRequest()).getHttpServletRequest();
-        X509Certificate[] certs = (X509Certificate[]) request.getAttribute("javax.servlet.request.X509Certificate");
+        X509Certificate certificate = clientCertificate(session);
 
-        if (certs != null && certs.length > 0)
+        if (certificate != null)
         {
-            PKIIdentity identity = CertificateHandler.getIdentityFromCert(certs[0]);
+            PKIIdentity identity = IdentityCache.getIdentity(certificate);
             this.connection = new AuthenticatedConnection(session, identity.getMrn());
         }
 
@@ -69,9 +127,53 @@ public class WsEndpoint extends WebSocketAdapter
             this.connection = new AnonymousConnection(session);
         }
 
+        WireCodec codec = WireCodecs.forSubprotocol(session.getUpgradeResponse().getAcceptedSubProtocol());
+        Set<String> features = PayloadFeatures.parse(session.getUpgradeResponse().getHeader(PayloadFeatures.HEADER));
+        messageHandler.setCodec(codec);
+        messageHandler.setPayloadFeatures(features);
+
+        if (features.contains(PayloadFeatures.DELTA))
+            messageHandler.enableDeltaDecoding(config.getDeltaBaseCapacity());
+
+        if (lastValueCache != null)
+            messageHandler.setLastValueCache(lastValueCache, LastValueCache.scopeOf(connection));
+
+        ConnectionContext context = ConnectionContext.register(connection, session, codec, features);
+        this.statistics = context.getStatistics();
+
+        if (!config.getPingInterval().isZero())
+        {
+            this.keepalive = new Keepalive(session, context.getStatistics(), config.getPingInterval().toMillis(), config.getMaxMissedPongs(), executor, this::onDeadLink);
+            keepalive.start();
+        }
+
         connectionListener.onConnectionEstablished(connection);
     }
 
+
+    /**
+     * Called when a WebSocket receives a ping. The pong is sent by Jetty.
+     *
+     * @param payload the payload of the ping
+     */
+    @Override
+    public void onWebSocketPing(ByteBuffer payload)
+    {
+    }
+
+
+    /**
+     * Called when a WebSocket receives a pong. Records the round trip time of the keepalive ping.
+     *
+     * @param payload the payload of the pong
+     */
+    @Override
+    public void onWebSocketPong(ByteBuffer payload)
+    {
+        if (keepalive != null)
+            keepalive.pongReceived(payload);
+    }
+
     /**
      * Called when a WebSocket receives a text message. This method throws an error since binary messages are expected.
      *
@@ -110,8 +212,7 @@ public class WsEndpoint extends WebSocketAdapter
     public void onWebSocketClose(int statusCode, String reason)
     {
         super.onWebSocketClose(statusCode, reason);
-        DisconnectionReason disconnectionReason = new DisconnectionReason(reason, statusCode);
-        connectionListener.onConnectionLost(disconnectionReason);
+        reportLost(new DisconnectionReason(reason, statusCode));
     }
 
 
@@ -128,6 +229,78 @@ public class WsEndpoint extends WebSocketAdapter
     }
 
 
+    /**
+     * Called by the keepalive when the pings have gone unanswered. Reports the connection lost
+     * and drops the session without a close handshake, as the peer is not answering anyway.
+     */
+    private void onDeadLink()
+    {
+        Session session = getSession();
+        reportLost(new DisconnectionReason("No pong received for " + config.getMaxMissedPongs() + " pings", 1006));
+
+        if (session != null)
+        {
+            try
+            {
+                session.disconnect();
+            }
+
+            catch (Exception ex)
+            {
+                session.close();
+            }
+        }
+    }
+
+
+    /**
+     * Returns the certificate the client authenticated with. On a router the upgrade request carries the
+     * certificates of the peer, on a client the upgrade request is not a servlet request and the
+     * certificate is the one we presented in the TLS handshake.
+     *
+     * @param session the WebSocket session
+     * @return the client certificate, or null if the connection is anonymous
+     */
+    private static X509Certificate clientCertificate(Session session)
+    {
+        if (session.getUpgradeRequest() instanceof ServletUpgradeRequest)
+        {
+            HttpServletRequest request = ((ServletUpgradeRequest) session.getUpgradeRequest()).getHttpServletRequest();
+            X509Certificate[] certs = (X509Certificate[]) request.getAttribute("javax.servlet.request.X509Certificate");
+            return certs != null && certs.length > 0 ? certs[0] : null;
+        }
+
+        if (!(session instanceof WebSocketSession) || !(((WebSocketSession) session).getConnection() instanceof AbstractWebSocketConnection))
+            return null;
+
+        EndPoint endPoint = ((AbstractWebSocketConnection) ((WebSocketSession) session).getConnection()).getEndPoint();
+
+        if (!(endPoint instanceof SslConnection.DecryptedEndPoint)) // a plain ws:// connection.
+            return null;
+
+        Certificate[] certs = ((SslConnection.DecryptedEndPoint) endPoint).getSslConnection().getSSLEngine().getSession().getLocalCertificates();
+        return certs != null && certs.length > 0 && certs[0] instanceof X509Certificate ? (X509Certificate) certs[0] : null;
+    }
+
+
+    /**
+     * Notifies the ConnectionListener that the connection is lost, only the first time it is called.
+     *
+     * @param reason the reason for disconnection
+     */
+    private void reportLost(DisconnectionReason reason)
+    {
+        if (!lost.compareAndSet(false, true))
+            return;
+
+        if (keepalive != null)
+            keepalive.stop();
+
+        ConnectionContext.remove(connection);
+        connectionListener.onConnectionLost(reason);
+    }
+
+
     /**
      * Returns the active WebSocket connection encapsulated in a connection object.
      *
@@ -137,4 +310,15 @@ public class WsEndpoint extends WebSocketAdapter
     {
         return connection;
     }
+
+
+    /**
+     * Returns the link statistics of the connection, which stay readable after it closed.
+     *
+     * @return the link statistics, or null if the connection was never established
+     */
+    LinkStatistics getStatistics()
+    {
+        return statistics;
+    }
 }
@@ -1,20 +1,40 @@
 package MMS.Client;
 
+import MMS.Client.Codecs.WireCodecs;
+import MMS.Client.Connections.Connection;
 import MMS.Client.Connections.DisconnectionReason;
+import MMS.Client.Connections.WsCodes;
 import MMS.Client.Interfaces.ConnectionListener;
 import MMS.Client.Interfaces.MessageListener;
 import MMS.Client.ServiceDiscovery.RouterInfo;
+import MMS.Client.TLSConfiguration.HandshakeMetrics;
 import MMS.Client.TLSConfiguration.TLSConfig;
 import MMS.Client.TLSConfiguration.mTLSConfig;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.http.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.MappedByteBufferPool;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.ScheduledExecutorScheduler;
+import org.eclipse.jetty.util.thread.Scheduler;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.websocket.client.WebSocketClient;
 
 import java.net.URI;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 
 /**
@@ -22,9 +42,62 @@ import java.util.concurrent.TimeUnit;
  * with a specified router, either anonymously or with client authentication.
  * It uses ConnectionListener and MessageListener for handling the events
  * during the WebSocket connection.
+ * <p>
+ * The Jetty HttpClient and WebSocketClient are shared between all connections using the
+ * same TLS context factory. A client stack is started on first use, reference counted by
+ * its connections, and stopped once it has been unused for the configured linger time.
+ * Every client stack runs on the same executor, scheduler and buffer pool, so agents with an
+ * identity of their own, which need a client stack of their own, only add its selectors.
+ * Received messages of all connections are processed on one bounded dispatch pool, so the
+ * number of threads does not grow with the number of connections.
+ * <p>
+ * Connect timeouts adapt to the connect times measured for the TLS configuration and to the round trip
+ * time measured on the last link to the router, and a racing
+ * connect tries several routers with staggered starts, keeping the first one to complete the handshake.
  */
 public class WsHandler
 {
+    private static final Logger logger = LogManager.getLogger(WsHandler.class);
+    private static final int CONNECT_ROUND_TRIPS = 3; // TCP, TLS 1.3 and the WebSocket upgrade take one round trip each.
+
+    private final WsClientConfig config;
+    private final Map<SslContextFactory, ClientStack> stacks;
+    private final Map<String, LinkStatistics> lastLinks;
+    private final ReentrantLock stacksLock;
+    private final ExecutorService executor;
+    private final Scheduler scheduler;
+    private final ByteBufferPool bufferPool;
+    private final ThreadPoolExecutor dispatchPool;
+    private final LastValueCache lastValueCache;
+
+
+    /**
+     * Constructs a new WsHandler with the default client configuration.
+     */
+    public WsHandler()
+    {
+        this(new WsClientConfig());
+    }
+
+
+    /**
+     * Constructs a new WsHandler with the specified client configuration.
+     *
+     * @param config the configuration of the shared client stacks
+     */
+    public WsHandler(WsClientConfig config)
+    {
+        this.config = config;
+        this.stacks = new HashMap<>();
+        this.lastLinks = new ConcurrentHashMap<>();
+        this.stacksLock = new ReentrantLock();
+        this.executor = Executors.newCachedThreadPool(daemonThreads("mms-ws-"));
+        this.scheduler = createScheduler();
+        this.bufferPool = new MappedByteBufferPool(config.getBufferPoolFactor(), config.getBufferPoolMaxQueueLength());
+        this.dispatchPool = createDispatchPool(config);
+        this.lastValueCache = config.getLastValueCacheBytes() > 0 ? new LastValueCache(config.getLastValueCacheBytes()) : null;
+    }
+
 
     /**
      * Connects to the specified router anonymously using the given TLS configuration,
@@ -37,9 +110,7 @@ public class WsHandler
      */
     public void connectAnonymously(RouterInfo routerInfo, TLSConfig tlsConfig, ConnectionListener eventListener, MessageListener messageListener)
     {
-        String URI = routerInfo.getUri();
-        SslContextFactory factory = tlsConfig.getTLSContextFactory();
-        connect(URI, factory, eventListener, messageListener);
+        connect(routerInfo.getUri(), tlsConfig, eventListener, messageListener);
     }
 
 
@@ -54,49 +125,599 @@ public class WsHandler
      */
     public void connectAuthenticated(RouterInfo routerInfo, mTLSConfig tlsConfig, ConnectionListener eventListener, MessageListener messageListener)
     {
-        String URI = routerInfo.getUri();
-        SslContextFactory factory = tlsConfig.getTLSContextFactory();
-        connect(URI, factory, eventListener, messageListener);
+        connect(routerInfo.getUri(), tlsConfig, eventListener, messageListener);
+    }
+
+
+    /**
+     * Connects to the best of the given routers by racing them against each other, Happy Eyeballs style.
+     * The first routers of the list, up to the configured race width, are tried with staggered starts,
+     * where a failed attempt immediately starts the next one. The first attempt to complete the
+     * WebSocket handshake wins and is reported to the ConnectionListener, the other attempts are
+     * cancelled or closed. An mTLSConfig gives an authenticated connection.
+     *
+     * @param routers            the routers to race, best first
+     * @param tlsConfig          the TLS configuration for the connection
+     * @param connectionListener the listener for handling connection events
+     * @param messageListener    the listener for handling message events
+     * @return a future completed with the router that won the race, or exceptionally if all attempts failed
+     */
+    public CompletableFuture<RouterInfo> connectRacing(List<RouterInfo> routers, TLSConfig tlsConfig, ConnectionListener connectionListener, MessageListener messageListener)
+    {
+        List<RouterInfo> contenders = new ArrayList<>(routers.subList(0, Math.min(config.getRaceWidth(), routers.size())));
+        Race race = new Race(contenders, tlsConfig, connectionListener, messageListener);
+
+        if (contenders.isEmpty())
+            race.result.completeExceptionally(new IllegalArgumentException("No routers to connect to"));
+
+        else
+            race.startNext();
+
+        return race.result;
+    }
+
+
+    /**
+     * Stops all client stacks, regardless of whether they are still in use.
+     */
+    public void shutdown()
+    {
+        List<ClientStack> running;
+
+        stacksLock.lock();
+
+        try
+        {
+            running = new ArrayList<>(stacks.values());
+            stacks.clear();
+        }
+
+        finally
+        {
+            stacksLock.unlock();
+        }
+
+        running.forEach(ClientStack::stop);
+        executor.shutdown();
+
+        try
+        {
+            scheduler.stop();
+        }
+
+        catch (Exception ex)
+        {
+            logger.error("Failed to stop the WebSocket scheduler", ex);
+        }
+
+        dispatchPool.shutdown();
+    }
+
+
+    /**
+     * Returns the cache of the last message received on every subject, shared by all connections and scoped by their identity.
+     *
+     * @return the last value cache, or null if it is disabled
+     */
+    public LastValueCache getLastValueCache()
+    {
+        return lastValueCache;
+    }
+
+
+    /**
+     * Returns the number of received messages waiting for a dispatch thread.
+     *
+     * @return the dispatch backlog
+     */
+    public int getDispatchBacklog()
+    {
+        return dispatchPool.getQueue().size();
+    }
+
+
+    /**
+     * Returns the number of running client stacks, one for every TLS identity in use or lingering.
+     *
+     * @return the number of client stacks
+     */
+    int getStackCount()
+    {
+        stacksLock.lock();
+
+        try
+        {
+            return stacks.size();
+        }
+
+        finally
+        {
+            stacksLock.unlock();
+        }
+    }
+
+
+    /**
+     * Creates the bounded pool processing the received messages of all connections. A full queue makes the
+     * receiving thread process the message itself, slowing down reading instead of dropping messages.
+     *
+     * @param config the client configuration
+     * @return the dispatch pool
+     */
+    private static ThreadPoolExecutor createDispatchPool(WsClientConfig config)
+    {
+        return new ThreadPoolExecutor(config.getDispatchThreads(), config.getDispatchThreads(), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getDispatchQueueCapacity()), daemonThreads("mms-dispatch-"), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+
+    /**
+     * Creates the scheduler shared by all client stacks for their timeouts. It is started here, so that the
+     * Jetty clients do not stop it with their lifecycle.
+     *
+     * @return the started scheduler
+     */
+    private static Scheduler createScheduler()
+    {
+        Scheduler scheduler = new ScheduledExecutorScheduler("mms-ws-scheduler", true);
+
+        try
+        {
+            scheduler.start();
+        }
+
+        catch (Exception ex)
+        {
+            throw new IllegalStateException("Could not start the WebSocket scheduler", ex);
+        }
+
+        return scheduler;
+    }
+
+
+    /**
+     * Creates a factory of numbered daemon threads, so the pools of the handler do not keep the JVM alive.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the thread factory
+     */
+    private static ThreadFactory daemonThreads(String prefix)
+    {
+        AtomicInteger threads = new AtomicInteger();
+
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, prefix + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+
+    /**
+     * Returns the connect timeout for the given TLS configuration and router. Before any connect has been measured
+     * this is the configured connect timeout, afterwards it adapts to the average measured connect time. It is never
+     * shorter than the round trips of a connect take on the last link to the router, as measured by its keepalive.
+     *
+     * @param tlsConfig the TLS configuration
+     * @param URI       the URI of the router
+     * @return the connect timeout in milliseconds
+     */
+    private long connectTimeoutMillis(TLSConfig tlsConfig, String URI)
+    {
+        Duration average = tlsConfig.getHandshakeMetrics().getAverageConnectTime();
+        long max = config.getConnectTimeout().toMillis();
+
+        if (average.isZero())
+            return max;
+
+        long adaptive = (long) (average.toMillis() * config.getConnectTimeoutFactor());
+        LinkStatistics link = lastLinks.get(URI);
+
+        if (link != null && link.hasSample())
+            adaptive = Math.max(adaptive, CONNECT_ROUND_TRIPS * link.getSuggestedTimeout().toMillis());
+
+        return Math.max(config.getMinConnectTimeout().toMillis(), Math.min(adaptive, max));
+    }
+
+
+    /**
+     * Connects to the router at the given URI with the adaptive connect timeout. An mTLSConfig gives
+     * an authenticated connection. Used by the public connect methods, and by tests with a local router.
+     *
+     * @param URI                the URI of the router to connect to
+     * @param tlsConfig          the TLS configuration for the connection
+     * @param connectionListener the listener for handling connection events
+     * @param messageListener    the listener for handling message events
+     */
+    void connect(String URI, TLSConfig tlsConfig, ConnectionListener connectionListener, MessageListener messageListener)
+    {
+        connect(URI, tlsConfig, connectionListener, messageListener, connectTimeoutMillis(tlsConfig, URI), null);
     }
 
 
     /**
      * Establishes a WebSocket connection to the specified URI using the provided
-     * TLS context factory, ConnectionListener, and MessageListener.
+     * TLS configuration, ConnectionListener, and MessageListener.
+     * The time the connect took is recorded in the handshake metrics of the TLS configuration.
      *
      * @param URI                  the URI of the router to connect to
-     * @param tlsContextFactory    the TLS context factory for creating the TLS context
+     * @param tlsConfig            the TLS configuration providing the cached TLS context factory
      * @param connectionListener   the listener for handling connection events
      * @param messageListener      the listener for handling message events
+     * @param timeoutMillis        the time to wait for the handshake to complete
+     * @param onStarted            notified of the pending connect so it can be cancelled, may be null
      */
-    private void connect(String URI, SslContextFactory tlsContextFactory, ConnectionListener connectionListener, MessageListener messageListener)
+    private void connect(String URI, TLSConfig tlsConfig, ConnectionListener connectionListener, MessageListener messageListener, long timeoutMillis, Consumer<Future<Session>> onStarted)
     {
-        HttpClient httpClient;
-        WebSocketClient client;
+        long start = System.nanoTime();
+        SslContextFactory tlsContextFactory;
+        ClientStack stack;
 
         try
         {
-            httpClient = new HttpClient(tlsContextFactory);
-            httpClient.start();
+            tlsContextFactory = tlsConfig.getTLSContextFactory();
+            stack = acquire(tlsContextFactory, tlsConfig.getHandshakeMetrics());
+        }
 
-            client = new WebSocketClient(httpClient);
-            client.start();
+        catch (Exception ex)
+        {
+            DisconnectionReason reason = new DisconnectionReason("Could not start WebSocket client: " + ex.getMessage(), 1006);
+            connectionListener.onConnectError(reason);
+            return;
+        }
+
+        ConnectionListener listener = new ReleasingListener(connectionListener, tlsContextFactory, stack);
+        Future<Session> future = null;
 
+        try
+        {
             java.net.URI destination = new URI(URI);
 
             ClientUpgradeRequest request = new ClientUpgradeRequest();
-            request.setHeader("Sec-WebSocket-Protocol", "MMTP/1.0");
+            request.setSubProtocols(WireCodecs.offerable(config.getSubprotocols()));
+            request.setHeader(PayloadFeatures.HEADER, PayloadFeatures.offer(config));
+
+            WsEndpoint wsEndpoint = new WsEndpoint(listener, messageListener, config, executor, dispatchPool, lastValueCache);
 
-            WsEndpoint wsEndpoint = new WsEndpoint(connectionListener, messageListener);
+            future = stack.client.connect(wsEndpoint, destination, request);
 
-            Future<Session> future = client.connect(wsEndpoint, destination, request);
-            future.get(5, TimeUnit.SECONDS);
+            if (onStarted != null)
+                onStarted.accept(future);
+
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            tlsConfig.getHandshakeMetrics().recordConnect(System.nanoTime() - start);
+
+            LinkStatistics statistics = wsEndpoint.getStatistics();
+
+            if (statistics != null)
+                lastLinks.put(URI, statistics);
         }
 
         catch (Exception ex)
         {
+            if (future != null)
+                future.cancel(true);
+
             DisconnectionReason reason = new DisconnectionReason("Could not establish WebSocket connection to edge router: " + ex.getMessage(), 1006);
-            connectionListener.onConnectError(reason);
+            listener.onConnectError(reason);
+        }
+    }
+
+
+    /**
+     * Returns the running client stack for the given TLS context factory, starting a new one if needed,
+     * and registers one more user of it.
+     *
+     * @param tlsContextFactory the TLS context factory of the stack
+     * @param handshakeMetrics  the metrics notified of the TLS handshakes made by the stack
+     * @return the client stack
+     * @throws Exception if the stack could not be started
+     */
+    private ClientStack acquire(SslContextFactory tlsContextFactory, HandshakeMetrics handshakeMetrics) throws Exception
+    {
+        stacksLock.lock();
+
+        try
+        {
+            if (!tlsContextFactory.isRunning())
+                throw new IllegalStateException("The TLS configuration changed while connecting");
+
+            ClientStack stack = stacks.get(tlsContextFactory);
+
+            if (stack == null)
+            {
+                stack = new ClientStack(tlsContextFactory, handshakeMetrics, config, executor, scheduler, bufferPool);
+                stacks.put(tlsContextFactory, stack);
+            }
+
+            stack.references++;
+            return stack;
+        }
+
+        finally
+        {
+            stacksLock.unlock();
+        }
+    }
+
+
+    /**
+     * Unregisters a user of the given client stack. When the stack is no longer used,
+     * it is stopped after the linger time unless it has been acquired again. A stack whose
+     * TLS context factory was stopped by a configuration change is stopped right away,
+     * as it can no longer be acquired.
+     *
+     * @param tlsContextFactory the TLS context factory of the stack
+     * @param stack             the client stack
+     */
+    private void release(SslContextFactory tlsContextFactory, ClientStack stack)
+    {
+        boolean stale;
+        stacksLock.lock();
+
+        try
+        {
+            if (--stack.references > 0)
+                return;
+
+            stale = !tlsContextFactory.isRunning() && stacks.remove(tlsContextFactory, stack);
+        }
+
+        finally
+        {
+            stacksLock.unlock();
+        }
+
+        if (stale)
+        {
+            stack.stop();
+            return;
+        }
+
+        CompletableFuture.delayedExecutor(config.getStackLinger().toMillis(), TimeUnit.MILLISECONDS).execute(() ->
+        {
+            stacksLock.lock();
+
+            try
+            {
+                if (stack.references > 0 || stacks.get(tlsContextFactory) != stack)
+                    return;
+
+                stacks.remove(tlsContextFactory);
+            }
+
+            finally
+            {
+                stacksLock.unlock();
+            }
+
+            stack.stop();
+        });
+    }
+
+
+    /**
+     * A started HttpClient and WebSocketClient pair, together with the number of connections using it.
+     * The HttpClient has selectors of its own, but runs on the executor, scheduler and buffer pool of the handler.
+     */
+    private static class ClientStack
+    {
+        private final HttpClient httpClient;
+        private final WebSocketClient client;
+        private int references;
+
+        private ClientStack(SslContextFactory tlsContextFactory, HandshakeMetrics handshakeMetrics, WsClientConfig config, Executor executor, Scheduler scheduler, ByteBufferPool bufferPool) throws Exception
+        {
+            httpClient = new HttpClient(new HttpClientTransportOverHTTP(config.getSelectors()), tlsContextFactory);
+            httpClient.setExecutor(executor);
+            httpClient.setScheduler(scheduler);
+            httpClient.setByteBufferPool(bufferPool);
+            httpClient.addBean(handshakeMetrics);
+            httpClient.start();
+
+            client = new WebSocketClient(httpClient);
+            client.getPolicy().setMaxBinaryMessageSize(config.getMaxBinaryMessageSize());
+            client.getPolicy().setMaxTextMessageSize(config.getMaxTextMessageSize());
+            client.setMaxIdleTimeout(config.getIdleTimeout().toMillis());
+
+            try
+            {
+                client.start();
+            }
+
+            catch (Exception ex)
+            {
+                httpClient.stop();
+                throw ex;
+            }
+        }
+
+        private void stop()
+        {
+            try
+            {
+                client.stop();
+                httpClient.stop();
+            }
+
+            catch (Exception ex)
+            {
+                logger.error("Failed to stop WebSocket client", ex);
+            }
+        }
+    }
+
+
+    /**
+     * A racing connect to several routers, of which only the winner is reported to the listener.
+     */
+    private class Race
+    {
+        private final List<RouterInfo> contenders;
+        private final TLSConfig tlsConfig;
+        private final ConnectionListener delegate;
+        private final MessageListener messageListener;
+        private final AtomicInteger next;
+        private final AtomicInteger failures;
+        private final AtomicReference<Contender> winner;
+        private final List<Contender> started;
+        private final CompletableFuture<RouterInfo> result;
+
+        private Race(List<RouterInfo> contenders, TLSConfig tlsConfig, ConnectionListener delegate, MessageListener messageListener)
+        {
+            this.contenders = contenders;
+            this.tlsConfig = tlsConfig;
+            this.delegate = delegate;
+            this.messageListener = messageListener;
+            this.next = new AtomicInteger();
+            this.failures = new AtomicInteger();
+            this.winner = new AtomicReference<>();
+            this.started = new CopyOnWriteArrayList<>();
+            this.result = new CompletableFuture<>();
+        }
+
+        /**
+         * Starts the next attempt, if any is left and the race is not decided,
+         * and schedules the one after it when the stagger delay has passed.
+         */
+        private void startNext()
+        {
+            if (winner.get() != null)
+                return;
+
+            int index = next.getAndIncrement();
+
+            if (index >= contenders.size())
+                return;
+
+            RouterInfo router = contenders.get(index);
+            Contender contender = new Contender(this, router);
+            started.add(contender);
+            long timeoutMillis = connectTimeoutMillis(tlsConfig, router.getUri());
+            executor.execute(() -> connect(router.getUri(), tlsConfig, contender, messageListener, timeoutMillis, future -> contender.future = future));
+
+            if (index + 1 < contenders.size())
+                CompletableFuture.delayedExecutor(config.getRaceStagger().toMillis(), TimeUnit.MILLISECONDS, executor).execute(this::startNext);
+        }
+
+        /**
+         * Cancels every attempt but the winning one.
+         */
+        private void cancelOthers(Contender won)
+        {
+            for (Contender contender : started)
+            {
+                Future<Session> future = contender.future;
+
+                if (contender != won && future != null)
+                    future.cancel(true);
+            }
+        }
+    }
+
+
+    /**
+     * The ConnectionListener of a single attempt in a race. Only the winner's events are passed on,
+     * a connection that completes after the race was decided is closed right away.
+     */
+    private static class Contender implements ConnectionListener
+    {
+        private final Race race;
+        private final RouterInfo router;
+        private volatile Future<Session> future;
+
+        private Contender(Race race, RouterInfo router)
+        {
+            this.race = race;
+            this.router = router;
+        }
+
+        @Override
+        public void onConnectionEstablished(Connection connection)
+        {
+            if (race.winner.compareAndSet(null, this))
+            {
+                logger.info("Router " + router.getUri() + " won the connect race.");
+                race.cancelOthers(this);
+                race.delegate.onConnectionEstablished(connection);
+                race.result.complete(router);
+            }
+
+            else
+                connection.close(WsCodes.NORMAL_CLOSURE, "Lost the connect race.");
+        }
+
+        @Override
+        public void onConnectionLost(DisconnectionReason reason)
+        {
+            if (race.winner.get() == this)
+                race.delegate.onConnectionLost(reason);
+        }
+
+        @Override
+        public void onConnectError(DisconnectionReason reason)
+        {
+            if (race.winner.get() != null)
+                return;
+
+            logger.error("Racing connect to " + router.getUri() + " failed. Reason: " + reason.getReason());
+
+            if (race.failures.incrementAndGet() == race.contenders.size())
+            {
+                DisconnectionReason failure = new DisconnectionReason("Could not establish a connection to any of " + race.contenders.size() + " edge routers", 1006);
+                race.delegate.onConnectError(failure);
+                race.result.completeExceptionally(new IllegalStateException(failure.getReason()));
+            }
+
+            else
+                race.startNext();
+        }
+    }
+
+
+    /**
+     * ConnectionListener decorator releasing the client stack once the connection has ended.
+     */
+    private class ReleasingListener implements ConnectionListener
+    {
+        private final ConnectionListener delegate;
+        private final SslContextFactory tlsContextFactory;
+        private final ClientStack stack;
+        private final AtomicBoolean released;
+
+        private ReleasingListener(ConnectionListener delegate, SslContextFactory tlsContextFactory, ClientStack stack)
+        {
+            this.delegate = delegate;
+            this.tlsContextFactory = tlsContextFactory;
+            this.stack = stack;
+            this.released = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void onConnectionEstablished(Connection connection)
+        {
+            delegate.onConnectionEstablished(connection);
+        }
+
+        @Override
+        public void onConnectionLost(DisconnectionReason reason)
+        {
+            releaseOnce();
+            delegate.onConnectionLost(reason);
+        }
+
+        @Override
+        public void onConnectError(DisconnectionReason reason)
+        {
+            releaseOnce();
+            delegate.onConnectError(reason);
+        }
+
+        private void releaseOnce()
+        {
+            if (released.compareAndSet(false, true))
+                release(tlsContextFactory, stack);
         }
     }
 }
@@ -0,0 +1,233 @@
+package MMS.Misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * GeoIndex finds the geographic subscriptions a geo-tagged message matches. Subscribed cells are kept
+ * per subject in a prefix trie of their geohash, one level per character, so a message is matched by walking
+ * the characters of its geohash and collecting the members of every node on the way. A match costs at most
+ * one step per character of the geohash, however many subscriptions overlap the position.
+ * <p>
+ * Matching does not lock, changes are serialized so that pruning a node never races with adding below it.
+ *
+ * @param <M> the type of the members, such as connections, agents or interests
+ */
+public class GeoIndex<M>
+{
+    private final Map<String, Node<M>> roots;
+    private final ReentrantLock lock;
+
+
+    /**
+     * Constructs a new, empty GeoIndex.
+     */
+    public GeoIndex()
+    {
+        this.roots = new ConcurrentHashMap<>();
+        this.lock = new ReentrantLock();
+    }
+
+
+    /**
+     * Adds a member for a cell on a subject.
+     *
+     * @param subject the subject
+     * @param cell    the geohash of the cell
+     * @param member  the member
+     * @return true if the member was added, false if it was there already
+     */
+    public boolean add(String subject, String cell, M member)
+    {
+        lock.lock();
+
+        try
+        {
+            Node<M> node = roots.computeIfAbsent(subject, key -> new Node<>());
+
+            for (int i = 0; i < cell.length(); i++)
+                node = node.children.computeIfAbsent(cell.charAt(i), key -> new Node<>());
+
+            return node.members.add(member);
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Removes a member for a cell on a subject, pruning the nodes left without members.
+     *
+     * @param subject the subject
+     * @param cell    the geohash of the cell
+     * @param member  the member
+     * @return true if the member was removed
+     */
+    public boolean remove(String subject, String cell, M member)
+    {
+        lock.lock();
+
+        try
+        {
+            Node<M> root = roots.get(subject);
+
+            if (root == null || !remove(root, cell, 0, member))
+                return false;
+
+            if (root.isEmpty())
+                roots.remove(subject);
+
+            return true;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Returns true if any cell is subscribed on the subject.
+     *
+     * @param subject the subject
+     * @return true if the subject has geographic subscriptions
+     */
+    public boolean contains(String subject)
+    {
+        return roots.containsKey(subject);
+    }
+
+
+    /**
+     * Returns the members of all cells on the subject that contain the geohash, without duplicates.
+     *
+     * @param subject the subject of the message
+     * @param hash    the geohash of the position of the message
+     * @return the matching members, empty if there are none
+     */
+    public List<M> match(String subject, String hash)
+    {
+        Node<M> node = roots.get(subject);
+
+        if (node == null)
+            return Collections.emptyList();
+
+        Set<M> matched = new LinkedHashSet<>();
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            node = node.children.get(hash.charAt(i));
+
+            if (node == null)
+                break;
+
+            matched.addAll(node.members);
+        }
+
+        return new ArrayList<>(matched);
+    }
+
+
+    /**
+     * Returns true if any cell on the subject contains the geohash.
+     *
+     * @param subject the subject of the message
+     * @param hash    the geohash of the position of the message
+     * @return true if the message matches a subscription
+     */
+    public boolean matchesAny(String subject, String hash)
+    {
+        Node<M> node = roots.get(subject);
+
+        if (node == null)
+            return false;
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            node = node.children.get(hash.charAt(i));
+
+            if (node == null)
+                return false;
+
+            if (!node.members.isEmpty())
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if the member has a cell on the subject containing the geohash.
+     *
+     * @param subject the subject of the message
+     * @param hash    the geohash of the position of the message
+     * @param member  the member
+     * @return true if the member matches
+     */
+    public boolean matches(String subject, String hash, M member)
+    {
+        Node<M> node = roots.get(subject);
+
+        if (node == null)
+            return false;
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            node = node.children.get(hash.charAt(i));
+
+            if (node == null)
+                return false;
+
+            if (node.members.contains(member))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    private boolean remove(Node<M> node, String cell, int depth, M member)
+    {
+        if (depth == cell.length())
+            return node.members.remove(member);
+
+        Node<M> child = node.children.get(cell.charAt(depth));
+
+        if (child == null || !remove(child, cell, depth + 1, member))
+            return false;
+
+        if (child.isEmpty())
+            node.children.remove(cell.charAt(depth));
+
+        return true;
+    }
+
+
+    private static class Node<M>
+    {
+        private final Map<Character, Node<M>> children;
+        private final Set<M> members;
+
+        private Node()
+        {
+            this.children = new ConcurrentHashMap<>();
+            this.members = ConcurrentHashMap.newKeySet();
+        }
+
+        private boolean isEmpty()
+        {
+            return children.isEmpty() && members.isEmpty();
+        }
+    }
+}
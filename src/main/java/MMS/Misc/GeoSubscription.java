@@ -0,0 +1,63 @@
+package MMS.Misc;
+
+/**
+ * GeoSubscription builds and reads geo-tagged subjects. A geographic subscription covers its area with
+ * geohash cells and subscribes to subject@geo:cell for each of them. A geo-tagged message is published on
+ * subject@geo:hash with the full precision geohash of its position, and matches every subscription whose
+ * cell prefixes that geohash, which a router supporting geographic subscriptions looks up in a GeoIndex.
+ */
+public class GeoSubscription
+{
+    public static final String SEPARATOR = "@geo:";
+    public static final int TAG_PRECISION = 9;
+
+
+    /**
+     * Returns the geo-tagged subject of a subject and a geohash.
+     *
+     * @param subject the subject
+     * @param hash    the geohash of a cell or position
+     * @return the geo-tagged subject
+     */
+    public static String format(String subject, String hash)
+    {
+        return subject + SEPARATOR + hash;
+    }
+
+
+    /**
+     * Returns true if the subject is geo-tagged with a valid geohash.
+     *
+     * @param subject the subject
+     * @return true if the subject is geo-tagged
+     */
+    public static boolean isGeo(String subject)
+    {
+        int separator = subject.lastIndexOf(SEPARATOR);
+        return separator > 0 && Geohash.isValid(subject.substring(separator + SEPARATOR.length()));
+    }
+
+
+    /**
+     * Returns the subject of a geo-tagged subject, which is the subject itself if it is not geo-tagged.
+     *
+     * @param subject the subject
+     * @return the subject without its tag
+     */
+    public static String subject(String subject)
+    {
+        return isGeo(subject) ? subject.substring(0, subject.lastIndexOf(SEPARATOR)) : subject;
+    }
+
+
+    /**
+     * Returns the geohash of a geo-tagged subject.
+     *
+     * @param subject the subject
+     * @return the geohash, or null if the subject is not geo-tagged
+     */
+    public static String hash(String subject)
+    {
+        return isGeo(subject) ? subject.substring(subject.lastIndexOf(SEPARATOR) + SEPARATOR.length()) : null;
+    }
+}
@@ -0,0 +1,374 @@
+package MMS.Misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Geohash encodes positions as geohashes and covers areas with geohash cells. A geohash interleaves the
+ * bits of longitude and latitude, longitude first, and writes them five at a time in base 32, so every
+ * character splits a cell into 32 smaller ones and a position lies in every cell whose geohash prefixes its own.
+ */
+public class Geohash
+{
+    public static final int MAX_PRECISION = 12;
+
+    private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+
+    /**
+     * Returns the geohash of a position.
+     *
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     * @param precision the number of characters, 1 to 12
+     * @return the geohash
+     * @throws IllegalArgumentException if the position or precision is not valid
+     */
+    public static String encode(double latitude, double longitude, int precision)
+    {
+        checkPrecision(precision);
+        checkPosition(latitude, longitude);
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        return fromIndices(index(longitude, -180, 360, lonBits), index(latitude, -90, 180, latBits), precision);
+    }
+
+
+    /**
+     * Returns true if the string is a valid geohash of 1 to 12 characters.
+     *
+     * @param hash the string
+     * @return true if it is a geohash
+     */
+    public static boolean isValid(String hash)
+    {
+        if (hash == null || hash.isEmpty() || hash.length() > MAX_PRECISION)
+            return false;
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            if (BASE32.indexOf(hash.charAt(i)) < 0)
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns the bounds of a geohash cell.
+     *
+     * @param hash the geohash
+     * @return the bounds as minimum latitude, minimum longitude, maximum latitude, maximum longitude
+     */
+    public static double[] bounds(String hash)
+    {
+        double minLat = -90, maxLat = 90, minLon = -180, maxLon = 180;
+        boolean lon = true;
+
+        for (int i = 0; i < hash.length(); i++)
+        {
+            int value = BASE32.indexOf(hash.charAt(i));
+
+            for (int bit = 4; bit >= 0; bit--)
+            {
+                boolean high = ((value >> bit) & 1) == 1;
+
+                if (lon)
+                {
+                    double mid = (minLon + maxLon) / 2;
+
+                    if (high)
+                        minLon = mid;
+
+                    else
+                        maxLon = mid;
+                }
+
+                else
+                {
+                    double mid = (minLat + maxLat) / 2;
+
+                    if (high)
+                        minLat = mid;
+
+                    else
+                        maxLat = mid;
+                }
+
+                lon = !lon;
+            }
+        }
+
+        return new double[]{minLat, minLon, maxLat, maxLon};
+    }
+
+
+    /**
+     * Covers a bounding box with geohash cells of the finest precision that needs at most the given number of cells.
+     * A box whose western edge is east of its eastern edge crosses the antimeridian.
+     *
+     * @param minLatitude  the southern edge in degrees
+     * @param minLongitude the western edge in degrees
+     * @param maxLatitude  the northern edge in degrees
+     * @param maxLongitude the eastern edge in degrees
+     * @param maxCells     the maximum number of cells
+     * @return the geohashes of the covering cells
+     * @throws IllegalArgumentException if a corner is not a valid position or the southern edge is north of the northern edge
+     */
+    public static List<String> cover(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int maxCells)
+    {
+        checkPosition(minLatitude, minLongitude);
+        checkPosition(maxLatitude, maxLongitude);
+
+        if (minLatitude > maxLatitude)
+            throw new IllegalArgumentException("The southern edge of the box must not be north of its northern edge");
+
+        int precision = 1;
+
+        while (precision < MAX_PRECISION && cellCount(minLatitude, minLongitude, maxLatitude, maxLongitude, precision + 1) <= maxCells)
+            precision++;
+
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        long x0 = index(minLongitude, -180, 360, lonBits);
+        long columns = columns(minLongitude, maxLongitude, lonBits);
+        long y0 = index(minLatitude, -90, 180, latBits);
+        long y1 = index(maxLatitude, -90, 180, latBits);
+        List<String> cells = new ArrayList<>();
+
+        for (long y = y0; y <= y1; y++)
+        {
+            for (long column = 0; column < columns; column++)
+                cells.add(fromIndices((x0 + column) % (1L << lonBits), y, precision));
+        }
+
+        return cells;
+    }
+
+
+    /**
+     * Covers a polygon with geohash cells, the cells covering its bounding box that it overlaps. Every edge
+     * takes the shorter way around the globe, so a polygon may cross the antimeridian but not enclose a pole.
+     *
+     * @param latitudes  the latitudes of the vertices in degrees
+     * @param longitudes the longitudes of the vertices in degrees
+     * @param maxCells   the maximum number of cells covering the bounding box
+     * @return the geohashes of the covering cells
+     * @throws IllegalArgumentException if a vertex is not a valid position, there are fewer than three, or the polygon encloses a pole
+     */
+    public static List<String> cover(double[] latitudes, double[] longitudes, int maxCells)
+    {
+        if (latitudes.length != longitudes.length || latitudes.length < 3)
+            throw new IllegalArgumentException("A polygon needs at least three vertices");
+
+        int n = latitudes.length;
+        double[] unwrapped = new double[n]; // longitudes continued past +-180 where an edge crosses the antimeridian.
+        double minLat = 90, maxLat = -90;
+
+        for (int i = 0; i < n; i++)
+        {
+            checkPosition(latitudes[i], longitudes[i]);
+            unwrapped[i] = i == 0 ? longitudes[0] : unwrapped[i - 1] + shortestStep(longitudes[i - 1], longitudes[i]);
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+        }
+
+        if (Math.abs(unwrapped[n - 1] + shortestStep(longitudes[n - 1], longitudes[0]) - unwrapped[0]) > 180)
+            throw new IllegalArgumentException("A polygon must not enclose a pole");
+
+        double minLon = Arrays.stream(unwrapped).min().getAsDouble();
+        double shift = minLon < -180 ? 360 : 0;
+
+        for (int i = 0; i < n; i++)
+            unwrapped[i] += shift;
+
+        minLon += shift;
+        double maxLon = Arrays.stream(unwrapped).max().getAsDouble();
+
+        if (maxLon - minLon >= 360)
+            throw new IllegalArgumentException("A polygon must not go all the way around the globe");
+
+        List<String> cells = new ArrayList<>();
+
+        for (String cell : cover(minLat, minLon, maxLat, maxLon > 180 ? maxLon - 360 : maxLon, maxCells))
+        {
+            double[] bounds = bounds(cell);
+
+            if (bounds[3] <= minLon) // east of the antimeridian, so continued past 180 like the polygon.
+            {
+                bounds[1] += 360;
+                bounds[3] += 360;
+            }
+
+            if (overlaps(bounds, latitudes, unwrapped))
+                cells.add(cell);
+        }
+
+        return cells;
+    }
+
+
+    private static void checkPrecision(int precision)
+    {
+        if (precision < 1 || precision > MAX_PRECISION)
+            throw new IllegalArgumentException("Precision must be between 1 and " + MAX_PRECISION);
+    }
+
+
+    private static void checkPosition(double latitude, double longitude)
+    {
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180))
+            throw new IllegalArgumentException("Invalid position: " + latitude + ", " + longitude);
+    }
+
+
+    private static long cellCount(double minLat, double minLon, double maxLat, double maxLon, int precision)
+    {
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        long rows = index(maxLat, -90, 180, latBits) - index(minLat, -90, 180, latBits) + 1;
+        return columns(minLon, maxLon, lonBits) * rows;
+    }
+
+
+    /**
+     * Returns the number of cell columns from the western to the eastern edge, going east across the antimeridian if needed.
+     */
+    private static long columns(double minLon, double maxLon, int lonBits)
+    {
+        long cells = 1L << lonBits;
+        long columns = index(maxLon, -180, 360, lonBits) - index(minLon, -180, 360, lonBits) + 1;
+        return minLon > maxLon ? Math.min(cells, columns + cells) : columns;
+    }
+
+
+    /**
+     * Returns the change in longitude from one longitude to another the shorter way around the globe.
+     */
+    private static double shortestStep(double from, double to)
+    {
+        double step = to - from;
+
+        if (step > 180)
+            return step - 360;
+
+        if (step < -180)
+            return step + 360;
+
+        return step;
+    }
+
+
+    /**
+     * Returns the index of the cell a coordinate falls in, of the 2^bits cells the range is split into.
+     */
+    private static long index(double value, double min, double range, int bits)
+    {
+        long cells = 1L << bits;
+        long index = (long) Math.floor((value - min) / range * cells);
+        return Math.max(0, Math.min(cells - 1, index));
+    }
+
+
+    /**
+     * Builds the geohash of the cell with the given longitude and latitude indices.
+     */
+    private static String fromIndices(long x, long y, int precision)
+    {
+        int lonBits = (5 * precision + 1) / 2;
+        int latBits = 5 * precision / 2;
+        char[] hash = new char[precision];
+        int lonBit = lonBits - 1;
+        int latBit = latBits - 1;
+        boolean lon = true;
+
+        for (int i = 0; i < precision; i++)
+        {
+            int value = 0;
+
+            for (int bit = 0; bit < 5; bit++)
+            {
+                long bitValue = lon ? (x >> lonBit--) & 1 : (y >> latBit--) & 1;
+                value = (value << 1) | (int) bitValue;
+                lon = !lon;
+            }
+
+            hash[i] = BASE32.charAt(value);
+        }
+
+        return new String(hash);
+    }
+
+
+    /**
+     * Returns true if the cell and the polygon overlap: a corner of the cell lies inside the polygon,
+     * a vertex of the polygon lies inside the cell, or an edge of the polygon crosses the cell.
+     */
+    private static boolean overlaps(double[] cell, double[] latitudes, double[] longitudes)
+    {
+        double[][] corners = {{cell[0], cell[1]}, {cell[0], cell[3]}, {cell[2], cell[3]}, {cell[2], cell[1]}};
+
+        for (double[] corner : corners)
+        {
+            if (contains(latitudes, longitudes, corner[0], corner[1]))
+                return true;
+        }
+
+        int n = latitudes.length;
+
+        for (int i = 0; i < n; i++)
+        {
+            if (latitudes[i] >= cell[0] && latitudes[i] <= cell[2] && longitudes[i] >= cell[1] && longitudes[i] <= cell[3])
+                return true;
+
+            int j = (i + 1) % n;
+
+            for (int k = 0; k < 4; k++)
+            {
+                double[] a = corners[k];
+                double[] b = corners[(k + 1) % 4];
+
+                if (crosses(latitudes[i], longitudes[i], latitudes[j], longitudes[j], a[0], a[1], b[0], b[1]))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns true if the point lies inside the polygon, by counting the edges a ray from the point crosses.
+     */
+    private static boolean contains(double[] latitudes, double[] longitudes, double latitude, double longitude)
+    {
+        boolean inside = false;
+
+        for (int i = 0, j = latitudes.length - 1; i < latitudes.length; j = i++)
+        {
+            if ((latitudes[i] > latitude) != (latitudes[j] > latitude)
+                    && longitude < (longitudes[j] - longitudes[i]) * (latitude - latitudes[i]) / (latitudes[j] - latitudes[i]) + longitudes[i])
+                inside = !inside;
+        }
+
+        return inside;
+    }
+
+
+    private static boolean crosses(double p1y, double p1x, double p2y, double p2x, double q1y, double q1x, double q2y, double q2x)
+    {
+        double d1 = orientation(q1y, q1x, q2y, q2x, p1y, p1x);
+        double d2 = orientation(q1y, q1x, q2y, q2x, p2y, p2x);
+        double d3 = orientation(p1y, p1x, p2y, p2x, q1y, q1x);
+        double d4 = orientation(p1y, p1x, p2y, p2x, q2y, q2x);
+        return ((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) && ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0));
+    }
+
+
+    private static double orientation(double ay, double ax, double by, double bx, double cy, double cx)
+    {
+        return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+    }
+}
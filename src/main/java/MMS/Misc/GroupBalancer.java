@@ -0,0 +1,182 @@
+package MMS.Misc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * GroupBalancer picks the member of each consumer group a message on a subject is delivered to.
+ * It is what a router does for shared subscriptions, and is used in the client wherever several
+ * consumers sit behind a single subscription at the router, such as the agents of a shared link.
+ * <p>
+ * Members are picked in turn, or by a hash of the sender, which keeps the messages of one sender
+ * with one member, and in order, for as long as the group does not change.
+ *
+ * @param <M> the type of the members, such as connections or agents
+ */
+public class GroupBalancer<M>
+{
+    /**
+     * How a member of a group is picked for a message.
+     */
+    public enum Strategy
+    {
+        ROUND_ROBIN,
+        SENDER_HASH
+    }
+
+    private final Strategy strategy;
+    private final Map<String, Map<String, Group<M>>> groupsBySubject;
+
+
+    /**
+     * Constructs a new GroupBalancer.
+     *
+     * @param strategy how members are picked
+     */
+    public GroupBalancer(Strategy strategy)
+    {
+        this.strategy = strategy;
+        this.groupsBySubject = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Adds a member to a group on a subject.
+     *
+     * @param group   the name of the group
+     * @param subject the subject
+     * @param member  the member
+     * @return true if the member was added, false if it was a member already
+     */
+    public boolean join(String group, String subject, M member)
+    {
+        boolean[] added = new boolean[1];
+
+        groupsBySubject.compute(subject, (key, groups) ->
+        {
+            Map<String, Group<M>> current = groups != null ? groups : new ConcurrentHashMap<>();
+
+            current.compute(group, (name, members) ->
+            {
+                Group<M> joined = members != null ? members : new Group<>();
+                added[0] = joined.members.addIfAbsent(member);
+                return joined;
+            });
+
+            return current;
+        });
+
+        return added[0];
+    }
+
+
+    /**
+     * Removes a member from a group on a subject. Groups and subjects without members are dropped.
+     *
+     * @param group   the name of the group
+     * @param subject the subject
+     * @param member  the member
+     * @return true if the member was removed
+     */
+    public boolean leave(String group, String subject, M member)
+    {
+        boolean[] removed = new boolean[1];
+
+        groupsBySubject.computeIfPresent(subject, (key, groups) ->
+        {
+            groups.computeIfPresent(group, (name, members) ->
+            {
+                removed[0] = members.members.remove(member);
+                return members.members.isEmpty() ? null : members;
+            });
+
+            return groups.isEmpty() ? null : groups;
+        });
+
+        return removed[0];
+    }
+
+
+    /**
+     * Returns true if the member belongs to any group on the subject.
+     *
+     * @param subject the subject
+     * @param member  the member
+     * @return true if the member is in a group on the subject
+     */
+    public boolean isMember(String subject, M member)
+    {
+        Map<String, Group<M>> groups = groupsBySubject.get(subject);
+
+        if (groups == null)
+            return false;
+
+        for (Group<M> members : groups.values())
+        {
+            if (members.members.contains(member))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Picks the members a message is delivered to, one of every group on its subject.
+     *
+     * @param subject the subject of the message
+     * @param sender  the sender of the message
+     * @return the picked members, empty if no group is on the subject
+     */
+    public List<M> select(String subject, String sender)
+    {
+        Map<String, Group<M>> groups = groupsBySubject.get(subject);
+
+        if (groups == null)
+            return Collections.emptyList();
+
+        List<M> selected = new ArrayList<>(groups.size());
+
+        for (Group<M> members : groups.values())
+        {
+            M member = members.pick(strategy, sender);
+
+            if (member != null)
+                selected.add(member);
+        }
+
+        return selected;
+    }
+
+
+    private static class Group<M>
+    {
+        private final CopyOnWriteArrayList<M> members;
+        private final AtomicInteger next;
+
+        private Group()
+        {
+            this.members = new CopyOnWriteArrayList<>();
+            this.next = new AtomicInteger();
+        }
+
+        private M pick(Strategy strategy, String sender)
+        {
+            Object[] current = members.toArray(); // a stable snapshot, members may leave meanwhile.
+
+            if (current.length == 0)
+                return null;
+
+            int index = strategy == Strategy.SENDER_HASH ? sender.hashCode() : next.getAndIncrement();
+
+            @SuppressWarnings("unchecked")
+            M member = (M) current[Math.floorMod(index, current.length)];
+            return member;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package MMS.Misc;
+
+/**
+ * SharedSubscription builds and reads the interests of shared subscriptions. A shared subscription joins a
+ * consumer group on a subject, written as $share/group/subject in the subject list of a Register message.
+ * A router supporting shared subscriptions delivers every message on the subject to one member of each group,
+ * instead of to every subscriber.
+ */
+public class SharedSubscription
+{
+    public static final String PREFIX = "$share/";
+    public static final int MAX_GROUP_LENGTH = 32;
+
+
+    /**
+     * Returns the interest joining the given group on the subject.
+     *
+     * @param group   the name of the consumer group
+     * @param subject the subject
+     * @return the interest of the shared subscription
+     */
+    public static String format(String group, String subject)
+    {
+        return PREFIX + group + '/' + subject;
+    }
+
+
+    /**
+     * Returns true if the interest is a shared subscription.
+     *
+     * @param interest the interest
+     * @return true if the interest joins a consumer group
+     */
+    public static boolean isShared(String interest)
+    {
+        return interest.startsWith(PREFIX) && interest.indexOf('/', PREFIX.length()) > PREFIX.length();
+    }
+
+
+    /**
+     * Returns the consumer group of a shared subscription.
+     *
+     * @param interest the interest
+     * @return the group, or null if the interest is not a shared subscription
+     */
+    public static String group(String interest)
+    {
+        return isShared(interest) ? interest.substring(PREFIX.length(), interest.indexOf('/', PREFIX.length())) : null;
+    }
+
+
+    /**
+     * Returns the subject of an interest, which is the interest itself if it is not a shared subscription.
+     *
+     * @param interest the interest
+     * @return the subject
+     */
+    public static String subject(String interest)
+    {
+        return isShared(interest) ? interest.substring(interest.indexOf('/', PREFIX.length()) + 1) : interest;
+    }
+
+
+    /**
+     * Validates the name of a consumer group, which must be 1 to 32 characters without slashes or whitespace.
+     *
+     * @param group the name of the group
+     * @return true if the name is valid
+     */
+    public static boolean validateGroup(String group)
+    {
+        if (group == null || group.isEmpty() || group.length() > MAX_GROUP_LENGTH)
+            return false;
+
+        for (int i = 0; i < group.length(); i++)
+        {
+            char c = group.charAt(i);
+
+            if (c == '/' || Character.isWhitespace(c))
+                return false;
+        }
+
+        return true;
+    }
+}
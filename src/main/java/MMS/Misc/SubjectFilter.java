@@ -0,0 +1,270 @@
+package MMS.Misc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SubjectFilter is a compact content filter attached to a subscription, so that only a slice of a busy
+ * subject is delivered. A filtered subscription is written as subject|filter in the subject list of a
+ * Register message, where the filter is a list of clauses separated by semicolons, all of which must hold:
+ * <pre>
+ *   sender^=urn:mrn:prefix    the sender MRN starts with the prefix
+ *   payload[4]=0a1b           the payload holds the hex bytes at the offset
+ *   rate&lt;=5                  at most that many messages per second are delivered
+ * </pre>
+ * A router supporting filters evaluates them before sending, and the client evaluates them again on receipt,
+ * which also covers routers that do not support them.
+ */
+public class SubjectFilter
+{
+    public static final char SEPARATOR = '|';
+    public static final int MAX_FILTER_LENGTH = 256;
+
+    private static final String SENDER_PREFIX = "sender^=";
+    private static final String PAYLOAD = "payload[";
+    private static final String RATE = "rate<=";
+
+    private final String expression;
+    private final String senderPrefix;
+    private final int[] payloadOffsets;
+    private final byte[][] payloadValues;
+    private final double rate;
+    private double tokens;
+    private long refilledAt;
+
+
+    private SubjectFilter(String expression, String senderPrefix, List<Integer> offsets, List<byte[]> values, double rate)
+    {
+        this.expression = expression;
+        this.senderPrefix = senderPrefix;
+        this.payloadOffsets = offsets.stream().mapToInt(Integer::intValue).toArray();
+        this.payloadValues = values.toArray(new byte[0][]);
+        this.rate = rate;
+        this.tokens = Math.max(1, rate);
+        this.refilledAt = System.nanoTime();
+    }
+
+
+    /**
+     * Parses a filter expression.
+     *
+     * @param expression the filter expression
+     * @return the filter
+     * @throws IllegalArgumentException if the expression is not valid
+     */
+    public static SubjectFilter parse(String expression)
+    {
+        if (expression == null || expression.isEmpty() || expression.length() > MAX_FILTER_LENGTH)
+            throw new IllegalArgumentException("Filter must be between 1 and " + MAX_FILTER_LENGTH + " characters");
+
+        String senderPrefix = null;
+        List<Integer> offsets = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        double rate = 0;
+
+        for (String clause : expression.split(";", -1)) // keeps empty clauses, so that ";" is not a filter admitting everything.
+        {
+            if (clause.startsWith(SENDER_PREFIX) && clause.length() > SENDER_PREFIX.length())
+                senderPrefix = clause.substring(SENDER_PREFIX.length());
+
+            else if (clause.startsWith(PAYLOAD) && clause.indexOf("]=") > PAYLOAD.length())
+            {
+                int close = clause.indexOf("]=");
+                offsets.add(parseOffset(clause.substring(PAYLOAD.length(), close)));
+                values.add(parseHex(clause.substring(close + 2)));
+            }
+
+            else if (clause.startsWith(RATE))
+                rate = parseRate(clause.substring(RATE.length()));
+
+            else
+                throw new IllegalArgumentException("Unknown filter clause: " + clause);
+        }
+
+        return new SubjectFilter(expression, senderPrefix, offsets, values, rate);
+    }
+
+
+    /**
+     * Returns the interest subscribing to the subject with the given filter.
+     *
+     * @param subject    the subject
+     * @param expression the filter expression
+     * @return the interest of the filtered subscription
+     */
+    public static String format(String subject, String expression)
+    {
+        return subject + SEPARATOR + expression;
+    }
+
+
+    /**
+     * Returns true if the interest is a filtered subscription, meaning it holds the separator. Whether the part
+     * after the separator is a valid filter is checked by filterOf.
+     *
+     * @param interest the interest
+     * @return true if the interest carries a filter
+     */
+    public static boolean isFiltered(String interest)
+    {
+        return interest.indexOf(SEPARATOR) >= 0;
+    }
+
+
+    /**
+     * Returns the subject of an interest, which is the interest itself if it is not a filtered subscription.
+     *
+     * @param interest the interest
+     * @return the subject
+     */
+    public static String subject(String interest)
+    {
+        return isFiltered(interest) ? interest.substring(0, interest.indexOf(SEPARATOR)) : interest;
+    }
+
+
+    /**
+     * Returns the filter of an interest.
+     *
+     * @param interest the interest
+     * @return the filter, or null if the interest is not a filtered subscription
+     * @throws IllegalArgumentException if the filter of the interest is not valid
+     */
+    public static SubjectFilter filterOf(String interest)
+    {
+        int separator = interest.indexOf(SEPARATOR);
+
+        if (separator < 0)
+            return null;
+
+        return parse(interest.substring(separator + 1));
+    }
+
+
+    /**
+     * Returns true if a message passes the filter. A message that passes all other clauses takes
+     * from the rate allowance, so it is only delivered while the rate allows.
+     *
+     * @param sender  the sender of the message
+     * @param payload the payload of the message
+     * @return true if the message is to be delivered
+     */
+    public boolean test(String sender, byte[] payload)
+    {
+        if (senderPrefix != null && (sender == null || !sender.startsWith(senderPrefix)))
+            return false;
+
+        for (int i = 0; i < payloadOffsets.length; i++)
+        {
+            if (!matchesAt(payload, payloadOffsets[i], payloadValues[i]))
+                return false;
+        }
+
+        return rate <= 0 || admit();
+    }
+
+
+    public String getExpression()
+    {
+        return expression;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return expression;
+    }
+
+
+    /**
+     * Takes one message from the rate allowance, refilled at the rate and holding at most one second of it.
+     */
+    private synchronized boolean admit()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(Math.max(1, rate), tokens + (now - refilledAt) / 1e9 * rate);
+        refilledAt = now;
+
+        if (tokens < 1)
+            return false;
+
+        tokens -= 1;
+        return true;
+    }
+
+
+    private static boolean matchesAt(byte[] payload, int offset, byte[] value)
+    {
+        if (payload == null || offset > payload.length - value.length)
+            return false;
+
+        for (int i = 0; i < value.length; i++)
+        {
+            if (payload[offset + i] != value[i])
+                return false;
+        }
+
+        return true;
+    }
+
+
+    private static int parseOffset(String text)
+    {
+        try
+        {
+            int offset = Integer.parseInt(text);
+
+            if (offset < 0)
+                throw new IllegalArgumentException("Payload offset must not be negative: " + text);
+
+            return offset;
+        }
+
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Invalid payload offset: " + text, ex);
+        }
+    }
+
+
+    private static byte[] parseHex(String text)
+    {
+        if (text.isEmpty() || text.length() % 2 != 0)
+            throw new IllegalArgumentException("Payload value must be an even number of hex digits: " + text);
+
+        byte[] value = new byte[text.length() / 2];
+
+        for (int i = 0; i < value.length; i++)
+        {
+            int high = Character.digit(text.charAt(2 * i), 16);
+            int low = Character.digit(text.charAt(2 * i + 1), 16);
+
+            if (high < 0 || low < 0)
+                throw new IllegalArgumentException("Invalid hex digits in payload value: " + text);
+
+            value[i] = (byte) ((high << 4) | low);
+        }
+
+        return value;
+    }
+
+
+    private static double parseRate(String text)
+    {
+        try
+        {
+            double rate = Double.parseDouble(text);
+
+            if (!(rate > 0) || Double.isInfinite(rate))
+                throw new IllegalArgumentException("Rate must be positive: " + text);
+
+            return rate;
+        }
+
+        catch (NumberFormatException ex)
+        {
+            throw new IllegalArgumentException("Invalid rate: " + text, ex);
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package MMS.Misc;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * TimingWheel runs tasks after a delay, for large numbers of timeouts that are mostly cancelled before
+ * they fire, such as message expiry and request timeouts.
+ * <p>
+ * Timeouts are kept in a hierarchy of wheels of 64 slots each. The first wheel has one slot per tick,
+ * every following wheel has one slot per full turn of the wheel below it. A timeout goes into the slot of
+ * the coarsest wheel its deadline needs, and is moved down to a finer wheel when that wheel reaches its slot.
+ * Scheduling and cancelling are constant time, and a tick only touches the timeouts in the slots it reaches,
+ * never scanning the others. Timeouts fire with the resolution of one tick.
+ * <p>
+ * A single daemon thread advances the wheel, the tasks themselves run on the given executor.
+ * A task the executor rejects is dropped, without stopping the wheel.
+ */
+public class TimingWheel
+{
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /**
+     * A scheduled task, which can be cancelled until it fires.
+     */
+    public interface Timeout
+    {
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if the timeout was cancelled, false if it has fired or was cancelled already
+         */
+        boolean cancel();
+    }
+
+    private final long tickNanos;
+    private final Executor executor;
+    private final LongSupplier clock;
+    private final boolean ticking;
+    private final ReentrantLock lock;
+    private final Node[][] wheels;
+    private final long startNanos;
+    private long currentTick;
+    private Thread ticker;
+    private volatile boolean stopped;
+
+
+    /**
+     * Constructs a new TimingWheel.
+     *
+     * @param tick     the duration of one tick, the resolution of the timeouts
+     * @param executor the executor the tasks run on
+     */
+    public TimingWheel(Duration tick, Executor executor)
+    {
+        this(tick, executor, System::nanoTime, true);
+    }
+
+
+    /**
+     * Constructs a new TimingWheel on the given clock, without a thread of its own. The wheel only advances
+     * when tick is called, which lets tests move through long delays without waiting for them.
+     *
+     * @param tick     the duration of one tick, the resolution of the timeouts
+     * @param executor the executor the tasks run on
+     * @param clock    the clock, in nanoseconds
+     */
+    TimingWheel(Duration tick, Executor executor, LongSupplier clock)
+    {
+        this(tick, executor, clock, false);
+    }
+
+
+    private TimingWheel(Duration tick, Executor executor, LongSupplier clock, boolean ticking)
+    {
+        if (tick.isZero() || tick.isNegative())
+            throw new IllegalArgumentException("Tick must be positive");
+
+        this.tickNanos = tick.toNanos();
+        this.executor = executor;
+        this.clock = clock;
+        this.ticking = ticking;
+        this.lock = new ReentrantLock();
+        this.wheels = new Node[LEVELS][SLOTS];
+        this.startNanos = clock.getAsLong();
+    }
+
+
+    /**
+     * Schedules a task to run after the given delay.
+     *
+     * @param task  the task
+     * @param delay the delay
+     * @param unit  the unit of the delay
+     * @return the timeout, which can be used to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        long deadlineNanos = clock.getAsLong() - startNanos + Math.max(0, unit.toNanos(delay));
+        long deadline = (deadlineNanos + tickNanos - 1) / tickNanos;
+        Node node = new Node(task, deadline);
+
+        lock.lock();
+
+        try
+        {
+            if (stopped)
+                throw new IllegalStateException("The timing wheel is stopped");
+
+            if (node.deadline <= currentTick)
+                node.deadline = currentTick + 1;
+
+            place(node);
+            startTicker();
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        return node;
+    }
+
+
+    /**
+     * Schedules a task to run at the given instant, or on the next tick if it has passed.
+     *
+     * @param task the task
+     * @param at   the instant to run the task at
+     * @return the timeout, which can be used to cancel the task
+     */
+    public Timeout scheduleAt(Runnable task, Instant at)
+    {
+        long delayMillis = Duration.between(Instant.now(), at).toMillis();
+        return schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Stops the wheel. Pending timeouts are dropped without running.
+     */
+    public void stop()
+    {
+        lock.lock();
+
+        try
+        {
+            stopped = true;
+
+            for (Node[] wheel : wheels)
+            {
+                for (int i = 0; i < SLOTS; i++)
+                {
+                    for (Node node = wheel[i]; node != null; node = node.next)
+                        node.slot = -1;
+
+                    wheel[i] = null;
+                }
+            }
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (ticker != null)
+            LockSupport.unpark(ticker);
+    }
+
+
+    /**
+     * Puts the node into the slot of the coarsest wheel its deadline needs. Called with the lock held.
+     */
+    private void place(Node node)
+    {
+        long delta = Math.min(node.deadline - currentTick, MAX_DELTA);
+        long target = currentTick + delta; // timeouts beyond the top wheel wait in its last slot and are placed again.
+        int level = 0;
+
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+            level++;
+
+        int index = (int) ((target >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Node[] wheel = wheels[level];
+
+        node.wheel = wheel;
+        node.slot = index;
+        node.previous = null;
+        node.next = wheel[index];
+
+        if (wheel[index] != null)
+            wheel[index].previous = node;
+
+        wheel[index] = node;
+    }
+
+
+    private void unlink(Node node)
+    {
+        if (node.previous != null)
+            node.previous.next = node.next;
+
+        else
+            node.wheel[node.slot] = node.next;
+
+        if (node.next != null)
+            node.next.previous = node.previous;
+
+        node.slot = -1;
+        node.previous = null;
+        node.next = null;
+    }
+
+
+    /**
+     * Takes all nodes out of a slot. Called with the lock held.
+     */
+    private Node drain(Node[] wheel, int index)
+    {
+        Node head = wheel[index];
+        wheel[index] = null;
+
+        for (Node node = head; node != null; node = node.next)
+            node.slot = -1;
+
+        return head;
+    }
+
+
+    /**
+     * Advances the wheel by one tick, collecting the tasks that are due. Called with the lock held.
+     */
+    private void advance(List<Runnable> due)
+    {
+        currentTick++;
+
+        for (int level = LEVELS - 1; level > 0; level--)
+        {
+            long mask = (1L << (SLOT_BITS * level)) - 1;
+
+            if ((currentTick & mask) != 0)
+                continue;
+
+            int index = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            Node node = drain(wheels[level], index);
+
+            while (node != null)
+            {
+                Node next = node.next;
+                place(node);
+                node = next;
+            }
+        }
+
+        Node node = drain(wheels[0], (int) (currentTick & (SLOTS - 1)));
+
+        while (node != null)
+        {
+            Node next = node.next;
+
+            if (node.deadline <= currentTick)
+            {
+                node.fired = true;
+                due.add(node.task);
+            }
+
+            else
+                place(node);
+
+            node = next;
+        }
+    }
+
+
+    private void startTicker()
+    {
+        if (ticker != null || !ticking)
+            return;
+
+        ticker = new Thread(this::run, "mms-timing-wheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+
+    private void run()
+    {
+        List<Runnable> due = new ArrayList<>();
+
+        while (!stopped)
+        {
+            long sleepNanos = tick(due) - clock.getAsLong();
+
+            if (sleepNanos > 0)
+                LockSupport.parkNanos(this, sleepNanos);
+        }
+    }
+
+
+    /**
+     * Advances the wheel to the current time of its clock and runs the tasks that are due.
+     * Called by the ticker thread, or by tests on a wheel without one.
+     */
+    void tick()
+    {
+        tick(new ArrayList<>());
+    }
+
+
+    /**
+     * Advances the wheel to the current time and hands the tasks that are due to the executor.
+     *
+     * @param due the list the due tasks are collected in, empty on return
+     * @return the time of the next tick on the clock of the wheel
+     */
+    private long tick(List<Runnable> due)
+    {
+        long nextTickNanos;
+
+        lock.lock();
+
+        try
+        {
+            long elapsedTicks = (clock.getAsLong() - startNanos) / tickNanos;
+
+            while (currentTick < elapsedTicks)
+                advance(due);
+
+            nextTickNanos = startNanos + (currentTick + 1) * tickNanos;
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        for (Runnable task : due)
+        {
+            try
+            {
+                executor.execute(task);
+            }
+
+            catch (RejectedExecutionException ex)
+            {
+                // the executor is shutting down, the task is dropped like the pending ones on stop, the others still run.
+            }
+        }
+
+        due.clear();
+        return nextTickNanos;
+    }
+
+
+    private class Node implements Timeout
+    {
+        private final Runnable task;
+        private long deadline;
+        private Node[] wheel;
+        private int slot;
+        private Node previous;
+        private Node next;
+        private boolean fired;
+
+        private Node(Runnable task, long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+            this.slot = -1;
+        }
+
+        @Override
+        public boolean cancel()
+        {
+            lock.lock();
+
+            try
+            {
+                if (fired || slot < 0)
+                    return false;
+
+                unlink(this);
+                return true;
+            }
+
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+}
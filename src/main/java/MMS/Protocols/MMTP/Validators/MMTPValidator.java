@@ -1,6 +1,7 @@
 package MMS.Protocols.MMTP.Validators;
 
 
+import MMS.Client.Codecs.MessageView;
 import MMS.Client.Exceptions.MMTPValidationException;
 import MMS.Misc.MrnValidator;
 import MMS.Protocols.MMTP.MessageFormats.*;
@@ -109,6 +110,71 @@ public class MMTPValidator
 
 
 
+    /**
+     * Validates a decoded application message with the same checks as the message objects, for codecs that
+     * decode into a view without building them. An expiry at the epoch is an expiry that was not set.
+     *
+     * @param view the decoded direct or subject cast message
+     * @throws MMTPValidationException if the message is not valid
+     */
+    public static void validate(MessageView view) throws MMTPValidationException
+    {
+        boolean direct = view.getType() == MessageType.DIRECT_APPLICATION_MESSAGE;
+
+        // Validate id
+        try
+        {
+            UUID.fromString(view.getId());
+        }
+
+        catch (IllegalArgumentException e)
+        {
+            throw new MMTPValidationException("Message id is not a valid UUID");
+        }
+
+        // Validate recipients or subject
+        if (direct)
+        {
+            for (String recipient : view.getRecipients())
+            {
+                if (!MrnValidator.validate(recipient))
+                {
+                    throw new MMTPValidationException("Destination: " + recipient + " is not a valid MRN");
+                }
+            }
+        }
+
+        else if (view.getSubject().length() > 100 || view.getSubject().length() < 1)
+        {
+            throw new MMTPValidationException("Subject: " + view.getSubject() + " is not a valid subject");
+        }
+
+        // Validate sender
+        if (!MrnValidator.validate(view.getSender()))
+        {
+            throw new MMTPValidationException("Sender: " + view.getSender() + " is not a valid MRN");
+        }
+
+        // Validate timestamp
+        Instant expireTime = view.getExpires();
+
+        if (!expireTime.equals(Instant.EPOCH))
+        {
+            Instant now = Instant.now();
+            if (expireTime.isBefore(now) || expireTime.isAfter(now.plus(30, ChronoUnit.DAYS)))
+            {
+                throw new MMTPValidationException("Message expires at: " + expireTime + " which is outside the allowed range");
+            }
+        }
+
+        // Validate payload
+        if (view.getPayloadLength() < 1)
+        {
+            throw new MMTPValidationException("Message payload is empty");
+        }
+    }
+
+
     public static void validate(Register message) throws MMTPValidationException
     {
         // Validate interests
@@ -0,0 +1,228 @@
+package MMS.Client;
+
+import MMS.Client.Codecs.WireCodecs;
+import MMS.Client.Connections.Connection;
+import MMS.Client.Connections.DisconnectionReason;
+import MMS.Client.Connections.WsCodes;
+import MMS.Client.Interfaces.ConnectionListener;
+import MMS.Client.Interfaces.MessageListener;
+import MMS.Client.TLSConfiguration.TLSConfig;
+import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Hosts 10,000 agents in one JVM against a RouterStandIn running as a process of its own. Every agent has a
+ * connection of its own, and the agents are spread over 100 TLS identities, so the WsHandler runs 100 client
+ * stacks. Checks that every connection is established and receives a subject cast, that the stacks share their
+ * threads instead of adding threads per identity, and prints the heap used per agent.
+ */
+class AgentHostingTest
+{
+    private static final int AGENTS = 10_000;
+    private static final int IDENTITIES = 100;
+    private static final int CONNECTING_THREADS = 64;
+    private static final String SENDER = "urn:mrn:mcp:device:mms:standin";
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:hosting";
+
+
+    @Test
+    void hostsTenThousandAgents() throws Exception
+    {
+        assumeTrue(maxFileDescriptors() > AGENTS + 1024, "Needs a file descriptor limit above " + (AGENTS + 1024));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Process router = startRouter();
+        WsHandler handler = new WsHandler(new WsClientConfig());
+        Queue<Connection> connections = new ConcurrentLinkedQueue<>();
+
+        try
+        {
+            BufferedReader routerOut = new BufferedReader(new InputStreamReader(router.getInputStream()));
+            PrintWriter routerIn = new PrintWriter(router.getOutputStream(), true);
+            String uri = routerOut.readLine();
+
+            TLSConfig[] identities = new TLSConfig[IDENTITIES];
+
+            for (int i = 0; i < IDENTITIES; i++)
+                identities[i] = new LoopbackTLSConfig();
+
+            CountDownLatch established = new CountDownLatch(AGENTS);
+            CountDownLatch received = new CountDownLatch(AGENTS);
+            AtomicInteger errors = new AtomicInteger();
+            MessageListener messageListener = new CountingMessageListener(received);
+
+            ConnectionListener connectionListener = new ConnectionListener()
+            {
+                @Override
+                public void onConnectionEstablished(Connection connection)
+                {
+                    connections.add(connection);
+                    established.countDown();
+                }
+
+                @Override
+                public void onConnectionLost(DisconnectionReason reason)
+                {
+                }
+
+                @Override
+                public void onConnectError(DisconnectionReason reason)
+                {
+                    errors.incrementAndGet();
+                    established.countDown();
+                }
+            };
+
+            long heapBefore = usedHeap();
+            int threadsBefore = threads.getThreadCount();
+            ExecutorService connecting = Executors.newFixedThreadPool(CONNECTING_THREADS); // connect blocks until the handshake is done.
+
+            for (int i = 0; i < AGENTS; i++)
+            {
+                TLSConfig identity = identities[i % IDENTITIES];
+                connecting.execute(() -> handler.connect(uri, identity, connectionListener, messageListener));
+            }
+
+            assertTrue(established.await(5, TimeUnit.MINUTES), "Not every agent connected in time");
+            connecting.shutdown();
+            assertTrue(connecting.awaitTermination(1, TimeUnit.MINUTES));
+
+            assertEquals(0, errors.get());
+            assertEquals(AGENTS, connections.size());
+            assertEquals(IDENTITIES, handler.getStackCount());
+
+            routerIn.println(Base64.getEncoder().encodeToString(subjectCast()));
+            assertEquals(AGENTS, Integer.parseInt(routerOut.readLine()));
+            assertTrue(received.await(1, TimeUnit.MINUTES), "Not every agent received the subject cast");
+
+            Thread.sleep(1000); // lets the connecting threads exit.
+            int addedThreads = threads.getThreadCount() - threadsBefore;
+            long heapPerAgent = (usedHeap() - heapBefore) / AGENTS;
+
+            System.out.printf("%d agents on %d identities: %d bytes of heap per agent, %d threads added, %d live%n",
+                    AGENTS, IDENTITIES, heapPerAgent, addedThreads, threads.getThreadCount());
+
+            assertTrue(addedThreads < IDENTITIES, "The client stacks added " + addedThreads + " threads");
+        }
+
+        finally
+        {
+            for (Connection connection : connections)
+                connection.close(WsCodes.NORMAL_CLOSURE, "User closed connection.");
+
+            handler.shutdown();
+            router.destroy();
+            router.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+
+    private static Process startRouter() throws Exception
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(List.of(java, "-cp", System.getProperty("java.class.path"), RouterStandIn.class.getName()));
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+
+    private static byte[] subjectCast()
+    {
+        Instant expires = Instant.now().plusSeconds(60);
+
+        return WireCodecs.PROTOBUF.encode(SubjectCastApplicationMessage.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setSender(SENDER)
+                .setSubject(SUBJECT)
+                .setExpires(Timestamp.newBuilder().setSeconds(expires.getEpochSecond()).build())
+                .setPayload(ByteString.copyFromUtf8("hosting"))
+                .build());
+    }
+
+
+    private static long usedHeap() throws InterruptedException
+    {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+        for (int i = 0; i < 3; i++)
+        {
+            System.gc();
+            Thread.sleep(200);
+        }
+
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+
+    private static long maxFileDescriptors()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+            return ((com.sun.management.UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+
+        return Long.MAX_VALUE;
+    }
+
+
+    /**
+     * A TLS identity of its own for every instance, without key material, as the stand-in speaks plain WebSocket.
+     */
+    private static class LoopbackTLSConfig extends TLSConfig
+    {
+        @Override
+        protected SslContextFactory.Client createTLSContextFactory()
+        {
+            return new SslContextFactory.Client();
+        }
+    }
+
+
+    private static class CountingMessageListener implements MessageListener
+    {
+        private final CountDownLatch received;
+
+        private CountingMessageListener(CountDownLatch received)
+        {
+            this.received = received;
+        }
+
+        @Override
+        public void onDirectMessage(String messageId, List<String> destinations, String sender, Instant expires, byte[] message)
+        {
+        }
+
+        @Override
+        public void onSubjectCastMessage(String messageId, String sender, String subject, Instant expires, byte[] message)
+        {
+            received.countDown();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package MMS.Client.Codecs;
+
+import MMS.Client.Exceptions.CodecException;
+import MMS.Protocols.MMTP.MessageFormats.SubjectCastApplicationMessage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CodecBenchmark compares receiving a subject cast with the protobuf codec and with the binary codec,
+ * both validating the message while decoding. A listener either reads every field, as the default
+ * MessageListener.onMessage does, or reads the subject and the payload buffer only, as a listener
+ * taking message views can. The binary codec is also run with a dictionary, after a first frame
+ * has put the sender and subject into it.
+ * <p>
+ * Run it with gradle jmh --args='CodecBenchmark'.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark
+{
+    @Param({"MMTP/1.0", "MMTP-BIN/1.0", "MMTP-BIN/1.0+dict"})
+    public String subprotocol;
+
+    @Param({"256"})
+    public int payloadSize;
+
+    private WireCodec decoder;
+    private byte[] frame;
+
+
+    @Setup
+    public void setUp() throws CodecException
+    {
+        SubjectCastApplicationMessage message = SubjectCastApplicationMessage.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setSender("urn:mrn:mcp:device:mms:benchmark")
+                .setSubject("urn:mrn:mcp:service:mms:positions")
+                .setExpires(Timestamp.newBuilder().setSeconds(Instant.now().plusSeconds(86_400).getEpochSecond()).build())
+                .setPayload(ByteString.copyFrom(new byte[payloadSize]))
+                .build();
+
+        WireCodec encoder = WireCodecs.forSubprotocol(subprotocol);
+        decoder = WireCodecs.forSubprotocol(subprotocol);
+
+        byte[] first = encoder.encode(message);
+        decoder.decode(first, 0, first.length); // with a dictionary, the first frame fills it.
+        frame = encoder.encode(message);
+    }
+
+
+    /**
+     * Decodes the frame and reads every field, as the default onMessage does.
+     */
+    @Benchmark
+    public void allFields(Blackhole blackhole) throws CodecException
+    {
+        MessageView view = decoder.decode(frame, 0, frame.length);
+        blackhole.consume(view.getId());
+        blackhole.consume(view.getSender());
+        blackhole.consume(view.getSubject());
+        blackhole.consume(view.getExpires());
+        blackhole.consume(view.getPayload());
+    }
+
+
+    /**
+     * Decodes the frame and reads the subject and the payload buffer, as a listener taking views can.
+     */
+    @Benchmark
+    public void subjectAndPayloadBuffer(Blackhole blackhole) throws CodecException
+    {
+        MessageView view = decoder.decode(frame, 0, frame.length);
+        blackhole.consume(view.getSubject());
+        blackhole.consume(view.getPayloadBuffer());
+    }
+}
@@ -0,0 +1,190 @@
+package MMS.Client.Codecs;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests a sending and a receiving StringDictionary kept in sync by the frames between them.
+ */
+class StringDictionaryTest
+{
+    private final StringDictionary sending = new StringDictionary();
+    private final StringDictionary receiving = new StringDictionary();
+
+
+    @Test
+    void repeatedStringsGoAsReferences()
+    {
+        byte[] first = sending.encode("urn:mrn:mcp:device:mms:a", true);
+        sending.commit();
+        byte[] second = sending.encode("urn:mrn:mcp:device:mms:a", true);
+        sending.commit();
+
+        assertEquals(StringDictionary.INSERT, prefix(first) & 0xC000);
+        assertEquals(2, second.length);
+        assertEquals(StringDictionary.REFERENCE, prefix(second));
+
+        String inserted = decode(first);
+        assertSame(inserted, decode(second));
+        assertEquals("urn:mrn:mcp:device:mms:a", inserted);
+    }
+
+
+    @Test
+    void framesRoundTrip()
+    {
+        List<String> sent = List.of("urn:mrn:mcp:device:mms:a", "urn:mrn:mcp:service:mms:positions", "urn:mrn:mcp:device:mms:a", "positions", "urn:mrn:mcp:service:mms:positions");
+        List<String> received = new ArrayList<>();
+
+        for (String value : sent)
+        {
+            byte[] field = sending.encode(value, true);
+            sending.commit();
+            received.add(decode(field));
+        }
+
+        assertEquals(sent, received);
+    }
+
+
+    @Test
+    void stringRepeatedWithinAFrameReferencesThePendingEntry()
+    {
+        byte[] first = sending.encode("urn:mrn:mcp:device:mms:a", true);
+        byte[] second = sending.encode("urn:mrn:mcp:device:mms:a", true);
+        sending.commit();
+
+        assertEquals(StringDictionary.REFERENCE, prefix(second));
+        assertEquals("urn:mrn:mcp:device:mms:a", decode(first));
+        assertEquals("urn:mrn:mcp:device:mms:a", decode(second));
+    }
+
+
+    @Test
+    void literalsAreNotAdded()
+    {
+        byte[] first = sending.encode("5f0e8a5c-3c1b-4d52-9f3e-0b6f4f3c2a11", false);
+        sending.commit();
+        byte[] second = sending.encode("5f0e8a5c-3c1b-4d52-9f3e-0b6f4f3c2a11", false);
+
+        assertEquals(StringDictionary.LITERAL, prefix(first) & 0x8000);
+        assertEquals(first.length, second.length);
+        assertEquals("5f0e8a5c-3c1b-4d52-9f3e-0b6f4f3c2a11", decode(first));
+        assertNull(receiving.get(0));
+    }
+
+
+    @Test
+    void rollbackForgetsTheEntriesOfAFailedFrame()
+    {
+        byte[] a = sending.encode("a", true);
+        sending.commit();
+        decode(a); // the first frame is sent.
+
+        sending.encode("b", true);
+        sending.encode("c", true);
+        sending.rollback(); // the second frame failed and is never sent.
+
+        byte[] c = sending.encode("c", true);
+        byte[] aAgain = sending.encode("a", true);
+        sending.commit();
+
+        assertEquals(StringDictionary.INSERT, prefix(c) & 0xC000);
+        assertEquals(StringDictionary.REFERENCE, prefix(aAgain));
+        assertEquals("c", decode(c));
+        assertEquals("a", decode(aAgain));
+        assertEquals("c", receiving.get(1));
+    }
+
+
+    @Test
+    void rollbackKeepsCommittedEntries()
+    {
+        sending.encode("a", true);
+        sending.commit();
+        sending.encode("b", true);
+        sending.rollback();
+
+        assertEquals(StringDictionary.REFERENCE, prefix(sending.encode("a", true)));
+        assertEquals(StringDictionary.INSERT, prefix(sending.encode("b", true)) & 0xC000);
+    }
+
+
+    @Test
+    void fullDictionarySendsLiterals()
+    {
+        for (int i = 0; i < StringDictionary.CAPACITY; i++)
+        {
+            byte[] field = sending.encode("subject-" + i, true);
+            sending.commit();
+            assertEquals("subject-" + i, decode(field));
+        }
+
+        byte[] overflow = sending.encode("subject-overflow", true);
+        sending.commit();
+        byte[] last = sending.encode("subject-" + (StringDictionary.CAPACITY - 1), true);
+
+        assertEquals(StringDictionary.LITERAL, prefix(overflow) & 0x8000);
+        assertEquals("subject-overflow", decode(overflow));
+        assertEquals(StringDictionary.REFERENCE | (StringDictionary.CAPACITY - 1), prefix(last));
+        assertEquals("subject-" + (StringDictionary.CAPACITY - 1), decode(last));
+        assertNull(receiving.get(StringDictionary.CAPACITY));
+    }
+
+
+    @Test
+    void pendingEntriesCountTowardsTheCapacity()
+    {
+        for (int i = 0; i < StringDictionary.CAPACITY - 1; i++)
+            sending.encode("subject-" + i, true);
+
+        sending.commit();
+
+        byte[] lastEntry = sending.encode("last", true);
+        byte[] overflow = sending.encode("overflow", true);
+
+        assertEquals(StringDictionary.INSERT, prefix(lastEntry) & 0xC000);
+        assertEquals(StringDictionary.LITERAL, prefix(overflow) & 0x8000);
+    }
+
+
+    @Test
+    void longStringsAreLiteralsAndTooLongStringsFail()
+    {
+        String insertLimit = "x".repeat(StringDictionary.MAX_INSERT_LENGTH + 1);
+        byte[] field = sending.encode(insertLimit, true);
+
+        assertEquals(StringDictionary.LITERAL, prefix(field) & 0x8000);
+        assertEquals(insertLimit, decode(field));
+        assertThrows(IllegalArgumentException.class, () -> sending.encode("x".repeat(StringDictionary.MAX_LITERAL_LENGTH + 1), true));
+    }
+
+
+    private static int prefix(byte[] field)
+    {
+        return ((field[0] & 0xFF) << 8) | (field[1] & 0xFF);
+    }
+
+
+    /**
+     * Reads a field the way the receiving side of a connection does.
+     */
+    private String decode(byte[] field)
+    {
+        int prefix = prefix(field);
+
+        if ((prefix & 0xC000) == StringDictionary.REFERENCE)
+            return receiving.get(prefix & 0x3FFF);
+
+        String value = new String(field, 2, field.length - 2, StandardCharsets.UTF_8);
+        return (prefix & 0xC000) == StringDictionary.INSERT ? receiving.insert(value) : value;
+    }
+}
@@ -0,0 +1,122 @@
+package MMS.Client;
+
+import MMS.Client.Exceptions.SendingException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Tests rebuilding payloads from the frames of a DeltaEncoder, and dropping deltas whose base is missing or stale.
+ */
+class DeltaDecoderTest
+{
+    private static final String SENDER = "urn:mrn:mcp:device:mms:publisher";
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:grid";
+
+    private final DeltaEncoder encoder = new DeltaEncoder(new DeltaPolicy(4, Duration.ofHours(1)));
+    private final List<byte[]> payloads = new ArrayList<>();
+    private final List<byte[]> frames = new ArrayList<>();
+
+
+    @Test
+    void everyPayloadIsRebuilt() throws SendingException
+    {
+        publish(SUBJECT, 10);
+        DeltaDecoder decoder = new DeltaDecoder(16);
+
+        for (int i = 0; i < frames.size(); i++)
+            assertArrayEquals(payloads.get(i), decode(decoder, SUBJECT, frames.get(i)));
+    }
+
+
+    @Test
+    void deltaWithoutBaseWaitsForTheNextKeyframe() throws SendingException
+    {
+        publish(SUBJECT, 6); // K1 D2 D3 D4 K5 D6
+        DeltaDecoder decoder = new DeltaDecoder(16);
+
+        assertNull(decode(decoder, SUBJECT, frames.get(2))); // joined late.
+        assertNull(decode(decoder, SUBJECT, frames.get(3)));
+        assertArrayEquals(payloads.get(4), decode(decoder, SUBJECT, frames.get(4)));
+        assertArrayEquals(payloads.get(5), decode(decoder, SUBJECT, frames.get(5)));
+    }
+
+
+    @Test
+    void deltaAfterAMissedFrameIsDropped() throws SendingException
+    {
+        publish(SUBJECT, 6);
+        DeltaDecoder decoder = new DeltaDecoder(16);
+
+        assertArrayEquals(payloads.get(0), decode(decoder, SUBJECT, frames.get(0)));
+        assertArrayEquals(payloads.get(1), decode(decoder, SUBJECT, frames.get(1)));
+        assertNull(decode(decoder, SUBJECT, frames.get(3))); // frame 3 was missed, the base is stale.
+        assertArrayEquals(payloads.get(4), decode(decoder, SUBJECT, frames.get(4)));
+    }
+
+
+    @Test
+    void deltaNotFittingItsBaseDropsTheBase()
+    {
+        byte[] base = DeltaFrameTest.grid(500);
+        byte[] otherBase = DeltaFrameTest.grid(100);
+        DeltaDecoder decoder = new DeltaDecoder(16);
+
+        decode(decoder, SUBJECT, DeltaFrame.keyframe(1, otherBase));
+        assertNull(decode(decoder, SUBJECT, DeltaFrame.delta(2, base, DeltaFrameTest.change(base, 400))));
+        assertNull(decode(decoder, SUBJECT, DeltaFrame.delta(3, otherBase, DeltaFrameTest.change(otherBase, 1))));
+    }
+
+
+    @Test
+    void basesAreKeptPerSenderAndSubject()
+    {
+        byte[] base = DeltaFrameTest.grid(200);
+        byte[] payload = DeltaFrameTest.change(base, 3);
+        DeltaDecoder decoder = new DeltaDecoder(16);
+
+        decode(decoder, SUBJECT, DeltaFrame.keyframe(1, base));
+
+        assertNull(decoder.decode("urn:mrn:mcp:device:mms:other", SUBJECT, ByteBuffer.wrap(DeltaFrame.delta(2, base, payload))));
+        assertNull(decode(decoder, "urn:mrn:mcp:service:mms:other", DeltaFrame.delta(2, base, payload)));
+        assertArrayEquals(payload, decode(decoder, SUBJECT, DeltaFrame.delta(2, base, payload)));
+    }
+
+
+    @Test
+    void leastRecentlyUsedBaseIsEvicted()
+    {
+        byte[] base = DeltaFrameTest.grid(200);
+        DeltaDecoder decoder = new DeltaDecoder(1);
+
+        decode(decoder, SUBJECT, DeltaFrame.keyframe(1, base));
+        decode(decoder, "urn:mrn:mcp:service:mms:other", DeltaFrame.keyframe(1, base));
+
+        assertNull(decode(decoder, SUBJECT, DeltaFrame.delta(2, base, DeltaFrameTest.change(base, 3))));
+    }
+
+
+    private void publish(String subject, int count) throws SendingException
+    {
+        byte[] payload = DeltaFrameTest.grid(300);
+
+        for (int i = 0; i < count; i++)
+        {
+            payload = DeltaFrameTest.change(payload, i * 25);
+            payloads.add(payload);
+            encoder.publish(subject, payload, frames::add);
+        }
+    }
+
+
+    private static byte[] decode(DeltaDecoder decoder, String subject, byte[] frame)
+    {
+        return decoder.decode(SENDER, subject, ByteBuffer.wrap(frame));
+    }
+}
@@ -0,0 +1,101 @@
+package MMS.Client;
+
+import MMS.Client.Exceptions.SendingException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the keyframe cadence and sequence numbers of the DeltaEncoder.
+ */
+class DeltaEncoderTest
+{
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:grid";
+
+    private final List<byte[]> sent = new ArrayList<>();
+
+
+    @Test
+    void keyframeEveryInterval() throws SendingException
+    {
+        DeltaEncoder encoder = new DeltaEncoder(new DeltaPolicy(3, Duration.ofHours(1)));
+        byte[] payload = DeltaFrameTest.grid(200);
+
+        for (int i = 0; i < 7; i++)
+        {
+            payload = DeltaFrameTest.change(payload, i * 20);
+            encoder.publish(SUBJECT, payload, sent::add);
+        }
+
+        assertEquals(List.of("K1", "D2", "D3", "K4", "D5", "D6", "K7"), describeSent());
+    }
+
+
+    @Test
+    void keyframeWhenTheLastOneIsTooOld() throws SendingException
+    {
+        DeltaEncoder encoder = new DeltaEncoder(new DeltaPolicy(100, Duration.ZERO));
+        byte[] payload = DeltaFrameTest.grid(200);
+
+        encoder.publish(SUBJECT, payload, sent::add);
+        encoder.publish(SUBJECT, DeltaFrameTest.change(payload, 1), sent::add);
+
+        assertEquals(List.of("K1", "K2"), describeSent());
+    }
+
+
+    @Test
+    void subjectsHaveStreamsOfTheirOwn() throws SendingException
+    {
+        DeltaEncoder encoder = new DeltaEncoder(new DeltaPolicy(10, Duration.ofHours(1)));
+        byte[] payload = DeltaFrameTest.grid(200);
+
+        encoder.publish(SUBJECT, payload, sent::add);
+        encoder.publish("urn:mrn:mcp:service:mms:other", payload, sent::add);
+        encoder.publish(SUBJECT, DeltaFrameTest.change(payload, 1), sent::add);
+
+        assertEquals(List.of("K1", "K1", "D2"), describeSent());
+    }
+
+
+    @Test
+    void failedSendDoesNotAdvanceTheStream() throws SendingException
+    {
+        DeltaEncoder encoder = new DeltaEncoder(new DeltaPolicy(10, Duration.ofHours(1)));
+        byte[] first = DeltaFrameTest.grid(200);
+        byte[] lost = DeltaFrameTest.change(first, 1);
+        byte[] next = DeltaFrameTest.change(first, 2);
+
+        encoder.publish(SUBJECT, first, sent::add);
+        assertThrows(SendingException.class, () -> encoder.publish(SUBJECT, lost, frame ->
+        {
+            throw new SendingException("Not connected");
+        }));
+        encoder.publish(SUBJECT, next, sent::add);
+
+        assertEquals(List.of("K1", "D2"), describeSent());
+        ByteBuffer delta = ByteBuffer.wrap(sent.get(1));
+        assertArrayEquals(next, DeltaFrame.apply(first, DeltaFrame.body(delta)));
+    }
+
+
+    private List<String> describeSent()
+    {
+        List<String> described = new ArrayList<>();
+
+        for (byte[] frame : sent)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            described.add((DeltaFrame.kind(buffer) == DeltaFrame.KEYFRAME ? "K" : "D") + DeltaFrame.sequence(buffer));
+        }
+
+        return described;
+    }
+}
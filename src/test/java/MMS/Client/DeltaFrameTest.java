@@ -0,0 +1,140 @@
+package MMS.Client;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests diffing payloads into delta frames and patching them back.
+ */
+class DeltaFrameTest
+{
+    @Test
+    void keyframeCarriesThePayload()
+    {
+        byte[] payload = grid(100);
+        ByteBuffer frame = ByteBuffer.wrap(DeltaFrame.keyframe(7, payload));
+
+        assertTrue(DeltaFrame.isFramed(frame));
+        assertEquals(DeltaFrame.KEYFRAME, DeltaFrame.kind(frame));
+        assertEquals(7, DeltaFrame.sequence(frame));
+        assertEquals(ByteBuffer.wrap(payload), DeltaFrame.body(frame));
+    }
+
+
+    @Test
+    void deltaPatchesTheBaseIntoThePayload()
+    {
+        byte[] base = grid(500);
+        byte[] payload = change(base, 10, 250, 251, 499);
+        byte[] delta = DeltaFrame.delta(2, base, payload);
+
+        assertNotNull(delta);
+        assertTrue(delta.length < payload.length);
+
+        ByteBuffer frame = ByteBuffer.wrap(delta);
+        assertTrue(DeltaFrame.isFramed(frame));
+        assertEquals(DeltaFrame.DELTA, DeltaFrame.kind(frame));
+        assertEquals(2, DeltaFrame.sequence(frame));
+        assertArrayEquals(payload, DeltaFrame.apply(base, DeltaFrame.body(frame)));
+    }
+
+
+    @Test
+    void payloadsGrowingAndShrinkingRoundTrip()
+    {
+        byte[] base = grid(300);
+        byte[] longer = Arrays.copyOf(change(base, 5), 340);
+        byte[] shorter = Arrays.copyOf(change(base, 5), 260);
+
+        for (byte[] payload : new byte[][]{longer, shorter, base.clone()})
+        {
+            byte[] delta = DeltaFrame.delta(1, base, payload);
+
+            assertNotNull(delta);
+            assertArrayEquals(payload, DeltaFrame.apply(base, DeltaFrame.body(ByteBuffer.wrap(delta))));
+        }
+    }
+
+
+    @Test
+    void deltaNotSmallerThanAKeyframeIsNotMade()
+    {
+        byte[] base = grid(64);
+        byte[] payload = new byte[64];
+
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) ~base[i];
+
+        assertNull(DeltaFrame.delta(1, base, payload));
+    }
+
+
+    @Test
+    void deltaAgainstAnotherBaseIsRejected()
+    {
+        byte[] base = grid(500);
+        byte[] payload = change(base, 400);
+        ByteBuffer body = DeltaFrame.body(ByteBuffer.wrap(DeltaFrame.delta(1, base, payload)));
+
+        assertNull(DeltaFrame.apply(Arrays.copyOf(base, 100), body));
+    }
+
+
+    @Test
+    void truncatedDeltaIsRejected()
+    {
+        byte[] base = grid(500);
+        byte[] delta = DeltaFrame.delta(1, base, change(base, 10, 300));
+        ByteBuffer truncated = DeltaFrame.body(ByteBuffer.wrap(Arrays.copyOf(delta, delta.length - 2)));
+
+        assertNull(DeltaFrame.apply(base, truncated));
+    }
+
+
+    @Test
+    void deltaClaimingAHugePayloadIsRejected()
+    {
+        byte[] body = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+
+        assertNull(DeltaFrame.apply(grid(10), ByteBuffer.wrap(body)));
+    }
+
+
+    @Test
+    void plainPayloadsAreNotFramed()
+    {
+        assertFalse(DeltaFrame.isFramed(ByteBuffer.wrap(new byte[4])));
+        assertFalse(DeltaFrame.isFramed(ByteBuffer.wrap(grid(100))));
+    }
+
+
+    static byte[] grid(int length)
+    {
+        byte[] payload = new byte[length];
+
+        for (int i = 0; i < length; i++)
+            payload[i] = (byte) (i * 31 + 7);
+
+        return payload;
+    }
+
+
+    static byte[] change(byte[] base, int... positions)
+    {
+        byte[] payload = base.clone();
+
+        for (int position : positions)
+            payload[position]++;
+
+        return payload;
+    }
+}
@@ -0,0 +1,92 @@
+package MMS.Client;
+
+import MMS.Misc.SubjectFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests checking received messages against the filters of the filtered subscriptions on their subject.
+ */
+class FilterIndexTest
+{
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:positions";
+    private static final String VESSEL = "urn:mrn:mcp:device:mms:vessel-1";
+    private static final String BUOY = "urn:mrn:mcp:device:mms:buoy-1";
+    private static final byte[] PAYLOAD = {0x0a, 0x1b};
+
+    private final FilterIndex index = new FilterIndex();
+
+
+    @Test
+    void filtersOnASubjectAreAlternatives()
+    {
+        index.add(SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:vessel"));
+        index.add(SubjectFilter.format(SUBJECT, "payload[1]=1b"));
+
+        assertTrue(index.contains(SUBJECT));
+        assertTrue(index.admits(SUBJECT, VESSEL, new byte[0]));
+        assertTrue(index.admits(SUBJECT, BUOY, PAYLOAD));
+        assertFalse(index.admits(SUBJECT, BUOY, new byte[]{0x0a, 0x00}));
+        assertFalse(index.admits(SUBJECT, BUOY, null));
+    }
+
+
+    @Test
+    void filtersApplyToTheirOwnSubject()
+    {
+        index.add(SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:vessel"));
+
+        assertFalse(index.contains("urn:mrn:mcp:service:mms:weather"));
+        assertFalse(index.admits("urn:mrn:mcp:service:mms:weather", VESSEL, PAYLOAD));
+    }
+
+
+    @Test
+    void unfilteredAndInvalidInterestsAddNothing()
+    {
+        index.add(SUBJECT);
+        index.add(SubjectFilter.format(SUBJECT, ";"));
+        index.add(SubjectFilter.format(SUBJECT, "payload[2147483648]=00"));
+        index.add(SubjectFilter.format(SUBJECT, "rate<=0"));
+        index.add(SUBJECT + SubjectFilter.SEPARATOR);
+
+        assertFalse(index.contains(SUBJECT));
+        assertFalse(index.admits(SUBJECT, VESSEL, PAYLOAD));
+    }
+
+
+    @Test
+    void removingTheLastFilterDropsTheSubject()
+    {
+        String vessels = SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:vessel");
+        String buoys = SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:buoy");
+        index.add(vessels);
+        index.add(buoys);
+
+        index.remove(vessels);
+        assertTrue(index.contains(SUBJECT));
+        assertFalse(index.admits(SUBJECT, VESSEL, PAYLOAD));
+        assertTrue(index.admits(SUBJECT, BUOY, PAYLOAD));
+
+        index.remove(SUBJECT); // not a filtered subscription, so it leaves the filters alone.
+        index.remove(SubjectFilter.format(SUBJECT, "rate<=5"));
+        assertTrue(index.contains(SUBJECT));
+
+        index.remove(buoys);
+        assertFalse(index.contains(SUBJECT));
+    }
+
+
+    @Test
+    void rateIsTakenOnlyByTheFilterThatAdmits()
+    {
+        index.add(SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:vessel;rate<=1"));
+        index.add(SubjectFilter.format(SUBJECT, "sender^=urn:mrn:mcp:device:mms:buoy;rate<=1"));
+
+        assertTrue(index.admits(SUBJECT, BUOY, PAYLOAD));
+        assertFalse(index.admits(SUBJECT, BUOY, PAYLOAD));
+        assertTrue(index.admits(SUBJECT, VESSEL, PAYLOAD));
+    }
+}
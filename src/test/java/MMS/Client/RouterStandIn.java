@@ -0,0 +1,258 @@
+package MMS.Client;
+
+import MMS.Client.Codecs.MessageView;
+import MMS.Client.Codecs.ProtobufCodec;
+import MMS.Client.Codecs.WireCodecs;
+import MMS.Client.Exceptions.CodecException;
+import MMS.Protocols.MMTP.MessageFormats.Register;
+import MMS.Protocols.MMTP.MessageFormats.Unregister;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.server.WebSocketHandler;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RouterStandIn is a minimal edge router for tests. It accepts plain WebSocket connections on the loopback
+ * interface speaking MMTP/1.0, keeps the subjects every link registered interest in, and forwards every subject
+ * cast it receives to the links interested in its subject. It does not authenticate, acknowledge or queue anything.
+ * <p>
+ * It can run in the test JVM, or as a process of its own with java MMS.Client.RouterStandIn, which prints
+ * the URI to connect to and then prints the number of open links for every line read from standard input,
+ * broadcasting the line as a subject cast first if it is not empty. Keeping the router out of the JVM
+ * under test keeps its memory and threads out of the measurements.
+ */
+public class RouterStandIn
+{
+    private final Server server;
+    private final ServerConnector connector;
+    private final Set<Link> links;
+    private final Map<String, Set<Link>> interests;
+
+
+    /**
+     * Constructs a new RouterStandIn on an ephemeral loopback port.
+     */
+    public RouterStandIn()
+    {
+        this.server = new Server();
+        this.connector = new ServerConnector(server);
+        this.links = ConcurrentHashMap.newKeySet();
+        this.interests = new ConcurrentHashMap<>();
+
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptQueueSize(4096);
+        server.addConnector(connector);
+
+        server.setHandler(new WebSocketHandler()
+        {
+            @Override
+            public void configure(WebSocketServletFactory factory)
+            {
+                factory.getPolicy().setIdleTimeout(TimeUnit.MINUTES.toMillis(10));
+                factory.setCreator((request, response) ->
+                {
+                    if (request.getSubProtocols().contains(ProtobufCodec.SUBPROTOCOL))
+                        response.setAcceptedSubProtocol(ProtobufCodec.SUBPROTOCOL);
+
+                    return new Link();
+                });
+            }
+        });
+    }
+
+
+    /**
+     * Starts the router.
+     *
+     * @throws Exception if the server could not be started
+     */
+    public void start() throws Exception
+    {
+        server.start();
+    }
+
+
+    /**
+     * Stops the router, closing all links.
+     *
+     * @throws Exception if the server could not be stopped
+     */
+    public void stop() throws Exception
+    {
+        server.stop();
+    }
+
+
+    /**
+     * Returns the URI clients connect to.
+     *
+     * @return the WebSocket URI of the router
+     */
+    public String getUri()
+    {
+        return "ws://127.0.0.1:" + connector.getLocalPort() + "/";
+    }
+
+
+    /**
+     * Returns the number of open links.
+     *
+     * @return the number of open links
+     */
+    public int getLinkCount()
+    {
+        return links.size();
+    }
+
+
+    /**
+     * Sends a frame to every open link, as if a subject cast had been published to all of them.
+     *
+     * @param frame the encoded frame
+     */
+    public void broadcast(byte[] frame)
+    {
+        for (Link link : links)
+            link.send(frame);
+    }
+
+
+    /**
+     * Runs the router as a process of its own, see the class description.
+     *
+     * @param args unused
+     * @throws Exception if the router could not be started
+     */
+    public static void main(String[] args) throws Exception
+    {
+        RouterStandIn router = new RouterStandIn();
+        router.start();
+        System.out.println(router.getUri());
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+
+        while ((line = in.readLine()) != null)
+        {
+            if (!line.isEmpty())
+                router.broadcast(Base64.getDecoder().decode(line));
+
+            System.out.println(router.getLinkCount());
+        }
+
+        router.stop();
+    }
+
+
+    private void register(Link link, List<String> subjects)
+    {
+        for (String subject : subjects)
+        {
+            interests.computeIfAbsent(subject, key -> ConcurrentHashMap.newKeySet()).add(link);
+            link.subjects.add(subject);
+        }
+    }
+
+
+    private void unregister(Link link, Iterable<String> subjects)
+    {
+        for (String subject : subjects)
+        {
+            interests.computeIfPresent(subject, (key, subscribers) ->
+            {
+                subscribers.remove(link);
+                return subscribers.isEmpty() ? null : subscribers;
+            });
+        }
+    }
+
+
+    private void forward(String subject, byte[] frame)
+    {
+        Set<Link> subscribers = interests.get(subject);
+
+        if (subscribers == null)
+            return;
+
+        for (Link subscriber : subscribers)
+            subscriber.send(frame);
+    }
+
+
+    /**
+     * The router side of one client connection.
+     */
+    private class Link extends WebSocketAdapter
+    {
+        private final Set<String> subjects = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void onWebSocketConnect(Session session)
+        {
+            super.onWebSocketConnect(session);
+            links.add(this);
+        }
+
+        @Override
+        public void onWebSocketBinary(byte[] payload, int offset, int len)
+        {
+            try
+            {
+                MessageView view = WireCodecs.PROTOBUF.decode(payload, offset, len);
+
+                switch (view.getType())
+                {
+                    case REGISTER -> register(this, Register.parseFrom(view.getPayload()).getInterestsList());
+                    case UNREGISTER ->
+                    {
+                        List<String> removed = Unregister.parseFrom(view.getPayload()).getInterestsList();
+                        unregister(this, removed);
+                        removed.forEach(subjects::remove);
+                    }
+                    case SUBJECT_CAST_APPLICATION_MESSAGE ->
+                    {
+                        byte[] frame = new byte[len];
+                        System.arraycopy(payload, offset, frame, 0, len);
+                        forward(view.getSubject(), frame);
+                    }
+                    default ->
+                    {
+                    }
+                }
+            }
+
+            catch (CodecException | InvalidProtocolBufferException ex)
+            {
+                getSession().close(1007, "Malformed frame: " + ex.getMessage());
+            }
+        }
+
+        @Override
+        public void onWebSocketClose(int statusCode, String reason)
+        {
+            super.onWebSocketClose(statusCode, reason);
+            links.remove(this);
+            unregister(this, subjects);
+        }
+
+        private void send(byte[] frame)
+        {
+            if (isConnected())
+                getRemote().sendBytes(ByteBuffer.wrap(frame), null);
+        }
+    }
+}
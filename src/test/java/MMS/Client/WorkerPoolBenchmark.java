@@ -0,0 +1,181 @@
+package MMS.Client;
+
+import MMS.Misc.TimingWheel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * WorkerPoolBenchmark compares the cached platform thread pool the agents use by default with the
+ * virtual thread executor of Agent.useVirtualThreads, built the same way Agent builds them, on the ways
+ * the agents use their worker pool: connects and subscriptions run with CompletableFuture.runAsync,
+ * request timeouts expire on the TimingWheel and run on the pool, and reconnects are delayed with
+ * CompletableFuture.delayedExecutor. Every task blocks on the network for a while, then sends a frame
+ * while holding the send lock of its connection. After every run the peak number of live platform
+ * threads is printed.
+ * <p>
+ * Run it with gradle jmh, or gradle jmh --args='-p pool=cached' on Java versions before 21,
+ * where the virtual thread runs fail in their setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WorkerPoolBenchmark
+{
+    private static final int BATCH = 1000;
+
+    @Param({"cached", "virtual"})
+    public String pool;
+
+    @Param({"5"})
+    public long blockMillis;
+
+    @Param({"16"})
+    public int connections;
+
+    @Param({"0"})
+    public int carrierThreads;
+
+    private ExecutorService workerPool;
+    private TimingWheel timingWheel;
+    private ReentrantLock[] sendLocks;
+    private ThreadMXBean threads;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        workerPool = pool.equals("virtual") ? VirtualThreads.newExecutor(carrierThreads) : Executors.newCachedThreadPool();
+        timingWheel = new TimingWheel(Duration.ofMillis(10), workerPool);
+        sendLocks = new ReentrantLock[connections];
+
+        for (int i = 0; i < connections; i++)
+            sendLocks[i] = new ReentrantLock();
+
+        threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException
+    {
+        System.out.printf("%n%s: peak platform threads %d%n", pool, threads.getPeakThreadCount());
+        timingWheel.stop();
+        workerPool.shutdown();
+        workerPool.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+
+    /**
+     * Connects and subscriptions, run with CompletableFuture.runAsync on the worker pool.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void runAsync()
+    {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+
+        for (int i = 0; i < BATCH; i++)
+        {
+            ReentrantLock sendLock = sendLocks[i % connections];
+            futures[i] = CompletableFuture.runAsync(() -> roundTrip(sendLock), workerPool);
+        }
+
+        CompletableFuture.allOf(futures).join();
+    }
+
+
+    /**
+     * Request timeouts, expired by the TimingWheel and run on the worker pool.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void timeouts() throws InterruptedException
+    {
+        CountDownLatch done = new CountDownLatch(BATCH);
+
+        for (int i = 0; i < BATCH; i++)
+        {
+            ReentrantLock sendLock = sendLocks[i % connections];
+
+            timingWheel.schedule(() ->
+            {
+                roundTrip(sendLock);
+                done.countDown();
+            }, 1, TimeUnit.MILLISECONDS);
+        }
+
+        done.await();
+    }
+
+
+    /**
+     * Reconnects, delayed with CompletableFuture.delayedExecutor on the worker pool.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void delayed()
+    {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[BATCH];
+
+        for (int i = 0; i < BATCH; i++)
+        {
+            ReentrantLock sendLock = sendLocks[i % connections];
+            futures[i] = CompletableFuture.runAsync(() -> roundTrip(sendLock), CompletableFuture.delayedExecutor(1, TimeUnit.MILLISECONDS, workerPool));
+        }
+
+        CompletableFuture.allOf(futures).join();
+    }
+
+
+    private void roundTrip(ReentrantLock sendLock)
+    {
+        try
+        {
+            Thread.sleep(blockMillis); // waiting for the network, as a connect or subscription round trip does.
+        }
+
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        sendLock.lock();
+
+        try
+        {
+            Thread.onSpinWait(); // writing the frame.
+        }
+
+        finally
+        {
+            sendLock.unlock();
+        }
+    }
+}
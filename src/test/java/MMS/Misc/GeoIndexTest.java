@@ -0,0 +1,223 @@
+package MMS.Misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests matching geohashes against the cells in a GeoIndex, and matching with tens of thousands of overlapping areas.
+ */
+class GeoIndexTest
+{
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:positions";
+    private static final String HASH = "u4pruydqq";
+
+    private final GeoIndex<String> index = new GeoIndex<>();
+
+
+    @Test
+    void matchCollectsEveryCellPrefixingTheHash()
+    {
+        index.add(SUBJECT, "u", "a");
+        index.add(SUBJECT, "u4", "b");
+        index.add(SUBJECT, "u4pr", "c");
+        index.add(SUBJECT, HASH, "d");
+        index.add(SUBJECT, "u5", "e");
+        index.add(SUBJECT, "u4pq", "f");
+        index.add("urn:mrn:mcp:service:mms:other", "u4", "g");
+
+        assertEquals(List.of("a", "b", "c", "d"), index.match(SUBJECT, HASH));
+        assertEquals(List.of("a", "b", "f"), index.match(SUBJECT, "u4pq00000"));
+        assertEquals(List.of("a", "e"), index.match(SUBJECT, "u5"));
+        assertEquals(List.of("g"), index.match("urn:mrn:mcp:service:mms:other", HASH));
+        assertTrue(index.match(SUBJECT, "s00000000").isEmpty());
+        assertTrue(index.match("urn:mrn:mcp:service:mms:none", HASH).isEmpty());
+    }
+
+
+    @Test
+    void cellFinerThanTheHashDoesNotMatch()
+    {
+        index.add(SUBJECT, "u4pr", "a");
+
+        assertTrue(index.match(SUBJECT, "u4").isEmpty());
+        assertFalse(index.matchesAny(SUBJECT, "u4"));
+        assertFalse(index.matches(SUBJECT, "u4", "a"));
+    }
+
+
+    @Test
+    void memberOfSeveralCellsIsMatchedOnce()
+    {
+        index.add(SUBJECT, "u4", "a");
+        index.add(SUBJECT, "u4p", "a");
+        index.add(SUBJECT, "u4pr", "b");
+
+        assertEquals(List.of("a", "b"), index.match(SUBJECT, HASH));
+    }
+
+
+    @Test
+    void matchesAnyAndMatchesAMember()
+    {
+        index.add(SUBJECT, "u4pr", "a");
+        index.add(SUBJECT, "u5", "b");
+
+        assertTrue(index.matchesAny(SUBJECT, HASH));
+        assertFalse(index.matchesAny(SUBJECT, "u4pq00000"));
+        assertFalse(index.matchesAny("urn:mrn:mcp:service:mms:none", HASH));
+
+        assertTrue(index.matches(SUBJECT, HASH, "a"));
+        assertFalse(index.matches(SUBJECT, HASH, "b"));
+        assertTrue(index.matches(SUBJECT, "u5000", "b"));
+    }
+
+
+    @Test
+    void addAndRemoveReportChanges()
+    {
+        assertTrue(index.add(SUBJECT, "u4", "a"));
+        assertFalse(index.add(SUBJECT, "u4", "a"));
+        assertTrue(index.add(SUBJECT, "u4", "b"));
+
+        assertFalse(index.remove(SUBJECT, "u4", "c"));
+        assertFalse(index.remove(SUBJECT, "u4p", "a"));
+        assertFalse(index.remove(SUBJECT, "u", "a"));
+        assertFalse(index.remove("urn:mrn:mcp:service:mms:none", "u4", "a"));
+        assertTrue(index.remove(SUBJECT, "u4", "a"));
+        assertFalse(index.remove(SUBJECT, "u4", "a"));
+
+        assertEquals(List.of("b"), index.match(SUBJECT, HASH));
+    }
+
+
+    @Test
+    void removingTheLastCellDropsTheSubject()
+    {
+        index.add(SUBJECT, "u4", "a");
+        index.add(SUBJECT, "u4pr", "b");
+
+        assertTrue(index.remove(SUBJECT, "u4", "a"));
+        assertTrue(index.contains(SUBJECT));
+        assertEquals(List.of("b"), index.match(SUBJECT, HASH)); // the finer cell below the removed one is kept.
+
+        assertTrue(index.remove(SUBJECT, "u4pr", "b"));
+        assertFalse(index.contains(SUBJECT));
+        assertTrue(index.match(SUBJECT, HASH).isEmpty());
+
+        assertTrue(index.add(SUBJECT, "u4pr", "c"));
+        assertEquals(List.of("c"), index.match(SUBJECT, HASH));
+    }
+
+
+    @Test
+    void coveredAreaMatchesThePositionsInIt()
+    {
+        for (String cell : Geohash.cover(-20, 170, -10, -170, 32))
+            index.add(SUBJECT, cell, "pacific");
+
+        for (String cell : Geohash.cover(new double[]{53, 53, 58}, new double[]{3, 8, 3}, 32))
+            index.add(SUBJECT, cell, "north sea");
+
+        assertEquals(List.of("pacific"), index.match(SUBJECT, tag(-15, 179.5)));
+        assertEquals(List.of("pacific"), index.match(SUBJECT, tag(-15, -179.5)));
+        assertEquals(List.of("north sea"), index.match(SUBJECT, tag(54, 4)));
+        assertTrue(index.match(SUBJECT, tag(0, 0)).isEmpty());
+    }
+
+
+    @Test
+    void tensOfThousandsOfOverlappingAreas()
+    {
+        int areas = 50_000;
+        Random random = new Random(42);
+        double[][] boxes = new double[areas][];
+        List<List<String>> covers = new ArrayList<>(areas);
+        long cells = 0;
+
+        // Vessel areas of 0.2 to 3 degrees, all in the same stretch of the North Sea.
+        for (int area = 0; area < areas; area++)
+        {
+            double minLat = 53 + random.nextDouble() * 4;
+            double minLon = 2 + random.nextDouble() * 5;
+            boxes[area] = new double[]{minLat, minLon, minLat + 0.2 + random.nextDouble() * 2.8, minLon + 0.2 + random.nextDouble() * 2.8};
+            covers.add(Geohash.cover(boxes[area][0], boxes[area][1], boxes[area][2], boxes[area][3], 32));
+
+            for (String cell : covers.get(area))
+                index.add(SUBJECT, cell, Integer.toString(area));
+
+            cells += covers.get(area).size();
+        }
+
+        int positions = 10_000;
+        String[] hashes = new String[positions];
+        double[][] points = new double[positions][];
+
+        for (int i = 0; i < positions; i++)
+        {
+            points[i] = new double[]{54 + random.nextDouble() * 4, 3 + random.nextDouble() * 5};
+            hashes[i] = tag(points[i][0], points[i][1]);
+        }
+
+        // Every area containing a position is matched, and nothing but the areas with a cell prefixing it.
+        for (int i = 0; i < 100; i++)
+        {
+            Set<String> matched = new HashSet<>(index.match(SUBJECT, hashes[i]));
+            Set<String> expected = new HashSet<>();
+
+            for (int area = 0; area < areas; area++)
+            {
+                double[] box = boxes[area];
+                boolean inside = points[i][0] >= box[0] && points[i][0] <= box[2] && points[i][1] >= box[1] && points[i][1] <= box[3];
+
+                if (inside)
+                    assertTrue(matched.contains(Integer.toString(area)), "Area " + area + " was not matched");
+
+                if (covers.get(area).stream().anyMatch(hashes[i]::startsWith))
+                    expected.add(Integer.toString(area));
+            }
+
+            assertEquals(expected, matched);
+        }
+
+        long overlapping = 0;
+        long start = System.nanoTime();
+
+        for (String hash : hashes)
+            overlapping += index.match(SUBJECT, hash).size();
+
+        long matchNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        int any = 0;
+
+        for (int round = 0; round < 10; round++)
+        {
+            for (String hash : hashes)
+                any += index.matchesAny(SUBJECT, hash) ? 1 : 0;
+        }
+
+        long matchesAnyNanos = System.nanoTime() - start;
+
+        System.out.printf("%d areas in %d cells, %d overlapping a position on average: %.1f us per match, %.2f us per matchesAny%n",
+                areas, cells, overlapping / positions, matchNanos / 1e3 / positions, matchesAnyNanos / 1e3 / (10.0 * positions));
+
+        assertEquals(10 * positions, any);
+        assertTrue(overlapping / positions > 1000, "The areas hardly overlap");
+        assertTrue(matchesAnyNanos < TimeUnit.SECONDS.toNanos(5), "matchesAny took " + matchesAnyNanos / 1_000_000 + " ms");
+    }
+
+
+    private static String tag(double latitude, double longitude)
+    {
+        return Geohash.encode(latitude, longitude, GeoSubscription.TAG_PRECISION);
+    }
+}
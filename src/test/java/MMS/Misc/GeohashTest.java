@@ -0,0 +1,282 @@
+package MMS.Misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests encoding positions and covering boxes and polygons with cells, including areas on the antimeridian and the poles.
+ */
+class GeohashTest
+{
+    @Test
+    void encodesKnownPositions()
+    {
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("ezs42", Geohash.encode(42.6, -5.6, 5));
+        assertEquals("u4pru", Geohash.encode(57.64911, 10.40744, 5));
+    }
+
+
+    @Test
+    void cellBoundsContainThePosition()
+    {
+        for (int precision = 1; precision <= Geohash.MAX_PRECISION; precision++)
+        {
+            double[] bounds = Geohash.bounds(Geohash.encode(57.64911, 10.40744, precision));
+
+            assertTrue(bounds[0] <= 57.64911 && 57.64911 < bounds[2]);
+            assertTrue(bounds[1] <= 10.40744 && 10.40744 < bounds[3]);
+        }
+    }
+
+
+    @Test
+    void encodesTheCornersOfTheWorld()
+    {
+        assertEquals("00000", Geohash.encode(-90, -180, 5));
+        assertEquals("zzzzz", Geohash.encode(90, 180, 5));
+        assertEquals("bpbpb", Geohash.encode(90, -180, 5));
+        assertEquals("pbpbp", Geohash.encode(-90, 180, 5));
+    }
+
+
+    @Test
+    void invalidPositionsAndPrecisionsAreRejected()
+    {
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(90.001, 0, 5));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(0, -180.001, 5));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(Double.NaN, 0, 5));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(0, Double.POSITIVE_INFINITY, 5));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.encode(0, 0, Geohash.MAX_PRECISION + 1));
+    }
+
+
+    @Test
+    void validGeohashes()
+    {
+        assertTrue(Geohash.isValid("u4pruydqqvj"));
+        assertTrue(Geohash.isValid("0"));
+        assertFalse(Geohash.isValid(null));
+        assertFalse(Geohash.isValid(""));
+        assertFalse(Geohash.isValid("u4pruydqqvjzz"));
+        assertFalse(Geohash.isValid("u4a")); // a, i, l and o are not geohash digits.
+        assertFalse(Geohash.isValid("U4"));
+    }
+
+
+    @Test
+    void boxCoverContainsTheBox()
+    {
+        List<String> cells = Geohash.cover(50.1, 3.2, 51.7, 5.9, 32);
+
+        assertTrue(cells.size() <= 32);
+        assertEquals(cells.size(), new HashSet<>(cells).size());
+        assertSamePrecision(cells);
+
+        for (double lat = 50.1; lat <= 51.7; lat += 0.16)
+        {
+            for (double lon = 3.2; lon <= 5.9; lon += 0.27)
+                assertTrue(covers(cells, lat, lon), "Not covered: " + lat + ", " + lon);
+        }
+
+        assertTrue(covers(cells, 51.7, 5.9));
+        assertFalse(covers(cells, 48, 4));
+    }
+
+
+    @Test
+    void coverTakesTheFinestPrecisionWithinTheBudget()
+    {
+        int coarse = Geohash.cover(50.1, 3.2, 51.7, 5.9, 32).get(0).length();
+        int fine = Geohash.cover(50.1, 3.2, 51.7, 5.9, 1024).get(0).length();
+
+        assertTrue(fine > coarse);
+        assertTrue(Geohash.cover(50.1, 3.2, 51.7, 5.9, 1024).size() <= 1024);
+    }
+
+
+    @Test
+    void pointIsCoveredByOneCellOfFullPrecision()
+    {
+        assertEquals(List.of(Geohash.encode(57.64911, 10.40744, Geohash.MAX_PRECISION)), Geohash.cover(57.64911, 10.40744, 57.64911, 10.40744, 32));
+    }
+
+
+    @Test
+    void worldIsCoveredByTheFirstLevel()
+    {
+        List<String> cells = Geohash.cover(-90, -180, 90, 180, 32);
+
+        assertEquals(32, cells.size());
+        assertSamePrecision(cells);
+    }
+
+
+    @Test
+    void boxAcrossTheAntimeridian()
+    {
+        List<String> cells = Geohash.cover(-20, 170, -10, -170, 32);
+
+        assertFalse(cells.isEmpty());
+        assertTrue(cells.size() <= 32);
+        assertSamePrecision(cells);
+
+        for (double lon : new double[]{170, 175, 179.999, 180, -180, -179.999, -175, -170})
+        {
+            assertTrue(covers(cells, -15, lon), "Not covered: " + lon);
+            assertTrue(covers(cells, -20, lon));
+            assertTrue(covers(cells, -10, lon));
+        }
+
+        assertFalse(covers(cells, -15, 0));
+        assertFalse(covers(cells, -15, 160));
+        assertFalse(covers(cells, -15, -160));
+    }
+
+
+    @Test
+    void boxOnTheAntimeridian()
+    {
+        List<String> east = Geohash.cover(-20, 175, -10, 180, 32);
+        List<String> west = Geohash.cover(-20, -180, -10, -175, 32);
+
+        assertTrue(covers(east, -15, 180));
+        assertTrue(covers(east, -15, 175));
+        assertTrue(covers(west, -15, -180));
+        assertTrue(covers(west, -15, -175));
+        assertFalse(covers(east, -15, 0));
+        assertFalse(covers(west, -15, 0));
+    }
+
+
+    @Test
+    void boxAlmostAroundTheWorldIsCappedAtEveryColumn()
+    {
+        List<String> cells = Geohash.cover(10, 10, 20, 5, 32);
+
+        assertEquals(cells.size(), new HashSet<>(cells).size());
+        assertTrue(cells.size() <= 32);
+
+        for (double lon = -180; lon <= 180; lon += 7.5)
+            assertTrue(covers(cells, 15, lon), "Not covered: " + lon);
+    }
+
+
+    @Test
+    void boxesAtThePoles()
+    {
+        List<String> north = Geohash.cover(85, -180, 90, 180, 32);
+        List<String> south = Geohash.cover(-90, -10, -89, 10, 32);
+
+        assertTrue(north.size() <= 32);
+        assertTrue(covers(north, 90, 0));
+        assertTrue(covers(north, 90, -180));
+        assertTrue(covers(north, 90, 180));
+        assertTrue(covers(north, 85, -179.9));
+        assertTrue(covers(north, 89.999, 179.999));
+        assertFalse(covers(north, 84, 0));
+
+        assertTrue(covers(south, -90, 0));
+        assertTrue(covers(south, -90, -10));
+        assertTrue(covers(south, -89, 10));
+        assertFalse(covers(south, -90, 90));
+    }
+
+
+    @Test
+    void invalidBoxesAreRejected()
+    {
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(20, 0, 10, 5, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(-91, 0, 10, 5, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(0, 0, 10, 181, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(0, Double.NaN, 10, 5, 32));
+    }
+
+
+    @Test
+    void polygonCoverKeepsTheCellsItOverlaps()
+    {
+        double[] lats = {0, 10, 0};
+        double[] lons = {0, 0, 10};
+        List<String> cells = Geohash.cover(lats, lons, 256);
+        Set<String> box = new HashSet<>(Geohash.cover(0, 0, 10, 10, 256));
+
+        assertTrue(box.containsAll(cells));
+        assertTrue(cells.size() < box.size());
+
+        for (double[] inside : new double[][]{{0, 0}, {1, 1}, {4.9, 4.9}, {9.9, 0.05}, {0.05, 9.9}, {10, 0}, {0, 10}})
+            assertTrue(covers(cells, inside[0], inside[1]), "Not covered: " + inside[0] + ", " + inside[1]);
+
+        assertFalse(covers(cells, 9.5, 9.5));
+    }
+
+
+    @Test
+    void polygonInsideOneCell()
+    {
+        double[] lats = {57.649, 57.6492, 57.6491};
+        double[] lons = {10.407, 10.407, 10.4072};
+        List<String> cells = Geohash.cover(lats, lons, 32);
+
+        assertFalse(cells.isEmpty());
+        assertTrue(covers(cells, 57.64911, 10.40705));
+    }
+
+
+    @Test
+    void polygonAcrossTheAntimeridian()
+    {
+        double[] squareLats = {-20, -20, -10, -10};
+        double[] squareLons = {170, -170, -170, 170};
+
+        assertEquals(new HashSet<>(Geohash.cover(-20, 170, -10, -170, 32)), new HashSet<>(Geohash.cover(squareLats, squareLons, 32)));
+
+        double[] lats = {0, 0, 20};
+        double[] lons = {170, -170, 170}; // the long edge runs from 0, -170 to 20, 170, back across the antimeridian.
+        List<String> cells = Geohash.cover(lats, lons, 256);
+
+        assertTrue(covers(cells, 1, -172));
+        assertTrue(covers(cells, 10, 175));
+        assertTrue(covers(cells, 10, 180));
+        assertTrue(covers(cells, 5, -180));
+        assertFalse(covers(cells, 19, -171));
+        assertFalse(covers(cells, 10, -175));
+        assertFalse(covers(cells, 10, 0));
+    }
+
+
+    @Test
+    void invalidPolygonsAreRejected()
+    {
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(new double[]{0, 1}, new double[]{0, 1}, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(new double[]{0, 1, 2}, new double[]{0, 1}, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(new double[]{0, 1, 91}, new double[]{0, 1, 0}, 32));
+        assertThrows(IllegalArgumentException.class, () -> Geohash.cover(new double[]{80, 80, 80, 80}, new double[]{0, 90, 180, -90}, 32)); // around the north pole.
+    }
+
+
+    private static boolean covers(List<String> cells, double latitude, double longitude)
+    {
+        String hash = Geohash.encode(latitude, longitude, Geohash.MAX_PRECISION);
+        return cells.stream().anyMatch(hash::startsWith);
+    }
+
+
+    private static void assertSamePrecision(List<String> cells)
+    {
+        for (String cell : cells)
+        {
+            assertTrue(Geohash.isValid(cell));
+            assertEquals(cells.get(0).length(), cell.length());
+        }
+    }
+}
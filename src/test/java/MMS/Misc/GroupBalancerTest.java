@@ -0,0 +1,271 @@
+package MMS.Misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests picking group members in turn and by sender, and changing groups while messages are being delivered.
+ */
+class GroupBalancerTest
+{
+    private static final String SUBJECT = "urn:mrn:mcp:service:mms:jobs";
+
+
+    @Test
+    void roundRobinTakesMembersInTurn()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+        balancer.join("workers", SUBJECT, "a");
+        balancer.join("workers", SUBJECT, "b");
+        balancer.join("workers", SUBJECT, "c");
+
+        Map<String, Integer> counts = new HashMap<>();
+        List<String> firstRound = new ArrayList<>();
+
+        for (int i = 0; i < 300; i++)
+        {
+            String member = single(balancer.select(SUBJECT, "sender"));
+            counts.merge(member, 1, Integer::sum);
+
+            if (i < 3)
+                firstRound.add(member);
+        }
+
+        assertEquals(Set.of("a", "b", "c"), new HashSet<>(firstRound));
+        assertEquals(Map.of("a", 100, "b", 100, "c", 100), counts);
+    }
+
+
+    @Test
+    void senderHashKeepsASenderWithOneMember()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.SENDER_HASH);
+        balancer.join("workers", SUBJECT, "a");
+        balancer.join("workers", SUBJECT, "b");
+        balancer.join("workers", SUBJECT, "c");
+
+        Set<String> used = new HashSet<>();
+
+        for (int sender = 0; sender < 100; sender++)
+        {
+            String mrn = "urn:mrn:mcp:device:mms:" + sender;
+            String member = single(balancer.select(SUBJECT, mrn));
+            used.add(member);
+
+            for (int i = 0; i < 10; i++)
+                assertEquals(member, single(balancer.select(SUBJECT, mrn)));
+        }
+
+        assertEquals(Set.of("a", "b", "c"), used);
+    }
+
+
+    @Test
+    void senderWithNegativeHashIsPicked()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.SENDER_HASH);
+        balancer.join("workers", SUBJECT, "a");
+        balancer.join("workers", SUBJECT, "b");
+        String sender = "polygenelubricants"; // hashes to Integer.MIN_VALUE.
+
+        assertEquals(Integer.MIN_VALUE, sender.hashCode());
+        assertEquals(1, balancer.select(SUBJECT, sender).size());
+    }
+
+
+    @Test
+    void everyGroupGetsOneMember()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+        balancer.join("workers", SUBJECT, "a");
+        balancer.join("workers", SUBJECT, "b");
+        balancer.join("auditors", SUBJECT, "x");
+        balancer.join("workers", "urn:mrn:mcp:service:mms:other", "c");
+
+        List<String> selected = balancer.select(SUBJECT, "sender");
+
+        assertEquals(2, selected.size());
+        assertTrue(selected.contains("x"));
+        assertTrue(selected.contains("a") || selected.contains("b"));
+        assertTrue(balancer.select("urn:mrn:mcp:service:mms:none", "sender").isEmpty());
+    }
+
+
+    @Test
+    void joinAndLeaveReportChanges()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+
+        assertTrue(balancer.join("workers", SUBJECT, "a"));
+        assertFalse(balancer.join("workers", SUBJECT, "a"));
+        assertTrue(balancer.isMember(SUBJECT, "a"));
+        assertFalse(balancer.isMember(SUBJECT, "b"));
+
+        assertFalse(balancer.leave("workers", SUBJECT, "b"));
+        assertFalse(balancer.leave("others", SUBJECT, "a"));
+        assertTrue(balancer.leave("workers", SUBJECT, "a"));
+        assertFalse(balancer.leave("workers", SUBJECT, "a"));
+
+        assertFalse(balancer.isMember(SUBJECT, "a"));
+        assertTrue(balancer.select(SUBJECT, "sender").isEmpty());
+    }
+
+
+    @Test
+    void leavingMemberIsNoLongerPicked()
+    {
+        GroupBalancer<String> balancer = new GroupBalancer<>(GroupBalancer.Strategy.SENDER_HASH);
+        balancer.join("workers", SUBJECT, "a");
+        balancer.join("workers", SUBJECT, "b");
+
+        for (int sender = 0; sender < 50; sender++)
+        {
+            String mrn = "urn:mrn:mcp:device:mms:" + sender;
+            String member = single(balancer.select(SUBJECT, mrn));
+
+            balancer.leave("workers", SUBJECT, member);
+            assertFalse(balancer.select(SUBJECT, mrn).contains(member));
+            balancer.join("workers", SUBJECT, member);
+        }
+    }
+
+
+    @Test
+    void joinAndLeaveWhileSelecting() throws Exception
+    {
+        GroupBalancer<Integer> balancer = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+        int stable = 4;
+        int churning = 4;
+
+        for (int member = 0; member < stable; member++)
+            balancer.join("workers", SUBJECT, member);
+
+        ExecutorService threads = Executors.newFixedThreadPool(churning + 2);
+        AtomicBoolean running = new AtomicBoolean(true);
+        CountDownLatch started = new CountDownLatch(churning + 2);
+        Set<Integer> picked = ConcurrentHashMap.newKeySet();
+        List<Future<?>> tasks = new ArrayList<>();
+
+        try
+        {
+            for (int member = stable; member < stable + churning; member++)
+            {
+                int churner = member;
+
+                tasks.add(threads.submit(() ->
+                {
+                    started.countDown();
+
+                    while (running.get())
+                    {
+                        balancer.join("workers", SUBJECT, churner);
+                        balancer.leave("workers", SUBJECT, churner);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < 2; i++)
+            {
+                tasks.add(threads.submit(() ->
+                {
+                    started.countDown();
+
+                    while (running.get())
+                    {
+                        List<Integer> selected = balancer.select(SUBJECT, "sender");
+
+                        if (selected.size() != 1)
+                            throw new AssertionError("Selected " + selected + " from a group that always has members");
+
+                        picked.add(selected.get(0));
+                    }
+                }));
+            }
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            Thread.sleep(500);
+        }
+
+        finally
+        {
+            running.set(false);
+            threads.shutdown();
+        }
+
+        for (Future<?> task : tasks)
+            task.get(5, TimeUnit.SECONDS); // rethrows a failed selection.
+
+        for (int member = 0; member < stable; member++)
+            assertTrue(picked.contains(member));
+
+        for (int member = stable; member < stable + churning; member++)
+            assertFalse(balancer.isMember(SUBJECT, member));
+
+        assertTrue(balancer.isMember(SUBJECT, 0));
+    }
+
+
+    @Test
+    void lastMembersLeavingWhileSelectingDropTheGroup() throws Exception
+    {
+        GroupBalancer<Integer> balancer = new GroupBalancer<>(GroupBalancer.Strategy.ROUND_ROBIN);
+        ExecutorService threads = Executors.newFixedThreadPool(2);
+
+        try
+        {
+            Future<?> churn = threads.submit(() ->
+            {
+                for (int i = 0; i < 100_000; i++)
+                {
+                    balancer.join("workers", SUBJECT, i);
+                    balancer.leave("workers", SUBJECT, i);
+                }
+            });
+
+            Future<?> select = threads.submit(() ->
+            {
+                while (!churn.isDone())
+                {
+                    int size = balancer.select(SUBJECT, "sender").size();
+
+                    if (size > 1)
+                        throw new AssertionError("Selected " + size + " members of one group");
+                }
+            });
+
+            churn.get(30, TimeUnit.SECONDS);
+            select.get(30, TimeUnit.SECONDS);
+        }
+
+        finally
+        {
+            threads.shutdown();
+        }
+
+        assertTrue(balancer.select(SUBJECT, "sender").isEmpty());
+    }
+
+
+    private static String single(List<String> selected)
+    {
+        assertEquals(1, selected.size());
+        return selected.get(0);
+    }
+}
@@ -0,0 +1,192 @@
+package MMS.Misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests parsing filter expressions, including malformed ones, and evaluating filters on received messages.
+ */
+class SubjectFilterTest
+{
+    private static final String SENDER = "urn:mrn:mcp:device:mms:vessel-1";
+    private static final byte[] PAYLOAD = {0x0a, 0x1b, 0x2c, 0x3d, 0x4e};
+
+
+    @Test
+    void malformedExpressionsAreRejected()
+    {
+        List<String> malformed = List.of(
+                "",
+                "x".repeat(SubjectFilter.MAX_FILTER_LENGTH + 1),
+                "sender",
+                "sender^=",
+                "sender=urn:mrn",
+                "payload[]=0a",
+                "payload[0]0a",
+                "payload[x]=0a",
+                "payload[-1]=0a",
+                "payload[ 1]=0a",
+                "payload[0]=",
+                "payload[0]=0",
+                "payload[0]=0g",
+                "payload[0]=0a]=0b",
+                "rate<=",
+                "rate<=0",
+                "rate<=-1",
+                "rate<=NaN",
+                "rate<=Infinity",
+                "rate<=fast",
+                ";",
+                "sender^=urn:mrn;",
+                ";sender^=urn:mrn",
+                "sender^=urn:mrn;;rate<=5",
+                "SENDER^=urn:mrn");
+
+        for (String expression : malformed)
+            assertThrows(IllegalArgumentException.class, () -> SubjectFilter.parse(expression), "Accepted \"" + expression + "\"");
+
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.parse(null));
+    }
+
+
+    @Test
+    void overflowingOffsetsAreRejected()
+    {
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.parse("payload[2147483648]=0a"));
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.parse("payload[99999999999999999999]=0a"));
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.parse("payload[-2147483648]=0a"));
+    }
+
+
+    @Test
+    void largestOffsetNeverMatchesNorOverflows()
+    {
+        SubjectFilter filter = SubjectFilter.parse("payload[2147483647]=0a");
+        SubjectFilter wide = SubjectFilter.parse("payload[2147483646]=0a1b");
+
+        assertFalse(filter.test(SENDER, PAYLOAD));
+        assertFalse(wide.test(SENDER, PAYLOAD));
+        assertFalse(filter.test(SENDER, new byte[0]));
+    }
+
+
+    @Test
+    void longestExpressionIsAccepted()
+    {
+        String prefix = "sender^=" + "u".repeat(SubjectFilter.MAX_FILTER_LENGTH - "sender^=".length());
+        SubjectFilter filter = SubjectFilter.parse(prefix);
+
+        assertEquals(prefix, filter.getExpression());
+    }
+
+
+    @Test
+    void senderPrefix()
+    {
+        SubjectFilter filter = SubjectFilter.parse("sender^=urn:mrn:mcp:device:mms:");
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test("urn:mrn:mcp:service:mms:weather", PAYLOAD));
+        assertFalse(filter.test("urn:mrn:mcp:device", PAYLOAD));
+        assertFalse(filter.test(null, PAYLOAD));
+    }
+
+
+    @Test
+    void payloadBytesAtAnOffset()
+    {
+        assertTrue(SubjectFilter.parse("payload[0]=0a").test(SENDER, PAYLOAD));
+        assertTrue(SubjectFilter.parse("payload[1]=1B2c").test(SENDER, PAYLOAD));
+        assertTrue(SubjectFilter.parse("payload[3]=3d4e").test(SENDER, PAYLOAD)); // ends on the last byte.
+        assertFalse(SubjectFilter.parse("payload[4]=4e00").test(SENDER, PAYLOAD)); // runs past the end.
+        assertFalse(SubjectFilter.parse("payload[5]=00").test(SENDER, PAYLOAD));
+        assertFalse(SubjectFilter.parse("payload[1]=1b2d").test(SENDER, PAYLOAD));
+        assertFalse(SubjectFilter.parse("payload[0]=0a").test(SENDER, null));
+        assertFalse(SubjectFilter.parse("payload[0]=0a1b2c3d4e5f").test(SENDER, PAYLOAD)); // longer than the payload.
+    }
+
+
+    @Test
+    void allClausesMustHold()
+    {
+        SubjectFilter filter = SubjectFilter.parse("sender^=urn:mrn:mcp:device:;payload[0]=0a;payload[2]=2c");
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test("urn:mrn:mcp:service:x", PAYLOAD));
+        assertFalse(filter.test(SENDER, new byte[]{0x0a, 0x1b, 0x00}));
+        assertFalse(filter.test(SENDER, new byte[]{0x00, 0x1b, 0x2c}));
+    }
+
+
+    @Test
+    void lastSenderClauseWins()
+    {
+        SubjectFilter filter = SubjectFilter.parse("sender^=urn:mrn:mcp:service:;sender^=urn:mrn:mcp:device:");
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test("urn:mrn:mcp:service:x", PAYLOAD));
+    }
+
+
+    @Test
+    void rateLimitsDelivery() throws InterruptedException
+    {
+        SubjectFilter filter = SubjectFilter.parse("rate<=2");
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test(SENDER, PAYLOAD));
+
+        Thread.sleep(600); // refills more than one message at two per second.
+        assertTrue(filter.test(SENDER, PAYLOAD));
+    }
+
+
+    @Test
+    void fractionalRateAllowsOneMessageAtATime()
+    {
+        SubjectFilter filter = SubjectFilter.parse("rate<=0.5");
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test(SENDER, PAYLOAD));
+    }
+
+
+    @Test
+    void rejectedMessagesDoNotTakeFromTheRate()
+    {
+        SubjectFilter filter = SubjectFilter.parse("sender^=urn:mrn:mcp:device:;rate<=1");
+
+        for (int i = 0; i < 10; i++)
+            assertFalse(filter.test("urn:mrn:mcp:service:x", PAYLOAD));
+
+        assertTrue(filter.test(SENDER, PAYLOAD));
+        assertFalse(filter.test(SENDER, PAYLOAD));
+    }
+
+
+    @Test
+    void interests()
+    {
+        String interest = SubjectFilter.format("urn:mrn:mcp:service:mms:positions", "sender^=urn:mrn:mcp:device:");
+
+        assertEquals("urn:mrn:mcp:service:mms:positions|sender^=urn:mrn:mcp:device:", interest);
+        assertTrue(SubjectFilter.isFiltered(interest));
+        assertEquals("urn:mrn:mcp:service:mms:positions", SubjectFilter.subject(interest));
+        assertEquals("sender^=urn:mrn:mcp:device:", SubjectFilter.filterOf(interest).getExpression());
+
+        assertFalse(SubjectFilter.isFiltered("urn:mrn:mcp:service:mms:positions"));
+        assertEquals("urn:mrn:mcp:service:mms:positions", SubjectFilter.subject("urn:mrn:mcp:service:mms:positions"));
+        assertNull(SubjectFilter.filterOf("urn:mrn:mcp:service:mms:positions"));
+
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.filterOf("urn:mrn:mcp:service:mms:positions|"));
+        assertThrows(IllegalArgumentException.class, () -> SubjectFilter.filterOf("urn:mrn:mcp:service:mms:positions|rate<=0"));
+    }
+}
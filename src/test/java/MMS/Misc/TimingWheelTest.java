@@ -0,0 +1,234 @@
+package MMS.Misc;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the TimingWheel on a clock moved by the test, one millisecond per tick, so that deadlines
+ * on the coarser wheels and beyond the top wheel can be reached without waiting for them.
+ */
+class TimingWheelTest
+{
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long TOP_WHEEL_SPAN = 1L << 24; // four wheels of 64 slots.
+
+    private long now = 1_000_000_000L;
+    private final List<String> fired = new ArrayList<>();
+    private final TimingWheel wheel = new TimingWheel(Duration.ofNanos(TICK_NANOS), Runnable::run, () -> now);
+
+
+    @Test
+    void timeoutFiresOnItsTick()
+    {
+        wheel.schedule(() -> fired.add("a"), 5, TimeUnit.MILLISECONDS);
+
+        advance(4);
+        assertTrue(fired.isEmpty());
+
+        advance(1);
+        assertEquals(List.of("a"), fired);
+    }
+
+
+    @Test
+    void deadlinesAcrossLevelBoundariesFireOnTime()
+    {
+        advance(37); // off the slot boundaries, so the deadlines do not line up with the wheels.
+        assertFiresOnTime(new long[]{1, 63, 64, 65, 127, 128, 4095, 4096, 4097, 262143, 262144, 262145});
+    }
+
+
+    @Test
+    void deadlinesOnSlotBoundariesFireOnTime()
+    {
+        assertFiresOnTime(new long[]{64, 4096, 262144, 3 * 262144});
+    }
+
+
+    @Test
+    void deadlinesBeyondTheTopWheelFireOnTime()
+    {
+        long beyond = TOP_WHEEL_SPAN + 100;
+        long farBeyond = 2 * TOP_WHEEL_SPAN + 3;
+
+        wheel.schedule(() -> fired.add("beyond"), beyond, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("far beyond"), farBeyond, TimeUnit.MILLISECONDS);
+
+        advance(beyond - 1);
+        assertTrue(fired.isEmpty());
+
+        advance(1);
+        assertEquals(List.of("beyond"), fired);
+
+        advance(farBeyond - beyond - 1);
+        assertEquals(List.of("beyond"), fired);
+
+        advance(1);
+        assertEquals(List.of("beyond", "far beyond"), fired);
+    }
+
+
+    @Test
+    void cancelAfterCascade()
+    {
+        TimingWheel.Timeout timeout = wheel.schedule(() -> fired.add("cancelled"), 4100, TimeUnit.MILLISECONDS);
+        wheel.schedule(() -> fired.add("kept"), 4100, TimeUnit.MILLISECONDS);
+
+        advance(4096); // moved from the third wheel down to the first.
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        advance(10);
+        assertEquals(List.of("kept"), fired);
+    }
+
+
+    @Test
+    void cancelBeyondTheTopWheelAfterReplacing()
+    {
+        TimingWheel.Timeout timeout = wheel.schedule(() -> fired.add("cancelled"), TOP_WHEEL_SPAN + 100, TimeUnit.MILLISECONDS);
+
+        advance(TOP_WHEEL_SPAN); // placed again, from the last slot of the top wheel.
+        assertTrue(timeout.cancel());
+
+        advance(200);
+        assertTrue(fired.isEmpty());
+    }
+
+
+    @Test
+    void firedTimeoutCannotBeCancelled()
+    {
+        TimingWheel.Timeout timeout = wheel.schedule(() -> fired.add("a"), 1, TimeUnit.MILLISECONDS);
+
+        advance(1);
+        assertFalse(timeout.cancel());
+        assertEquals(List.of("a"), fired);
+    }
+
+
+    @Test
+    void pastDeadlineFiresOnTheNextTick()
+    {
+        wheel.schedule(() -> fired.add("a"), -5, TimeUnit.MILLISECONDS);
+
+        advance(1);
+        assertEquals(List.of("a"), fired);
+    }
+
+
+    @Test
+    void stopDropsPendingTimeouts()
+    {
+        wheel.schedule(() -> fired.add("a"), 5, TimeUnit.MILLISECONDS);
+        wheel.stop();
+
+        advance(10);
+        assertTrue(fired.isEmpty());
+        assertThrows(IllegalStateException.class, () -> wheel.schedule(() -> fired.add("b"), 1, TimeUnit.MILLISECONDS));
+    }
+
+
+    @Test
+    void rejectedTaskDoesNotDropTheOthers()
+    {
+        int[] executed = new int[1];
+
+        TimingWheel rejecting = new TimingWheel(Duration.ofNanos(TICK_NANOS), task ->
+        {
+            if (executed[0]++ == 0)
+                throw new RejectedExecutionException("Shutting down");
+
+            task.run();
+        }, () -> now);
+
+        rejecting.schedule(() -> fired.add("a"), 1, TimeUnit.MILLISECONDS);
+        rejecting.schedule(() -> fired.add("b"), 1, TimeUnit.MILLISECONDS);
+        rejecting.schedule(() -> fired.add("c"), 2, TimeUnit.MILLISECONDS);
+
+        now += TICK_NANOS;
+        rejecting.tick();
+        assertEquals(1, fired.size()); // one of the two due on the tick was rejected.
+
+        now += TICK_NANOS;
+        rejecting.tick();
+        assertEquals(2, fired.size());
+        assertEquals("c", fired.get(1));
+    }
+
+
+    @Test
+    void tickerThreadSurvivesARejectedTask() throws InterruptedException
+    {
+        AtomicBoolean rejectNext = new AtomicBoolean(true);
+        CountDownLatch ran = new CountDownLatch(1);
+
+        TimingWheel ticking = new TimingWheel(Duration.ofMillis(1), task ->
+        {
+            if (rejectNext.getAndSet(false))
+                throw new RejectedExecutionException("Shutting down");
+
+            task.run();
+        });
+
+        try
+        {
+            ticking.schedule(() -> { }, 1, TimeUnit.MILLISECONDS);
+            ticking.schedule(ran::countDown, 50, TimeUnit.MILLISECONDS);
+
+            assertTrue(ran.await(5, TimeUnit.SECONDS));
+        }
+
+        finally
+        {
+            ticking.stop();
+        }
+    }
+
+
+    /**
+     * Schedules a timeout for every delay, then moves the clock one tick at a time and checks each fires on its own tick.
+     */
+    private void assertFiresOnTime(long[] delays)
+    {
+        Map<Long, Long> firedAfter = new HashMap<>();
+        long[] elapsed = new long[1];
+        long last = 0;
+
+        for (long delay : delays)
+        {
+            wheel.schedule(() -> firedAfter.put(delay, elapsed[0]), delay, TimeUnit.MILLISECONDS);
+            last = Math.max(last, delay);
+        }
+
+        while (elapsed[0] < last)
+        {
+            elapsed[0]++;
+            advance(1);
+        }
+
+        for (long delay : delays)
+            assertEquals(delay, firedAfter.get(delay), "Timeout after " + delay + " ticks");
+    }
+
+
+    private void advance(long ticks)
+    {
+        now += ticks * TICK_NANOS;
+        wheel.tick();
+    }
+}